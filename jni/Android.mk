@@ -17,9 +17,12 @@ LOCAL_SRC_FILES := \
         feature_mos/src/mosaic/trsMatrix.cpp \
         feature_mos/src/mosaic/AlignFeatures.cpp \
         feature_mos/src/mosaic/Blend.cpp \
+        feature_mos/src/mosaic/ColorConvert.cpp \
+        feature_mos/src/mosaic/ColorConvert_sse2.cpp \
         feature_mos/src/mosaic/Delaunay.cpp \
         feature_mos/src/mosaic/ImageUtils.cpp \
         feature_mos/src/mosaic/Mosaic.cpp \
+        feature_mos/src/mosaic/MosaicArena.cpp \
         feature_mos/src/mosaic/Pyramid.cpp \
         feature_mos/src/mosaic_renderer/Renderer.cpp \
         feature_mos/src/mosaic_renderer/WarpRenderer.cpp \
@@ -40,8 +43,13 @@ LOCAL_SRC_FILES := \
         feature_stab/src/dbreg/dbstabsmooth.cpp \
         feature_stab/src/dbreg/vp_motionmodel.c
 
+# Only the NEON kernels are built with NEON on ARM; they check at run time
+# that the CPU has it.
 ifeq ($(TARGET_ARCH), arm)
         LOCAL_SDK_VERSION := 9
+        LOCAL_SRC_FILES += feature_mos/src/mosaic/ColorConvert_neon.cpp.neon
+else
+        LOCAL_SRC_FILES += feature_mos/src/mosaic/ColorConvert_neon.cpp
 endif
 
 ifeq ($(TARGET_ARCH), x86)
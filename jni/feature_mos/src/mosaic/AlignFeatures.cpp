@@ -111,6 +111,7 @@ int Align::addFrame(ImageType imageGray_)
   if (frame_number == 0)
   {
       reg.AddFrame(m_rows, Hcurr, true);    // Force this to be a reference frame
+      LOGV("Frame %d: corner detection %g ms", frame_number, reg.GetCornerDetectionTime());
       int num_corner_ref = reg.GetNrRefCorners();
 
       if (num_corner_ref < MIN_NR_REF_CORNERS)
@@ -121,6 +122,7 @@ int Align::addFrame(ImageType imageGray_)
   else
   {
       reg.AddFrame(m_rows, Hcurr, false);
+      LOGV("Frame %d: corner detection %g ms", frame_number, reg.GetCornerDetectionTime());
   }
 
   // Average translation per frame =
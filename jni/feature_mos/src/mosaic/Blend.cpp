@@ -19,6 +19,10 @@
 // $Id: Blend.cpp,v 1.22 2011/06/24 04:22:14 mbansal Exp $
 
 #include <string.h>
+#include <stdlib.h>
+#include <pthread.h>
+#include <time.h>
+#include <unistd.h>
 
 #include "Interp.h"
 #include "Blend.h"
@@ -29,13 +33,49 @@
 #include "Log.h"
 #define LOG_TAG "BLEND"
 
+// Bounds of a tile that does not end on that side, in level-0 pixels along
+// the pan. Far beyond any mosaic, but still safe to negate and shift.
+static const int TILE_MIN = -(1 << 28);
+static const int TILE_MAX = 1 << 28;
+
+// Returns the seconds of a monotonic clock, to time the phases of blending.
+static double Now()
+{
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return t.tv_sec + t.tv_nsec / 1e9;
+}
+
+// Bytes of a packed pyramid, as allocatePyramidPacked takes them.
+static size_t PyramidBytes(int levels, int width, int height)
+{
+    int lines;
+    unsigned int size = PyramidShort::calcStorage((real) width, (real) height,
+            (real) (BORDER << 1), levels, &lines);
+    return sizeof(PyramidShort) * levels + sizeof(short *) * lines + sizeof(short) * size;
+}
+
 Blend::Blend()
 {
   m_wb.blendingType = BLEND_TYPE_NONE;
+  m_nThreads = 0;
+  memset(&m_Times, 0, sizeof(m_Times));
+  m_pArena = &m_OwnArena;
+  m_pFirstFrame = m_pLastFrame = m_pNextFrame = NULL;
+  m_nIncrementalBudget = m_nIncrementalBytes = 0;
+  m_pSitePyramids = NULL;
+  m_bWorkerRunning = m_bStopWorker = false;
+  pthread_mutex_init(&m_Lock, NULL);
+  pthread_cond_init(&m_Wake, NULL);
 }
 
 Blend::~Blend()
 {
+    StopIncremental();
+    FreeIncremental();
+    pthread_cond_destroy(&m_Wake);
+    pthread_mutex_destroy(&m_Lock);
+
     if (m_pFrameVPyr) free(m_pFrameVPyr);
     if (m_pFrameUPyr) free(m_pFrameUPyr);
     if (m_pFrameYPyr) free(m_pFrameYPyr);
@@ -74,6 +114,151 @@ int Blend::initialize(int blendingType, int stripType, int frame_width, int fram
     return BLEND_RET_OK;
 }
 
+void Blend::setThreadCount(int count)
+{
+    m_nThreads = count;
+}
+
+void Blend::setArena(MosaicArena *arena)
+{
+    m_pArena = (arena != NULL) ? arena : &m_OwnArena;
+}
+
+void Blend::setIncrementalBudget(size_t bytes)
+{
+    m_nIncrementalBudget = bytes;
+}
+
+void Blend::addFrame(MosaicFrame *mb)
+{
+    size_t bytes = PyramidBytes(m_wb.nlevs, width, height) +
+            2 * PyramidBytes(m_wb.nlevsC, width, height);
+    if (m_nIncrementalBytes + bytes > m_nIncrementalBudget)
+        return;
+
+    FramePyramids *frame = (FramePyramids *) calloc(1, sizeof(FramePyramids));
+    if (frame == NULL)
+        return;
+    frame->mb = mb;
+    frame->yPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevs, (unsigned short) width, (unsigned short) height, BORDER);
+    frame->uPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) width, (unsigned short) height, BORDER);
+    frame->vPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) width, (unsigned short) height, BORDER);
+    if (!frame->yPyr || !frame->uPyr || !frame->vPyr)
+    {
+        // Not an error: runBlend blends the frame as it would without a budget.
+        if (frame->vPyr) free(frame->vPyr);
+        if (frame->uPyr) free(frame->uPyr);
+        if (frame->yPyr) free(frame->yPyr);
+        free(frame);
+        return;
+    }
+    m_nIncrementalBytes += bytes;
+
+    pthread_mutex_lock(&m_Lock);
+    if (m_pLastFrame != NULL)
+        m_pLastFrame->next = frame;
+    else
+        m_pFirstFrame = frame;
+    m_pLastFrame = frame;
+    if (m_pNextFrame == NULL)
+        m_pNextFrame = frame;
+
+    if (!m_bWorkerRunning)
+    {
+        m_bStopWorker = false;
+        m_bWorkerRunning = (pthread_create(&m_Worker, NULL, IncrementalThread, this) == 0);
+    }
+    pthread_cond_signal(&m_Wake);
+    pthread_mutex_unlock(&m_Lock);
+}
+
+// Builds the pyramids of the frames added, in order, until there are none
+// left and StopIncremental is called.
+void *Blend::IncrementalThread(void *arg)
+{
+    Blend *blend = (Blend *) arg;
+    BlendTile tile;
+    tile.scratch = &blend->m_WorkerScratch;
+
+    pthread_mutex_lock(&blend->m_Lock);
+    while (true)
+    {
+        while (!blend->m_bStopWorker && blend->m_pNextFrame == NULL)
+            pthread_cond_wait(&blend->m_Wake, &blend->m_Lock);
+        if (blend->m_bStopWorker)
+            break;
+
+        FramePyramids *frame = blend->m_pNextFrame;
+        blend->m_pNextFrame = frame->next;
+        pthread_mutex_unlock(&blend->m_Lock);
+
+        tile.yPyr = frame->yPyr;
+        tile.uPyr = frame->uPyr;
+        tile.vPyr = frame->vPyr;
+        bool ready = (blend->FillFramePyramid(frame->mb, tile) == BLEND_RET_OK);
+
+        pthread_mutex_lock(&blend->m_Lock);
+        frame->ready = ready;
+    }
+    pthread_mutex_unlock(&blend->m_Lock);
+    return NULL;
+}
+
+// Stops the worker once it is done with the frame it is on. The frames it
+// did not get to are left not ready.
+void Blend::StopIncremental()
+{
+    pthread_mutex_lock(&m_Lock);
+    m_bStopWorker = true;
+    pthread_cond_signal(&m_Wake);
+    pthread_mutex_unlock(&m_Lock);
+
+    if (m_bWorkerRunning)
+        pthread_join(m_Worker, NULL);
+    m_bWorkerRunning = false;
+}
+
+// Frees the frames added. The worker must be stopped.
+void Blend::FreeIncremental()
+{
+    while (m_pFirstFrame != NULL)
+    {
+        FramePyramids *next = m_pFirstFrame->next;
+        free(m_pFirstFrame->vPyr);
+        free(m_pFirstFrame->uPyr);
+        free(m_pFirstFrame->yPyr);
+        free(m_pFirstFrame);
+        m_pFirstFrame = next;
+    }
+    m_pLastFrame = m_pNextFrame = NULL;
+    m_pSitePyramids = NULL;
+    m_nIncrementalBytes = 0;
+}
+
+// Points each site to the pyramids built ahead for its frame, if any.
+void Blend::FindSitePyramids(int nsite)
+{
+    m_pSitePyramids = NULL;
+    if (m_pFirstFrame == NULL)
+        return;
+
+    m_pSitePyramids = m_pArena->allocateArray<FramePyramids *>(nsite);
+    if (m_pSitePyramids == NULL)
+        return;
+    for (int k = 0; k < nsite; k++)
+    {
+        m_pSitePyramids[k] = NULL;
+        for (FramePyramids *frame = m_pFirstFrame; frame != NULL; frame = frame->next)
+        {
+            if (frame->mb == m_AllSites[k].getMb())
+            {
+                if (frame->ready) m_pSitePyramids[k] = frame;
+                break;
+            }
+        }
+    }
+}
+
 inline double max(double a, double b) { return a > b ? a : b; }
 inline double min(double a, double b) { return a < b ? a : b; }
 
@@ -99,13 +284,29 @@ void Blend::AlignToMiddleFrame(MosaicFrame **frames, int frames_size)
 int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
         int frames_size,
         ImageType &imageMosaicYVU, int &mosaicWidth, int &mosaicHeight,
-        float &progress, bool &cancelComputation)
+        float &progress, bool &cancelComputation, ProgressListener *listener)
+{
+    // The frames the worker has not got to are blended here with the rest.
+    StopIncremental();
+    int ret = BlendFrames(oframes, rframes, frames_size, imageMosaicYVU,
+            mosaicWidth, mosaicHeight, progress, cancelComputation, listener);
+    FreeIncremental();
+    return ret;
+}
+
+int Blend::BlendFrames(MosaicFrame **oframes, MosaicFrame **rframes,
+        int frames_size,
+        ImageType &imageMosaicYVU, int &mosaicWidth, int &mosaicHeight,
+        float &progress, bool &cancelComputation, ProgressListener *listener)
 {
     int ret;
     int numCenters;
 
     MosaicFrame **frames;
 
+    memset(&m_Times, 0, sizeof(m_Times));
+    double start = Now();
+
     // For THIN strip mode, accept all frames for blending
     if (m_wb.stripType == STRIP_TYPE_THIN)
     {
@@ -126,7 +327,8 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
         return BLEND_RET_ERROR;
     }
 
-    if (!(m_AllSites = m_Triangulator.allocMemory(numCenters)))
+    MosaicArena::Mark mark = m_pArena->getMark();
+    if (!(m_AllSites = m_Triangulator.allocMemory(numCenters, m_pArena)))
     {
         return BLEND_RET_ERROR_MEMORY;
     }
@@ -202,6 +404,7 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
         csite->setMb(mb);
         csite++;
     }
+    FindSitePyramids(numCenters);
 
     // Get origin and sizes
 
@@ -281,14 +484,18 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
     }
 
     // Do merging and blending :
+    m_Times.layout = Now() - start;
     ret = DoMergeAndBlend(frames, numCenters, width, height, *imgMos, fullRect,
-            cropping_rect, progress, cancelComputation);
+            cropping_rect, progress, cancelComputation, listener);
 
+    start = Now();
     if (m_wb.blendingType == BLEND_TYPE_HORZ)
         CropFinalMosaic(*imgMos, cropping_rect);
+    m_Times.crop = Now() - start;
 
 
     m_Triangulator.freeMemory();    // note: can be called even if delaunay_alloc() wasn't successful
+    m_pArena->rewind(mark);
 
     imageMosaicYVU = imgMos->Y.ptr[0];
 
@@ -328,7 +535,7 @@ int Blend::MosaicSizeCheck(float sizeMultiplier, float heightMultiplier) {
    return BLEND_RET_OK;
 }
 
-int Blend::FillFramePyramid(MosaicFrame *mb)
+int Blend::FillFramePyramid(MosaicFrame *mb, BlendTile &tile)
 {
     ImageType mbY, mbU, mbV;
     // Lay this image, centered into the temporary buffer
@@ -340,9 +547,9 @@ int Blend::FillFramePyramid(MosaicFrame *mb)
 
     for(h=0; h<height; h++)
     {
-        ImageTypeShort yptr = m_pFrameYPyr->ptr[h];
-        ImageTypeShort uptr = m_pFrameUPyr->ptr[h];
-        ImageTypeShort vptr = m_pFrameVPyr->ptr[h];
+        ImageTypeShort yptr = tile.yPyr->ptr[h];
+        ImageTypeShort uptr = tile.uPyr->ptr[h];
+        ImageTypeShort vptr = tile.vPyr->ptr[h];
 
         for(w=0; w<width; w++)
         {
@@ -353,14 +560,14 @@ int Blend::FillFramePyramid(MosaicFrame *mb)
     }
 
     // Spread the image through the border
-    PyramidShort::BorderSpread(m_pFrameYPyr, BORDER, BORDER, BORDER, BORDER);
-    PyramidShort::BorderSpread(m_pFrameUPyr, BORDER, BORDER, BORDER, BORDER);
-    PyramidShort::BorderSpread(m_pFrameVPyr, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort::BorderSpread(tile.yPyr, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort::BorderSpread(tile.uPyr, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort::BorderSpread(tile.vPyr, BORDER, BORDER, BORDER, BORDER);
 
     // Generate Laplacian pyramids
-    if (!PyramidShort::BorderReduce(m_pFrameYPyr, m_wb.nlevs) || !PyramidShort::BorderExpand(m_pFrameYPyr, m_wb.nlevs, -1) ||
-            !PyramidShort::BorderReduce(m_pFrameUPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(m_pFrameUPyr, m_wb.nlevsC, -1) ||
-            !PyramidShort::BorderReduce(m_pFrameVPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(m_pFrameVPyr, m_wb.nlevsC, -1))
+    if (!PyramidShort::BorderReduce(tile.yPyr, m_wb.nlevs, tile.scratch) || !PyramidShort::BorderExpand(tile.yPyr, m_wb.nlevs, -1, tile.scratch) ||
+            !PyramidShort::BorderReduce(tile.uPyr, m_wb.nlevsC, tile.scratch) || !PyramidShort::BorderExpand(tile.uPyr, m_wb.nlevsC, -1, tile.scratch) ||
+            !PyramidShort::BorderReduce(tile.vPyr, m_wb.nlevsC, tile.scratch) || !PyramidShort::BorderExpand(tile.vPyr, m_wb.nlevsC, -1, tile.scratch))
     {
         LOGE("Error: Could not generate Laplacian pyramids");
         return BLEND_RET_ERROR;
@@ -373,12 +580,15 @@ int Blend::FillFramePyramid(MosaicFrame *mb)
 
 int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
              int width, int height, YUVinfo &imgMos, MosaicRect &rect,
-             MosaicRect &cropping_rect, float &progress, bool &cancelComputation)
+             MosaicRect &cropping_rect, float &progress, bool &cancelComputation,
+             ProgressListener *listener)
 {
     m_pMosaicYPyr = NULL;
     m_pMosaicUPyr = NULL;
     m_pMosaicVPyr = NULL;
 
+    double start = Now();
+
     m_pMosaicYPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevs,(unsigned short)rect.Width(),(unsigned short)rect.Height(),BORDER);
     m_pMosaicUPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC,(unsigned short)rect.Width(),(unsigned short)rect.Height(),BORDER);
     m_pMosaicVPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC,(unsigned short)rect.Width(),(unsigned short)rect.Height(),BORDER);
@@ -551,33 +761,22 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
     }
 
     // Now perform the actual blending using the frame assignment determined above
-    site_idx = 0;
-    for(CSite *csite = m_AllSites; csite < esite; csite++)
+    m_Times.mask = Now() - start;
+    start = Now();
+    int ret = BlendTiles(nsite, rect, imgMos, progress, cancelComputation, listener);
+    m_Times.pyramids = Now() - start;
+    if (ret != BLEND_RET_OK)
     {
-        if(cancelComputation)
-        {
-            if (m_pMosaicVPyr) free(m_pMosaicVPyr);
-            if (m_pMosaicUPyr) free(m_pMosaicUPyr);
-            if (m_pMosaicYPyr) free(m_pMosaicYPyr);
-            return BLEND_RET_CANCELLED;
-        }
-
-        mb = csite->getMb();
-
-
-        if(FillFramePyramid(mb)!=BLEND_RET_OK)
-            return BLEND_RET_ERROR;
-
-        ProcessPyramidForThisFrame(csite, mb->vcrect, mb->brect, rect, imgMos, mb->trs, site_idx);
-
-        progress += TIME_PERCENT_BLEND/nsite;
-
-        site_idx++;
+        if (m_pMosaicVPyr) free(m_pMosaicVPyr);
+        if (m_pMosaicUPyr) free(m_pMosaicUPyr);
+        if (m_pMosaicYPyr) free(m_pMosaicYPyr);
+        return ret;
     }
 
-
     // Blend
+    start = Now();
     PerformFinalBlending(imgMos, cropping_rect);
+    m_Times.collapse = Now() - start;
 
     if (cropping_rect.Width() <= 0 || cropping_rect.Height() <= 0)
     {
@@ -591,7 +790,214 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
     if (m_pMosaicYPyr) free(m_pMosaicYPyr);
 
     progress += TIME_PERCENT_FINAL;
+    if (listener != NULL) listener->onProgress(progress);
+
+    return BLEND_RET_OK;
+}
+
+static int CompareCenters(const void *a, const void *b)
+{
+    double ca = *(const double *) a;
+    double cb = *(const double *) b;
+    return (ca < cb) ? -1 : (ca > cb) ? 1 : 0;
+}
+
+int Blend::GetThreadCount(int nsite)
+{
+    int count = m_nThreads;
+    if (count <= 0)
+    {
+        long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+        count = (cpus > 0) ? (int) cpus : 1;
+    }
+    if (count > MAX_BLEND_THREADS) count = MAX_BLEND_THREADS;
+    if (count > nsite) count = nsite;
+    return (count < 1) ? 1 : count;
+}
+
+// Blends all the sites into the mosaic pyramid. The mosaic is split into
+// bands along the pan with about as many frames in each, and every band is
+// blended on its own thread. A frame straddling a band boundary is expanded
+// into a pyramid by each of the threads it contributes to.
+int Blend::BlendTiles(int nsite, MosaicRect &rect, YUVinfo &imgMos,
+        float &progress, bool &cancelComputation, ProgressListener *listener)
+{
+    int ntiles = GetThreadCount(nsite);
+
+    // Put the band boundaries half way between the centers of the frames.
+    int bounds[MAX_BLEND_THREADS + 1];
+    bounds[0] = TILE_MIN;
+    bounds[ntiles] = TILE_MAX;
+    MosaicArena::Mark mark = m_pArena->getMark();
+    if (ntiles > 1)
+    {
+        double *centers = m_pArena->allocateArray<double>(nsite);
+        if (centers == NULL) return BLEND_RET_ERROR_MEMORY;
+        for (int k = 0; k < nsite; k++)
+        {
+            centers[k] = m_wb.horizontal ?
+                    m_AllSites[k].getVCenter().x - rect.left :
+                    m_AllSites[k].getVCenter().y - rect.top;
+        }
+        qsort(centers, nsite, sizeof(double), CompareCenters);
+        for (int k = 1; k < ntiles; k++)
+        {
+            int s = k * nsite / ntiles;
+            bounds[k] = (int) ceil((centers[s - 1] + centers[s]) / 2);
+        }
+    }
+
+    int ret = BLEND_RET_OK;
+    volatile int done = 0;
+    int total = 0;
+    BlendTile tiles[MAX_BLEND_THREADS];
+    CSite **sites = m_pArena->allocateArray<CSite *>(nsite * ntiles);
+    if (sites == NULL)
+    {
+        m_pArena->rewind(mark);
+        return BLEND_RET_ERROR_MEMORY;
+    }
+
+    for (int k = 0; k < ntiles; k++)
+    {
+        BlendTile &tile = tiles[k];
+        tile.blend = this;
+        tile.lo = bounds[k];
+        tile.hi = bounds[k + 1];
+        tile.rect = &rect;
+        tile.imgMos = &imgMos;
+        tile.cancelComputation = &cancelComputation;
+        tile.done = &done;
+        tile.ret = BLEND_RET_OK;
+
+        // With one band the pyramids of its frames get all the threads.
+        tile.scratch = &m_Scratch[k];
+        tile.scratch->setThreadCount(ntiles == 1 ? GetThreadCount(MAX_BLEND_THREADS) : 1);
+
+        // The first band uses the frame pyramids of the blender.
+        if (k == 0)
+        {
+            tile.yPyr = m_pFrameYPyr;
+            tile.uPyr = m_pFrameUPyr;
+            tile.vPyr = m_pFrameVPyr;
+        }
+        else
+        {
+            tile.yPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevs, (unsigned short) width, (unsigned short) height, BORDER);
+            tile.uPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) width, (unsigned short) height, BORDER);
+            tile.vPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) width, (unsigned short) height, BORDER);
+            if (!tile.yPyr || !tile.uPyr || !tile.vPyr)
+            {
+                LOGE("Error: Could not allocate pyramids for blending");
+                ret = BLEND_RET_ERROR_MEMORY;
+            }
+        }
+
+        tile.sites = sites + k * nsite;
+        tile.nsite = 0;
+        for (CSite *csite = m_AllSites; csite < m_AllSites + nsite; csite++)
+        {
+            if (ntiles == 1 || IsInTile(csite, rect, tile))
+                tile.sites[tile.nsite++] = csite;
+        }
+        total += tile.nsite;
+    }
+
+    if (ret == BLEND_RET_OK)
+    {
+        pthread_t threads[MAX_BLEND_THREADS];
+        bool started[MAX_BLEND_THREADS];
+        for (int k = 1; k < ntiles; k++)
+        {
+            started[k] = (pthread_create(&threads[k], NULL, BlendTileThread, &tiles[k]) == 0);
+        }
+
+        // The listener may only be called on this thread, so it blends the
+        // first band and reports the progress of all of them.
+        float base = progress;
+        tiles[0].ret = BlendSites(tiles[0], total, base, progress, listener);
+
+        for (int k = 1; k < ntiles; k++)
+        {
+            if (started[k])
+                pthread_join(threads[k], NULL);
+            else
+                tiles[k].ret = BlendSites(tiles[k], total, base, progress, listener);
+        }
+
+        for (int k = 0; k < ntiles; k++)
+        {
+            if (tiles[k].ret != BLEND_RET_OK)
+            {
+                ret = tiles[k].ret;
+                break;
+            }
+        }
+
+        if (ret == BLEND_RET_OK && ntiles > 1)
+        {
+            progress = base + TIME_PERCENT_BLEND;
+            if (listener != NULL) listener->onProgress(progress);
+        }
+    }
+
+    for (int k = 1; k < ntiles; k++)
+    {
+        if (tiles[k].vPyr) free(tiles[k].vPyr);
+        if (tiles[k].uPyr) free(tiles[k].uPyr);
+        if (tiles[k].yPyr) free(tiles[k].yPyr);
+    }
+    m_pArena->rewind(mark);
+
+    return ret;
+}
+
+void *Blend::BlendTileThread(void *arg)
+{
+    BlendTile *tile = (BlendTile *) arg;
+    float progress = 0;
+    tile->ret = tile->blend->BlendSites(*tile, 0, 0, progress, NULL);
+    return NULL;
+}
+
+// Blends the sites of a tile in order. If a listener is given, the progress
+// of all the tiles is reported to it after each site.
+int Blend::BlendSites(BlendTile &tile, int total, float base, float &progress,
+        ProgressListener *listener)
+{
+    for (int k = 0; k < tile.nsite; k++)
+    {
+        if (*tile.cancelComputation)
+            return BLEND_RET_CANCELLED;
+
+        CSite *csite = tile.sites[k];
+        MosaicFrame *mb = csite->getMb();
+
+        // Use the pyramids built ahead by addFrame, if there are any.
+        int site_idx = (int) (csite - m_AllSites);
+        FramePyramids *built = (m_pSitePyramids != NULL) ? m_pSitePyramids[site_idx] : NULL;
+        PyramidShort *yPyr = tile.yPyr, *uPyr = tile.uPyr, *vPyr = tile.vPyr;
+        if (built != NULL)
+        {
+            yPyr = built->yPyr;
+            uPyr = built->uPyr;
+            vPyr = built->vPyr;
+        }
+        else if (FillFramePyramid(mb, tile) != BLEND_RET_OK)
+        {
+            return BLEND_RET_ERROR;
+        }
 
+        ProcessPyramidForThisFrame(csite, mb->vcrect, mb->brect, *tile.rect,
+                *tile.imgMos, mb->trs, site_idx, tile, yPyr, uPyr, vPyr);
+
+        int done = __sync_add_and_fetch(tile.done, 1);
+        if (listener != NULL)
+        {
+            progress = base + TIME_PERCENT_BLEND * done / total;
+            listener->onProgress(progress);
+        }
+    }
     return BLEND_RET_OK;
 }
 
@@ -636,8 +1042,12 @@ void Blend::CropFinalMosaic(YUVinfo &imgMos, MosaicRect &cropping_rect)
 
 int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
 {
-    if (!PyramidShort::BorderExpand(m_pMosaicYPyr, m_wb.nlevs, 1) || !PyramidShort::BorderExpand(m_pMosaicUPyr, m_wb.nlevsC, 1) ||
-        !PyramidShort::BorderExpand(m_pMosaicVPyr, m_wb.nlevsC, 1))
+    // The bands are done, so all the threads go to collapsing the pyramids.
+    PyramidScratch *scratch = &m_Scratch[0];
+    scratch->setThreadCount(GetThreadCount(MAX_BLEND_THREADS));
+
+    if (!PyramidShort::BorderExpand(m_pMosaicYPyr, m_wb.nlevs, 1, scratch) || !PyramidShort::BorderExpand(m_pMosaicUPyr, m_wb.nlevsC, 1, scratch) ||
+        !PyramidShort::BorderExpand(m_pMosaicVPyr, m_wb.nlevsC, 1, scratch))
     {
       LOGE("Error: Could not BorderExpand!");
       return BLEND_RET_ERROR;
@@ -655,11 +1065,19 @@ int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
 
     // 2D boolean array that contains true wherever the mosaic image data is
     // invalid (i.e. in the gray border).
-    bool **b = new bool*[imgMos.Y.height];
+    MosaicArena::Mark mark = m_pArena->getMark();
+    bool **b = m_pArena->allocateArray<bool *>(imgMos.Y.height);
+    bool *bdata = m_pArena->allocateArray<bool>(imgMos.Y.height * imgMos.Y.width);
+    if (b == NULL || bdata == NULL)
+    {
+        m_pArena->rewind(mark);
+        LOGE("Error: Could not allocate the mosaic mask");
+        return BLEND_RET_ERROR_MEMORY;
+    }
 
     for(int j=0; j<imgMos.Y.height; j++)
     {
-        b[j] = new bool[imgMos.Y.width];
+        b[j] = bdata + j * imgMos.Y.width;
     }
 
     // Copy the resulting image into the full image using the mask
@@ -797,12 +1215,7 @@ int Blend::PerformFinalBlending(YUVinfo &imgMos, MosaicRect &cropping_rect)
 
     RoundingCroppingSizeToMultipleOf8(cropping_rect);
 
-    for(int j=0; j<imgMos.Y.height; j++)
-    {
-        delete b[j];
-    }
-
-    delete b;
+    m_pArena->rewind(mark);
 
     return BLEND_RET_OK;
 }
@@ -887,16 +1300,83 @@ void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, Mosai
     }
 }
 
-void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx)
+// Computes the region of interest of a frame at a pyramid level, in the
+// pixels of that level.
+void Blend::GetLevelRect(BlendRect &vcrect, BlendRect &brect, MosaicRect &rect,
+        PyramidShort *dptr, int dscale, int &l, int &b, int &r, int &t)
+{
+    l = (int) ((vcrect.lft - rect.left) / (1 << dscale));
+    b = (int) ((vcrect.bot - rect.top) / (1 << dscale));
+    r = (int) ((vcrect.rgt - rect.left) / (1 << dscale) + .5);
+    t = (int) ((vcrect.top - rect.top) / (1 << dscale) + .5);
+
+    if (vcrect.lft == brect.lft)
+        l = (l <= 0) ? -BORDER : l - BORDER;
+    else if (l < -BORDER)
+        l = -BORDER;
+
+    if (vcrect.bot == brect.bot)
+        b = (b <= 0) ? -BORDER : b - BORDER;
+    else if (b < -BORDER)
+        b = -BORDER;
+
+    if (vcrect.rgt == brect.rgt)
+        r = (r >= dptr->width) ? dptr->width + BORDER - 1 : r + BORDER;
+    else if (r >= dptr->width + BORDER)
+        r = dptr->width + BORDER - 1;
+
+    if (vcrect.top == brect.top)
+        t = (t >= dptr->height) ? dptr->height + BORDER - 1 : t + BORDER;
+    else if (t >= dptr->height + BORDER)
+        t = dptr->height + BORDER - 1;
+}
+
+// Clips a region at a pyramid level to the pixels whose level-0 position
+// along the pan is in the tile.
+void Blend::ClipToTile(BlendTile &tile, int dscale, int &l, int &b, int &r, int &t)
+{
+    // The first pixels at this level at or after lo and hi
+    int first = -((-tile.lo) >> dscale);
+    int end = -((-tile.hi) >> dscale);
+
+    if (m_wb.horizontal)
+    {
+        if (l < first) l = first;
+        if (r > end - 1) r = end - 1;
+    }
+    else
+    {
+        if (b < first) b = first;
+        if (t > end - 1) t = end - 1;
+    }
+}
+
+bool Blend::IsInTile(CSite *csite, MosaicRect &rect, BlendTile &tile)
+{
+    MosaicFrame *mb = csite->getMb();
+    PyramidShort *dptr = m_pMosaicYPyr;
+    for (int dscale = 0; dscale < m_wb.nlevs; dscale++, dptr++)
+    {
+        int l, b, r, t;
+        GetLevelRect(mb->vcrect, mb->brect, rect, dptr, dscale, l, b, r, t);
+        ClipToTile(tile, dscale, l, b, r, t);
+        if (l <= r && b <= t)
+            return true;
+    }
+    return false;
+}
+
+void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx, BlendTile &tile,
+        PyramidShort *yPyr, PyramidShort *uPyr, PyramidShort *vPyr)
 {
     // Put the Region of interest (for all levels) into m_pMosaicYPyr
     double inv_trs[3][3];
     inv33d(trs, inv_trs);
 
     // Process each pyramid level
-    PyramidShort *sptr = m_pFrameYPyr;
-    PyramidShort *suptr = m_pFrameUPyr;
-    PyramidShort *svptr = m_pFrameVPyr;
+    PyramidShort *sptr = yPyr;
+    PyramidShort *suptr = uPyr;
+    PyramidShort *svptr = vPyr;
 
     PyramidShort *dptr = m_pMosaicYPyr;
     PyramidShort *duptr = m_pMosaicUPyr;
@@ -906,30 +1386,9 @@ void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRec
     int nC = m_wb.nlevsC;
     for (int n = m_wb.nlevs; n--; dscale++, dptr++, sptr++, dvptr++, duptr++, svptr++, suptr++, nC--)
     {
-        int l = (int) ((vcrect.lft - rect.left) / (1 << dscale));
-        int b = (int) ((vcrect.bot - rect.top) / (1 << dscale));
-        int r = (int) ((vcrect.rgt - rect.left) / (1 << dscale) + .5);
-        int t = (int) ((vcrect.top - rect.top) / (1 << dscale) + .5);
-
-        if (vcrect.lft == brect.lft)
-            l = (l <= 0) ? -BORDER : l - BORDER;
-        else if (l < -BORDER)
-            l = -BORDER;
-
-        if (vcrect.bot == brect.bot)
-            b = (b <= 0) ? -BORDER : b - BORDER;
-        else if (b < -BORDER)
-            b = -BORDER;
-
-        if (vcrect.rgt == brect.rgt)
-            r = (r >= dptr->width) ? dptr->width + BORDER - 1 : r + BORDER;
-        else if (r >= dptr->width + BORDER)
-            r = dptr->width + BORDER - 1;
-
-        if (vcrect.top == brect.top)
-            t = (t >= dptr->height) ? dptr->height + BORDER - 1 : t + BORDER;
-        else if (t >= dptr->height + BORDER)
-            t = dptr->height + BORDER - 1;
+        int l, b, r, t;
+        GetLevelRect(vcrect, brect, rect, dptr, dscale, l, b, r, t);
+        ClipToTile(tile, dscale, l, b, r, t);
 
         // Walk the Region of interest and populate the pyramid
         for (int j = b; j <= t; j++)
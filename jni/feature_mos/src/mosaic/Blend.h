@@ -21,9 +21,12 @@
 #ifndef BLEND_H
 #define BLEND_H
 
+#include <pthread.h>
+
 #include "MosaicTypes.h"
 #include "Pyramid.h"
 #include "Delaunay.h"
+#include "MosaicArena.h"
 
 #define BLEND_RANGE_DEFAULT 6
 #define BORDER 8
@@ -47,6 +50,37 @@ const float STRIP_CROSS_FADE_WIDTH_PXLS = 2;
 // the blending algorithm.
 const int STRIP_CROSS_FADE_MAX_PYR_LEVEL = 2;
 
+/**
+ *  Interface for being told about the progress of the blending as it goes.
+ */
+class ProgressListener {
+
+public:
+  virtual ~ProgressListener() {}
+
+  /**
+   *  Called on the blending thread each time the progress changes.
+   *  \param progress     The progress so far, in percent.
+   */
+  virtual void onProgress(float progress) = 0;
+};
+
+/**
+ *  Seconds spent in each phase of the last Blend::runBlend().
+ */
+struct BlendTimes {
+  // Laying out the frames: bounds, triangulation and the mosaic image
+  double layout;
+  // Assigning the mosaic pixels to frames and the seams between them
+  double mask;
+  // Blending the frames into the mosaic pyramids
+  double pyramids;
+  // Collapsing the mosaic pyramids into the mosaic image
+  double collapse;
+  // Cropping the gray border off the mosaic
+  double crop;
+};
+
 /**
  *  Class for pyramid blending a mosaic.
  */
@@ -68,16 +102,125 @@ public:
   static const int BLEND_RET_ERROR_MEMORY = 1;
   static const int BLEND_RET_CANCELLED    = -2;
 
+  static const int MAX_BLEND_THREADS = 4;
+
   Blend();
   ~Blend();
 
   int initialize(int blendingType, int stripType, int frame_width, int frame_height);
 
+  /**
+   *  Sets the number of threads blending the frames into the mosaic.
+   *  \param count        The number of threads, up to MAX_BLEND_THREADS, or
+   *                      0 for one per online CPU. The default is 0.
+   */
+  void setThreadCount(int count);
+
+  /**
+   *  Sets the arena the triangulation and the blending buffers are taken
+   *  from. They are given back to it before runBlend returns.
+   *  \param arena        The arena, or NULL to use one of the blender's own.
+   */
+  void setArena(MosaicArena *arena);
+
+  /**
+   *  Sets how much memory the frames blended ahead by addFrame may hold.
+   *  \param bytes        The budget, or 0 to blend everything in runBlend,
+   *                      which is the default.
+   */
+  void setIncrementalBudget(size_t bytes);
+
+  /**
+   *  Starts blending a frame as soon as it is added to the mosaic. Where the
+   *  frames go in the mosaic, and so the seams between them, depend on the
+   *  last one, but the pyramids each frame is blended from do not: they are
+   *  built on a worker thread while the capture goes on, and runBlend then
+   *  only lays out the frames, places the seams and warps the pyramids into
+   *  the mosaic. Frames past the budget, or not reached by the worker yet,
+   *  are done by runBlend as before. The image of the frame must not change
+   *  until runBlend.
+   *  \param mb           The frame, which stays valid until runBlend
+   */
+  void addFrame(MosaicFrame *mb);
+
   int runBlend(MosaicFrame **frames, MosaicFrame **rframes, int frames_size, ImageType &imageMosaicYVU,
-        int &mosaicWidth, int &mosaicHeight, float &progress, bool &cancelComputation);
+        int &mosaicWidth, int &mosaicHeight, float &progress, bool &cancelComputation,
+        ProgressListener *listener = NULL);
+
+  /**
+   *  Returns how long each phase of the last runBlend() took. Phases it did
+   *  not reach are 0.
+   */
+  const BlendTimes &getTimes() const { return m_Times; }
 
 protected:
 
+  /**
+   *  A band of the mosaic, across the direction of the pan, that one thread
+   *  blends the frames into. Only that thread writes the pixels of the mosaic
+   *  pyramid and mask whose level-0 position along the pan is in [lo, hi),
+   *  so each pixel sees the frames in the same order as with one thread.
+   */
+  struct BlendTile {
+    Blend *blend;
+    int lo, hi;
+    // The pyramids the frames are expanded into, and their scratch arena
+    PyramidShort *yPyr, *uPyr, *vPyr;
+    PyramidScratch *scratch;
+    // The sites with pixels in this band, and their number
+    CSite **sites;
+    int nsite;
+    MosaicRect *rect;
+    YUVinfo *imgMos;
+    bool *cancelComputation;
+    // The number of sites blended by all the threads so far
+    volatile int *done;
+    int ret;
+  };
+
+  /**
+   *  The pyramids of a frame built ahead by the worker of addFrame.
+   */
+  struct FramePyramids {
+    MosaicFrame *mb;
+    PyramidShort *yPyr, *uPyr, *vPyr;
+    // Set by the worker once the pyramids are built
+    bool ready;
+    FramePyramids *next;
+  };
+
+  // The thread count asked for with setThreadCount
+  int m_nThreads;
+
+  // The frames added since the last runBlend, the first one the worker has
+  // not reached, and the memory they hold against the budget. The worker
+  // only takes frames and marks them ready under m_Lock.
+  FramePyramids *m_pFirstFrame, *m_pLastFrame;
+  FramePyramids *m_pNextFrame;
+  size_t m_nIncrementalBudget;
+  size_t m_nIncrementalBytes;
+
+  // The pyramids built ahead for each site, or NULL, during runBlend
+  FramePyramids **m_pSitePyramids;
+
+  pthread_t m_Worker;
+  bool m_bWorkerRunning;
+  bool m_bStopWorker;
+  pthread_mutex_t m_Lock;
+  pthread_cond_t m_Wake;
+  PyramidScratch m_WorkerScratch;
+
+  // The phase times of the last runBlend
+  BlendTimes m_Times;
+
+  // Where the buffers of runBlend come from; m_OwnArena unless set
+  MosaicArena *m_pArena;
+  MosaicArena m_OwnArena;
+
+  // Scratch arenas for building the pyramids of each band. The first one
+  // also collapses the mosaic pyramids.
+  PyramidScratch m_Scratch[MAX_BLEND_THREADS];
+
   PyramidShort *m_pFrameYPyr;
   PyramidShort *m_pFrameUPyr;
   PyramidShort *m_pFrameVPyr;
@@ -104,11 +247,27 @@ protected:
   void ClipBlendRect(CSite *csite, BlendRect &brect);
   void AlignToMiddleFrame(MosaicFrame **frames, int frames_size);
 
-  int  DoMergeAndBlend(MosaicFrame **frames, int nsite,  int width, int height, YUVinfo &imgMos, MosaicRect &rect, MosaicRect &cropping_rect, float &progress, bool &cancelComputation);
+  int  DoMergeAndBlend(MosaicFrame **frames, int nsite,  int width, int height, YUVinfo &imgMos, MosaicRect &rect, MosaicRect &cropping_rect, float &progress, bool &cancelComputation, ProgressListener *listener);
   void ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx);
-  void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx);
+  void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx, BlendTile &tile,
+        PyramidShort *yPyr, PyramidShort *uPyr, PyramidShort *vPyr);
+  void GetLevelRect(BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, PyramidShort *dptr, int dscale, int &l, int &b, int &r, int &t);
+  void ClipToTile(BlendTile &tile, int dscale, int &l, int &b, int &r, int &t);
+  bool IsInTile(CSite *csite, MosaicRect &rect, BlendTile &tile);
+
+  int  FillFramePyramid(MosaicFrame *mb, BlendTile &tile);
+  int  BlendTiles(int nsite, MosaicRect &rect, YUVinfo &imgMos, float &progress, bool &cancelComputation, ProgressListener *listener);
+  int  BlendSites(BlendTile &tile, int total, float base, float &progress, ProgressListener *listener);
+  static void *BlendTileThread(void *arg);
+  int  GetThreadCount(int nsite);
 
-  int  FillFramePyramid(MosaicFrame *mb);
+  int  BlendFrames(MosaicFrame **frames, MosaicFrame **rframes, int frames_size, ImageType &imageMosaicYVU,
+        int &mosaicWidth, int &mosaicHeight, float &progress, bool &cancelComputation,
+        ProgressListener *listener);
+  void FindSitePyramids(int nsite);
+  static void *IncrementalThread(void *arg);
+  void StopIncremental();
+  void FreeIncremental();
 
   // TODO: need to add documentation about the parameters
   void ComputeBlendParameters(MosaicFrame **frames, int frames_size, int is360);
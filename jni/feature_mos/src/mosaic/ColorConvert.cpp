@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////////////
+// ColorConvert.cpp
+
+#include <string.h>
+
+#include "ColorConvert.h"
+
+#include "Log.h"
+#define LOG_TAG "COLOR_CONVERT"
+
+void ColorConvert::rgb2yvuRange(ImageType out, ImageType in, int size, int start, int end)
+{
+    int r, g, b;
+    ImageType yimg = out + start;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+    ImageType image = in + 3 * start;
+
+    for (int k = start; k < end; k++)
+    {
+        r = (*image++);
+        g = (*image++);
+        b = (*image++);
+
+        if (r < 0) r = 0;
+        if (r > 255) r = 255;
+        if (g < 0) g = 0;
+        if (g > 255) g = 255;
+        if (b < 0) b = 0;
+        if (b > 255) b = 255;
+
+        int val = (int) (ImageUtils::REDY * r + ImageUtils::GREENY * g +
+                ImageUtils::BLUEY * b) / 1000 + 16;
+        if (val < 0) val = 0;
+        if (val > 255) val = 255;
+        *(yimg) = val;
+
+        val = (int) (ImageUtils::REDV * r - ImageUtils::GREENV * g -
+                ImageUtils::BLUEV * b) / 1000 + 128;
+        if (val < 0) val = 0;
+        if (val > 255) val = 255;
+        *(vimg) = val;
+
+        val = (int) (-ImageUtils::REDU * r - ImageUtils::GREENU * g +
+                ImageUtils::BLUEU * b) / 1000 + 128;
+        if (val < 0) val = 0;
+        if (val > 255) val = 255;
+        *(uimg) = val;
+
+        yimg++;
+        uimg++;
+        vimg++;
+    }
+}
+
+// Converts a YVU pixel to RGB in double precision. The SIMD kernels
+// compute the same in integers, except where the result is a whole number
+// that rounding may have taken just below, and leave those pixels to this.
+static inline void YvuToRgb(int y, int v, int u, int &r, int &g, int &b)
+{
+    if (y < 0) y = 0;
+    if (y > 255) y = 255;
+    if (u < 0) u = 0;
+    if (u > 255) u = 255;
+    if (v < 0) v = 0;
+    if (v > 255) v = 255;
+
+    b = (int) ( 1.164*(y - 16) + 2.018*(u-128));
+    g = (int) ( 1.164*(y - 16) - 0.813*(v-128) - 0.391*(u-128));
+    r = (int) ( 1.164*(y - 16) + 1.596*(v-128));
+
+    if (r < 0) r = 0;
+    if (r > 255) r = 255;
+    if (g < 0) g = 0;
+    if (g > 255) g = 255;
+    if (b < 0) b = 0;
+    if (b > 255) b = 255;
+}
+
+void ColorConvert::yvu2rgbRange(ImageType out, ImageType in, int size, int start, int end)
+{
+    int r, g, b;
+    ImageType yimg = in + start;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+    ImageType image = out + 3 * start;
+
+    for (int k = start; k < end; k++)
+    {
+        YvuToRgb(*yimg++, *vimg++, *uimg++, r, g, b);
+
+        *(image++) = r;
+        *(image++) = g;
+        *(image++) = b;
+    }
+}
+
+void ColorConvert::yvu2bgrRange(ImageType out, ImageType in, int size, int start, int end)
+{
+    int r, g, b;
+    ImageType yimg = in + start;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+    ImageType image = out + 3 * start;
+
+    for (int k = start; k < end; k++)
+    {
+        YvuToRgb(*yimg++, *vimg++, *uimg++, r, g, b);
+
+        *(image++) = b;
+        *(image++) = g;
+        *(image++) = r;
+    }
+}
+
+void ColorConvert::yvuToRgbPreviewRange(ImageType out, ImageType in, int size, int start, int end)
+{
+    ImageType yimg = in + start;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+    ImageType rgb = out + 3 * start;
+
+    for (int k = start; k < end; k++)
+    {
+        int y = (0xff & ((int) *yimg++)) - 16;
+        if (y < 0) y = 0;
+
+        int v = (0xff & *vimg++) - 128;
+        int u = (0xff & *uimg++) - 128;
+
+        int y1192 = 1192 * y;
+        int r = (y1192 + 1634 * v);
+        int g = (y1192 - 833 * v - 400 * u);
+        int b = (y1192 + 2066 * u);
+
+        if (r < 0) r = 0; else if (r > 262143) r = 262143;
+        if (g < 0) g = 0; else if (g > 262143) g = 262143;
+        if (b < 0) b = 0; else if (b > 262143) b = 262143;
+
+        *rgb++ = (r<<6 & 0xFF0000)>>16;
+        *rgb++ = (g>>2 & 0xFF00)>>8;
+        *rgb++ =  b>>10 & 0xFF;
+    }
+}
+
+void ColorConvert::yvuaToYvuRange(ImageType out, ImageType in, int size, int start, int end)
+{
+    ImageType yptr = out + start;
+    ImageType vptr = yptr + size;
+    ImageType uptr = vptr + size;
+    in += 4 * start;
+
+    for (int k = start; k < end; k++)
+    {
+        *yptr++ = *in++;
+        *vptr++ = *in++;
+        *uptr++ = *in++;
+        in++;   // Alpha
+    }
+}
+
+static void Rgb2Yvu(ImageType out, ImageType in, int width, int height)
+{
+    ColorConvert::rgb2yvuRange(out, in, width * height, 0, width * height);
+}
+
+static void Yvu2Rgb(ImageType out, ImageType in, int width, int height)
+{
+    ColorConvert::yvu2rgbRange(out, in, width * height, 0, width * height);
+}
+
+static void Yvu2Bgr(ImageType out, ImageType in, int width, int height)
+{
+    ColorConvert::yvu2bgrRange(out, in, width * height, 0, width * height);
+}
+
+static void Nv21ToYvu(ImageType yvu24, ImageType yuv420sp, int width, int height)
+{
+    int frameSize = width * height;
+
+    ImageType ovp;
+    ImageType oup;
+
+    memcpy(yvu24, yuv420sp, frameSize * sizeof(unsigned char));
+
+    for (int j = 0; j < height; j += 2)
+    {
+        unsigned char u = 0, v = 0;
+        int uvp = frameSize + (j >> 1) * width;
+        ovp = yvu24 + frameSize + j * width;
+        oup = ovp + frameSize;
+
+        ImageType iuvp = yuv420sp + uvp;
+
+        for (int i = 0; i < width; i += 2)
+        {
+            v = *iuvp++;
+            u = *iuvp++;
+
+            *ovp++ = v;
+            *oup++ = u;
+
+            *ovp++ = v;
+            *oup++ = u;
+        }
+        memcpy(ovp, ovp - width, width * sizeof(unsigned char));
+        memcpy(oup, oup - width, width * sizeof(unsigned char));
+    }
+}
+
+static void YvuToRgbPreview(ImageType out, ImageType in, int width, int height)
+{
+    ColorConvert::yvuToRgbPreviewRange(out, in, width * height, 0, width * height);
+}
+
+static void YvuaToYvu(ImageType out, ImageType in, int width, int height)
+{
+    ColorConvert::yvuaToYvuRange(out, in, width * height, 0, width * height);
+}
+
+static const ColorConvert::Kernels sScalarKernels = {
+    "scalar",
+    Rgb2Yvu,
+    Yvu2Rgb,
+    Yvu2Bgr,
+    Nv21ToYvu,
+    YvuToRgbPreview,
+    YvuaToYvu,
+};
+
+const ColorConvert::Kernels *ColorConvert::getScalar()
+{
+    return &sScalarKernels;
+}
+
+int ColorConvert::getAll(const Kernels **kernels, int max)
+{
+    const Kernels *all[MAX_KERNELS] = { getScalar(), getSse2(), getNeon() };
+    int count = 0;
+    for (int i = 0; i < MAX_KERNELS && count < max; i++)
+    {
+        if (all[i] != NULL) kernels[count++] = all[i];
+    }
+    return count;
+}
+
+const ColorConvert::Kernels *ColorConvert::get()
+{
+    static const Kernels *best = NULL;
+    if (best == NULL)
+    {
+        const Kernels *all[MAX_KERNELS];
+        const Kernels *found = all[getAll(all, MAX_KERNELS) - 1];
+        LOGI("Using the %s color conversion kernels", found->name);
+        best = found;
+    }
+    return best;
+}
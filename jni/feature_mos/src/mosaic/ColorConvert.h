@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////////////
+// ColorConvert.h
+
+#ifndef COLOR_CONVERT_H
+#define COLOR_CONVERT_H
+
+#include "ImageUtils.h"
+
+/**
+ *  Color conversion kernels used by the mosaic. Besides the scalar kernels
+ *  there are SSE2 and NEON ones, used when the CPU has those instructions.
+ *  All of them give the same output as the scalar kernels, byte for byte.
+ *
+ *  Planar YVU images have the Y, V and U planes one after another, each of
+ *  width x height bytes.
+ */
+class ColorConvert {
+public:
+
+  typedef void (*Kernel)(ImageType out, ImageType in, int width, int height);
+
+  /**
+   *  A set of kernels built for one instruction set.
+   */
+  struct Kernels {
+    const char *name;
+
+    /**
+     *  Interlaced RGB to planar YVU, as ImageUtils::rgb2yvu().
+     */
+    Kernel rgb2yvu;
+
+    /**
+     *  Planar YVU to interlaced RGB and BGR, as ImageUtils::yvu2rgb() and
+     *  ImageUtils::yvu2bgr().
+     */
+    Kernel yvu2rgb;
+    Kernel yvu2bgr;
+
+    /**
+     *  NV21, a Y plane followed by interlaced V and U at half the width and
+     *  height, to planar YVU at full resolution. The height must be even.
+     */
+    Kernel nv21ToYvu;
+
+    /**
+     *  Planar YVU to interlaced RGB with the fixed point coefficients used
+     *  for the preview.
+     */
+    Kernel yvuToRgbPreview;
+
+    /**
+     *  Interlaced YVUA, as read back from the GPU, to planar YVU.
+     */
+    Kernel yvuaToYvu;
+  };
+
+  /**
+   *  Returns the fastest kernels the CPU can run.
+   */
+  static const Kernels *get();
+
+  /**
+   *  Fills kernels with all the kernels the CPU can run, the scalar ones
+   *  first, and returns how many there are.
+   */
+  static int getAll(const Kernels **kernels, int max);
+
+  static const Kernels *getScalar();
+
+  /**
+   *  Return NULL when the kernels are not built for this CPU architecture
+   *  or the CPU does not have the instructions.
+   */
+  static const Kernels *getSse2();
+  static const Kernels *getNeon();
+
+  static const int MAX_KERNELS = 3;
+
+  /**
+   *  The scalar kernels for pixels [start, end) of images of size pixels.
+   *  The SIMD kernels use them for the pixels they do not convert
+   *  themselves.
+   */
+  static void rgb2yvuRange(ImageType out, ImageType in, int size, int start, int end);
+  static void yvu2rgbRange(ImageType out, ImageType in, int size, int start, int end);
+  static void yvu2bgrRange(ImageType out, ImageType in, int size, int start, int end);
+  static void yvuToRgbPreviewRange(ImageType out, ImageType in, int size, int start, int end);
+  static void yvuaToYvuRange(ImageType out, ImageType in, int size, int start, int end);
+};
+
+#endif
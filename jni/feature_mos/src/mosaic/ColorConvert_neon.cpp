@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////////////
+// ColorConvert_neon.cpp
+//
+// NEON color conversion kernels. On ARMv7 this file alone is built with
+// NEON enabled, and the kernels are only used when /proc/cpuinfo lists
+// NEON among the CPU features.
+
+#include <stdio.h>
+#include <string.h>
+
+#include "ColorConvert.h"
+
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+
+#include <arm_neon.h>
+
+// Returns x / 1000 truncated, for |x| < 2^24. Multiplying by the float
+// nearest to 0.001, which is a little larger, gets every multiple of 1000
+// exactly and stays far enough from the next integer otherwise.
+static inline int32x4_t Divide1000(int32x4_t x)
+{
+    return vcvtq_s32_f32(vmulq_f32(vcvtq_f32_s32(x), vdupq_n_f32(0.001f)));
+}
+
+// Returns x / 1000 rounded down and clamped to [0, 255]. Sets the lanes of
+// exact where x is a multiple of 1000 in (0, 256000): the scalar code
+// computes those in double precision and may end up just below.
+static inline int32x4_t Divide1000Clamped(int32x4_t x, uint32x4_t &exact)
+{
+    float32x4_t xf = vminq_f32(vmaxq_f32(vcvtq_f32_s32(x), vdupq_n_f32(1.0f)),
+            vdupq_n_f32(255999.0f));
+    int32x4_t q = vcvtq_s32_f32(vmulq_f32(xf, vdupq_n_f32(0.001f)));
+    float32x4_t rem = vsubq_f32(xf, vmulq_f32(vcvtq_f32_s32(q), vdupq_n_f32(1000.0f)));
+    exact = vorrq_u32(exact, vceqq_f32(rem, vdupq_n_f32(0.0f)));
+    return q;
+}
+
+// Saturates the 32-bit lanes of lo and hi to 8 bytes.
+static inline uint8x8_t Pack8(int32x4_t lo, int32x4_t hi)
+{
+    return vqmovun_s16(vcombine_s16(vqmovn_s32(lo), vqmovn_s32(hi)));
+}
+
+// Loads 8 bytes into 16-bit lanes and subtracts offset.
+static inline int16x8_t Load8(const unsigned char *p, short offset)
+{
+    return vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(vld1_u8(p))), vdupq_n_s16(offset));
+}
+
+static void Rgb2Yvu(ImageType out, ImageType in, int width, int height)
+{
+    int size = width * height;
+    ImageType yimg = out;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+
+    int k = 0;
+    for (; k + 8 <= size; k += 8)
+    {
+        uint8x8x3_t rgb = vld3_u8(in + 3 * k);
+        int16x8_t r = vreinterpretq_s16_u16(vmovl_u8(rgb.val[0]));
+        int16x8_t g = vreinterpretq_s16_u16(vmovl_u8(rgb.val[1]));
+        int16x8_t b = vreinterpretq_s16_u16(vmovl_u8(rgb.val[2]));
+
+        int32x4_t y[2], v[2], u[2];
+        for (int h = 0; h < 2; h++)
+        {
+            int16x4_t rh = h ? vget_high_s16(r) : vget_low_s16(r);
+            int16x4_t gh = h ? vget_high_s16(g) : vget_low_s16(g);
+            int16x4_t bh = h ? vget_high_s16(b) : vget_low_s16(b);
+
+            y[h] = vmull_n_s16(rh, ImageUtils::REDY);
+            y[h] = vmlal_n_s16(y[h], gh, ImageUtils::GREENY);
+            y[h] = vmlal_n_s16(y[h], bh, ImageUtils::BLUEY);
+
+            v[h] = vmull_n_s16(rh, ImageUtils::REDV);
+            v[h] = vmlsl_n_s16(v[h], gh, ImageUtils::GREENV);
+            v[h] = vmlsl_n_s16(v[h], bh, ImageUtils::BLUEV);
+
+            u[h] = vmull_n_s16(bh, ImageUtils::BLUEU);
+            u[h] = vmlsl_n_s16(u[h], rh, ImageUtils::REDU);
+            u[h] = vmlsl_n_s16(u[h], gh, ImageUtils::GREENU);
+
+            y[h] = vaddq_s32(Divide1000(y[h]), vdupq_n_s32(16));
+            v[h] = vaddq_s32(Divide1000(v[h]), vdupq_n_s32(128));
+            u[h] = vaddq_s32(Divide1000(u[h]), vdupq_n_s32(128));
+        }
+        vst1_u8(yimg + k, Pack8(y[0], y[1]));
+        vst1_u8(vimg + k, Pack8(v[0], v[1]));
+        vst1_u8(uimg + k, Pack8(u[0], u[1]));
+    }
+    ColorConvert::rgb2yvuRange(out, in, size, k, size);
+}
+
+// Converts 8 YVU pixels to RGB. Returns false, without writing anything,
+// when one of them has to be converted by the scalar code.
+static inline bool Yvu2Rgb8(const unsigned char *yp, const unsigned char *vp,
+        const unsigned char *up, uint8x8_t &r, uint8x8_t &g, uint8x8_t &b)
+{
+    int16x8_t y = Load8(yp, 16);
+    int16x8_t v = Load8(vp, 128);
+    int16x8_t u = Load8(up, 128);
+
+    int32x4_t rq[2], gq[2], bq[2];
+    uint32x4_t exact = vdupq_n_u32(0);
+    for (int h = 0; h < 2; h++)
+    {
+        int16x4_t yh = h ? vget_high_s16(y) : vget_low_s16(y);
+        int16x4_t vh = h ? vget_high_s16(v) : vget_low_s16(v);
+        int16x4_t uh = h ? vget_high_s16(u) : vget_low_s16(u);
+
+        int32x4_t y1164 = vmull_n_s16(yh, 1164);
+        int32x4_t xr = vmlal_n_s16(y1164, vh, 1596);
+        int32x4_t xg = vmlsl_n_s16(vmlsl_n_s16(y1164, vh, 813), uh, 391);
+        int32x4_t xb = vmlal_n_s16(y1164, uh, 2018);
+        rq[h] = Divide1000Clamped(xr, exact);
+        gq[h] = Divide1000Clamped(xg, exact);
+        bq[h] = Divide1000Clamped(xb, exact);
+    }
+    uint32x2_t any = vorr_u32(vget_low_u32(exact), vget_high_u32(exact));
+    if (vget_lane_u32(any, 0) | vget_lane_u32(any, 1)) return false;
+
+    r = Pack8(rq[0], rq[1]);
+    g = Pack8(gq[0], gq[1]);
+    b = Pack8(bq[0], bq[1]);
+    return true;
+}
+
+static void Yvu2Rgb(ImageType out, ImageType in, int width, int height)
+{
+    int size = width * height;
+    ImageType yimg = in;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+
+    int k = 0;
+    for (; k + 8 <= size; k += 8)
+    {
+        uint8x8x3_t rgb;
+        if (Yvu2Rgb8(yimg + k, vimg + k, uimg + k, rgb.val[0], rgb.val[1], rgb.val[2]))
+            vst3_u8(out + 3 * k, rgb);
+        else
+            ColorConvert::yvu2rgbRange(out, in, size, k, k + 8);
+    }
+    ColorConvert::yvu2rgbRange(out, in, size, k, size);
+}
+
+static void Yvu2Bgr(ImageType out, ImageType in, int width, int height)
+{
+    int size = width * height;
+    ImageType yimg = in;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+
+    int k = 0;
+    for (; k + 8 <= size; k += 8)
+    {
+        uint8x8x3_t bgr;
+        if (Yvu2Rgb8(yimg + k, vimg + k, uimg + k, bgr.val[2], bgr.val[1], bgr.val[0]))
+            vst3_u8(out + 3 * k, bgr);
+        else
+            ColorConvert::yvu2bgrRange(out, in, size, k, k + 8);
+    }
+    ColorConvert::yvu2bgrRange(out, in, size, k, size);
+}
+
+static void Nv21ToYvu(ImageType yvu24, ImageType yuv420sp, int width, int height)
+{
+    int frameSize = width * height;
+
+    memcpy(yvu24, yuv420sp, frameSize * sizeof(unsigned char));
+
+    for (int j = 0; j < height; j += 2)
+    {
+        ImageType iuvp = yuv420sp + frameSize + (j >> 1) * width;
+        ImageType ovp = yvu24 + frameSize + j * width;
+        ImageType oup = ovp + frameSize;
+
+        int i = 0;
+        for (; i + 32 <= width; i += 32)
+        {
+            uint8x16x2_t vu = vld2q_u8(iuvp + i);
+            uint8x16x2_t v = vzipq_u8(vu.val[0], vu.val[0]);
+            uint8x16x2_t u = vzipq_u8(vu.val[1], vu.val[1]);
+            vst1q_u8(ovp + i, v.val[0]);
+            vst1q_u8(ovp + i + 16, v.val[1]);
+            vst1q_u8(oup + i, u.val[0]);
+            vst1q_u8(oup + i + 16, u.val[1]);
+        }
+        for (; i < width; i += 2)
+        {
+            ovp[i] = ovp[i + 1] = iuvp[i];
+            oup[i] = oup[i + 1] = iuvp[i + 1];
+        }
+        memcpy(ovp + width, ovp, width * sizeof(unsigned char));
+        memcpy(oup + width, oup, width * sizeof(unsigned char));
+    }
+}
+
+static void YvuToRgbPreview(ImageType out, ImageType in, int width, int height)
+{
+    int size = width * height;
+    ImageType yimg = in;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+
+    int k = 0;
+    for (; k + 8 <= size; k += 8)
+    {
+        int16x8_t y = vmaxq_s16(Load8(yimg + k, 16), vdupq_n_s16(0));
+        int16x8_t v = Load8(vimg + k, 128);
+        int16x8_t u = Load8(uimg + k, 128);
+
+        int32x4_t r[2], g[2], b[2];
+        for (int h = 0; h < 2; h++)
+        {
+            int16x4_t yh = h ? vget_high_s16(y) : vget_low_s16(y);
+            int16x4_t vh = h ? vget_high_s16(v) : vget_low_s16(v);
+            int16x4_t uh = h ? vget_high_s16(u) : vget_low_s16(u);
+
+            // Clamping to [0, 262143] and taking bits 10 to 17 is the same
+            // as shifting and saturating to a byte.
+            int32x4_t y1192 = vmull_n_s16(yh, 1192);
+            r[h] = vshrq_n_s32(vmlal_n_s16(y1192, vh, 1634), 10);
+            g[h] = vshrq_n_s32(vmlsl_n_s16(vmlsl_n_s16(y1192, vh, 833), uh, 400), 10);
+            b[h] = vshrq_n_s32(vmlal_n_s16(y1192, uh, 2066), 10);
+        }
+        uint8x8x3_t rgb;
+        rgb.val[0] = Pack8(r[0], r[1]);
+        rgb.val[1] = Pack8(g[0], g[1]);
+        rgb.val[2] = Pack8(b[0], b[1]);
+        vst3_u8(out + 3 * k, rgb);
+    }
+    ColorConvert::yvuToRgbPreviewRange(out, in, size, k, size);
+}
+
+static void YvuaToYvu(ImageType out, ImageType in, int width, int height)
+{
+    int size = width * height;
+    ImageType yptr = out;
+    ImageType vptr = yptr + size;
+    ImageType uptr = vptr + size;
+
+    int k = 0;
+    for (; k + 16 <= size; k += 16)
+    {
+        uint8x16x4_t yvua = vld4q_u8(in + 4 * k);
+        vst1q_u8(yptr + k, yvua.val[0]);
+        vst1q_u8(vptr + k, yvua.val[1]);
+        vst1q_u8(uptr + k, yvua.val[2]);
+    }
+    ColorConvert::yvuaToYvuRange(out, in, size, k, size);
+}
+
+static const ColorConvert::Kernels sNeonKernels = {
+    "neon",
+    Rgb2Yvu,
+    Yvu2Rgb,
+    Yvu2Bgr,
+    Nv21ToYvu,
+    YvuToRgbPreview,
+    YvuaToYvu,
+};
+
+static bool HasNeon()
+{
+#if defined(__aarch64__)
+    return true;
+#else
+    FILE *file = fopen("/proc/cpuinfo", "r");
+    if (file == NULL) return false;
+
+    bool found = false;
+    char line[512];
+    while (!found && fgets(line, sizeof(line), file) != NULL)
+    {
+        if (strncmp(line, "Features", 8) != 0) continue;
+        for (char *word = strtok(line + 8, " \t:\n"); word != NULL;
+                word = strtok(NULL, " \t:\n"))
+        {
+            if (strcmp(word, "neon") == 0) found = true;
+        }
+    }
+    fclose(file);
+    return found;
+#endif
+}
+
+const ColorConvert::Kernels *ColorConvert::getNeon()
+{
+    static int hasNeon = -1;
+    if (hasNeon < 0) hasNeon = HasNeon() ? 1 : 0;
+    return hasNeon ? &sNeonKernels : NULL;
+}
+
+#else
+
+const ColorConvert::Kernels *ColorConvert::getNeon()
+{
+    return NULL;
+}
+
+#endif
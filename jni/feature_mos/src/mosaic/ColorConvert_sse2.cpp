@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////////////
+// ColorConvert_sse2.cpp
+//
+// SSE2 color conversion kernels. The x86 ABIs we build for all have SSE2,
+// so these are used whenever they are compiled in. SSE2 has no byte
+// shuffles, so interlaced RGB goes through small buffers on the stack.
+
+#include <string.h>
+
+#include "ColorConvert.h"
+
+#if defined(__SSE2__)
+
+#include <emmintrin.h>
+
+// Returns a vector of 16-bit lanes holding lo, hi, lo, hi, ... for
+// _mm_madd_epi16() on two interleaved planes.
+static inline __m128i Pair(short lo, short hi)
+{
+    return _mm_set_epi16(hi, lo, hi, lo, hi, lo, hi, lo);
+}
+
+// Loads 8 bytes into 16-bit lanes and subtracts offset.
+static inline __m128i Load8(const unsigned char *p, short offset)
+{
+    __m128i x = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i *) p), _mm_setzero_si128());
+    return _mm_sub_epi16(x, _mm_set1_epi16(offset));
+}
+
+// Saturates the 32-bit lanes of lo and hi to bytes in the low 8 bytes.
+static inline __m128i Pack8(__m128i lo, __m128i hi)
+{
+    __m128i x = _mm_packs_epi32(lo, hi);
+    return _mm_packus_epi16(x, x);
+}
+
+static inline void Store8(unsigned char *p, __m128i x)
+{
+    _mm_storel_epi64((__m128i *) p, x);
+}
+
+static inline void Interleave3(unsigned char *out, __m128i a, __m128i b, __m128i c)
+{
+    unsigned char ta[16], tb[16], tc[16];
+    _mm_storeu_si128((__m128i *) ta, a);
+    _mm_storeu_si128((__m128i *) tb, b);
+    _mm_storeu_si128((__m128i *) tc, c);
+    for (int i = 0; i < 8; i++)
+    {
+        *out++ = ta[i];
+        *out++ = tb[i];
+        *out++ = tc[i];
+    }
+}
+
+// Returns x / 1000 truncated, for |x| < 2^24. Multiplying by the float
+// nearest to 0.001, which is a little larger, gets every multiple of 1000
+// exactly and stays far enough from the next integer otherwise.
+static inline __m128i Divide1000(__m128i x)
+{
+    return _mm_cvttps_epi32(_mm_mul_ps(_mm_cvtepi32_ps(x), _mm_set1_ps(0.001f)));
+}
+
+// Returns x / 1000 rounded down and clamped to [0, 255]. Sets the lanes of
+// exact where x is a multiple of 1000 in (0, 256000): the scalar code
+// computes those in double precision and may end up just below.
+static inline __m128i Divide1000Clamped(__m128i x, __m128 &exact)
+{
+    __m128 xf = _mm_min_ps(_mm_max_ps(_mm_cvtepi32_ps(x), _mm_set1_ps(1.0f)),
+            _mm_set1_ps(255999.0f));
+    __m128i q = _mm_cvttps_epi32(_mm_mul_ps(xf, _mm_set1_ps(0.001f)));
+    __m128 rem = _mm_sub_ps(xf, _mm_mul_ps(_mm_cvtepi32_ps(q), _mm_set1_ps(1000.0f)));
+    exact = _mm_or_ps(exact, _mm_cmpeq_ps(rem, _mm_setzero_ps()));
+    return q;
+}
+
+static void Rgb2Yvu(ImageType out, ImageType in, int width, int height)
+{
+    int size = width * height;
+    ImageType yimg = out;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+    const __m128i zero = _mm_setzero_si128();
+
+    int k = 0;
+    for (; k + 8 <= size; k += 8)
+    {
+        unsigned char rgb[3][8];
+        const unsigned char *image = in + 3 * k;
+        for (int i = 0; i < 8; i++)
+        {
+            rgb[0][i] = *image++;
+            rgb[1][i] = *image++;
+            rgb[2][i] = *image++;
+        }
+        __m128i r = Load8(rgb[0], 0);
+        __m128i g = Load8(rgb[1], 0);
+        __m128i b = Load8(rgb[2], 0);
+
+        __m128i rg[2] = { _mm_unpacklo_epi16(r, g), _mm_unpackhi_epi16(r, g) };
+        __m128i b0[2] = { _mm_unpacklo_epi16(b, zero), _mm_unpackhi_epi16(b, zero) };
+        __m128i y[2], v[2], u[2];
+        for (int h = 0; h < 2; h++)
+        {
+            y[h] = _mm_add_epi32(_mm_madd_epi16(rg[h], Pair(ImageUtils::REDY, ImageUtils::GREENY)),
+                    _mm_madd_epi16(b0[h], Pair(ImageUtils::BLUEY, 0)));
+            v[h] = _mm_add_epi32(_mm_madd_epi16(rg[h], Pair(ImageUtils::REDV, -ImageUtils::GREENV)),
+                    _mm_madd_epi16(b0[h], Pair(-ImageUtils::BLUEV, 0)));
+            u[h] = _mm_add_epi32(_mm_madd_epi16(rg[h], Pair(-ImageUtils::REDU, -ImageUtils::GREENU)),
+                    _mm_madd_epi16(b0[h], Pair(ImageUtils::BLUEU, 0)));
+            y[h] = _mm_add_epi32(Divide1000(y[h]), _mm_set1_epi32(16));
+            v[h] = _mm_add_epi32(Divide1000(v[h]), _mm_set1_epi32(128));
+            u[h] = _mm_add_epi32(Divide1000(u[h]), _mm_set1_epi32(128));
+        }
+        Store8(yimg + k, Pack8(y[0], y[1]));
+        Store8(vimg + k, Pack8(v[0], v[1]));
+        Store8(uimg + k, Pack8(u[0], u[1]));
+    }
+    ColorConvert::rgb2yvuRange(out, in, size, k, size);
+}
+
+// Converts 8 YVU pixels to RGB. Returns false, without writing anything,
+// when one of them has to be converted by the scalar code.
+static inline bool Yvu2Rgb8(const unsigned char *yp, const unsigned char *vp,
+        const unsigned char *up, __m128i &r, __m128i &g, __m128i &b)
+{
+    const __m128i zero = _mm_setzero_si128();
+    __m128i y = Load8(yp, 16);
+    __m128i v = Load8(vp, 128);
+    __m128i u = Load8(up, 128);
+
+    __m128i yv[2] = { _mm_unpacklo_epi16(y, v), _mm_unpackhi_epi16(y, v) };
+    __m128i yu[2] = { _mm_unpacklo_epi16(y, u), _mm_unpackhi_epi16(y, u) };
+    __m128i u0[2] = { _mm_unpacklo_epi16(u, zero), _mm_unpackhi_epi16(u, zero) };
+    __m128i rq[2], gq[2], bq[2];
+    __m128 exact = _mm_setzero_ps();
+    for (int h = 0; h < 2; h++)
+    {
+        __m128i xr = _mm_madd_epi16(yv[h], Pair(1164, 1596));
+        __m128i xg = _mm_add_epi32(_mm_madd_epi16(yv[h], Pair(1164, -813)),
+                _mm_madd_epi16(u0[h], Pair(-391, 0)));
+        __m128i xb = _mm_madd_epi16(yu[h], Pair(1164, 2018));
+        rq[h] = Divide1000Clamped(xr, exact);
+        gq[h] = Divide1000Clamped(xg, exact);
+        bq[h] = Divide1000Clamped(xb, exact);
+    }
+    if (_mm_movemask_ps(exact) != 0) return false;
+
+    r = Pack8(rq[0], rq[1]);
+    g = Pack8(gq[0], gq[1]);
+    b = Pack8(bq[0], bq[1]);
+    return true;
+}
+
+static void Yvu2Rgb(ImageType out, ImageType in, int width, int height)
+{
+    int size = width * height;
+    ImageType yimg = in;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+
+    int k = 0;
+    for (; k + 8 <= size; k += 8)
+    {
+        __m128i r, g, b;
+        if (Yvu2Rgb8(yimg + k, vimg + k, uimg + k, r, g, b))
+            Interleave3(out + 3 * k, r, g, b);
+        else
+            ColorConvert::yvu2rgbRange(out, in, size, k, k + 8);
+    }
+    ColorConvert::yvu2rgbRange(out, in, size, k, size);
+}
+
+static void Yvu2Bgr(ImageType out, ImageType in, int width, int height)
+{
+    int size = width * height;
+    ImageType yimg = in;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+
+    int k = 0;
+    for (; k + 8 <= size; k += 8)
+    {
+        __m128i r, g, b;
+        if (Yvu2Rgb8(yimg + k, vimg + k, uimg + k, r, g, b))
+            Interleave3(out + 3 * k, b, g, r);
+        else
+            ColorConvert::yvu2bgrRange(out, in, size, k, k + 8);
+    }
+    ColorConvert::yvu2bgrRange(out, in, size, k, size);
+}
+
+static void Nv21ToYvu(ImageType yvu24, ImageType yuv420sp, int width, int height)
+{
+    int frameSize = width * height;
+    const __m128i mask = _mm_set1_epi16(0xff);
+
+    memcpy(yvu24, yuv420sp, frameSize * sizeof(unsigned char));
+
+    for (int j = 0; j < height; j += 2)
+    {
+        ImageType iuvp = yuv420sp + frameSize + (j >> 1) * width;
+        ImageType ovp = yvu24 + frameSize + j * width;
+        ImageType oup = ovp + frameSize;
+
+        int i = 0;
+        for (; i + 16 <= width; i += 16)
+        {
+            __m128i vu = _mm_loadu_si128((const __m128i *) (iuvp + i));
+            __m128i v = _mm_and_si128(vu, mask);
+            __m128i u = _mm_srli_epi16(vu, 8);
+            _mm_storeu_si128((__m128i *) (ovp + i), _mm_or_si128(v, _mm_slli_epi16(v, 8)));
+            _mm_storeu_si128((__m128i *) (oup + i), _mm_or_si128(u, _mm_slli_epi16(u, 8)));
+        }
+        for (; i < width; i += 2)
+        {
+            ovp[i] = ovp[i + 1] = iuvp[i];
+            oup[i] = oup[i + 1] = iuvp[i + 1];
+        }
+        memcpy(ovp + width, ovp, width * sizeof(unsigned char));
+        memcpy(oup + width, oup, width * sizeof(unsigned char));
+    }
+}
+
+static void YvuToRgbPreview(ImageType out, ImageType in, int width, int height)
+{
+    int size = width * height;
+    ImageType yimg = in;
+    ImageType vimg = yimg + size;
+    ImageType uimg = vimg + size;
+    const __m128i zero = _mm_setzero_si128();
+
+    int k = 0;
+    for (; k + 8 <= size; k += 8)
+    {
+        __m128i y = _mm_max_epi16(Load8(yimg + k, 16), zero);
+        __m128i v = Load8(vimg + k, 128);
+        __m128i u = Load8(uimg + k, 128);
+
+        __m128i yv[2] = { _mm_unpacklo_epi16(y, v), _mm_unpackhi_epi16(y, v) };
+        __m128i yu[2] = { _mm_unpacklo_epi16(y, u), _mm_unpackhi_epi16(y, u) };
+        __m128i u0[2] = { _mm_unpacklo_epi16(u, zero), _mm_unpackhi_epi16(u, zero) };
+        __m128i r[2], g[2], b[2];
+        for (int h = 0; h < 2; h++)
+        {
+            // Clamping to [0, 262143] and taking bits 10 to 17 is the same
+            // as shifting and saturating to a byte.
+            r[h] = _mm_srai_epi32(_mm_madd_epi16(yv[h], Pair(1192, 1634)), 10);
+            g[h] = _mm_srai_epi32(_mm_add_epi32(_mm_madd_epi16(yv[h], Pair(1192, -833)),
+                    _mm_madd_epi16(u0[h], Pair(-400, 0))), 10);
+            b[h] = _mm_srai_epi32(_mm_madd_epi16(yu[h], Pair(1192, 2066)), 10);
+        }
+        Interleave3(out + 3 * k, Pack8(r[0], r[1]), Pack8(g[0], g[1]), Pack8(b[0], b[1]));
+    }
+    ColorConvert::yvuToRgbPreviewRange(out, in, size, k, size);
+}
+
+static void YvuaToYvu(ImageType out, ImageType in, int width, int height)
+{
+    int size = width * height;
+    ImageType yptr = out;
+    ImageType vptr = yptr + size;
+    ImageType uptr = vptr + size;
+    const __m128i mask = _mm_set1_epi32(0xff);
+
+    int k = 0;
+    for (; k + 16 <= size; k += 16)
+    {
+        __m128i p[4];
+        for (int i = 0; i < 4; i++)
+            p[i] = _mm_loadu_si128((const __m128i *) (in + 4 * k + 16 * i));
+
+        __m128i c[4];
+        for (int shift = 0; shift < 24; shift += 8)
+        {
+            for (int i = 0; i < 4; i++)
+                c[i] = _mm_and_si128(_mm_srli_epi32(p[i], shift), mask);
+            __m128i x = _mm_packus_epi16(_mm_packs_epi32(c[0], c[1]),
+                    _mm_packs_epi32(c[2], c[3]));
+            ImageType plane = (shift == 0) ? yptr : (shift == 8) ? vptr : uptr;
+            _mm_storeu_si128((__m128i *) (plane + k), x);
+        }
+    }
+    ColorConvert::yvuaToYvuRange(out, in, size, k, size);
+}
+
+static const ColorConvert::Kernels sSse2Kernels = {
+    "sse2",
+    Rgb2Yvu,
+    Yvu2Rgb,
+    Yvu2Bgr,
+    Nv21ToYvu,
+    YvuToRgbPreview,
+    YvuaToYvu,
+};
+
+const ColorConvert::Kernels *ColorConvert::getSse2()
+{
+    return &sSse2Kernels;
+}
+
+#else
+
+const ColorConvert::Kernels *ColorConvert::getSse2()
+{
+    return NULL;
+}
+
+#endif
@@ -30,6 +30,8 @@
 
 CDelaunay::CDelaunay()
 {
+  sa = (CSite*)NULL;
+  arena = NULL;
 }
 
 CDelaunay::~CDelaunay()
@@ -186,15 +188,18 @@ void CDelaunay::deleteEdge(EdgePointer e)
 // Overall storage allocation
 //
 
-// Quad-edge storage allocation
-CSite *CDelaunay::allocMemory(int n)
+// Quad-edge storage allocation. The edges are handed out of this block by
+// allocEdge(), so one allocation serves the whole triangulation.
+CSite *CDelaunay::allocMemory(int n, MosaicArena *arena)
 {
   unsigned int size;
 
   size = ((sizeof(CSite) + sizeof(SitePointer)) * n +
           (sizeof(SitePointer) + sizeof(EdgePointer)) * 12
           ) * n;
-  if (!(sa = (CSite*) malloc(size))) {
+  this->arena = arena;
+  sa = (CSite*) (arena ? arena->allocate(size) : malloc(size));
+  if (!sa) {
     return NULL;
   }
   sp = (SitePointer *) (sa + n);
@@ -207,7 +212,7 @@ CSite *CDelaunay::allocMemory(int n)
 void CDelaunay::freeMemory()
 {
   if (sa) {
-    free(sa);
+    if (!arena) free(sa);  // the arena frees its own memory
     sa = (CSite*)NULL;
   }
 }
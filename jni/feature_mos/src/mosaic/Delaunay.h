@@ -23,6 +23,7 @@
 #include <math.h>
 #include "CSite.h"
 #include "EdgePointerUtil.h"
+#include "MosaicArena.h"
 
 #ifndef TRUE
 #define TRUE 1==1
@@ -60,6 +61,9 @@ private:
   EdgePointer nextEdge;
   EdgePointer availEdge;
 
+  // The arena sa was taken from, or NULL if it was malloc'ed
+  MosaicArena *arena;
+
 private:
   void build(int lo, int hi, EdgePointer *le, EdgePointer *re, int rows);
   void buildTriangulation(int size);
@@ -103,7 +107,7 @@ public:
   CDelaunay();
   ~CDelaunay();
 
-  CSite *allocMemory(int nsite);
+  CSite *allocMemory(int nsite, MosaicArena *arena = NULL);
   void freeMemory();
   int triangulate(SEdgeVector **edge, int nsite, int width, int height);
   void linkNeighbors(SEdgeVector *edge, int nedge, int nsite);
@@ -117,8 +117,6 @@ public:
    */
   static double getTime();
 
-protected:
-
   /**
   *  Constants for YVU/RGB conversion
   */
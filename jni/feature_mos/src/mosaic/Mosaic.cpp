@@ -22,6 +22,7 @@
 
 #include <stdio.h>
 #include <string.h>
+#include <new>
 
 #include "Mosaic.h"
 #include "trsMatrix.h"
@@ -29,27 +30,38 @@
 #include "Log.h"
 #define LOG_TAG "MOSAIC"
 
-Mosaic::Mosaic()
+Mosaic::Mosaic(MosaicArena *arena)
 {
     initialized = false;
     imageMosaicYVU = NULL;
+    frames = rframes = NULL;
     frames_size = 0;
     max_frames = 200;
+    owned_frames = NULL;
+    owned_size = 0;
+    aligner = NULL;
+    blender = NULL;
+    this->arena = (arena != NULL) ? arena : &ownArena;
+}
+
+// Constructs a frame in the arena. It is never deleted, only destroyed.
+static MosaicFrame *NewFrame(MosaicArena *arena, int width, int height)
+{
+    void *memory = arena->allocate(sizeof(MosaicFrame));
+    return (memory != NULL) ? new (memory) MosaicFrame(width, height, false) : NULL;
 }
 
 Mosaic::~Mosaic()
 {
-    for (int i = 0; i < frames_size; i++)
+    // The frames and the arrays are in the arena, which frees them.
+    for (int i = 0; frames != NULL && i < max_frames; i++)
     {
         if (frames[i])
-            delete frames[i];
+            frames[i]->~MosaicFrame();
     }
-    delete frames;
-    delete rframes;
 
     for (int j = 0; j < owned_size; j++)
-        delete owned_frames[j];
-    delete owned_frames;
+        ImageUtils::freeImage(owned_frames[j]);
 
     if (aligner != NULL)
         delete aligner;
@@ -76,27 +88,23 @@ int Mosaic::initialize(int blendingType, int stripType, int width, int height, i
     mosaicWidth = mosaicHeight = 0;
     imageMosaicYVU = NULL;
 
-    frames = new MosaicFrame *[max_frames];
-    rframes = new MosaicFrame *[max_frames];
-
-    if(nframes>-1)
+    frames = arena->allocateArray<MosaicFrame *>(max_frames);
+    rframes = arena->allocateArray<MosaicFrame *>(max_frames);
+    owned_frames = arena->allocateArray<ImageType>(max_frames);
+    owned_size = 0;
+    if (frames == NULL || rframes == NULL || owned_frames == NULL)
     {
-        for(int i=0; i<nframes; i++)
-        {
-            frames[i] = new MosaicFrame(this->width,this->height,false); // Do no allocate memory for YUV data
-        }
+        frames = NULL;
+        LOGE("Error: Could not allocate the frame lists");
+        return MOSAIC_RET_ERROR;
     }
-    else
+
+    for(int i=0; i<max_frames; i++)
     {
-        for(int i=0; i<max_frames; i++)
-        {
-            frames[i] = NULL;
-        }
+        // Do no allocate memory for YUV data
+        frames[i] = (i < nframes) ? NewFrame(arena, this->width, this->height) : NULL;
     }
 
-    owned_frames = new ImageType[max_frames];
-    owned_size = 0;
-
     LOGV("Initialize %d %d", width, height);
     LOGV("Frame width %d,%d", width, height);
     LOGV("Max num frames %d", max_frames);
@@ -110,6 +118,7 @@ int Mosaic::initialize(int blendingType, int stripType, int width, int height, i
             blendingType == Blend::BLEND_TYPE_HORZ) {
         blender = new Blend();
         blender->initialize(blendingType, stripType, width, height);
+        blender->setArena(arena);
     } else {
         blender = NULL;
         LOGE("Error: Unknown blending type %d",blendingType);
@@ -121,6 +130,18 @@ int Mosaic::initialize(int blendingType, int stripType, int width, int height, i
     return MOSAIC_RET_OK;
 }
 
+void Mosaic::setBlendingThreadCount(int count)
+{
+    if (blender != NULL)
+        blender->setThreadCount(count);
+}
+
+void Mosaic::setIncrementalBlending(size_t memoryBudget)
+{
+    if (blender != NULL)
+        blender->setIncrementalBudget(memoryBudget);
+}
+
 int Mosaic::addFrameRGB(ImageType imageRGB)
 {
     ImageType imageYVU;
@@ -142,7 +163,9 @@ int Mosaic::addFrameRGB(ImageType imageRGB)
 int Mosaic::addFrame(ImageType imageYVU)
 {
     if(frames[frames_size]==NULL)
-        frames[frames_size] = new MosaicFrame(this->width,this->height,false);
+        frames[frames_size] = NewFrame(arena, this->width, this->height);
+    if(frames[frames_size]==NULL)
+        return MOSAIC_RET_ERROR;
 
     MosaicFrame *frame = frames[frames_size];
 
@@ -183,19 +206,25 @@ int Mosaic::addFrame(ImageType imageYVU)
             default:
                 break;
         }
+
+        // The frame is in the mosaic, so the blender can start on it.
+        if ((ret == MOSAIC_RET_OK || ret == MOSAIC_RET_FEW_INLIERS) && blender != NULL)
+            blender->addFrame(frame);
     }
 
     return ret;
 }
 
 
-int Mosaic::createMosaic(float &progress, bool &cancelComputation)
+int Mosaic::createMosaic(float &progress, bool &cancelComputation,
+        ProgressListener *listener)
 {
     if (frames_size <= 0)
     {
         // Haven't accepted any frame in aligner. No need to do blending.
         progress = TIME_PERCENT_ALIGN + TIME_PERCENT_BLEND
                 + TIME_PERCENT_FINAL;
+        if (listener != NULL) listener->onProgress(progress);
         return MOSAIC_RET_OK;
     }
 
@@ -213,7 +242,7 @@ int Mosaic::createMosaic(float &progress, bool &cancelComputation)
     {
         ret = blender->runBlend((MosaicFrame **) frames, (MosaicFrame **) rframes, 
                 frames_size, imageMosaicYVU,
-                mosaicWidth, mosaicHeight, progress, cancelComputation);
+                mosaicWidth, mosaicHeight, progress, cancelComputation, listener);
     }
 
     switch(ret)
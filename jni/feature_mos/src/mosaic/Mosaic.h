@@ -26,6 +26,7 @@
 #include "ImageUtils.h"
 #include "AlignFeatures.h"
 #include "Blend.h"
+#include "MosaicArena.h"
 #include "MosaicTypes.h"
 
 /*! \mainpage Mosaic
@@ -79,7 +80,13 @@ class Mosaic
 
 public:
 
-  Mosaic();
+   /*!
+    *   \param arena        Memory of the frames and the blending buffers. It
+    *                       must outlive the mosaic, and should be reset only
+    *                       after the mosaic is deleted. If NULL, the mosaic
+    *                       uses an arena of its own.
+    */
+  Mosaic(MosaicArena *arena = NULL);
   ~Mosaic();
 
    /*!
@@ -97,6 +104,20 @@ public:
     */
   int initialize(int blendingType, int stripType, int width, int height, int nframes = -1, bool quarter_res = false, float thresh_still = 0.0);
 
+   /*!
+    *   Sets the number of threads the blender uses. Call after initialize().
+    *   \param count        The number of threads, or 0 for one per online CPU
+    */
+  void setBlendingThreadCount(int count);
+
+   /*!
+    *   Blends each frame as far as it can while the capture goes on, so that
+    *   createMosaic() has less left to do. Call after initialize().
+    *   \param memoryBudget Most bytes the frames blended ahead may hold, or 0
+    *                       to blend everything in createMosaic() (default).
+    */
+  void setIncrementalBlending(size_t memoryBudget);
+
    /*!
     *   Adds a YVU frame to the mosaic.
     *   \param imageYVU     Pointer to a YVU image.
@@ -114,9 +135,11 @@ public:
    /*!
     *   After adding all frames, call this function to perform the final blending.
     *   \param progress     Variable to set the current progress in.
+    *   \param listener     If not NULL, told each time the progress changes.
     *   \return             Return code signifying success or failure.
     */
-  int createMosaic(float &progress, bool &cancelComputation);
+  int createMosaic(float &progress, bool &cancelComputation,
+          ProgressListener *listener = NULL);
 
     /*!
     *   Obtains the resulting mosaic and its dimensions.
@@ -132,6 +155,12 @@ public:
     */
   Align* getAligner() { return aligner; }
 
+    /*!
+    *   Provides access to the internal blender object pointer.
+    *   \return             Pointer to the blender object.
+    */
+  Blend* getBlender() { return blender; }
+
     /*!
     *   Obtain initialization state.
     *
@@ -212,6 +241,12 @@ protected:
    */
   Blend *blender;
 
+  /**
+   *  Memory of the frames and of the blender.
+   */
+  MosaicArena *arena;
+  MosaicArena ownArena;
+
   /**
    *  Modifies TRS matrices so that rotations are balanced
    *  about center of mosaic
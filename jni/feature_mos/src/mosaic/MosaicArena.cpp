@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// MosaicArena.cpp
+
+#include <stdint.h>
+#include <stdlib.h>
+
+#include "MosaicArena.h"
+
+#include "Log.h"
+#define LOG_TAG "MOSAIC_ARENA"
+
+static inline size_t AlignSize(size_t size)
+{
+    return (size + MosaicArena::ALIGNMENT - 1) & ~(MosaicArena::ALIGNMENT - 1);
+}
+
+MosaicArena::MosaicArena()
+{
+    m_pFirst = m_pCurrent = NULL;
+    m_nUsed = m_nPeak = m_nReserved = 0;
+}
+
+MosaicArena::~MosaicArena()
+{
+    release();
+}
+
+MosaicArena::Block *MosaicArena::allocateBlock(size_t size)
+{
+    // The header and the slack to align the data share one malloc.
+    Block *block = (Block *) malloc(sizeof(Block) + ALIGNMENT + size);
+    if (block == NULL)
+    {
+        LOGE("Could not allocate a block of %lu bytes", (unsigned long) size);
+        return NULL;
+    }
+    block->next = NULL;
+    block->data = (unsigned char *) AlignSize((uintptr_t) (block + 1));
+    block->size = size;
+    block->used = 0;
+    m_nReserved += size;
+    return block;
+}
+
+void *MosaicArena::allocate(size_t size)
+{
+    size = AlignSize(size > 0 ? size : 1);
+
+    // Use the first block from the current one on with room; the ones
+    // skipped are empty after a rewind and are used again after the next.
+    Block *last = NULL;
+    for (Block *block = m_pCurrent; block != NULL; block = block->next)
+    {
+        if (block->size - block->used >= size)
+        {
+            m_pCurrent = block;
+            break;
+        }
+        last = block;
+    }
+    if (m_pCurrent == NULL || m_pCurrent->size - m_pCurrent->used < size)
+    {
+        Block *block = allocateBlock(size > BLOCK_SIZE ? size : BLOCK_SIZE);
+        if (block == NULL) return NULL;
+        if (last != NULL)
+            last->next = block;
+        else
+            m_pFirst = block;
+        m_pCurrent = block;
+    }
+
+    void *ptr = m_pCurrent->data + m_pCurrent->used;
+    m_pCurrent->used += size;
+    m_nUsed += size;
+    if (m_nUsed > m_nPeak) m_nPeak = m_nUsed;
+    return ptr;
+}
+
+MosaicArena::Mark MosaicArena::getMark() const
+{
+    Mark mark;
+    mark.block = m_pCurrent;
+    mark.offset = (m_pCurrent != NULL) ? m_pCurrent->used : 0;
+    mark.used = m_nUsed;
+    return mark;
+}
+
+void MosaicArena::rewind(const Mark &mark)
+{
+    Block *block = (Block *) mark.block;
+    if (block == NULL)
+    {
+        block = m_pFirst;
+        if (block != NULL) block->used = 0;
+    }
+    else
+    {
+        block->used = mark.offset;
+    }
+    m_pCurrent = block;
+    for (block = (block != NULL) ? block->next : NULL; block != NULL; block = block->next)
+    {
+        block->used = 0;
+    }
+    m_nUsed = mark.used;
+}
+
+void MosaicArena::reset()
+{
+    if (m_pFirst != NULL && m_pFirst->next != NULL)
+    {
+        size_t size = m_nReserved;
+        release();
+        m_pFirst = allocateBlock(size);
+    }
+    else if (m_pFirst != NULL)
+    {
+        m_pFirst->used = 0;
+    }
+    m_pCurrent = m_pFirst;
+    m_nUsed = m_nPeak = 0;
+}
+
+void MosaicArena::release()
+{
+    while (m_pFirst != NULL)
+    {
+        Block *next = m_pFirst->next;
+        free(m_pFirst);
+        m_pFirst = next;
+    }
+    m_pCurrent = NULL;
+    m_nUsed = m_nPeak = m_nReserved = 0;
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// MosaicArena.h
+
+#ifndef MOSAIC_ARENA_H
+#define MOSAIC_ARENA_H
+
+#include <stddef.h>
+
+/**
+ *  Memory of one mosaic session. Allocations are carved out of a few large
+ *  blocks and are given back only all at once, by reset() or rewind(), so a
+ *  session does not go through malloc for every frame and buffer, and the
+ *  next session reuses the same blocks. It is not thread safe: only the
+ *  thread driving the mosaic may allocate from it.
+ */
+class MosaicArena
+{
+public:
+  /**
+   *  Least size of a block. Larger allocations get a block of their own.
+   */
+  static const size_t BLOCK_SIZE = 1 << 20;
+
+  /**
+   *  Alignment of every allocation, enough for doubles and SIMD loads.
+   */
+  static const size_t ALIGNMENT = 16;
+
+  /**
+   *  Position in the arena, to rewind() to.
+   */
+  struct Mark
+  {
+    void *block;
+    size_t offset;
+    size_t used;
+  };
+
+  MosaicArena();
+  ~MosaicArena();
+
+  /**
+   *  Allocates uninitialized memory that stays valid until the arena is
+   *  reset or rewound to a mark taken before.
+   *  \param size         Number of bytes
+   *  \return             The memory, or NULL if it cannot be allocated
+   */
+  void *allocate(size_t size);
+
+  /**
+   *  Allocates an uninitialized array of count elements of type T.
+   */
+  template <class T> T *allocateArray(int count)
+  {
+    return (T *) allocate(count * sizeof(T));
+  }
+
+  /**
+   *  Returns the current position, to give back what is allocated after it.
+   */
+  Mark getMark() const;
+
+  /**
+   *  Gives back everything allocated since mark was taken. The blocks are
+   *  kept for later allocations.
+   */
+  void rewind(const Mark &mark);
+
+  /**
+   *  Gives back everything for a new session. If the last session needed
+   *  several blocks, they are merged into one as large as all of them.
+   */
+  void reset();
+
+  /**
+   *  Frees all the blocks.
+   */
+  void release();
+
+  /**
+   *  Bytes allocated and not given back.
+   */
+  size_t getUsedBytes() const { return m_nUsed; }
+
+  /**
+   *  Most bytes allocated at once since the last reset.
+   */
+  size_t getPeakBytes() const { return m_nPeak; }
+
+  /**
+   *  Bytes of all the blocks held.
+   */
+  size_t getReservedBytes() const { return m_nReserved; }
+
+private:
+  struct Block
+  {
+    Block *next;
+    unsigned char *data;
+    size_t size;
+    size_t used;
+  };
+
+  Block *m_pFirst;
+  Block *m_pCurrent;
+
+  size_t m_nUsed;
+  size_t m_nPeak;
+  size_t m_nReserved;
+
+  Block *allocateBlock(size_t size);
+
+  MosaicArena(const MosaicArena &);
+  MosaicArena &operator=(const MosaicArena &);
+};
+
+#endif
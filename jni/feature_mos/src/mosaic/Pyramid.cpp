@@ -18,6 +18,7 @@
 
 #include <stdio.h>
 #include <string.h>
+#include <pthread.h>
 
 #include "Pyramid.h"
 
@@ -145,126 +146,264 @@ void PyramidShort::BorderSpread(PyramidShort *pyr, int left, int right,
     }
 }
 
-void PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr,
-        int mode)
+// Scratch rows of the band filters: the reduce keeps the five rows its
+// vertical filter reads, the expand builds one row at a time.
+#define REDUCE_ROWS 5
+#define EXPAND_ROWS 1
+
+// Levels with fewer output pixels than this are filtered on the calling
+// thread; starting threads would cost more than they save.
+#define MIN_PARALLEL_PIXELS (64 * 1024)
+
+PyramidScratch::PyramidScratch(int threads)
 {
-    int i,j;
-    int off = in->border / 2;
+    m_pBuffer = NULL;
+    m_nSize = 0;
+    setThreadCount(threads);
+}
+
+PyramidScratch::~PyramidScratch()
+{
+    if (m_pBuffer != NULL)
+        free(m_pBuffer);
+}
+
+void PyramidScratch::setThreadCount(int threads)
+{
+    if (threads > MAX_THREADS) threads = MAX_THREADS;
+    m_nThreads = (threads < 1) ? 1 : threads;
+}
+
+ImageTypeShortBase *PyramidScratch::getBuffer(int count)
+{
+    if (count > m_nSize) {
+        if (m_pBuffer != NULL)
+            free(m_pBuffer);
+        m_pBuffer = (ImageTypeShortBase *) malloc(sizeof(ImageTypeShortBase) * count);
+        m_nSize = (m_pBuffer != NULL) ? count : 0;
+    }
+    return m_pBuffer;
+}
+
+// Rows [lo, hi) of out that one thread filters from in.
+struct PyramidBand
+{
+    PyramidShort *in, *out;
+    ImageTypeShortBase *rows;       // Scratch rows of this band
+    int lo, hi;
+    int mode;
+    void (*filter)(PyramidBand *band);
+};
+
+static void *PyramidBandThread(void *arg)
+{
+    PyramidBand *band = (PyramidBand *) arg;
+    band->filter(band);
+    return NULL;
+}
+
+// Splits rows [lo, hi) of out into one band per thread and filters them.
+// Every output row only depends on in, so the bands are independent.
+static int FilterBands(PyramidShort *in, PyramidShort *out, int mode, int lo, int hi,
+        int rowCount, int rowPitch, void (*filter)(PyramidBand *), PyramidScratch *scratch)
+{
+    int nbands = scratch->getThreadCount();
+    if ((hi - lo) * out->pitch < MIN_PARALLEL_PIXELS)
+        nbands = 1;
+
+    int size = rowCount * rowPitch;
+    ImageTypeShortBase *rows = scratch->getBuffer(size * nbands);
+    if (rows == NULL)
+        return 0;
+
+    PyramidBand bands[PyramidScratch::MAX_THREADS];
+    for (int k = 0; k < nbands; k++) {
+        bands[k].in = in;
+        bands[k].out = out;
+        bands[k].rows = rows + k * size;
+        bands[k].lo = lo + (hi - lo) * k / nbands;
+        bands[k].hi = lo + (hi - lo) * (k + 1) / nbands;
+        bands[k].mode = mode;
+        bands[k].filter = filter;
+    }
+
+    pthread_t threads[PyramidScratch::MAX_THREADS];
+    bool started[PyramidScratch::MAX_THREADS];
+    for (int k = 1; k < nbands; k++) {
+        started[k] = (pthread_create(&threads[k], NULL, PyramidBandThread, &bands[k]) == 0);
+    }
+
+    filter(&bands[0]);
+
+    for (int k = 1; k < nbands; k++) {
+        if (started[k])
+            pthread_join(threads[k], NULL);
+        else
+            filter(&bands[k]);
+    }
+    return 1;
+}
+
+// Builds row r of the scratch image of BorderExpandOdd() in row. Rows past
+// the three nearest the image repeat the last one, as BorderSpread() would.
+static void ExpandRow(PyramidShort *in, PyramidShort *out, int r, ImageTypeShort row)
+{
+    int top = 3 - out->border;
+    int bot = out->height + out->border - 4;
+    if (r < top) r = top;
+    if (r > bot) r = bot;
+
+    int j = (r - (r & 1)) / 2;
+    ImageTypeShort t0 = in->ptr[j - 1];
+    ImageTypeShort t1 = in->ptr[j];
+    ImageTypeShort t2 = in->ptr[j + 1];
+    int limit = in->width + in->border;
 
     // Vertical Filter
-    for (j = -off; j < in->height + off; j++) {
-        int j2 = j * 2;
-        int limit = scr->width + scr->border;
-        for (i = -scr->border; i < limit; i++) {
-            int t1 = in->ptr[j][i];
-            int t2 = in->ptr[j+1][i];
-            scr->ptr[j2][i] = (short)
-                ((6 * t1 + (in->ptr[j-1][i] + t2) + 4) >> 3);
-            scr->ptr[j2+1][i] = (short)((t1 + t2 + 1) >> 1);
-        }
+    if (r & 1) {
+        for (int i = -in->border; i < limit; i++)
+            row[i] = (short)((t1[i] + t2[i] + 1) >> 1);
+    } else {
+        for (int i = -in->border; i < limit; i++)
+            row[i] = (short)((6 * t1[i] + (t0[i] + t2[i]) + 4) >> 3);
     }
+}
 
-    BorderSpread(scr, 0, 0, 3, 3);
+static void ExpandBand(PyramidBand *band)
+{
+    PyramidShort *in = band->in;
+    PyramidShort *out = band->out;
+    ImageTypeShort row = band->rows + in->border;
+    int off = in->border / 2;
+    int limit = in->width + off;
+    int mode = band->mode;
 
-    // Horizontal Filter
-    int limit = out->height + out->border;
-    for (j = -out->border; j < limit; j++) {
-        for (i = -off; i < scr->width + off; i++) {
+    for (int j = band->lo; j < band->hi; j++) {
+        ExpandRow(in, out, j, row);
+
+        // Horizontal Filter
+        ImageTypeShort o = out->ptr[j];
+        for (int i = -off; i < limit; i++) {
             int i2 = i * 2;
-            int t1 = scr->ptr[j][i];
-            int t2 = scr->ptr[j][i+1];
-            out->ptr[j][i2] = (short) (out->ptr[j][i2] +
-                    (mode * ((6 * t1 +
-                              scr->ptr[j][i-1] + t2 + 4) >> 3)));
-            out->ptr[j][i2+1] = (short) (out->ptr[j][i2+1] +
+            int t1 = row[i];
+            int t2 = row[i+1];
+            o[i2] = (short) (o[i2] +
+                    (mode * ((6 * t1 + row[i-1] + t2 + 4) >> 3)));
+            o[i2+1] = (short) (o[i2+1] +
                     (mode * ((t1 + t2 + 1) >> 1)));
         }
     }
+}
 
+int PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidScratch *scratch,
+        int mode)
+{
+    return FilterBands(in, out, mode, -out->border, out->height + out->border,
+            EXPAND_ROWS, in->pitch, ExpandBand, scratch);
 }
 
-int PyramidShort::BorderExpand(PyramidShort *pyr, int nlev, int mode)
+int PyramidShort::BorderExpand(PyramidShort *pyr, int nlev, int mode, PyramidScratch *scratch)
 {
     PyramidShort *tpyr = pyr + nlev - 1;
-    PyramidShort *scr = allocateImage(pyr[1].width, pyr[0].height, pyr->border);
-    if (scr == NULL) return 0;
+    PyramidScratch local;
+    if (scratch == NULL) scratch = &local;
 
     if (mode > 0) {
         // Expand and add (reconstruct from Laplacian)
         for (; tpyr > pyr; tpyr--) {
-            scr->width = tpyr[0].width;
-            scr->height = tpyr[-1].height;
-            BorderExpandOdd(tpyr, tpyr - 1, scr, 1);
+            if (!BorderExpandOdd(tpyr, tpyr - 1, scratch, 1))
+                return 0;
         }
     }
     else if (mode < 0) {
         // Expand and subtract (build Laplacian)
         while ((pyr++) < tpyr) {
-            scr->width = pyr[0].width;
-            scr->height = pyr[-1].height;
-            BorderExpandOdd(pyr, pyr - 1, scr, -1);
+            if (!BorderExpandOdd(pyr, pyr - 1, scratch, -1))
+                return 0;
         }
     }
 
-    freeImage(scr);
     return 1;
 }
 
-void PyramidShort::BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr)
+// Filters row r of in horizontally into row, which holds the columns of a
+// row of out, and spreads its ends in X.
+static void ReduceRow(PyramidShort *in, PyramidShort *out, int r, ImageTypeShort row)
 {
-    ImageTypeShortBase *s, *ns, *ls, *p, *np;
-
-    int off = scr->border - 2;
-    s = scr->ptr[-scr->border] - (off >> 1);
-    ns = s + scr->pitch;
-    ls = scr->ptr[scr->height + scr->border - 1] + scr->pitch - (off >> 1);
-    int width = scr->width + scr->border;
-    p = in->ptr[-scr->border] - off;
-    np = p + in->pitch;
-
-    // treat it as if the whole thing were the image
-    for (; s < ls; s = ns, ns += scr->pitch, p = np, np += in->pitch) {
-        for (int w = width; w--; s++, p += 2) {
-            *s = (short)((((int) p[-2]) + ((int) p[2]) + 8 +    // 1
-                        ((((int) p[-1]) + ((int) p[1])) << 2) + // 4
-                        ((int) *p) * 6) >> 4);          // 6
-        }
+    int off = out->border - 2;
+    ImageTypeShortBase *s = row - (off >> 1);
+    ImageTypeShortBase *p = in->ptr[r] - off;
+
+    for (int w = out->width + out->border; w--; s++, p += 2) {
+        *s = (short)((((int) p[-2]) + ((int) p[2]) + 8 +    // 1
+                    ((((int) p[-1]) + ((int) p[1])) << 2) + // 4
+                    ((int) *p) * 6) >> 4);          // 6
     }
 
-    BorderSpread(scr, 5, 4 + ((in->width ^ 1) & 1), 0, 0); //
-
-    s = out->ptr[-(off >> 1)] - out->border;
-    ns = s + out->pitch;
-    ls = s + out->pitch * (out->height + off);
-    p = scr->ptr[-off] - out->border;
-    int pitch = scr->pitch;
-    int pitch2 = pitch << 1;
-    np = p + pitch2;
-    for (; s < ls; s = ns, ns += out->pitch, p = np, np += pitch2) {
-        for (int w = out->pitch; w--; s++, p++) {
-            *s = (short)((((int) p[-pitch2]) + ((int) p[pitch2]) + 8 + // 1
-                        ((((int) p[-pitch]) + ((int) p[pitch])) << 2) + // 4
-                        ((int) *p) * 6) >> 4);              // 6
+    int left = 5;
+    int right = 4 + ((in->width ^ 1) & 1);
+    int first = left - out->border;
+    int last = out->width + out->border - right - 1;
+    for (int w = left; w--;)
+        row[first - 1 - w] = row[first];
+    for (int w = right; w--;)
+        row[last + w + 1] = row[last];
+}
+
+static void ReduceBand(PyramidBand *band)
+{
+    PyramidShort *in = band->in;
+    PyramidShort *out = band->out;
+    int pitch = out->pitch;
+    int limit = out->width + out->border;
+
+    // Ring of the rows of in filtered horizontally, starting at first.
+    ImageTypeShort ring[REDUCE_ROWS];
+    for (int k = 0; k < REDUCE_ROWS; k++)
+        ring[k] = band->rows + k * pitch + out->border;
+    int first = band->lo * 2 - 2;
+    int next = first;
+
+    for (int j = band->lo; j < band->hi; j++) {
+        for (; next <= j * 2 + 2; next++)
+            ReduceRow(in, out, next, ring[(next - first) % REDUCE_ROWS]);
+
+        ImageTypeShort p0 = ring[(j * 2 - 2 - first) % REDUCE_ROWS];
+        ImageTypeShort p1 = ring[(j * 2 - 1 - first) % REDUCE_ROWS];
+        ImageTypeShort p2 = ring[(j * 2 - first) % REDUCE_ROWS];
+        ImageTypeShort p3 = ring[(j * 2 + 1 - first) % REDUCE_ROWS];
+        ImageTypeShort p4 = ring[(j * 2 + 2 - first) % REDUCE_ROWS];
+        ImageTypeShort s = out->ptr[j];
+        for (int i = -out->border; i < limit; i++) {
+            s[i] = (short)((((int) p0[i]) + ((int) p4[i]) + 8 + // 1
+                        ((((int) p1[i]) + ((int) p3[i])) << 2) + // 4
+                        ((int) p2[i]) * 6) >> 4);              // 6
         }
     }
-    BorderSpread(out, 0, 0, 5, 5);
-
 }
 
-int PyramidShort::BorderReduce(PyramidShort *pyr, int nlev)
+int PyramidShort::BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidScratch *scratch)
 {
-    PyramidShort *scr = allocateImage(pyr[1].width, pyr[0].height, pyr->border);
-    if (scr == NULL)
+    int off = out->border - 2;
+    if (!FilterBands(in, out, 0, -(off >> 1), out->height + off - (off >> 1),
+            REDUCE_ROWS, out->pitch, ReduceBand, scratch))
         return 0;
 
+    BorderSpread(out, 0, 0, 5, 5);
+    return 1;
+}
+
+int PyramidShort::BorderReduce(PyramidShort *pyr, int nlev, PyramidScratch *scratch)
+{
+    PyramidScratch local;
+    if (scratch == NULL) scratch = &local;
+
     BorderSpread(pyr, pyr->border, pyr->border, pyr->border, pyr->border);
     while (--nlev) {
-        BorderReduceOdd(pyr, pyr + 1, scr);
+        if (!BorderReduceOdd(pyr, pyr + 1, scratch))
+            return 0;
         pyr++;
-        scr->width = pyr[1].width;
-        scr->height = pyr[0].height;
     }
 
-    freeImage(scr);
     return 1;
 }
@@ -23,6 +23,40 @@
 
 typedef unsigned short int real;
 
+//  Scratch arena and worker threads for PyramidShort::BorderReduce() and
+//  PyramidShort::BorderExpand().  Levels are filtered in bands of rows, one
+//  band per thread, and each band keeps only the few scratch rows it is
+//  working on, so they stay in cache.  Keeping one of these across calls
+//  saves allocating scratch memory for every pyramid built or collapsed.
+
+class PyramidScratch
+{
+
+public:
+
+  static const int MAX_THREADS = 4;
+
+  PyramidScratch(int threads = 1);
+  ~PyramidScratch();
+
+  // Sets the number of threads used for a level (at most MAX_THREADS).
+  // Small levels always run on the calling thread.
+  void setThreadCount(int threads);
+  int getThreadCount() const { return m_nThreads; }
+
+  // Returns scratch space for count shorts, growing the arena if needed.
+  ImageTypeShortBase *getBuffer(int count);
+
+private:
+
+  int m_nThreads;
+  ImageTypeShortBase *m_pBuffer;
+  int m_nSize;
+
+  PyramidScratch(const PyramidScratch &);
+  void operator=(const PyramidScratch &);
+};
+
 //  Structure containing a packed pyramid of type ImageTypeShort.  Used for pyramid
 //  blending, among other things.
 
@@ -45,10 +79,10 @@ public:
   static unsigned int calcStorage(real width, real height, real border2, int levels, int *lines);
 
   static void BorderSpread(PyramidShort *pyr, int left, int right, int top, int bot);
-  static void BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr, int mode);
-  static int BorderExpand(PyramidShort *pyr, int nlev, int mode);
-  static int BorderReduce(PyramidShort *pyr, int nlev);
-  static void BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr);
+  static int BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidScratch *scratch, int mode);
+  static int BorderExpand(PyramidShort *pyr, int nlev, int mode, PyramidScratch *scratch = NULL);
+  static int BorderReduce(PyramidShort *pyr, int nlev, PyramidScratch *scratch = NULL);
+  static int BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidScratch *scratch);
 };
 
 #endif
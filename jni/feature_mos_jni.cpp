@@ -17,16 +17,21 @@
 /*
 *
  */
+#include <math.h>
 #include <string.h>
 #include <jni.h>
+#include <stdint.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <time.h>
+#include <algorithm>
 #include <db_utilities_camera.h>
 
 #include "mosaic/AlignFeatures.h"
 #include "mosaic/Blend.h"
+#include "mosaic/ColorConvert.h"
 #include "mosaic/Mosaic.h"
+#include "mosaic/MosaicArena.h"
 #include "mosaic/Log.h"
 #define LOG_TAG "FEATURE_MOS_JNI"
 
@@ -36,36 +41,133 @@ extern "C" {
 
 #include "mosaic_renderer_jni.h"
 
-char buffer[1024];
-
 const int MAX_FRAMES = 100;
 
-static double mTx;
-
-int tWidth[NR];
-int tHeight[NR];
-
-ImageType tImage[NR][MAX_FRAMES];// = {{ImageUtils::IMAGE_TYPE_NOIMAGE}}; // YVU24 format image
-Mosaic *mosaic[NR] = {NULL,NULL};
-ImageType resultYVU = ImageUtils::IMAGE_TYPE_NOIMAGE;
-ImageType resultBGR = ImageUtils::IMAGE_TYPE_NOIMAGE;
-float gTRS[11]; // 9 elements of the transformation, 1 for frame-number, 1 for alignment error code.
-// Variables to keep track of the mosaic computation progress for both LR & HR.
-float gProgress[NR];
-// Variables to be able to cancel the mosaic computation when the GUI says so.
-bool gCancelComputation[NR];
-
-int c;
-int width=0, height=0;
-int mosaicWidth=0, mosaicHeight=0;
-
-//int blendingType = Blend::BLEND_TYPE_FULL;
-//int blendingType = Blend::BLEND_TYPE_CYLPAN;
-int blendingType = Blend::BLEND_TYPE_HORZ;
-int stripType = Blend::STRIP_TYPE_THIN;
-bool high_res = false;
-bool quarter_res[NR] = {false,false};
-float thresh_still[NR] = {5.0f,0.0f};
+// Preview of the mosaic shown while it is captured. Each low-res frame added
+// to the mosaic is pasted at its translation, without blending, into an ARGB
+// canvas at 1/PREVIEW_MOSAIC_SCALE of the low-res size. The canvas is
+// PREVIEW_MOSAIC_SPAN frames wide and high, with the first frame at the
+// center; whatever falls outside is clipped.
+const int PREVIEW_MOSAIC_SCALE = 2;
+const int PREVIEW_MOSAIC_SPAN = 8;
+
+// Memory each mosaic may hold for the frames it blends ahead while they are
+// added, so that less is left to do once the capture stops.
+const size_t INCREMENTAL_BLEND_BUDGET = 32 << 20;
+
+// The state of one mosaic, owned by a Java Mosaic object through its
+// mNativeContext field. Mosaics with separate contexts can be stitched
+// concurrently. The preview buffers of the renderer are shared, so only one
+// context at a time may use them; see gPreviewOwner. The low-res and the
+// high-res mosaics of one context may also be created at the same time: each
+// only writes the fields of its own resolution, and Mosaic.java keeps the
+// calls that change both from running meanwhile.
+struct MosaicContext
+{
+    MosaicContext(bool usePreview);
+    ~MosaicContext();
+
+    bool usePreview;
+
+    int tWidth[NR];
+    int tHeight[NR];
+
+    ImageType tImage[NR][MAX_FRAMES]; // YVU24 format image
+    Mosaic *mosaic[NR];
+    // The memory of each mosaic, reset when the mosaic is created again.
+    MosaicArena arena[NR];
+    // The last mosaic created at each resolution. The low-res and the
+    // high-res ones can be created at the same time, so each has its own.
+    ImageType resultYVU[NR];
+    // Whether resultYVU was converted to NV21 in place for getFinalMosaicNV21Buffer.
+    bool resultNV21[NR];
+    float trs[11]; // 9 elements of the transformation, 1 for frame-number, 1 for alignment error code.
+    // Variables to keep track of the mosaic computation progress for both LR & HR.
+    float progress[NR];
+    // Variables to be able to cancel the mosaic computation when the GUI says so.
+    bool cancelComputation[NR];
+
+    int mosaicWidth[NR], mosaicHeight[NR];
+
+    int blendingType;
+    int stripType;
+    // The number of threads blending each mosaic, or 0 for one per CPU.
+    int blendingThreads[NR];
+    bool quarter_res[NR];
+    float thresh_still[NR];
+
+    int frame_number_HR;
+    int frame_number_LR;
+
+    int* previewMosaic;
+    int previewMosaicWidth;
+    int previewMosaicHeight;
+    // The painted part of the canvas. Empty when right <= left.
+    int previewMosaicLeft, previewMosaicTop, previewMosaicRight, previewMosaicBottom;
+};
+
+MosaicContext::MosaicContext(bool usePreview)
+    : usePreview(usePreview),
+      //blendingType(Blend::BLEND_TYPE_FULL),
+      //blendingType(Blend::BLEND_TYPE_CYLPAN),
+      blendingType(Blend::BLEND_TYPE_HORZ),
+      stripType(Blend::STRIP_TYPE_THIN),
+      frame_number_HR(0), frame_number_LR(0),
+      previewMosaic(NULL), previewMosaicWidth(0), previewMosaicHeight(0),
+      previewMosaicLeft(0), previewMosaicTop(0),
+      previewMosaicRight(0), previewMosaicBottom(0)
+{
+    for(int mID = 0; mID < NR; mID++)
+    {
+        tWidth[mID] = tHeight[mID] = 0;
+        for(int i = 0; i < MAX_FRAMES; i++)
+        {
+            tImage[mID][i] = NULL;
+        }
+        mosaic[mID] = NULL;
+        resultYVU[mID] = NULL;
+        resultNV21[mID] = false;
+        mosaicWidth[mID] = mosaicHeight[mID] = 0;
+        progress[mID] = 0.0f;
+        cancelComputation[mID] = false;
+        quarter_res[mID] = false;
+        blendingThreads[mID] = 0;
+    }
+    thresh_still[LR] = 5.0f;
+    thresh_still[HR] = 0.0f;
+}
+
+MosaicContext::~MosaicContext()
+{
+    for(int mID = 0; mID < NR; mID++)
+    {
+        delete mosaic[mID];
+        ImageUtils::freeImage(resultYVU[mID]);
+    }
+}
+
+// The context whose memory is allocated in the preview buffers of the
+// renderer, or NULL.
+static MosaicContext* gPreviewOwner = NULL;
+
+static jfieldID gNativeContextField = NULL;
+
+static MosaicContext* GetContext(JNIEnv* env, jobject thiz)
+{
+    if(gNativeContextField == NULL)
+    {
+        jclass clazz = env->GetObjectClass(thiz);
+        gNativeContextField = env->GetFieldID(clazz, "mNativeContext", "J");
+        env->DeleteLocalRef(clazz);
+    }
+    return (MosaicContext*) (intptr_t) env->GetLongField(thiz, gNativeContextField);
+}
+
+static void SetContext(JNIEnv* env, jobject thiz, MosaicContext* ctx)
+{
+    GetContext(env, thiz);
+    env->SetLongField(thiz, gNativeContextField, (jlong) (intptr_t) ctx);
+}
 
 /* return current time in milliseconds*/
 
@@ -82,35 +184,40 @@ now_ms(void)
 #endif
 
 
-static int frame_number_HR = 0;
-static int frame_number_LR = 0;
-
-int Init(int mID, int nmax)
+int Init(MosaicContext* ctx, int mID, int nmax)
 {
         double  t0, t1, time_c;
 
-        if(mosaic[mID]!=NULL)
+        if(ctx->mosaic[mID]!=NULL)
         {
-                delete mosaic[mID];
-                mosaic[mID] = NULL;
+                delete ctx->mosaic[mID];
+                ctx->mosaic[mID] = NULL;
         }
 
-        mosaic[mID] = new Mosaic();
+        // Reuse the blocks of the last session for this one.
+        LOGV("Init[%d]: arena peak %lu bytes, reserved %lu bytes", mID,
+                (unsigned long) ctx->arena[mID].getPeakBytes(),
+                (unsigned long) ctx->arena[mID].getReservedBytes());
+        ctx->arena[mID].reset();
+        ctx->mosaic[mID] = new Mosaic(&ctx->arena[mID]);
 
         t0 = now_ms();
 
         // When processing higher than 720x480 video, process low-res at
         // quarter resolution
-        if(tWidth[LR]>180)
-            quarter_res[LR] = true;
+        if(mID == LR && ctx->tWidth[LR]>180)
+            ctx->quarter_res[LR] = true;
 
 
         // Check for initialization and if not, initialize
-        if (!mosaic[mID]->isInitialized())
+        if (!ctx->mosaic[mID]->isInitialized())
         {
-                mosaic[mID]->initialize(blendingType, stripType, tWidth[mID], tHeight[mID],
-                        nmax, quarter_res[mID], thresh_still[mID]);
+                ctx->mosaic[mID]->initialize(ctx->blendingType, ctx->stripType,
+                        ctx->tWidth[mID], ctx->tHeight[mID],
+                        nmax, ctx->quarter_res[mID], ctx->thresh_still[mID]);
         }
+        ctx->mosaic[mID]->setBlendingThreadCount(ctx->blendingThreads[mID]);
+        ctx->mosaic[mID]->setIncrementalBlending(INCREMENTAL_BLEND_BUDGET);
 
         t1 = now_ms();
         time_c = t1 - t0;
@@ -163,309 +270,444 @@ void GenerateQuarterResImagePlanar(ImageType im, int input_w, int input_h,
     }
 }
 
-int AddFrame(int mID, int k, float* trs1d)
+int AddFrame(MosaicContext* ctx, int mID, int k, float* trs1d)
 {
     double  t0, t1, time_c;
-    double trs[3][3];
+    double lastTRS[3][3];
 
-    int ret_code = mosaic[mID]->addFrame(tImage[mID][k]);
+    if(ctx->mosaic[mID] == NULL) return Mosaic::MOSAIC_RET_ERROR;
+    int ret_code = ctx->mosaic[mID]->addFrame(ctx->tImage[mID][k]);
 
-    mosaic[mID]->getAligner()->getLastTRS(trs);
+    ctx->mosaic[mID]->getAligner()->getLastTRS(lastTRS);
 
     if(trs1d!=NULL)
     {
 
-        trs1d[0] = trs[0][0];
-        trs1d[1] = trs[0][1];
-        trs1d[2] = trs[0][2];
-        trs1d[3] = trs[1][0];
-        trs1d[4] = trs[1][1];
-        trs1d[5] = trs[1][2];
-        trs1d[6] = trs[2][0];
-        trs1d[7] = trs[2][1];
-        trs1d[8] = trs[2][2];
+        trs1d[0] = lastTRS[0][0];
+        trs1d[1] = lastTRS[0][1];
+        trs1d[2] = lastTRS[0][2];
+        trs1d[3] = lastTRS[1][0];
+        trs1d[4] = lastTRS[1][1];
+        trs1d[5] = lastTRS[1][2];
+        trs1d[6] = lastTRS[2][0];
+        trs1d[7] = lastTRS[2][1];
+        trs1d[8] = lastTRS[2][2];
     }
 
     return ret_code;
 }
 
-int Finalize(int mID)
+void ClearPreviewMosaic(MosaicContext* ctx)
 {
-    double  t0, t1, time_c;
-
-    t0 = now_ms();
-    // Create the mosaic
-    int ret = mosaic[mID]->createMosaic(gProgress[mID], gCancelComputation[mID]);
-    t1 = now_ms();
-    time_c = t1 - t0;
-    LOGV("CreateMosaic: %g ms",time_c);
-
-    // Get back the result
-    resultYVU = mosaic[mID]->getMosaic(mosaicWidth, mosaicHeight);
-
-    return ret;
+    ctx->previewMosaicLeft = ctx->previewMosaicTop = 0;
+    ctx->previewMosaicRight = ctx->previewMosaicBottom = 0;
 }
 
-void YUV420toYVU24(ImageType yvu24, ImageType yuv420sp, int width, int height)
+// Pastes a planar YVU low-res frame into the preview canvas, translated by
+// (tx, ty) low-res pixels from the first frame.
+void PastePreviewMosaic(MosaicContext* ctx, ImageType yvu, float tx, float ty)
 {
-    int frameSize = width * height;
+    if(ctx->previewMosaic == NULL) return;
+
+    int width = ctx->tWidth[LR] / PREVIEW_MOSAIC_SCALE;
+    int height = ctx->tHeight[LR] / PREVIEW_MOSAIC_SCALE;
+    int left = (ctx->previewMosaicWidth - width) / 2 +
+            (int) floorf(tx / PREVIEW_MOSAIC_SCALE);
+    int top = (ctx->previewMosaicHeight - height) / 2 +
+            (int) floorf(ty / PREVIEW_MOSAIC_SCALE);
+
+    int x0 = std::max(left, 0);
+    int y0 = std::max(top, 0);
+    int x1 = std::min(left + width, ctx->previewMosaicWidth);
+    int y1 = std::min(top + height, ctx->previewMosaicHeight);
+    if(x1 <= x0 || y1 <= y0) return;
+
+    int planeSize = ctx->tWidth[LR] * ctx->tHeight[LR];
+    for(int y = y0; y < y1; y++)
+    {
+        unsigned char* yp = yvu + (y - top) * PREVIEW_MOSAIC_SCALE * ctx->tWidth[LR];
+        int* out = ctx->previewMosaic + y * ctx->previewMosaicWidth;
+        for(int x = x0; x < x1; x++)
+        {
+            int i = (x - left) * PREVIEW_MOSAIC_SCALE;
+            int luma = yp[i];
+            int v = yp[planeSize + i];
+            int u = yp[2 * planeSize + i];
+
+            // Same conversion as ImageUtils::yvu2bgr().
+            int b = (int) (1.164 * (luma - 16) + 2.018 * (u - 128));
+            int g = (int) (1.164 * (luma - 16) - 0.813 * (v - 128) - 0.391 * (u - 128));
+            int r = (int) (1.164 * (luma - 16) + 1.596 * (v - 128));
+            b = std::min(std::max(b, 0), 255);
+            g = std::min(std::max(g, 0), 255);
+            r = std::min(std::max(r, 0), 255);
+
+            out[x] = (0xFF << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
 
-    ImageType oyp = yvu24;
-    ImageType ovp = yvu24+frameSize;
-    ImageType oup = yvu24+frameSize+frameSize;
+    if(ctx->previewMosaicRight <= ctx->previewMosaicLeft)
+    {
+        ctx->previewMosaicLeft = x0;
+        ctx->previewMosaicTop = y0;
+        ctx->previewMosaicRight = x1;
+        ctx->previewMosaicBottom = y1;
+    }
+    else
+    {
+        ctx->previewMosaicLeft = std::min(ctx->previewMosaicLeft, x0);
+        ctx->previewMosaicTop = std::min(ctx->previewMosaicTop, y0);
+        ctx->previewMosaicRight = std::max(ctx->previewMosaicRight, x1);
+        ctx->previewMosaicBottom = std::max(ctx->previewMosaicBottom, y1);
+    }
+}
 
-    for (int j = 0, yp = 0; j < height; j++)
+// The least time between two calls to Mosaic.onProgress(), unless the
+// mosaic is done.
+const double PROGRESS_INTERVAL_MS = 50.0;
+
+// Passes the progress of createMosaic() to Mosaic.onProgress() in Java. It
+// is called on the thread running createMosaic(), only when the progress in
+// whole percent changes and at most every PROGRESS_INTERVAL_MS.
+class JavaProgressListener : public ProgressListener
+{
+public:
+    JavaProgressListener(JNIEnv* env, jobject thiz, bool hires)
+        : mEnv(env), mThiz(thiz), mHires(hires), mLastProgress(-1), mLastTime(0)
     {
-        unsigned char u = 0, v = 0;
-        int uvp = frameSize + (j >> 1) * width;
-        for (int i = 0; i < width; i++, yp++)
+        jclass clazz = env->GetObjectClass(thiz);
+        mMethod = env->GetMethodID(clazz, "onProgress", "(ZI)V");
+        if (mMethod == NULL)
         {
-            *oyp++ = yuv420sp[yp];
-            //int y = (0xff & (int)yuv420sp[yp]) -16;
-            //yvu24p[yp] = (y<0)?0:y;
-
-            if ((i & 1) == 0)
-            {
-                v = yuv420sp[uvp++];
-                u = yuv420sp[uvp++];
-            }
+            LOGE("Cannot find Mosaic.onProgress()");
+            env->ExceptionClear();
+        }
+        env->DeleteLocalRef(clazz);
+    }
 
-            *ovp++ = v;
-            *oup++ = u;
+    virtual void onProgress(float progress)
+    {
+        int percent = (int) progress;
+        double now = now_ms();
+        if (mMethod == NULL || percent == mLastProgress ||
+                (percent < 100 && now - mLastTime < PROGRESS_INTERVAL_MS))
+        {
+            return;
+        }
+        mLastProgress = percent;
+        mLastTime = now;
+        mEnv->CallVoidMethod(mThiz, mMethod, (jboolean) mHires, (jint) percent);
+        if (mEnv->ExceptionCheck())
+        {
+            LOGE("Mosaic.onProgress() threw an exception");
+            mEnv->ExceptionDescribe();
+            mEnv->ExceptionClear();
         }
     }
-}
 
-void YUV420toYVU24_NEW(ImageType yvu24, ImageType yuv420sp, int width,
-        int height)
+private:
+    JNIEnv* mEnv;
+    jobject mThiz;
+    jmethodID mMethod;
+    bool mHires;
+    int mLastProgress;
+    double mLastTime;
+};
+
+int Finalize(MosaicContext* ctx, int mID, ProgressListener* listener = NULL)
 {
-    int frameSize = width * height;
+    double  t0, t1, time_c;
 
-    ImageType oyp = yvu24;
-    ImageType ovp = yvu24 + frameSize;
-    ImageType oup = yvu24 + frameSize + frameSize;
+    if(ctx->mosaic[mID] == NULL) return Mosaic::MOSAIC_RET_ERROR;
 
-    memcpy(yvu24, yuv420sp, frameSize * sizeof(unsigned char));
+    t0 = now_ms();
+    // Create the mosaic
+    int ret = ctx->mosaic[mID]->createMosaic(ctx->progress[mID], ctx->cancelComputation[mID], listener);
+    t1 = now_ms();
+    time_c = t1 - t0;
+    LOGV("CreateMosaic: %g ms",time_c);
 
-    for (int j = 0; j < height; j += 2)
-    {
-        unsigned char u = 0, v = 0;
-        int uvp = frameSize + (j >> 1) * width;
-        ovp = yvu24 + frameSize + j * width;
-        oup = ovp + frameSize;
+    // Get back the result. Mosaic.getFinalMosaicNV21() cannot be copying the
+    // last one while the mosaic of the same resolution is created, so it is
+    // freed here.
+    ImageUtils::freeImage(ctx->resultYVU[mID]);
+    ctx->resultYVU[mID] = ctx->mosaic[mID]->getMosaic(ctx->mosaicWidth[mID], ctx->mosaicHeight[mID]);
+    ctx->resultNV21[mID] = false;
 
-        ImageType iuvp = yuv420sp + uvp;
+    return ret;
+}
 
-        for (int i = 0; i < width; i += 2)
-        {
-            v = *iuvp++;
-            u = *iuvp++;
+void YUV420toYVU24_NEW(ImageType yvu24, ImageType yuv420sp, int width,
+        int height)
+{
+    ColorConvert::get()->nv21ToYvu(yvu24, yuv420sp, width, height);
+}
 
-            *ovp++ = v;
-            *oup++ = u;
 
-            *ovp++ = v;
-            *oup++ = u;
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_nativeCreate(
+        JNIEnv* env, jobject thiz, jboolean usePreview)
+{
+    SetContext(env, thiz, new MosaicContext(bool(usePreview)));
+}
 
-        }
-        memcpy(ovp, ovp - width, width * sizeof(unsigned char));
-        memcpy(oup, oup - width, width * sizeof(unsigned char));
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_nativeDestroy(
+        JNIEnv* env, jobject thiz)
+{
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return;
+    if(gPreviewOwner == ctx)
+    {
+        LOGE("Mosaic destroyed before its memory was freed");
+        FreeTextureMemory();
+        gPreviewOwner = NULL;
     }
+    SetContext(env, thiz, NULL);
+    delete ctx;
 }
 
-
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_allocateMosaicMemory(
         JNIEnv* env, jobject thiz, jint width, jint height)
 {
-    tWidth[HR] = width;
-    tHeight[HR] = height;
-    tWidth[LR] = int(width / H2L_FACTOR);
-    tHeight[LR] = int(height / H2L_FACTOR);
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return;
+    if(ctx->usePreview && gPreviewOwner != NULL && gPreviewOwner != ctx)
+    {
+        jclass exception = env->FindClass("java/lang/IllegalStateException");
+        env->ThrowNew(exception, "The preview buffers are used by another mosaic");
+        return;
+    }
+
+    ctx->tWidth[HR] = width;
+    ctx->tHeight[HR] = height;
+    ctx->tWidth[LR] = int(width / H2L_FACTOR);
+    ctx->tHeight[LR] = int(height / H2L_FACTOR);
 
     for(int i=0; i<MAX_FRAMES; i++)
     {
-            tImage[LR][i] = ImageUtils::allocateImage(tWidth[LR], tHeight[LR],
+            ctx->tImage[LR][i] = ImageUtils::allocateImage(ctx->tWidth[LR], ctx->tHeight[LR],
                     ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-            tImage[HR][i] = ImageUtils::allocateImage(tWidth[HR], tHeight[HR],
+            ctx->tImage[HR][i] = ImageUtils::allocateImage(ctx->tWidth[HR], ctx->tHeight[HR],
                     ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
     }
 
-    AllocateTextureMemory(tWidth[HR], tHeight[HR], tWidth[LR], tHeight[LR]);
+    ctx->previewMosaicWidth = PREVIEW_MOSAIC_SPAN * (ctx->tWidth[LR] / PREVIEW_MOSAIC_SCALE);
+    ctx->previewMosaicHeight = PREVIEW_MOSAIC_SPAN * (ctx->tHeight[LR] / PREVIEW_MOSAIC_SCALE);
+    ctx->previewMosaic = new int[ctx->previewMosaicWidth * ctx->previewMosaicHeight];
+    ClearPreviewMosaic(ctx);
+
+    if(ctx->usePreview)
+    {
+        AllocateTextureMemory(ctx->tWidth[HR], ctx->tHeight[HR],
+                ctx->tWidth[LR], ctx->tHeight[LR]);
+        gPreviewOwner = ctx;
+    }
 }
 
-JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_freeMosaicMemory(
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_nativeFreeMosaicMemory(
         JNIEnv* env, jobject thiz)
 {
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return;
+
     for(int i = 0; i < MAX_FRAMES; i++)
     {
-        ImageUtils::freeImage(tImage[LR][i]);
-        ImageUtils::freeImage(tImage[HR][i]);
+        ImageUtils::freeImage(ctx->tImage[LR][i]);
+        ImageUtils::freeImage(ctx->tImage[HR][i]);
+        ctx->tImage[LR][i] = NULL;
+        ctx->tImage[HR][i] = NULL;
     }
 
-    FreeTextureMemory();
+    delete[] ctx->previewMosaic;
+    ctx->previewMosaic = NULL;
+    ClearPreviewMosaic(ctx);
+
+    for(int mID = 0; mID < NR; mID++)
+    {
+        ImageUtils::freeImage(ctx->resultYVU[mID]);
+        ctx->resultYVU[mID] = NULL;
+        // The mosaics live in the arenas, so both are given back here rather
+        // than kept, merged at their peak size, for a next session.
+        delete ctx->mosaic[mID];
+        ctx->mosaic[mID] = NULL;
+        ctx->arena[mID].release();
+    }
+
+    if(gPreviewOwner == ctx)
+    {
+        FreeTextureMemory();
+        gPreviewOwner = NULL;
+    }
 }
 
 
 void decodeYUV444SP(unsigned char* rgb, unsigned char* yuv420sp, int width,
         int height)
 {
-    int frameSize = width * height;
-
-    for (int j = 0, yp = 0; j < height; j++)
-    {
-        int vp = frameSize + j * width, u = 0, v = 0;
-        int up = vp + frameSize;
-
-        for (int i = 0; i < width; i++, yp++, vp++, up++)
-        {
-            int y = (0xff & ((int) yuv420sp[yp])) - 16;
-            if (y < 0) y = 0;
-
-            v = (0xff & yuv420sp[vp]) - 128;
-            u = (0xff & yuv420sp[up]) - 128;
-
-            int y1192 = 1192 * y;
-            int r = (y1192 + 1634 * v);
-            int g = (y1192 - 833 * v - 400 * u);
-            int b = (y1192 + 2066 * u);
-
-            if (r < 0) r = 0; else if (r > 262143) r = 262143;
-            if (g < 0) g = 0; else if (g > 262143) g = 262143;
-            if (b < 0) b = 0; else if (b > 262143) b = 262143;
-
-            //rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
-            int p = j*width*3+i*3;
-            rgb[p+0] = (r<<6 & 0xFF0000)>>16;
-            rgb[p+1] = (g>>2 & 0xFF00)>>8;
-            rgb[p+2] =  b>>10 & 0xFF;
-        }
-    }
+    ColorConvert::get()->yvuToRgbPreview(rgb, yuv420sp, width, height);
 }
 
-static int count = 0;
-
 void ConvertYVUAiToPlanarYVU(unsigned char *planar, unsigned char *in, int width,
         int height)
 {
-    int planeSize = width * height;
-    unsigned char* Yptr = planar;
-    unsigned char* Vptr = planar + planeSize;
-    unsigned char* Uptr = Vptr + planeSize;
-
-    for (int i = 0; i < planeSize; i++)
-    {
-        *Yptr++ = *in++;
-        *Vptr++ = *in++;
-        *Uptr++ = *in++;
-        in++;   // Alpha
-    }
+    ColorConvert::get()->yvuaToYvu(planar, in, width, height);
 }
 
 JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromGPU(
-        JNIEnv* env, jobject thiz)
+        JNIEnv* env, jobject thiz, jint slot)
 {
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return 0;
+
     double  t0, t1, time_c;
     t0 = now_ms();
     int ret_code = Mosaic::MOSAIC_RET_OK;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    // Only the context that allocated the preview buffers may read them.
+    if(gPreviewOwner == ctx && slot >= 0 && slot < PREVIEW_RING_SIZE &&
+            ctx->frame_number_HR<MAX_FRAMES && ctx->frame_number_LR<MAX_FRAMES)
     {
-        double last_tx = mTx;
-
+        // The GL thread may read back the next frames into the other slots
+        // meanwhile; this slot is not written until this call returns.
         sem_wait(&gPreviewImage_semaphore);
-        ConvertYVUAiToPlanarYVU(tImage[LR][frame_number_LR], gPreviewImage[LR],
-                tWidth[LR], tHeight[LR]);
+        ConvertYVUAiToPlanarYVU(ctx->tImage[LR][ctx->frame_number_LR], gPreviewImage[LR][slot],
+                ctx->tWidth[LR], ctx->tHeight[LR]);
 
         sem_post(&gPreviewImage_semaphore);
 
-        ret_code = AddFrame(LR, frame_number_LR, gTRS);
+        ret_code = AddFrame(ctx, LR, ctx->frame_number_LR, ctx->trs);
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
             // Copy into HR buffer only if this is a valid frame
             sem_wait(&gPreviewImage_semaphore);
-            ConvertYVUAiToPlanarYVU(tImage[HR][frame_number_HR], gPreviewImage[HR],
-                    tWidth[HR], tHeight[HR]);
+            ConvertYVUAiToPlanarYVU(ctx->tImage[HR][ctx->frame_number_HR], gPreviewImage[HR][slot],
+                    ctx->tWidth[HR], ctx->tHeight[HR]);
             sem_post(&gPreviewImage_semaphore);
 
-            frame_number_LR++;
-            frame_number_HR++;
+            PastePreviewMosaic(ctx, ctx->tImage[LR][ctx->frame_number_LR],
+                    ctx->trs[2], ctx->trs[5]);
+
+            ctx->frame_number_LR++;
+            ctx->frame_number_HR++;
         }
     }
     else
     {
-        gTRS[1] = gTRS[2] = gTRS[3] = gTRS[5] = gTRS[6] = gTRS[7] = 0.0f;
-        gTRS[0] = gTRS[4] = gTRS[8] = 1.0f;
+        ctx->trs[1] = ctx->trs[2] = ctx->trs[3] = ctx->trs[5] = ctx->trs[6] = ctx->trs[7] = 0.0f;
+        ctx->trs[0] = ctx->trs[4] = ctx->trs[8] = 1.0f;
     }
 
-    UpdateWarpTransformation(gTRS);
+    if(gPreviewOwner == ctx) UpdateWarpTransformation(ctx->trs);
 
-    gTRS[9] = frame_number_HR;
-    gTRS[10] = ret_code;
+    ctx->trs[9] = ctx->frame_number_HR;
+    ctx->trs[10] = ret_code;
 
     jfloatArray bytes = env->NewFloatArray(11);
     if(bytes != 0)
     {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
+        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) ctx->trs);
     }
     return bytes;
 }
 
 
 
+// Spacing of the pixels compared by getFrameDifference().
+const int FRAME_DIFFERENCE_STEP = 4;
+
+JNIEXPORT jfloat JNICALL Java_com_android_camera_Mosaic_getFrameDifference(
+        JNIEnv* env, jobject thiz, jint slot)
+{
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL || gPreviewOwner != ctx ||
+            slot < 0 || slot >= PREVIEW_RING_SIZE ||
+            ctx->frame_number_LR < 1 || ctx->frame_number_LR > MAX_FRAMES)
+    {
+        return -1.0f;
+    }
+
+    // The luma of the last frame added to the mosaic is the first plane of
+    // the planar YVU image; the ring slot is interleaved YVUA.
+    ImageType last = ctx->tImage[LR][ctx->frame_number_LR - 1];
+    int sum = 0;
+    int count = 0;
+
+    sem_wait(&gPreviewImage_semaphore);
+    unsigned char* in = gPreviewImage[LR][slot];
+    for(int y = 0; y < ctx->tHeight[LR]; y += FRAME_DIFFERENCE_STEP)
+    {
+        for(int x = 0; x < ctx->tWidth[LR]; x += FRAME_DIFFERENCE_STEP)
+        {
+            int i = y * ctx->tWidth[LR] + x;
+            sum += abs((int) last[i] - (int) in[4 * i]);
+            count++;
+        }
+    }
+    sem_post(&gPreviewImage_semaphore);
+
+    return (count == 0) ? -1.0f : (float) sum / count;
+}
+
 JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
         JNIEnv* env, jobject thiz, jbyteArray photo_data)
 {
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return 0;
+
     double  t0, t1, time_c;
     t0 = now_ms();
 
     int ret_code = Mosaic::MOSAIC_RET_OK;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    if(ctx->frame_number_HR<MAX_FRAMES && ctx->frame_number_LR<MAX_FRAMES)
     {
         jbyte *pixels = env->GetByteArrayElements(photo_data, 0);
 
-        YUV420toYVU24_NEW(tImage[HR][frame_number_HR], (ImageType)pixels,
-                tWidth[HR], tHeight[HR]);
+        YUV420toYVU24_NEW(ctx->tImage[HR][ctx->frame_number_HR], (ImageType)pixels,
+                ctx->tWidth[HR], ctx->tHeight[HR]);
 
         env->ReleaseByteArrayElements(photo_data, pixels, 0);
 
-        double last_tx = mTx;
-
         t0 = now_ms();
-        GenerateQuarterResImagePlanar(tImage[HR][frame_number_HR], tWidth[HR],
-                tHeight[HR], tImage[LR][frame_number_LR]);
+        GenerateQuarterResImagePlanar(ctx->tImage[HR][ctx->frame_number_HR], ctx->tWidth[HR],
+                ctx->tHeight[HR], ctx->tImage[LR][ctx->frame_number_LR]);
 
 
-        sem_wait(&gPreviewImage_semaphore);
-        decodeYUV444SP(gPreviewImage[LR], tImage[LR][frame_number_LR],
-                gPreviewImageWidth[LR], gPreviewImageHeight[LR]);
-        sem_post(&gPreviewImage_semaphore);
+        if(gPreviewOwner == ctx)
+        {
+            sem_wait(&gPreviewImage_semaphore);
+            decodeYUV444SP(gPreviewImage[LR][0], ctx->tImage[LR][ctx->frame_number_LR],
+                    gPreviewImageWidth[LR], gPreviewImageHeight[LR]);
+            sem_post(&gPreviewImage_semaphore);
+        }
 
-        ret_code = AddFrame(LR, frame_number_LR, gTRS);
+        ret_code = AddFrame(ctx, LR, ctx->frame_number_LR, ctx->trs);
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
-            frame_number_LR++;
-            frame_number_HR++;
+            PastePreviewMosaic(ctx, ctx->tImage[LR][ctx->frame_number_LR],
+                    ctx->trs[2], ctx->trs[5]);
+
+            ctx->frame_number_LR++;
+            ctx->frame_number_HR++;
         }
 
     }
     else
     {
-        gTRS[1] = gTRS[2] = gTRS[3] = gTRS[5] = gTRS[6] = gTRS[7] = 0.0f;
-        gTRS[0] = gTRS[4] = gTRS[8] = 1.0f;
+        ctx->trs[1] = ctx->trs[2] = ctx->trs[3] = ctx->trs[5] = ctx->trs[6] = ctx->trs[7] = 0.0f;
+        ctx->trs[0] = ctx->trs[4] = ctx->trs[8] = 1.0f;
     }
 
-    UpdateWarpTransformation(gTRS);
+    if(gPreviewOwner == ctx) UpdateWarpTransformation(ctx->trs);
 
-    gTRS[9] = frame_number_HR;
-    gTRS[10] = ret_code;
+    ctx->trs[9] = ctx->frame_number_HR;
+    ctx->trs[10] = ret_code;
 
     jfloatArray bytes = env->NewFloatArray(11);
     if(bytes != 0)
     {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
+        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) ctx->trs);
     }
     return bytes;
 }
@@ -473,118 +715,170 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setBlendingType(
         JNIEnv* env, jobject thiz, jint type)
 {
-    blendingType = int(type);
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return;
+    ctx->blendingType = int(type);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setStripType(
         JNIEnv* env, jobject thiz, jint type)
 {
-    stripType = int(type);
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return;
+    ctx->stripType = int(type);
 }
 
-JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_reset(
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setBlendingThreadCount(
+        JNIEnv* env, jobject thiz, jboolean hires, jint count)
+{
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return;
+    ctx->blendingThreads[hires ? HR : LR] = int(count);
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_nativeReset(
         JNIEnv* env, jobject thiz)
 {
-    frame_number_HR = 0;
-    frame_number_LR = 0;
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return;
+
+    ctx->frame_number_HR = 0;
+    ctx->frame_number_LR = 0;
+
+    ctx->progress[LR] = 0.0;
+    ctx->progress[HR] = 0.0;
+
+    ctx->cancelComputation[LR] = false;
+    ctx->cancelComputation[HR] = false;
+
+    ClearPreviewMosaic(ctx);
 
-    gProgress[LR] = 0.0;
-    gProgress[HR] = 0.0;
+    Init(ctx, LR, MAX_FRAMES);
+}
 
-    gCancelComputation[LR] = false;
-    gCancelComputation[HR] = false;
+JNIEXPORT jlong JNICALL Java_com_android_camera_Mosaic_getArenaPeakBytes(
+        JNIEnv* env, jobject thiz, jboolean hires)
+{
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return 0;
 
-    Init(LR,MAX_FRAMES);
+    return (jlong) ctx->arena[bool(hires) ? HR : LR].getPeakBytes();
 }
 
 JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_reportProgress(
         JNIEnv* env, jobject thiz, jboolean hires, jboolean cancel_computation)
 {
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return 0;
+
     if(bool(hires))
-        gCancelComputation[HR] = cancel_computation;
+        ctx->cancelComputation[HR] = cancel_computation;
     else
-        gCancelComputation[LR] = cancel_computation;
+        ctx->cancelComputation[LR] = cancel_computation;
 
     if(bool(hires))
-        return (jint) gProgress[HR];
+        return (jint) ctx->progress[HR];
     else
-        return (jint) gProgress[LR];
+        return (jint) ctx->progress[LR];
 }
 
-JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_nativeCreateMosaic(
         JNIEnv* env, jobject thiz, jboolean value)
 {
-    high_res = bool(value);
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return Mosaic::MOSAIC_RET_ERROR;
+
+    bool high_res = bool(value);
 
     int ret;
+    JavaProgressListener listener(env, thiz, high_res);
 
     if(high_res)
     {
         LOGV("createMosaic() - High-Res Mode");
         double  t0, t1, time_c;
 
-        gProgress[HR] = 0.0;
+        ctx->progress[HR] = 0.0;
         t0 = now_ms();
 
-        Init(HR, frame_number_HR);
+        Init(ctx, HR, ctx->frame_number_HR);
 
-        for(int k = 0; k < frame_number_HR; k++)
+        for(int k = 0; k < ctx->frame_number_HR; k++)
         {
-            if (gCancelComputation[HR])
+            if (ctx->cancelComputation[HR])
                 break;
-            AddFrame(HR, k, NULL);
-            gProgress[HR] += TIME_PERCENT_ALIGN/frame_number_HR;
+            AddFrame(ctx, HR, k, NULL);
+            ctx->progress[HR] += TIME_PERCENT_ALIGN/ctx->frame_number_HR;
+            listener.onProgress(ctx->progress[HR]);
         }
 
-        if (gCancelComputation[HR])
+        if (ctx->cancelComputation[HR])
         {
             ret = Mosaic::MOSAIC_RET_CANCELLED;
         }
         else
         {
-            gProgress[HR] = TIME_PERCENT_ALIGN;
+            ctx->progress[HR] = TIME_PERCENT_ALIGN;
 
             t1 = now_ms();
             time_c = t1 - t0;
-            LOGV("AlignAll - %d frames [HR]: %g ms", frame_number_HR, time_c);
+            LOGV("AlignAll - %d frames [HR]: %g ms", ctx->frame_number_HR, time_c);
 
-            ret = Finalize(HR);
+            ret = Finalize(ctx, HR, &listener);
 
-            gProgress[HR] = 100.0;
+            ctx->progress[HR] = 100.0;
+            listener.onProgress(ctx->progress[HR]);
         }
-
-        high_res = false;
     }
     else
     {
         LOGV("createMosaic() - Low-Res Mode");
-        gProgress[LR] = TIME_PERCENT_ALIGN;
+        ctx->progress[LR] = TIME_PERCENT_ALIGN;
+        listener.onProgress(ctx->progress[LR]);
 
-        ret = Finalize(LR);
+        ret = Finalize(ctx, LR, &listener);
 
-        gProgress[LR] = 100.0;
+        ctx->progress[LR] = 100.0;
+        listener.onProgress(ctx->progress[LR]);
     }
 
     return (jint) ret;
 }
 
-JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaic(
-        JNIEnv* env, jobject thiz)
+JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_nativeGetFinalMosaic(
+        JNIEnv* env, jobject thiz, jboolean hires)
 {
+    MosaicContext* ctx = GetContext(env, thiz);
+    int mID = hires ? HR : LR;
+    if(ctx == NULL || ctx->resultYVU[mID] == NULL) return 0;
+    if(ctx->resultNV21[mID])
+    {
+        LOGE("The mosaic was already converted to NV21.");
+        return 0;
+    }
+
     int y,x;
-    int width = mosaicWidth;
-    int height = mosaicHeight;
+    int width = ctx->mosaicWidth[mID];
+    int height = ctx->mosaicHeight[mID];
     int imageSize = width * height;
 
+    // The buffers are only needed until the array is filled.
+    MosaicArena& arena = ctx->arena[mID];
+    MosaicArena::Mark mark = arena.getMark();
+
     // Convert back to RGB24
-    resultBGR = ImageUtils::allocateImage(mosaicWidth, mosaicHeight,
-            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-    ImageUtils::yvu2bgr(resultBGR, resultYVU, mosaicWidth, mosaicHeight);
+    ImageType resultBGR = arena.allocateArray<ImageTypeBase>(imageSize * ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    int* image = arena.allocateArray<int>(imageSize);
+    if (resultBGR == NULL || image == NULL) {
+        LOGE("Error in creating the image.");
+        arena.rewind(mark);
+        return 0;
+    }
+    ImageUtils::yvu2bgr(resultBGR, ctx->resultYVU[mID], width, height);
 
     LOGV("MosBytes: %d, W = %d, H = %d", imageSize, width, height);
 
-    int* image = new int[imageSize];
-    int* dims = new int[2];
+    int dims[2];
 
     for(y=0; y<height; y++)
     {
@@ -598,70 +892,98 @@ JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaic(
     dims[0] = width;
     dims[1] = height;
 
-    ImageUtils::freeImage(resultBGR);
-
     jintArray bytes = env->NewIntArray(imageSize+2);
     if (bytes == 0) {
         LOGE("Error in creating the image.");
-        delete[] image;
+        arena.rewind(mark);
         return 0;
     }
     env->SetIntArrayRegion(bytes, 0, imageSize, (jint*) image);
     env->SetIntArrayRegion(bytes, imageSize, 2, (jint*) dims);
-    delete[] image;
-    delete[] dims;
+    arena.rewind(mark);
     return bytes;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
+JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getPreviewMosaic(
         JNIEnv* env, jobject thiz)
 {
-    int y,x;
-    int width;
-    int height;
-
-    width = mosaicWidth;
-    height = mosaicHeight;
+    MosaicContext* ctx = GetContext(env, thiz);
+    if(ctx == NULL) return 0;
 
-    int imageSize = 1.5*width * height;
+    int width = std::max(ctx->previewMosaicRight - ctx->previewMosaicLeft, 0);
+    int height = std::max(ctx->previewMosaicBottom - ctx->previewMosaicTop, 0);
+    int imageSize = width * height;
+    int dims[2] = {width, height};
 
-    // Convert YVU to NV21 format in-place
-    ImageType V = resultYVU+mosaicWidth*mosaicHeight;
-    ImageType U = V+mosaicWidth*mosaicHeight;
-    for(int j=0; j<mosaicHeight/2; j++)
+    jintArray bytes = env->NewIntArray(imageSize + 2);
+    if (bytes == 0) {
+        LOGE("Error in creating the image.");
+        return 0;
+    }
+    for(int y = 0; y < height; y++)
     {
-        for(int i=0; i<mosaicWidth; i+=2)
-        {
-            V[j*mosaicWidth+i] = V[(2*j)*mosaicWidth+i];        // V
-            V[j*mosaicWidth+i+1] = U[(2*j)*mosaicWidth+i];        // U
-        }
+        env->SetIntArrayRegion(bytes, y * width, width, (jint*) (ctx->previewMosaic +
+                (ctx->previewMosaicTop + y) * ctx->previewMosaicWidth + ctx->previewMosaicLeft));
     }
+    env->SetIntArrayRegion(bytes, imageSize, 2, (jint*) dims);
+    return bytes;
+}
 
-    LOGV("MosBytes: %d, W = %d, H = %d", imageSize, width, height);
+JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicSize(
+        JNIEnv* env, jobject thiz, jboolean hires)
+{
+    MosaicContext* ctx = GetContext(env, thiz);
+    int mID = hires ? HR : LR;
+    if(ctx == NULL || ctx->resultYVU[mID] == NULL) return 0;
 
-    unsigned char* dims = new unsigned char[8];
+    jint dims[2];
+    dims[0] = ctx->mosaicWidth[mID];
+    dims[1] = ctx->mosaicHeight[mID];
 
-    dims[0] = (unsigned char)(width >> 24);
-    dims[1] = (unsigned char)(width >> 16);
-    dims[2] = (unsigned char)(width >> 8);
-    dims[3] = (unsigned char)width;
+    jintArray size = env->NewIntArray(2);
+    if (size == 0) {
+        LOGE("Error in creating the size.");
+        return 0;
+    }
+    env->SetIntArrayRegion(size, 0, 2, dims);
+    return size;
+}
 
-    dims[4] = (unsigned char)(height >> 24);
-    dims[5] = (unsigned char)(height >> 16);
-    dims[6] = (unsigned char)(height >> 8);
-    dims[7] = (unsigned char)height;
+JNIEXPORT jobject JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21Buffer(
+        JNIEnv* env, jobject thiz, jboolean hires)
+{
+    MosaicContext* ctx = GetContext(env, thiz);
+    int mID = hires ? HR : LR;
+    if(ctx == NULL || ctx->resultYVU[mID] == NULL) return 0;
 
-    jbyteArray bytes = env->NewByteArray(imageSize+8);
-    if (bytes == 0) {
-        LOGE("Error in creating the image.");
-        ImageUtils::freeImage(resultYVU);
-        return 0;
+    ImageType result = ctx->resultYVU[mID];
+    int width = ctx->mosaicWidth[mID];
+    int height = ctx->mosaicHeight[mID];
+
+    // Convert YVU to NV21 format in-place, once
+    if (!ctx->resultNV21[mID])
+    {
+        ImageType V = result+width*height;
+        ImageType U = V+width*height;
+        for(int j=0; j<height/2; j++)
+        {
+            for(int i=0; i<width; i+=2)
+            {
+                V[j*width+i] = V[(2*j)*width+i];        // V
+                V[j*width+i+1] = U[(2*j)*width+i];        // U
+            }
+        }
+        ctx->resultNV21[mID] = true;
     }
-    env->SetByteArrayRegion(bytes, 0, imageSize, (jbyte*) resultYVU);
-    env->SetByteArrayRegion(bytes, imageSize, 8, (jbyte*) dims);
-    delete[] dims;
-    ImageUtils::freeImage(resultYVU);
-    return bytes;
+
+    jlong imageSize = (jlong) width * height * 3 / 2;
+    LOGV("MosBytes: %lld, W = %d, H = %d", (long long) imageSize, width, height);
+
+    jobject buffer = env->NewDirectByteBuffer(result, imageSize);
+    if (buffer == 0) {
+        LOGE("Error in creating the buffer.");
+    }
+    return buffer;
 }
 
 #ifdef __cplusplus
@@ -26,6 +26,7 @@
 #include <iostream>
 #endif
 #include <float.h>
+#include <string.h>
 
 #define DB_SUB_PIXEL
 
@@ -716,12 +717,11 @@ void db_HarrisStrength_f(float **s,const float * const *img,int w,int h,
     }
 }
 
-/*Compute Harris corner strength of img. Strength is returned for the region
-with (3,3) as upper left and (w-4,h-4) as lower right, positioned in the
-same place in s. In other words,image should be at least 7 pixels wide and 7 pixels high
-for a meaningful result.Moreover, the image should be overallocated by 256 bytes.
-s[i][3] should by 16 byte aligned for any i*/
-void db_HarrisStrength_u(float **s, const unsigned char * const *img,int w,int h,
+/*Compute Harris corner strength of the rows top to bottom of img, for the columns
+3 to w-4. The rows are computed independently of each other, reading img from row
+top-2 to bottom+2, so overlapping stripes of an image can be computed in parallel.
+The same conditions as for db_HarrisStrength_u apply*/
+void db_HarrisStrengthRows_u(float **s, const unsigned char * const *img,int w,int top,int bottom,
                                     /*temp should point to at least
                                     18*128 of allocated memory*/
                                     int *temp)
@@ -739,10 +739,23 @@ void db_HarrisStrength_u(float **s, const unsigned char * const *img,int w,int h
         //nc = 128;
 
         /*Compute the Harris strength of a chunk*/
-        db_HarrisStrengthChunk_u(s,img,x,3,h-4,temp,nc);
+        db_HarrisStrengthChunk_u(s,img,x,top,bottom,temp,nc);
     }
 }
 
+/*Compute Harris corner strength of img. Strength is returned for the region
+with (3,3) as upper left and (w-4,h-4) as lower right, positioned in the
+same place in s. In other words,image should be at least 7 pixels wide and 7 pixels high
+for a meaningful result.Moreover, the image should be overallocated by 256 bytes.
+s[i][3] should by 16 byte aligned for any i*/
+void db_HarrisStrength_u(float **s, const unsigned char * const *img,int w,int h,
+                                    /*temp should point to at least
+                                    18*128 of allocated memory*/
+                                    int *temp)
+{
+    db_HarrisStrengthRows_u(s,img,w,3,h-4,temp);
+}
+
 inline float db_Max_128Aligned16_f(float *v)
 {
 #ifdef DB_USE_SIMD
@@ -1489,20 +1502,50 @@ inline void db_SubPixel(float **strength, const double xd, const double yd, doub
     return;
 }
 
-/*Extract corners from the image part from (left,top) to (right,bottom).
-Store in x and y, extracting at most satnr corners in each block of size (bw,bh).
+/*Shrink the region corners are extracted from so that sub-pixel processing
+cannot push them outside the real border*/
+inline void db_CornerRegion(int *left,int *top,int *right,int *bottom)
+{
+#ifdef DB_SUB_PIXEL
+    // subpixel processing may sometimes push the corner ourside the real border
+    // increasing border size:
+    (*left)++;
+    (*top)++;
+    (*bottom)--;
+    (*right)--;
+#endif /*DB_SUB_PIXEL*/
+}
+
+/*Return the most corners db_ExtractCornersSaturatedRow can extract from a row of blocks
+from (left,top) to (right,bottom)*/
+inline int db_RowSaturation(int left,int top,int right,int bottom,int bw,unsigned long area_factor)
+{
+    unsigned long area;
+    int x,last_x,nr;
+
+    nr=0;
+    for(x=left;x<=right;x+=bw)
+    {
+        last_x=db_mini(x+bw-1,right);
+        area=(last_x-x+1)*(bottom-top+1);
+        nr+=(int)((area*area_factor)/10000);
+    }
+    return(nr);
+}
+
+/*Extract corners from the row of blocks from (left,top) to (right,bottom), which is at
+most bh high. Store in x and y, extracting at most satnr corners in each block of width bw.
 The pointer temp_d should point to at least 5*bw*bh positions.
-area_factor holds how many corners max to extract per 10000 pixels*/
-void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int bottom,
+Return the number of corners extracted*/
+inline int db_ExtractCornersSaturatedRow(float **strength,int left,int top,int right,int bottom,
                                 int bw,int bh,unsigned long area_factor,
                                 float threshold,double *temp_d,
-                                double *x_coord,double *y_coord,int *nr_corners)
+                                double *x_coord,double *y_coord)
 {
     double *x_temp,*y_temp,*s_temp,*select_temp;
     double loc_thresh;
     unsigned long bwbh,area,saturation;
     int x,next_x,last_x;
-    int y,next_y,last_y;
     int nr,nr_points,i,stop;
 
     bwbh=bw*bh;
@@ -1511,56 +1554,117 @@ void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int
     s_temp=y_temp+bwbh;
     select_temp=s_temp+bwbh;
 
-#ifdef DB_SUB_PIXEL
-    // subpixel processing may sometimes push the corner ourside the real border
-    // increasing border size:
-    left++;
-    top++;
-    bottom--;
-    right--;
-#endif /*DB_SUB_PIXEL*/
-
     nr_points=0;
-    for(y=top;y<=bottom;y=next_y)
+    for(x=left;x<=right;x=next_x)
     {
-        next_y=y+bh;
-        last_y=next_y-1;
-        if(last_y>bottom) last_y=bottom;
-        for(x=left;x<=right;x=next_x)
+        next_x=x+bw;
+        last_x=next_x-1;
+        if(last_x>right) last_x=right;
+
+        area=(last_x-x+1)*(bottom-top+1);
+        saturation=(area*area_factor)/10000;
+        nr=db_CornersFromChunk(strength,x,top,last_x,bottom,threshold,x_temp,y_temp,s_temp);
+        if(nr)
         {
-            next_x=x+bw;
-            last_x=next_x-1;
-            if(last_x>right) last_x=right;
-
-            area=(last_x-x+1)*(last_y-y+1);
-            saturation=(area*area_factor)/10000;
-            nr=db_CornersFromChunk(strength,x,y,last_x,last_y,threshold,x_temp,y_temp,s_temp);
-            if(nr)
-            {
-                if(((unsigned long)nr)>saturation) loc_thresh=db_LeanQuickSelect(s_temp,nr,nr-saturation,select_temp);
-                else loc_thresh=threshold;
+            if(((unsigned long)nr)>saturation) loc_thresh=db_LeanQuickSelect(s_temp,nr,nr-saturation,select_temp);
+            else loc_thresh=threshold;
 
-                stop=nr_points+saturation;
-                for(i=0;(i<nr)&&(nr_points<stop);i++)
+            stop=nr_points+saturation;
+            for(i=0;(i<nr)&&(nr_points<stop);i++)
+            {
+                if(s_temp[i]>=loc_thresh)
                 {
-                    if(s_temp[i]>=loc_thresh)
-                    {
-                        #ifdef DB_SUB_PIXEL
-                               db_SubPixel(strength, x_temp[i], y_temp[i], x_coord[nr_points], y_coord[nr_points]);
-                        #else
-                               x_coord[nr_points]=x_temp[i];
-                               y_coord[nr_points]=y_temp[i];
-                        #endif
-
-                        nr_points++;
-                    }
+                    #ifdef DB_SUB_PIXEL
+                           db_SubPixel(strength, x_temp[i], y_temp[i], x_coord[nr_points], y_coord[nr_points]);
+                    #else
+                           x_coord[nr_points]=x_temp[i];
+                           y_coord[nr_points]=y_temp[i];
+                    #endif
+
+                    nr_points++;
                 }
             }
         }
     }
+    return(nr_points);
+}
+
+/*Extract corners from the image part from (left,top) to (right,bottom).
+Store in x and y, extracting at most satnr corners in each block of size (bw,bh).
+The pointer temp_d should point to at least 5*bw*bh positions.
+area_factor holds how many corners max to extract per 10000 pixels*/
+void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int bottom,
+                                int bw,int bh,unsigned long area_factor,
+                                float threshold,double *temp_d,
+                                double *x_coord,double *y_coord,int *nr_corners)
+{
+    int y,next_y,last_y;
+    int nr_points;
+
+    db_CornerRegion(&left,&top,&right,&bottom);
+
+    nr_points=0;
+    for(y=top;y<=bottom;y=next_y)
+    {
+        next_y=y+bh;
+        last_y=next_y-1;
+        if(last_y>bottom) last_y=bottom;
+
+        nr_points+=db_ExtractCornersSaturatedRow(strength,left,y,right,last_y,bw,bh,area_factor,threshold,
+            temp_d,x_coord+nr_points,y_coord+nr_points);
+    }
     *nr_corners=nr_points;
 }
 
+/*Work shared by the workers of db_CornerDetector_u::DetectCorners. The strength image
+is computed in horizontal stripes and the corners are extracted by rows of blocks,
+each row into its own slots of the output, so the result does not depend on the
+number of threads*/
+struct db_CornerDetectionJob
+{
+    float **strength;
+    const unsigned char * const *img;
+    int w,h;
+    /*Per worker scratch: 18*128 ints and 5*bw*bh doubles*/
+    int *temp_i;
+    double *temp_d;
+
+    int nr_stripes;
+    bool compute_max;
+    float max_val[DB_MAX_NR_THREADS];
+
+    int left,top,right,bottom,bw,bh;
+    unsigned long area_factor;
+    float threshold;
+    double *x_coord,*y_coord;
+    /*First output slot and number of corners of each row of blocks*/
+    int *row_start,*row_nr;
+};
+
+static void db_HarrisStrengthStripe(void *arg,int i,int worker)
+{
+    db_CornerDetectionJob *job=(db_CornerDetectionJob*) arg;
+    int rows=job->h-6;
+    int top=3+(rows*i)/job->nr_stripes;
+    int bottom=2+(rows*(i+1))/job->nr_stripes;
+
+    db_HarrisStrengthRows_u(job->strength,job->img,job->w,top,bottom,job->temp_i+worker*18*128);
+    if(job->compute_max)
+        job->max_val[i]=db_MaxImage_Aligned16_f(job->strength,3,top,job->w-6,bottom-top+1);
+}
+
+static void db_ExtractCornersRow(void *arg,int i,int worker)
+{
+    db_CornerDetectionJob *job=(db_CornerDetectionJob*) arg;
+    int top=job->top+i*job->bh;
+    int bottom=db_mini(top+job->bh-1,job->bottom);
+    int start=job->row_start[i];
+
+    job->row_nr[i]=db_ExtractCornersSaturatedRow(job->strength,job->left,top,job->right,bottom,
+        job->bw,job->bh,job->area_factor,job->threshold,job->temp_d+worker*5*job->bw*job->bh,
+        job->x_coord+start,job->y_coord+start);
+}
+
 db_CornerDetector_f::db_CornerDetector_f()
 {
     m_w=0; m_h=0;
@@ -1646,6 +1750,8 @@ void db_CornerDetector_f::DetectCorners(const float * const *img,double *x_coord
 db_CornerDetector_u::db_CornerDetector_u()
 {
     m_w=0; m_h=0;
+    m_nr_threads=0;
+    m_task_pool=NULL;
 }
 
 db_CornerDetector_u::~db_CornerDetector_u()
@@ -1655,6 +1761,8 @@ db_CornerDetector_u::~db_CornerDetector_u()
 
 db_CornerDetector_u::db_CornerDetector_u(const db_CornerDetector_u& cd)
 {
+    m_nr_threads=cd.m_nr_threads;
+    m_task_pool=cd.m_task_pool;
     Start(cd.m_w, cd.m_h, cd.m_bw, cd.m_bh, cd.m_area_factor,
         cd.m_a_thresh, cd.m_r_thresh);
 }
@@ -1665,6 +1773,9 @@ db_CornerDetector_u& db_CornerDetector_u::operator=(const db_CornerDetector_u& c
 
     Clean();
 
+    m_nr_threads=cd.m_nr_threads;
+    m_task_pool=cd.m_task_pool;
+
     Start(cd.m_w, cd.m_h, cd.m_bw, cd.m_bh, cd.m_area_factor,
         cd.m_a_thresh, cd.m_r_thresh);
 
@@ -1677,6 +1788,8 @@ void db_CornerDetector_u::Clean()
     {
         delete [] m_temp_i;
         delete [] m_temp_d;
+        delete [] m_row_start;
+        delete [] m_row_nr;
         db_FreeStrengthImage_f(m_strength_mem,m_strength,m_h);
     }
     m_w=0; m_h=0;
@@ -1717,8 +1830,10 @@ unsigned long db_CornerDetector_u::Start(int im_width,int im_height,
     m_a_thresh=absolute_threshold;
     m_max_nr=db_maxl(1,1+(m_w*m_h*m_area_factor)/10000);
 
-    m_temp_i=new int[18*128];
-    m_temp_d=new double[5*m_bw*m_bh];
+    m_temp_i=new int[18*128*DB_MAX_NR_THREADS];
+    m_temp_d=new double[5*m_bw*m_bh*DB_MAX_NR_THREADS];
+    m_row_start=new int[m_h/m_bh+2];
+    m_row_nr=new int[m_h/m_bh+2];
     m_strength=db_AllocStrengthImage_f(&m_strength_mem,m_w,m_h);
 
     return(m_max_nr);
@@ -1727,20 +1842,66 @@ unsigned long db_CornerDetector_u::Start(int im_width,int im_height,
 void db_CornerDetector_u::DetectCorners(const unsigned char * const *img,double *x_coord,double *y_coord,int *nr_corners,
                                         const unsigned char * const *msk, unsigned char fgnd) const
 {
-    float max_val,threshold;
+    float max_val;
+    db_CornerDetectionJob job;
+    int nr_threads,nr_rows,y,start,i;
 
-    db_HarrisStrength_u(m_strength,img,m_w,m_h,m_temp_i);
+    nr_threads=db_GetNrThreads(m_nr_threads);
 
+    job.strength=m_strength;
+    job.img=img;
+    job.w=m_w;
+    job.h=m_h;
+    job.temp_i=m_temp_i;
+    job.temp_d=m_temp_d;
+
+    /*Compute the strength in one stripe per thread*/
+    job.nr_stripes=db_maxi(1,db_mini(nr_threads,m_h-6));
+    job.compute_max=(m_r_thresh!=0);
+    db_RunTasks(db_HarrisStrengthStripe,&job,job.nr_stripes,nr_threads,m_task_pool);
 
     if(m_r_thresh)
     {
-        max_val=db_MaxImage_Aligned16_f(m_strength,3,3,m_w-6,m_h-6);
-        threshold= (float) db_maxd(m_a_thresh,max_val*m_r_thresh);
+        max_val=job.max_val[0];
+        for(i=1;i<job.nr_stripes;i++) if(job.max_val[i]>max_val) max_val=job.max_val[i];
+        job.threshold= (float) db_maxd(m_a_thresh,max_val*m_r_thresh);
     }
-    else threshold= (float) m_a_thresh;
+    else job.threshold= (float) m_a_thresh;
+
+    /*Extract the corners by rows of blocks, leaving each row room for as many
+    corners as it may saturate at, then close the gaps in row order*/
+    job.left=BORDER;
+    job.top=BORDER;
+    job.right=m_w-BORDER-1;
+    job.bottom=m_h-BORDER-1;
+    db_CornerRegion(&job.left,&job.top,&job.right,&job.bottom);
+    job.bw=m_bw;
+    job.bh=m_bh;
+    job.area_factor=m_area_factor;
+    job.x_coord=x_coord;
+    job.y_coord=y_coord;
+    job.row_start=m_row_start;
+    job.row_nr=m_row_nr;
+
+    nr_rows=0;
+    start=0;
+    for(y=job.top;y<=job.bottom;y+=m_bh,nr_rows++)
+    {
+        m_row_start[nr_rows]=start;
+        start+=db_RowSaturation(job.left,y,job.right,db_mini(y+m_bh-1,job.bottom),m_bw,m_area_factor);
+    }
+    db_RunTasks(db_ExtractCornersRow,&job,nr_rows,nr_threads,m_task_pool);
 
-    db_ExtractCornersSaturated(m_strength,BORDER,BORDER,m_w-BORDER-1,m_h-BORDER-1,m_bw,m_bh,m_area_factor,threshold,
-        m_temp_d,x_coord,y_coord,nr_corners);
+    *nr_corners=0;
+    for(i=0;i<nr_rows;i++)
+    {
+        if(m_row_start[i]!=*nr_corners)
+        {
+            memmove(x_coord+*nr_corners,x_coord+m_row_start[i],m_row_nr[i]*sizeof(double));
+            memmove(y_coord+*nr_corners,y_coord+m_row_start[i],m_row_nr[i]*sizeof(double));
+        }
+        *nr_corners+=m_row_nr[i];
+    }
 
 
     if ( msk )
@@ -149,6 +149,16 @@ public:
      Set relative feature threshold
      */
     virtual void SetRelativeThreshold(double r_thresh) { m_r_thresh = r_thresh; };
+    /*!
+     Set the number of threads to detect corners with, 0 for one per online CPU.
+     The corners detected and their order do not depend on it.
+     */
+    virtual void SetNrThreads(int nr_threads) { m_nr_threads = nr_threads; };
+    /*!
+     Set the pool whose threads detect the corners, NULL (the default) to detect them on the
+     calling thread only. The pool is not owned and is shared by copies of the detector.
+     */
+    virtual void SetTaskPool(db_TaskPool *task_pool) { m_task_pool = task_pool; };
 
     /*!
      Extract corners from a pre-computed strength image.
@@ -171,8 +181,12 @@ protected:
     per 10000 pixels*/
     unsigned long m_area_factor,m_max_nr;
     double m_a_thresh,m_r_thresh;
+    int m_nr_threads;
+    db_TaskPool *m_task_pool;
     int *m_temp_i;
     double *m_temp_d;
+    /*First output slot and number of corners of each row of blocks*/
+    int *m_row_start,*m_row_nr;
     float **m_strength,*m_strength_mem;
 };
 
@@ -620,6 +620,187 @@ void db_RobCamRotation_Polish_Generic(double H[9],int point_count,int homography
         }
     }
 }
+
+/*Hypotheses generated and scored on the first chunk together, before checking whether
+more samples are needed*/
+#define DB_HYPOTHESIS_BATCH_SIZE 100
+/*Hypotheses generated or scored by one task*/
+#define DB_HYPOTHESES_PER_TASK 16
+/*Hypothesis-correspondence pairs under which scoring stays on the calling thread*/
+#define DB_MIN_PARALLEL_EVALUATIONS 8192
+
+/*Work shared by the workers of db_RobImageHomography. Every sample and hypothesis has
+slots of its own in the arrays, so no worker needs scratch space*/
+struct db_RobImageHomographyJob
+{
+    int homography_type;
+    /*Similarity parameters*/
+    int orientation_preserving,allow_scaling,allow_rotation,allow_translation,sample_size;
+    /*Number of correspondences drawn for a sample*/
+    int draw_size;
+
+    double *x_h,*xp_h,*x_i,*xp_i;
+    int point_count;
+    double one_over_scale2;
+    /*Largest Cauchy reprojection error of an inlier*/
+    double inlier_limit;
+
+    double *hyp_H_array,*hyp_cost_array;
+    int *hyp_perm;
+    /*Seed of each sample of the batch, replaced by the number of inliers
+    of its hypothesis in the first chunk, or -1 if it gave none*/
+    int *sample_state;
+
+    /*Samples or hypotheses from first to last, scored on the correspondences
+    from chunk_first to chunk_last*/
+    int first,last;
+    int chunk_first,chunk_last;
+};
+
+/*Compute the hypothesis of the sample drawn with seed r_seed into H.
+Return 1 if the sample gave a hypothesis, 0 otherwise*/
+inline int db_RobImageHomographyHypothesis(double H[9],const db_RobImageHomographyJob *job,int r_seed)
+{
+    int s[4];
+    double *X[3],*Xp[3];
+    double *x_h=job->x_h,*xp_h=job->xp_h,*x_i=job->x_i,*xp_i=job->xp_i;
+
+    db_RandomSample(s,job->draw_size,job->point_count,r_seed);
+    switch(job->homography_type)
+    {
+    case DB_HOMOGRAPHY_TYPE_SIMILARITY:
+    case DB_HOMOGRAPHY_TYPE_SIMILARITY_U:
+    case DB_HOMOGRAPHY_TYPE_TRANSLATION:
+    case DB_HOMOGRAPHY_TYPE_ROTATION:
+    case DB_HOMOGRAPHY_TYPE_ROTATION_U:
+    case DB_HOMOGRAPHY_TYPE_SCALING:
+    case DB_HOMOGRAPHY_TYPE_S_T:
+    case DB_HOMOGRAPHY_TYPE_R_T:
+    case DB_HOMOGRAPHY_TYPE_R_S:
+        X[0]= &x_i[s[0]<<1];
+        X[1]= &x_i[s[1]<<1];
+        X[2]= &x_i[s[2]<<1];
+        Xp[0]= &xp_i[s[0]<<1];
+        Xp[1]= &xp_i[s[1]<<1];
+        Xp[2]= &xp_i[s[2]<<1];
+        db_StitchSimilarity2D(H,Xp,X,job->sample_size,job->orientation_preserving,
+                              job->allow_scaling,job->allow_rotation,job->allow_translation);
+        return(1);
+
+    case DB_HOMOGRAPHY_TYPE_CAMROTATION:
+        db_StitchCameraRotation_2Points(H,
+                                  &x_h[3*s[0]],&x_h[3*s[1]],
+                                  &xp_h[3*s[0]],&xp_h[3*s[1]]);
+        return(1);
+
+    case DB_HOMOGRAPHY_TYPE_CAMROTATION_F:
+        return(db_StitchRotationCommonFocalLength_3Points(H,
+                                  &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
+                                  &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]));
+
+    case DB_HOMOGRAPHY_TYPE_CAMROTATION_F_UD:
+        return(db_StitchRotationCommonFocalLength_3Points(H,
+                                  &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
+                                  &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],NULL,0));
+
+    case DB_HOMOGRAPHY_TYPE_AFFINE:
+        db_StitchAffine2D_3Points(H,
+                                  &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
+                                  &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]);
+        return(1);
+
+    case DB_HOMOGRAPHY_TYPE_PROJECTIVE:
+    default:
+        db_StitchProjective2D_4Points(H,
+                                  &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],&x_h[3*s[3]],
+                                  &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],&xp_h[3*s[3]]);
+        return(1);
+    }
+}
+
+/*Add the cost of the correspondences from first to last under H to *cost and return
+how many of them have a Cauchy reprojection error of at most inlier_limit*/
+inline int db_RobImageHomography_ChunkCost(double *cost,const double H[9],int first,int last,
+                                           double *x_i,double *xp_i,double one_over_scale2,double inlier_limit)
+{
+    int c,k,n,nr_inliers;
+    double acc,e;
+
+    nr_inliers=0;
+    for(c=first;c<=last;)
+    {
+        /*Take log of product of ten reprojection
+        errors to reduce nr of expensive log operations*/
+        n=(c+9<=last)?10:(last-c+1);
+        for(acc=1.0,k=0;k<n;k++,c++)
+        {
+            e=db_ExpCauchyInhomogenousHomographyError(xp_i+(c<<1),H,x_i+(c<<1),one_over_scale2);
+            if(e<=inlier_limit) nr_inliers++;
+            acc*=e;
+        }
+        *cost+=log(acc);
+    }
+    return(nr_inliers);
+}
+
+/*Generate the hypotheses of a group of samples of the batch and score them on the first chunk*/
+static void db_RobImageHomographyGenerate(void *arg,int task,int worker)
+{
+    db_RobImageHomographyJob *job=(db_RobImageHomographyJob*) arg;
+    int first=job->first+task*DB_HYPOTHESES_PER_TASK;
+    int last=db_mini(first+DB_HYPOTHESES_PER_TASK-1,job->last);
+    double *H;
+
+    for(int i=first;i<=last;i++)
+    {
+        H=job->hyp_H_array+9*i;
+        if(db_RobImageHomographyHypothesis(H,job,job->sample_state[i]))
+        {
+            job->hyp_cost_array[i]=0.0;
+            job->sample_state[i]=db_RobImageHomography_ChunkCost(&job->hyp_cost_array[i],H,
+                job->chunk_first,job->chunk_last,job->x_i,job->xp_i,job->one_over_scale2,job->inlier_limit);
+        }
+        else job->sample_state[i]= -1;
+    }
+}
+
+/*Update the cost of a group of the remaining hypotheses with the next chunk*/
+static void db_RobImageHomographyScore(void *arg,int task,int worker)
+{
+    db_RobImageHomographyJob *job=(db_RobImageHomographyJob*) arg;
+    int first=job->first+task*DB_HYPOTHESES_PER_TASK;
+    int last=db_mini(first+DB_HYPOTHESES_PER_TASK-1,job->last);
+
+    for(int j=first;j<=last;j++)
+    {
+        db_RobImageHomography_ChunkCost(&job->hyp_cost_array[j],job->hyp_H_array+9*job->hyp_perm[j],
+            job->chunk_first,job->chunk_last,job->x_i,job->xp_i,job->one_over_scale2,job->inlier_limit);
+    }
+}
+
+/*Run one task per DB_HYPOTHESES_PER_TASK items from job->first to job->last, on several
+threads of task_pool only if there is enough work*/
+inline void db_RobImageHomographyRun(void (*task)(void *arg,int i,int worker),db_RobImageHomographyJob *job,int nr_threads,
+                                     db_TaskPool *task_pool)
+{
+    int nr_items=job->last-job->first+1;
+    int nr_points=job->chunk_last-job->chunk_first+1;
+
+    if(nr_items*nr_points<DB_MIN_PARALLEL_EVALUATIONS) nr_threads=1;
+    db_RunTasks(task,job,(nr_items+DB_HYPOTHESES_PER_TASK-1)/DB_HYPOTHESES_PER_TASK,nr_threads,task_pool);
+}
+
+/*Return whether nr_samples samples of sample_size correspondences are enough to have drawn
+one of inliers only with the given confidence, nr_inliers out of nr_points being inliers*/
+inline bool db_RobImageHomographyEnoughSamples(int nr_samples,int nr_inliers,int nr_points,int sample_size,double confidence)
+{
+    double all_inliers=pow(((double)nr_inliers)/((double)db_maxi(nr_points,1)),sample_size);
+
+    if(all_inliers>=1.0) return(true);
+    if(all_inliers<=0.0) return(false);
+    return(((double)nr_samples)>=log(1.0-confidence)/log(1.0-all_inliers));
+}
+
 void db_RobImageHomography(
                               /*Best homography*/
                               double H[9],
@@ -664,7 +845,10 @@ void db_RobImageHomography(
                               // raw image coordinates
                               double *im_raw, double *im_raw_p,
                               // final matches
-                              int *finalNumE)
+                              int *finalNumE,
+                              int nr_threads,
+                              double confidence,
+                              db_TaskPool *task_pool)
 {
     /*Random seed*/
     int r_seed;
@@ -672,12 +856,12 @@ void db_RobImageHomography(
     int point_count_new;
     /*Counters*/
     int i,j,c,point_count,hyp_count;
-    int last_hyp,new_last_hyp,last_corr;
+    int last_hyp,new_last_hyp,last_sample;
     int pos,point_pos,last_point;
-    /*Accumulator*/
-    double acc;
-    /*Hypothesis pointer*/
-    double *hyp_point;
+    /*Most inliers of a hypothesis on the first chunk*/
+    int best_inliers;
+    /*Nr of correspondences in a sample*/
+    int min_points;
     /*Random sample*/
     int s[4];
     /*Pivot for hypothesis pruning*/
@@ -689,8 +873,6 @@ void db_RobImageHomography(
     /*One over the squared scale of
     Cauchy distribution*/
     double one_over_scale2;
-    /*temporary pointers*/
-    double *x_i_temp,*xp_i_temp;
     /*Temporary space for inverse calibration matrices*/
     double K_inv[9];
     double Kp_inv[9];
@@ -698,8 +880,6 @@ void db_RobImageHomography(
     double H_temp[9],H_temp2[9];
     /*Pointers to homogenous coordinates*/
     double *x_h_point,*xp_h_point;
-    /*Array of pointers to inhomogenous coordinates*/
-    double *X[3],*Xp[3];
     /*Similarity parameters*/
     int orientation_preserving,allow_scaling,allow_rotation,allow_translation,sample_size;
 
@@ -722,6 +902,8 @@ void db_RobImageHomography(
     /*Temporary space for quick-select
     2*nr_samples*/
     double *temp_select;
+    /*Work for the threads*/
+    db_RobImageHomographyJob job;
 
     /*Get inverse calibration matrices*/
     db_InvertCalibrationMatrix(K_inv,K);
@@ -777,7 +959,21 @@ void db_RobImageHomography(
 
 
     /*Generate Hypotheses*/
-    hyp_count=0;
+    nr_threads=db_GetNrThreads(nr_threads);
+    job.homography_type=homography_type;
+    job.x_h=x_h;
+    job.xp_h=xp_h;
+    job.x_i=x_i;
+    job.xp_i=xp_i;
+    job.point_count=point_count;
+    job.one_over_scale2=one_over_scale2;
+    job.inlier_limit=1.0+DB_OUTLIER_THRESHOLD*DB_OUTLIER_THRESHOLD;
+    job.hyp_H_array=hyp_H_array;
+    job.hyp_cost_array=hyp_cost_array;
+    job.hyp_perm=hyp_perm;
+    job.sample_state=temp_i;
+    job.chunk_first=0;
+    job.chunk_last=db_mini(chunk_size,point_count)-1;
     switch(homography_type)
     {
     case DB_HOMOGRAPHY_TYPE_SIMILARITY:
@@ -856,123 +1052,80 @@ void db_RobImageHomography(
             sample_size=1;
             break;
         }
-
-        if(point_count>=sample_size) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,3,point_count,r_seed);
-            X[0]= &x_i[s[0]<<1];
-            X[1]= &x_i[s[1]<<1];
-            X[2]= &x_i[s[2]<<1];
-            Xp[0]= &xp_i[s[0]<<1];
-            Xp[1]= &xp_i[s[1]<<1];
-            Xp[2]= &xp_i[s[2]<<1];
-            db_StitchSimilarity2D(&hyp_H_array[9*hyp_count],Xp,X,sample_size,orientation_preserving,
-                                  allow_scaling,allow_rotation,allow_translation);
-            hyp_count++;
-        }
+        job.orientation_preserving=orientation_preserving;
+        job.allow_scaling=allow_scaling;
+        job.allow_rotation=allow_rotation;
+        job.allow_translation=allow_translation;
+        job.sample_size=sample_size;
+        job.draw_size=3;
+        min_points=sample_size;
         break;
 
     case DB_HOMOGRAPHY_TYPE_CAMROTATION:
-        if(point_count>=2) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,2,point_count,r_seed);
-            db_StitchCameraRotation_2Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]]);
-            hyp_count++;
-        }
+        job.draw_size=min_points=2;
         break;
 
     case DB_HOMOGRAPHY_TYPE_CAMROTATION_F:
-        if(point_count>=3) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,3,point_count,r_seed);
-            hyp_count+=db_StitchRotationCommonFocalLength_3Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]);
-        }
-        break;
-
     case DB_HOMOGRAPHY_TYPE_CAMROTATION_F_UD:
-        if(point_count>=3) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,3,point_count,r_seed);
-            hyp_count+=db_StitchRotationCommonFocalLength_3Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],NULL,0);
-        }
-        break;
-
     case DB_HOMOGRAPHY_TYPE_AFFINE:
-        if(point_count>=3) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,3,point_count,r_seed);
-            db_StitchAffine2D_3Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]);
-            hyp_count++;
-        }
+        job.draw_size=min_points=3;
         break;
 
     case DB_HOMOGRAPHY_TYPE_PROJECTIVE:
     default:
-        if(point_count>=4) for(i=0;i<nr_samples;i++)
+        job.draw_size=min_points=4;
+    }
+
+    /*Draw the samples in batches, each from its own seed in the
+    sequence so that the hypotheses do not depend on the number of
+    threads, and stop once a sample of inliers only has been drawn
+    with the requested confidence*/
+    hyp_count=0;
+    best_inliers=0;
+    if(point_count>=min_points) for(i=0;i<nr_samples;)
+    {
+        last_sample=db_mini(i+DB_HYPOTHESIS_BATCH_SIZE,nr_samples)-1;
+        for(j=i;j<=last_sample;j++)
+        {
+            job.sample_state[j]=r_seed;
+            db_RandomSample(s,job.draw_size,point_count,r_seed);
+        }
+        job.first=i;
+        job.last=last_sample;
+        db_RobImageHomographyRun(db_RobImageHomographyGenerate,&job,nr_threads,task_pool);
+
+        /*Gather the hypotheses in sample order*/
+        for(j=i;j<=last_sample;j++) if(job.sample_state[j]>=0)
         {
-            db_RandomSample(s,4,point_count,r_seed);
-            db_StitchProjective2D_4Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],&x_h[3*s[3]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],&xp_h[3*s[3]]);
+            if(hyp_count<j)
+            {
+                db_Copy9(hyp_H_array+9*hyp_count,hyp_H_array+9*j);
+                hyp_cost_array[hyp_count]=hyp_cost_array[j];
+            }
             hyp_count++;
+            best_inliers=db_maxi(best_inliers,job.sample_state[j]);
         }
+        i=last_sample+1;
+
+        if((confidence>0.0) && db_RobImageHomographyEnoughSamples(i,best_inliers,job.chunk_last+1,min_points,confidence)) break;
     }
 
     if(hyp_count)
     {
         /*Count cost in chunks and decimate hypotheses
         until only one remains or the correspondences are
-        exhausted*/
-        for(i=0;i<hyp_count;i++)
-        {
-            hyp_perm[i]=i;
-            hyp_cost_array[i]=0.0;
-        }
+        exhausted. The first chunk was counted with the hypotheses*/
+        for(i=0;i<hyp_count;i++) hyp_perm[i]=i;
         for(i=0,last_hyp=hyp_count-1;(last_hyp>0) && (i<point_count);i+=chunk_size)
         {
             /*Update cost with the next chunk*/
-            last_corr=db_mini(i+chunk_size-1,point_count-1);
-            for(j=0;j<=last_hyp;j++)
+            if(i>0)
             {
-                hyp_point=hyp_H_array+9*hyp_perm[j];
-                for(c=i;c<=last_corr;)
-                {
-                    /*Take log of product of ten reprojection
-                    errors to reduce nr of expensive log operations*/
-                    if(c+9<=last_corr)
-                    {
-                        x_i_temp=x_i+(c<<1);
-                        xp_i_temp=xp_i+(c<<1);
-
-                        acc=db_ExpCauchyInhomogenousHomographyError(xp_i_temp,hyp_point,x_i_temp,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+2,hyp_point,x_i_temp+2,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+4,hyp_point,x_i_temp+4,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+6,hyp_point,x_i_temp+6,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+8,hyp_point,x_i_temp+8,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+10,hyp_point,x_i_temp+10,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+12,hyp_point,x_i_temp+12,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+14,hyp_point,x_i_temp+14,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+16,hyp_point,x_i_temp+16,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+18,hyp_point,x_i_temp+18,one_over_scale2);
-                        c+=10;
-                    }
-                    else
-                    {
-                        for(acc=1.0;c<=last_corr;c++)
-                        {
-                            acc*=db_ExpCauchyInhomogenousHomographyError(xp_i+(c<<1),hyp_point,x_i+(c<<1),one_over_scale2);
-                        }
-                    }
-                    hyp_cost_array[j]+=log(acc);
-                }
+                job.first=0;
+                job.last=last_hyp;
+                job.chunk_first=i;
+                job.chunk_last=db_mini(i+chunk_size-1,point_count-1);
+                db_RobImageHomographyRun(db_RobImageHomographyScore,&job,nr_threads,task_pool);
             }
             if (chunk_size<point_count){
                 /*Prune out half of the hypotheses*/
@@ -83,6 +83,13 @@ Calibration matrices:
  \param scale           Cauchy scale coefficient (see db_ExpCauchyReprojectionError() )
  \param nr_samples      number of times to compute a hypothesis
  \param chunk_size      size of cost chunks
+ \param nr_threads      number of threads generating and scoring hypotheses, 0 for one per processor
+ \param confidence      stop drawing samples once one of inliers only has been drawn with this
+                        probability, judging by the inliers of the best hypothesis so far on the
+                        first chunk. 0 draws all nr_samples. Stopping early changes the result,
+                        so it is opt-in; dbreg passes 0
+ \param task_pool       pool whose threads run the hypotheses, NULL to run them on the
+                        calling thread only
 */
 DB_API void db_RobImageHomography(
                               /*Best homography*/
@@ -127,7 +134,10 @@ DB_API void db_RobImageHomography(
                               // raw image coordinates
                               double *im_raw=NULL, double *im_raw_p=NULL,
                               // final matches
-                              int *final_NumE=0);
+                              int *final_NumE=0,
+                              int nr_threads=1,
+                              double confidence=0.0,
+                              db_TaskPool *task_pool=NULL);
 
 DB_API double db_RobImageHomography_Cost(double H[9],int point_count,double *x_i,
                                                 double *xp_i,double one_over_scale2);
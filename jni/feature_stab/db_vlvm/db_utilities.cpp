@@ -19,6 +19,8 @@
 #include "db_utilities.h"
 #include <string.h>
 #include <stdio.h>
+#include <pthread.h>
+#include <unistd.h>
 
 float** db_SetupImageReferences_f(float *im,int w,int h)
 {
@@ -174,3 +176,137 @@ void db_PrintDoubleMatrix(double *a,long rows,long cols)
     }
     printf("]");
 }
+
+int db_GetNrThreads(int nr_threads)
+{
+    if(nr_threads<=0)
+    {
+        long cpus=sysconf(_SC_NPROCESSORS_ONLN);
+        nr_threads=(cpus>0)?(int)cpus:1;
+    }
+    return(db_maxi(1,db_mini(nr_threads,DB_MAX_NR_THREADS)));
+}
+
+db_TaskPool::db_TaskPool()
+{
+    pthread_mutex_init(&m_lock,NULL);
+    pthread_cond_init(&m_wake,NULL);
+    pthread_cond_init(&m_done,NULL);
+    m_nr_started=0;
+    m_quit=false;
+    m_batch=0;
+    m_task=NULL;
+    m_arg=NULL;
+    m_nr_tasks=0;
+    m_next_task=0;
+    m_nr_workers=1;
+    m_nr_busy=0;
+}
+
+db_TaskPool::~db_TaskPool()
+{
+    int k;
+
+    pthread_mutex_lock(&m_lock);
+    m_quit=true;
+    pthread_cond_broadcast(&m_wake);
+    pthread_mutex_unlock(&m_lock);
+
+    for(k=1;k<=m_nr_started;k++) pthread_join(m_threads[k],NULL);
+
+    pthread_cond_destroy(&m_done);
+    pthread_cond_destroy(&m_wake);
+    pthread_mutex_destroy(&m_lock);
+}
+
+void *db_TaskPool::Thread(void *arg)
+{
+    Worker *w=(Worker*) arg;
+    w->pool->Work(w->worker);
+    return(NULL);
+}
+
+void db_TaskPool::RunTasks(int worker)
+{
+    int i;
+    while((i=__sync_fetch_and_add(&m_next_task,1))<m_nr_tasks)
+    {
+        m_task(m_arg,i,worker);
+    }
+}
+
+void db_TaskPool::Work(int worker)
+{
+    unsigned int seen;
+
+    pthread_mutex_lock(&m_lock);
+    seen=m_workers[worker].batch;
+    for(;;)
+    {
+        while(!m_quit && m_batch==seen) pthread_cond_wait(&m_wake,&m_lock);
+        if(m_quit) break;
+        seen=m_batch;
+        /*A batch may use fewer workers than are running*/
+        if(worker>=m_nr_workers) continue;
+
+        pthread_mutex_unlock(&m_lock);
+        RunTasks(worker);
+        pthread_mutex_lock(&m_lock);
+
+        if(--m_nr_busy==0) pthread_cond_signal(&m_done);
+    }
+    pthread_mutex_unlock(&m_lock);
+}
+
+void db_TaskPool::Run(void (*task)(void *arg,int i,int worker),void *arg,int nr_tasks,int nr_threads)
+{
+    int i;
+
+    nr_threads=db_maxi(1,db_mini(db_mini(nr_threads,nr_tasks),DB_MAX_NR_THREADS));
+    if(nr_threads==1)
+    {
+        for(i=0;i<nr_tasks;i++) task(arg,i,0);
+        return;
+    }
+
+    pthread_mutex_lock(&m_lock);
+    while(m_nr_started<nr_threads-1)
+    {
+        int k=m_nr_started+1;
+        m_workers[k].pool=this;
+        m_workers[k].worker=k;
+        m_workers[k].batch=m_batch;
+        if(pthread_create(&m_threads[k],NULL,Thread,&m_workers[k])!=0) break;
+        m_nr_started=k;
+    }
+    nr_threads=db_mini(nr_threads,m_nr_started+1);
+
+    m_task=task;
+    m_arg=arg;
+    m_nr_tasks=nr_tasks;
+    m_next_task=0;
+    m_nr_workers=nr_threads;
+    m_nr_busy=nr_threads-1;
+    m_batch++;
+    pthread_cond_broadcast(&m_wake);
+    pthread_mutex_unlock(&m_lock);
+
+    RunTasks(0);
+
+    pthread_mutex_lock(&m_lock);
+    while(m_nr_busy>0) pthread_cond_wait(&m_done,&m_lock);
+    pthread_mutex_unlock(&m_lock);
+}
+
+void db_RunTasks(void (*task)(void *arg,int i,int worker),void *arg,int nr_tasks,int nr_threads,
+                 db_TaskPool *pool)
+{
+    int i;
+
+    if(pool!=NULL)
+    {
+        pool->Run(task,arg,nr_tasks,nr_threads);
+        return;
+    }
+    for(i=0;i<nr_tasks;i++) task(arg,i,0);
+}
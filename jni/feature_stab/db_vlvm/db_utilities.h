@@ -49,6 +49,7 @@
 #include <math.h>
 
 #include <assert.h>
+#include <pthread.h>
 #include "db_utilities_constants.h"
 /*!
  * \defgroup LMBasicUtilities (LM) Utility Functions (basic math, linear algebra and array manipulations)
@@ -555,6 +556,86 @@ DB_API void db_WarpImageLut_u(const unsigned char * const * src,unsigned char **
 DB_API void db_PrintDoubleVector(double *a,long size);
 DB_API void db_PrintDoubleMatrix(double *a,long rows,long cols);
 
+/*!
+ * Maximum number of threads used by the parallel parts of the library.
+ */
+#define DB_MAX_NR_THREADS 4
+
+/*!
+ * Return the number of threads to use when nr_threads are asked for, 0 meaning
+ * one per online CPU. The result is between 1 and DB_MAX_NR_THREADS.
+ */
+DB_API int db_GetNrThreads(int nr_threads);
+
+/*!
+ * A pool of worker threads that runs batches of tasks. The threads are started by the
+ * first batch that needs them and kept until the pool is destroyed, so a batch only
+ * costs waking them up. A pool runs one batch at a time: it belongs to one context,
+ * such as a registration, whose calls do not overlap.
+ */
+class DB_API db_TaskPool
+{
+public:
+    db_TaskPool();
+    ~db_TaskPool();
+
+    /*!
+     * Run task(arg,i,worker) for every i in [0,nr_tasks) on nr_threads workers and
+     * return when all of them are done. The calling thread is worker 0; the tasks are
+     * handed out in increasing order of i to whichever worker is free, so tasks should
+     * write their results into slots of their own and use scratch memory by worker.
+     * \param task         function to run
+     * \param arg          passed to task
+     * \param nr_tasks     number of tasks
+     * \param nr_threads   number of workers, at most DB_MAX_NR_THREADS
+     */
+    void Run(void (*task)(void *arg,int i,int worker),void *arg,int nr_tasks,int nr_threads);
+
+protected:
+    struct Worker
+    {
+        db_TaskPool *pool;
+        int worker;
+        unsigned int batch;
+    };
+
+    static void *Thread(void *arg);
+    void Work(int worker);
+    void RunTasks(int worker);
+
+    pthread_mutex_t m_lock;
+    /*Signaled when a batch starts or the pool is destroyed*/
+    pthread_cond_t m_wake;
+    /*Signaled when the last worker thread is done with a batch*/
+    pthread_cond_t m_done;
+    pthread_t m_threads[DB_MAX_NR_THREADS];
+    Worker m_workers[DB_MAX_NR_THREADS];
+    /*Worker threads 1..m_nr_started are running*/
+    int m_nr_started;
+    bool m_quit;
+
+    /*The current batch, set under m_lock before the workers are woken*/
+    unsigned int m_batch;
+    void (*m_task)(void *arg,int i,int worker);
+    void *m_arg;
+    int m_nr_tasks;
+    volatile int m_next_task;
+    int m_nr_workers;
+    /*Worker threads of the batch that are not done yet*/
+    int m_nr_busy;
+
+private:
+    db_TaskPool(const db_TaskPool&);
+    db_TaskPool& operator=(const db_TaskPool&);
+};
+
+/*!
+ * Run the tasks on pool as db_TaskPool::Run does, or one after the other on the
+ * calling thread if pool is NULL.
+ */
+DB_API void db_RunTasks(void (*task)(void *arg,int i,int worker),void *arg,int nr_tasks,int nr_threads,
+                        db_TaskPool *pool);
+
 #include "db_utilities_constants.h"
 #include "db_utilities_algebra.h"
 #include "db_utilities_indexing.h"
@@ -18,6 +18,7 @@
 #include "dbreg.h"
 #include <string.h>
 #include <stdio.h>
+#include <time.h>
 
 
 #if PROFILE
@@ -32,6 +33,7 @@ db_FrameToReferenceRegistration::db_FrameToReferenceRegistration() :
   m_aligned_ins_image = NULL;
 
   m_quarter_res_image = NULL;
+  m_corner_detection_time = 0.0;
   m_horz_smooth_subsample_image = NULL;
 
   m_x_corners_ref = NULL;
@@ -211,6 +213,7 @@ void db_FrameToReferenceRegistration::Init(int width, int height,
   // initialize feature detection and matching:
   //m_max_nr_corners = m_cd.Init(m_im_width,m_im_height,cd_target_nr_corners,cd_nr_horz_blocks,cd_nr_vert_blocks,0.0,0.0);
   m_max_nr_corners = m_cd.Init(m_im_width,m_im_height,cd_target_nr_corners,cd_nr_horz_blocks,cd_nr_vert_blocks,DB_DEFAULT_ABS_CORNER_THRESHOLD/500.0,0.0);
+  m_cd.SetTaskPool(&m_task_pool);
 
     int use_21 = 0;
   m_max_nr_matches = m_cm.Init(m_im_width,m_im_height,cm_max_disparity,m_max_nr_corners,DB_DEFAULT_NO_DISPARITY,cm_use_smaller_matching_window,use_21);
@@ -248,6 +251,22 @@ void db_FrameToReferenceRegistration::Init(int width, int height,
 
 
 #define MB 0
+// return the time of a monotonic clock in milliseconds
+static double monotonic_ms(void)
+{
+  struct timespec res;
+  clock_gettime(CLOCK_MONOTONIC, &res);
+  return 1000.0*res.tv_sec + (double)res.tv_nsec/1e6;
+}
+
+// Detect the corners of im and remember how long it took
+void db_FrameToReferenceRegistration::DetectCorners(const unsigned char * const * im, double *x_coord, double *y_coord, int *nr_corners)
+{
+  double t0 = monotonic_ms();
+  m_cd.DetectCorners(im, x_coord, y_coord, nr_corners);
+  m_corner_detection_time = monotonic_ms() - t0;
+}
+
 // Save the reference image, detect features and update the dref-to-ref transformation
 int db_FrameToReferenceRegistration::UpdateReference(const unsigned char * const * im, bool subsample, bool detect_corners)
 {
@@ -269,7 +288,7 @@ int db_FrameToReferenceRegistration::UpdateReference(const unsigned char * const
   if(detect_corners)
   {
     #if MB
-    m_cd.DetectCorners(imptr, m_x_corners_ref,m_y_corners_ref,&m_nr_corners_ref);
+    DetectCorners(imptr, m_x_corners_ref,m_y_corners_ref,&m_nr_corners_ref);
     int nr = 0;
     for(int k=0; k<m_nr_corners_ref; k++)
     {
@@ -283,7 +302,7 @@ int db_FrameToReferenceRegistration::UpdateReference(const unsigned char * const
     }
     m_nr_corners_ref = nr;
     #else
-    m_cd.DetectCorners(imptr, m_x_corners_ref,m_y_corners_ref,&m_nr_corners_ref);
+    DetectCorners(imptr, m_x_corners_ref,m_y_corners_ref,&m_nr_corners_ref);
     #endif
   }
   else
@@ -386,7 +405,7 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
 #if PROFILE
   iTimer1 = now_ms();
 #endif
-  m_cd.DetectCorners(imptr, m_x_corners_ins,m_y_corners_ins,&m_nr_corners_ins);
+  DetectCorners(imptr, m_x_corners_ins,m_y_corners_ins,&m_nr_corners_ins);
   // @jke - Adding code to time the functions.  TODO: Remove after test
 # if PROFILE
   iTimer2 = now_ms();
@@ -436,7 +455,8 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
   // perform the alignment:
   db_RobImageHomography(m_H_ref_to_ins, m_corners_ref, m_corners_ins, m_nr_matches, m_K, m_K, m_temp_double, m_temp_int,
             m_homography_type,NULL,m_max_iterations,m_max_nr_matches,m_scale,
-            m_nr_samples, m_chunk_size);
+            m_nr_samples, m_chunk_size, 0, NULL, NULL, NULL, NULL, NULL,
+            0, 0.0, &m_task_pool);
   // @jke - Adding code to time the functions.  TODO: Remove after test
 # if PROFILE
   iTimer2 = now_ms();
@@ -592,7 +612,8 @@ void db_FrameToReferenceRegistration::EstimateSecondaryModel(double H[9])
   // perform the alignment:
   db_RobImageHomography(m_H_ref_to_ins, m_corners_ref, m_corners_ins, m_nr_matches, m_K, m_K, m_temp_double, m_temp_int,
             m_homography_type,NULL,m_max_iterations,m_max_nr_matches,m_scale,
-            m_nr_samples, m_chunk_size);
+            m_nr_samples, m_chunk_size, 0, NULL, NULL, NULL, NULL, NULL,
+            0, 0.0, &m_task_pool);
 
   db_Copy9(H,m_H_ref_to_ins);
 }
@@ -236,6 +236,11 @@ public:
     */
     int  GetNrInliers() { return m_num_inlier_indices; }
 
+    /*!
+     * Returns the time in milliseconds that the last corner detection took.
+    */
+    double GetCornerDetectionTime() { return m_corner_detection_time; }
+
     //std::vector<int>& GetInliers();
     //void Polish(std::vector<int> &inlier_indices);
 
@@ -293,6 +298,7 @@ public:
 protected:
     void Clean();
     void GenerateQuarterResImage(const unsigned char* const * im);
+    void DetectCorners(const unsigned char * const * im, double *x_coord, double *y_coord, int *nr_corners);
 
     int     m_im_width;
     int     m_im_height;
@@ -322,6 +328,13 @@ protected:
     db_CornerDetector_u m_cd;
     db_Matcher_u        m_cm;
 
+    // threads shared by the corner detection and the robust homography, started
+    // once for all the frames:
+    db_TaskPool m_task_pool;
+
+    // time the last corner detection took, in ms:
+    double m_corner_detection_time;
+
     // length of corner arrays:
     unsigned long m_max_nr_corners;
 
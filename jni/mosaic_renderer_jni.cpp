@@ -37,9 +37,11 @@ GLuint gSurfaceTextureID[1];
 
 bool gWarpImage = true;
 
-// Low-Res input image frame in YUVA format for preview rendering and processing
-// and high-res YUVA input image for processing.
-unsigned char* gPreviewImage[NR];
+// Low-Res input image frames in YUVA format for preview rendering and
+// processing and high-res YUVA input images for processing. The frames read
+// back from the GPU are queued in a ring of PREVIEW_RING_SIZE slots, so the
+// GL thread does not have to wait for the alignment of the previous frame.
+unsigned char* gPreviewImage[NR][PREVIEW_RING_SIZE];
 // Low-Res & high-res preview image width
 int gPreviewImageWidth[NR];
 // Low-Res & high-res preview image height
@@ -48,6 +50,10 @@ int gPreviewImageHeight[NR];
 // Semaphore to protect simultaneous read/writes from gPreviewImage
 sem_t gPreviewImage_semaphore;
 
+// Semaphore to protect the warp transformation, which the alignment thread
+// updates while the GL thread renders with it.
+sem_t gWarpTransformation_semaphore;
+
 // Off-screen preview FBO width (large enough to store the entire
 // preview mosaic). FBO is frame buffer object.
 int gPreviewFBOWidth;
@@ -222,9 +228,9 @@ void bindSurfaceTexture(GLuint texId)
             GL_CLAMP_TO_EDGE);
 }
 
-void ClearPreviewImage(int mID)
+void ClearPreviewImage(int mID, int slot)
 {
-    unsigned char* ptr = gPreviewImage[mID];
+    unsigned char* ptr = gPreviewImage[mID][slot];
     for(int j = 0, i = 0;
             j < gPreviewImageWidth[mID] * gPreviewImageHeight[mID] * 4;
             j += 4)
@@ -303,7 +309,7 @@ bool continuePanningFBO(double panOffset) {
 // pasted in by gWarper2 after translating it by g_dTranslationToFBOCenter.
 // The computed g_dAffinetransPan is such that it offsets the computed preview
 // mosaic horizontally to make the viewfinder pan within the UI layout.
-void UpdateWarpTransformation(float *trs)
+static void UpdateWarpTransformationLocked(float *trs)
 {
     double H[9], Hp[9], Htemp1[9], Htemp2[9], T[9];
 
@@ -382,6 +388,13 @@ void UpdateWarpTransformation(float *trs)
     }
 }
 
+void UpdateWarpTransformation(float *trs)
+{
+    sem_wait(&gWarpTransformation_semaphore);
+    UpdateWarpTransformationLocked(trs);
+    sem_post(&gWarpTransformation_semaphore);
+}
+
 void AllocateTextureMemory(int widthHR, int heightHR, int widthLR, int heightLR)
 {
     gPreviewImageWidth[HR] = widthHR;
@@ -391,10 +404,13 @@ void AllocateTextureMemory(int widthHR, int heightHR, int widthLR, int heightLR)
     gPreviewImageHeight[LR] = heightLR;
 
     sem_wait(&gPreviewImage_semaphore);
-    gPreviewImage[LR] = ImageUtils::allocateImage(gPreviewImageWidth[LR],
-            gPreviewImageHeight[LR], 4);
-    gPreviewImage[HR] = ImageUtils::allocateImage(gPreviewImageWidth[HR],
-            gPreviewImageHeight[HR], 4);
+    for (int slot = 0; slot < PREVIEW_RING_SIZE; slot++)
+    {
+        gPreviewImage[LR][slot] = ImageUtils::allocateImage(gPreviewImageWidth[LR],
+                gPreviewImageHeight[LR], 4);
+        gPreviewImage[HR][slot] = ImageUtils::allocateImage(gPreviewImageWidth[HR],
+                gPreviewImageHeight[HR], 4);
+    }
     sem_post(&gPreviewImage_semaphore);
 
     gPreviewFBOWidth = PREVIEW_FBO_WIDTH_SCALE * gPreviewImageWidth[HR];
@@ -469,8 +485,11 @@ void AllocateTextureMemory(int widthHR, int heightHR, int widthLR, int heightLR)
 void FreeTextureMemory()
 {
     sem_wait(&gPreviewImage_semaphore);
-    ImageUtils::freeImage(gPreviewImage[LR]);
-    ImageUtils::freeImage(gPreviewImage[HR]);
+    for (int slot = 0; slot < PREVIEW_RING_SIZE; slot++)
+    {
+        ImageUtils::freeImage(gPreviewImage[LR][slot]);
+        ImageUtils::freeImage(gPreviewImage[HR][slot]);
+    }
     sem_post(&gPreviewImage_semaphore);
 }
 
@@ -486,7 +505,7 @@ extern "C"
     JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_preprocess(
             JNIEnv * env, jobject obj, jfloatArray stMatrix);
     JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_transferGPUtoCPU(
-            JNIEnv * env, jobject obj);
+            JNIEnv * env, jobject obj, jint slot);
     JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_step(
             JNIEnv * env, jobject obj);
     JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_updateMatrix(
@@ -499,6 +518,7 @@ extern "C"
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved)
 {
     sem_init(&gPreviewImage_semaphore, 0, 1);
+    sem_init(&gWarpTransformation_semaphore, 0, 1);
 
     return JNI_VERSION_1_4;
 }
@@ -507,6 +527,7 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved)
 JNIEXPORT void JNICALL JNI_OnUnload(JavaVM* vm, void* reserved)
 {
     sem_destroy(&gPreviewImage_semaphore);
+    sem_destroy(&gWarpTransformation_semaphore);
 }
 JNIEXPORT jint JNICALL Java_com_android_camera_MosaicRenderer_init(
         JNIEnv * env, jobject obj)
@@ -689,10 +710,16 @@ now_ms(void)
 
 
 JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_transferGPUtoCPU(
-        JNIEnv * env, jobject obj)
+        JNIEnv * env, jobject obj, jint slot)
 {
     double t0, t1, time_c;
 
+    if (slot < 0 || slot >= PREVIEW_RING_SIZE)
+    {
+        LOGE("transferGPUtoCPU: bad slot %d", slot);
+        return;
+    }
+
     gYVURenderer[LR].DrawTexture();
     gYVURenderer[HR].DrawTexture();
 
@@ -706,7 +733,7 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_transferGPUtoCPU(
                  gBufferInput[LR].GetHeight(),
                  GL_RGBA,
                  GL_UNSIGNED_BYTE,
-                 gPreviewImage[LR]);
+                 gPreviewImage[LR][slot]);
 
     checkGlError("glReadPixels LR (MosaicRenderer.transferGPUtoCPU())");
 
@@ -719,7 +746,7 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_transferGPUtoCPU(
                  gBufferInput[HR].GetHeight(),
                  GL_RGBA,
                  GL_UNSIGNED_BYTE,
-                 gPreviewImage[HR]);
+                 gPreviewImage[HR][slot]);
 
     checkGlError("glReadPixels HR (MosaicRenderer.transferGPUtoCPU())");
 
@@ -764,6 +791,7 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_setWarping(
         JNIEnv * env, jobject obj, jboolean flag)
 {
     // TODO: Review this logic
+    sem_wait(&gWarpTransformation_semaphore);
     if(gWarpImage != (bool) flag) //switching from viewfinder to capture or vice-versa
     {
         // Clear gBuffer[0]
@@ -785,20 +813,23 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_setWarping(
         // Otherwise, the first frame after setting the flag to true will be
         // incorrectly drawn.
         if ((bool) flag) {
-            UpdateWarpTransformation(g_dIdent3x3);
+            UpdateWarpTransformationLocked(g_dIdent3x3);
         }
     }
 
     gWarpImage = (bool)flag;
+    sem_post(&gWarpTransformation_semaphore);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_updateMatrix(
         JNIEnv * env, jobject obj)
 {
+    sem_wait(&gWarpTransformation_semaphore);
     for(int i=0; i<16; i++)
     {
         g_dAffinetransGL[i] = g_dAffinetrans[i];
         g_dAffinetransPanGL[i] = g_dAffinetransPan[i];
         g_dTranslationToFBOCenterGL[i] = g_dTranslationToFBOCenter[i];
     }
+    sem_post(&gWarpTransformation_semaphore);
 }
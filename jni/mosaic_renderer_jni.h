@@ -23,12 +23,16 @@ const int NR = 2; // Number of resolution modes
 
 const int H2L_FACTOR = 4; // Can be 2
 
+// Number of frames that can be read back from the GPU and wait for the
+// alignment. Must match MosaicRenderer.PREVIEW_RING_SIZE.
+const int PREVIEW_RING_SIZE = 3;
+
 extern "C" void AllocateTextureMemory(int widthHR, int heightHR,
         int widthLR, int heightLR);
 extern "C" void FreeTextureMemory();
 extern "C" void UpdateWarpTransformation(float *trs);
 
-extern unsigned char* gPreviewImage[NR];
+extern unsigned char* gPreviewImage[NR][PREVIEW_RING_SIZE];
 extern int gPreviewImageWidth[NR];
 extern int gPreviewImageHeight[NR];
 
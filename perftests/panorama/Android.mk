@@ -24,3 +24,75 @@ LOCAL_MODULE := panorama_bench
 LOCAL_MODULE_PATH := $(local_target_dir)
 
 include $(BUILD_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/../../jni/feature_mos/src
+
+LOCAL_CFLAGS := -O3 -DNDEBUG
+
+LOCAL_SRC_FILES := color_kernels.cpp
+
+LOCAL_SHARED_LIBRARIES := libjni_mosaic
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_color_kernels
+
+LOCAL_MODULE_PATH := $(local_target_dir)
+
+include $(BUILD_EXECUTABLE)
+
+# The same benchmark for the build host, with the mosaic sources compiled in,
+# so that it can run in continuous integration without a device.
+
+include $(CLEAR_VARS)
+
+mosaic_jni_path := ../../jni
+
+LOCAL_C_INCLUDES := \
+    $(LOCAL_PATH)/$(mosaic_jni_path)/feature_mos/src \
+    $(LOCAL_PATH)/$(mosaic_jni_path)/feature_mos/src/mosaic \
+    $(LOCAL_PATH)/$(mosaic_jni_path)/feature_stab/src \
+    $(LOCAL_PATH)/$(mosaic_jni_path)/feature_stab/src/dbreg \
+    $(LOCAL_PATH)/$(mosaic_jni_path)/feature_stab/db_vlvm
+
+LOCAL_CFLAGS := -O3 -DNDEBUG -fstrict-aliasing
+
+LOCAL_SRC_FILES := \
+    benchmark.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/trsMatrix.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/AlignFeatures.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/Blend.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/ColorConvert.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/ColorConvert_neon.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/ColorConvert_sse2.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/Delaunay.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/ImageUtils.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/Mosaic.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/MosaicArena.cpp \
+    $(mosaic_jni_path)/feature_mos/src/mosaic/Pyramid.cpp \
+    $(mosaic_jni_path)/feature_stab/db_vlvm/db_feature_detection.cpp \
+    $(mosaic_jni_path)/feature_stab/db_vlvm/db_feature_matching.cpp \
+    $(mosaic_jni_path)/feature_stab/db_vlvm/db_framestitching.cpp \
+    $(mosaic_jni_path)/feature_stab/db_vlvm/db_image_homography.cpp \
+    $(mosaic_jni_path)/feature_stab/db_vlvm/db_rob_image_homography.cpp \
+    $(mosaic_jni_path)/feature_stab/db_vlvm/db_utilities.cpp \
+    $(mosaic_jni_path)/feature_stab/db_vlvm/db_utilities_camera.cpp \
+    $(mosaic_jni_path)/feature_stab/db_vlvm/db_utilities_indexing.cpp \
+    $(mosaic_jni_path)/feature_stab/db_vlvm/db_utilities_linalg.cpp \
+    $(mosaic_jni_path)/feature_stab/db_vlvm/db_utilities_poly.cpp \
+    $(mosaic_jni_path)/feature_stab/src/dbreg/dbreg.cpp \
+    $(mosaic_jni_path)/feature_stab/src/dbreg/dbstabsmooth.cpp \
+    $(mosaic_jni_path)/feature_stab/src/dbreg/vp_motionmodel.c
+
+LOCAL_STATIC_LIBRARIES := liblog
+
+LOCAL_LDLIBS := -lpthread
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_MODULE := panorama_bench_host
+
+include $(BUILD_HOST_EXECUTABLE)
@@ -14,7 +14,12 @@
  * limitations under the License.
  */
 
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
 #include <time.h>
+#include <sys/resource.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <unistd.h>
@@ -24,12 +29,42 @@
 
 #define MAX_FRAMES 200
 #define KERNEL_ITERATIONS 10
+#define MAX_ITERATIONS 100
+
+// PSNR reported for identical images, which have none.
+#define MAX_PSNR 100.0
+
+// SSIM is computed on the luma in windows of this size, this far apart.
+#define SSIM_WINDOW 8
+#define SSIM_STEP 4
 
 const int blendingType = Blend::BLEND_TYPE_HORZ;
 const int stripType = Blend::STRIP_TYPE_WIDE;
 
 ImageType yvuFrames[MAX_FRAMES];
 
+// Timings of one iteration, in seconds.
+struct IterationTimes {
+    double align;
+    double stitch;
+    double total;
+    BlendTimes blend;
+};
+
+IterationTimes iterationTimes[MAX_ITERATIONS];
+
+// The time to align each frame of each iteration, in milliseconds.
+double frameAlignTimes[MAX_ITERATIONS * MAX_FRAMES];
+
+// How close the mosaic is to the golden image.
+struct Quality {
+    bool sizeMatch;
+    // Whether every byte is the same.
+    bool identical;
+    double psnr;
+    double ssim;
+};
+
 int loadImages(const char* basename, int &width, int &height)
 {
     char filename[512];
@@ -48,45 +83,236 @@ int loadImages(const char* basename, int &width, int &height)
     return i;
 }
 
+static double seconds(const struct timespec &from, const struct timespec &to)
+{
+    return (to.tv_sec - from.tv_sec) + (to.tv_nsec - from.tv_nsec) / 1e9;
+}
+
+static int compareDoubles(const void *a, const void *b)
+{
+    double da = *(const double *) a;
+    double db = *(const double *) b;
+    return (da < db) ? -1 : (da > db) ? 1 : 0;
+}
+
+// Prints the statistics of the count values as a JSON object.
+static void printStats(FILE *out, const double *values, int count)
+{
+    if (count == 0) {
+        fprintf(out, "null");
+        return;
+    }
+    double *sorted = new double[count];
+    double sum = 0;
+    memcpy(sorted, values, count * sizeof(double));
+    qsort(sorted, count, sizeof(double), compareDoubles);
+    for (int i = 0; i < count; i++) sum += sorted[i];
+
+    // Nearest rank percentiles
+    static const int percentiles[] = { 50, 90, 99 };
+    fprintf(out, "{\"min\": %.6f", sorted[0]);
+    for (unsigned p = 0; p < sizeof(percentiles) / sizeof(percentiles[0]); p++) {
+        int rank = (int) ceil(percentiles[p] / 100.0 * count);
+        fprintf(out, ", \"p%d\": %.6f", percentiles[p], sorted[(rank > 0 ? rank : 1) - 1]);
+    }
+    fprintf(out, ", \"max\": %.6f, \"mean\": %.6f}", sorted[count - 1], sum / count);
+    delete[] sorted;
+}
+
+// Prints the statistics of one field of the iteration times.
+static void printIterationStats(FILE *out, const char *name, int iterations,
+        double (*field)(const IterationTimes &), const char *separator)
+{
+    double values[MAX_ITERATIONS];
+    for (int i = 0; i < iterations; i++) values[i] = field(iterationTimes[i]);
+    fprintf(out, "    \"%s\": ", name);
+    printStats(out, values, iterations);
+    fprintf(out, "%s\n", separator);
+}
+
+static double alignField(const IterationTimes &t) { return t.align; }
+static double stitchField(const IterationTimes &t) { return t.stitch; }
+static double totalField(const IterationTimes &t) { return t.total; }
+static double layoutField(const IterationTimes &t) { return t.blend.layout; }
+static double maskField(const IterationTimes &t) { return t.blend.mask; }
+static double pyramidsField(const IterationTimes &t) { return t.blend.pyramids; }
+static double collapseField(const IterationTimes &t) { return t.blend.collapse; }
+static double cropField(const IterationTimes &t) { return t.blend.crop; }
+
+// Prints the string as a JSON string.
+static void printString(FILE *out, const char *s)
+{
+    fputc('"', out);
+    for (; *s; s++) {
+        if (*s == '"' || *s == '\\') fputc('\\', out);
+        fputc(*s, out);
+    }
+    fputc('"', out);
+}
+
+static inline double luma(ImageType rgb)
+{
+    return 0.299 * rgb[0] + 0.587 * rgb[1] + 0.114 * rgb[2];
+}
+
+// Compares the RGB image to the golden one. If their sizes differ, the
+// largest region they share around their centers is compared.
+static Quality compareImages(ImageType image, int width, int height,
+        ImageType golden, int goldenWidth, int goldenHeight)
+{
+    Quality quality;
+    quality.sizeMatch = (width == goldenWidth && height == goldenHeight);
+    quality.identical = quality.sizeMatch &&
+            memcmp(image, golden, 3 * width * height) == 0;
+
+    int w = width < goldenWidth ? width : goldenWidth;
+    int h = height < goldenHeight ? height : goldenHeight;
+    ImageType a = image + 3 * ((height - h) / 2 * width + (width - w) / 2);
+    ImageType b = golden + 3 * ((goldenHeight - h) / 2 * goldenWidth + (goldenWidth - w) / 2);
+
+    double squares = 0;
+    for (int y = 0; y < h; y++) {
+        for (int x = 0; x < 3 * w; x++) {
+            double d = a[y * 3 * width + x] - b[y * 3 * goldenWidth + x];
+            squares += d * d;
+        }
+    }
+    double mse = squares / (3.0 * w * h);
+    quality.psnr = (mse > 0) ? 10 * log10(255.0 * 255.0 / mse) : MAX_PSNR;
+    if (quality.psnr > MAX_PSNR) quality.psnr = MAX_PSNR;
+
+    const double c1 = (0.01 * 255) * (0.01 * 255);
+    const double c2 = (0.03 * 255) * (0.03 * 255);
+    const int n = SSIM_WINDOW * SSIM_WINDOW;
+    double ssimSum = 0;
+    int windows = 0;
+    for (int y = 0; y + SSIM_WINDOW <= h; y += SSIM_STEP) {
+        for (int x = 0; x + SSIM_WINDOW <= w; x += SSIM_STEP) {
+            double sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+            for (int j = y; j < y + SSIM_WINDOW; j++) {
+                for (int i = x; i < x + SSIM_WINDOW; i++) {
+                    double la = luma(a + 3 * (j * width + i));
+                    double lb = luma(b + 3 * (j * goldenWidth + i));
+                    sa += la;
+                    sb += lb;
+                    saa += la * la;
+                    sbb += lb * lb;
+                    sab += la * lb;
+                }
+            }
+            double ma = sa / n, mb = sb / n;
+            double va = saa / n - ma * ma, vb = sbb / n - mb * mb;
+            double cov = sab / n - ma * mb;
+            ssimSum += ((2 * ma * mb + c1) * (2 * cov + c2)) /
+                    ((ma * ma + mb * mb + c1) * (va + vb + c2));
+            windows++;
+        }
+    }
+    quality.ssim = (windows > 0) ? ssimSum / windows : 0;
+    return quality;
+}
+
+static void usage(const char *name)
+{
+    printf("Usage: %s input_dir output_filename [options]\n"
+           "  --iterations N    times to build the mosaic (default %d, at most %d)\n"
+           "  --json FILE       write the timings and quality as JSON to FILE, - for stdout\n"
+           "  --golden FILE     PPM image to compare the mosaic to\n"
+           "  --exact           fail unless the mosaic is identical to the golden image\n"
+           "  --min-psnr DB     fail if the PSNR to the golden image is lower (default 0)\n"
+           "  --min-ssim S      fail if the SSIM to the golden image is lower (default 0)\n"
+           "  --incremental MB  blend the frames ahead as they are added, in up to MB\n"
+           "                    megabytes (default 0, all in createMosaic)\n",
+           name, KERNEL_ITERATIONS, MAX_ITERATIONS);
+}
+
 int main(int argc, char **argv)
 {
-    struct timespec t1, t2, t3;
+    struct timespec t1, t2, t3, f1, f2;
 
     int width, height;
     float totalElapsedTime = 0;
 
     const char *basename;
     const char *filename;
+    const char *jsonFilename = NULL;
+    const char *goldenFilename = NULL;
+    int iterations = KERNEL_ITERATIONS;
+    double minPsnr = 0;
+    double minSsim = 0;
+    bool exact = false;
+    size_t incrementalBudget = 0;
 
-    if (argc != 3) {
-        printf("Usage: %s input_dir output_filename\n", argv[0]);
+    if (argc < 3 || argv[1][0] == '-' || argv[2][0] == '-') {
+        usage(argv[0]);
         return 0;
-    } else {
-        basename = argv[1];
-        filename = argv[2];
+    }
+    basename = argv[1];
+    filename = argv[2];
+    for (int i = 3; i < argc; i++) {
+        if (strcmp(argv[i], "--exact") == 0) {
+            exact = true;
+        } else if (i + 1 >= argc) {
+            usage(argv[0]);
+            return 1;
+        } else if (strcmp(argv[i], "--iterations") == 0) {
+            iterations = atoi(argv[++i]);
+        } else if (strcmp(argv[i], "--json") == 0) {
+            jsonFilename = argv[++i];
+        } else if (strcmp(argv[i], "--golden") == 0) {
+            goldenFilename = argv[++i];
+        } else if (strcmp(argv[i], "--min-psnr") == 0) {
+            minPsnr = atof(argv[++i]);
+        } else if (strcmp(argv[i], "--min-ssim") == 0) {
+            minSsim = atof(argv[++i]);
+        } else if (strcmp(argv[i], "--incremental") == 0) {
+            incrementalBudget = (size_t) atoi(argv[++i]) << 20;
+        } else {
+            usage(argv[0]);
+            return 1;
+        }
+    }
+    if (iterations < 1 || iterations > MAX_ITERATIONS) {
+        printf("The number of iterations must be from 1 to %d\n", MAX_ITERATIONS);
+        return 1;
     }
 
+    // With the JSON on stdout, the progress goes to stderr to keep it parsable.
+    FILE *report = (jsonFilename != NULL && strcmp(jsonFilename, "-") == 0) ? stderr : stdout;
+
     // Load the images outside the computational kernel
     int totalFrames = loadImages(basename, width, height);
 
     if (totalFrames == 0) {
-        printf("Image files not found. Make sure %s exists.\n",
+        fprintf(report, "Image files not found. Make sure %s exists.\n",
                basename);
         return 1;
     }
 
-    printf("%d frames loaded\n", totalFrames);
+    fprintf(report, "%d frames loaded\n", totalFrames);
+
+    // Every iteration reuses the memory of the last, as the app does.
+    MosaicArena arena;
+    size_t arenaPeak = 0;
 
+    int mosaicWidth = 0, mosaicHeight = 0;
+    ImageType imageRGB = NULL;
+    int alignedFrames = 0;
 
     // Interesting stuff is here
-    for (int iteration = 0; iteration < KERNEL_ITERATIONS; iteration++)  {
-        Mosaic mosaic;
+    for (int iteration = 0; iteration < iterations; iteration++)  {
+        arena.reset();
+        Mosaic mosaic(&arena);
 
         mosaic.initialize(blendingType, stripType, width, height, -1, false, 0);
+        mosaic.setIncrementalBlending(incrementalBudget);
 
         clock_gettime(CLOCK_MONOTONIC, &t1);
         for (int i = 0; i < totalFrames; i++) {
+            clock_gettime(CLOCK_MONOTONIC, &f1);
             mosaic.addFrame(yvuFrames[i]);
+            clock_gettime(CLOCK_MONOTONIC, &f2);
+            frameAlignTimes[alignedFrames++] = 1000 * seconds(f1, f2);
         }
         clock_gettime(CLOCK_MONOTONIC, &t2);
 
@@ -95,37 +321,112 @@ int main(int argc, char **argv)
 
         mosaic.createMosaic(progress, cancelComputation);
 
-        int mosaicWidth, mosaicHeight;
         ImageType resultYVU = mosaic.getMosaic(mosaicWidth, mosaicHeight);
 
-        ImageType imageRGB = ImageUtils::allocateImage(
-            mosaicWidth, mosaicHeight, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-
         clock_gettime(CLOCK_MONOTONIC, &t3);
 
-        float elapsedTime =
-            (t3.tv_sec - t1.tv_sec) + (t3.tv_nsec - t1.tv_nsec)/1e9;
-        float addImageTime =
-            (t2.tv_sec - t1.tv_sec) + (t2.tv_nsec - t1.tv_nsec)/1e9;
-        float stitchImageTime =
-            (t3.tv_sec - t2.tv_sec) + (t3.tv_nsec - t2.tv_nsec)/1e9;
+        IterationTimes &times = iterationTimes[iteration];
+        times.align = seconds(t1, t2);
+        times.stitch = seconds(t2, t3);
+        times.total = seconds(t1, t3);
+        times.blend = mosaic.getBlender()->getTimes();
+        if (arena.getPeakBytes() > arenaPeak) arenaPeak = arena.getPeakBytes();
 
-        totalElapsedTime += elapsedTime;
+        totalElapsedTime += times.total;
 
-        printf("Iteration %d: %dx%d moasic created: "
+        fprintf(report, "Iteration %d: %dx%d moasic created: "
                "%.2f seconds (%.2f + %.2f)\n",
                iteration, mosaicWidth, mosaicHeight,
-               elapsedTime, addImageTime, stitchImageTime);
+               times.total, times.align, times.stitch);
 
-        // Write the output only once for correctness check
-        if (iteration == 0) {
+        // Keep the output of the first iteration for the correctness check
+        if (iteration == 0 && resultYVU != NULL) {
+            imageRGB = ImageUtils::allocateImage(
+                mosaicWidth, mosaicHeight, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
             ImageUtils::yvu2rgb(imageRGB, resultYVU, mosaicWidth,
                                 mosaicHeight);
             ImageUtils::writeBinaryPPM(imageRGB, filename, mosaicWidth,
                                        mosaicHeight);
         }
+        ImageUtils::freeImage(resultYVU);
+    }
+    fprintf(report, "Total elapsed time: %.2f seconds\n", totalElapsedTime);
+
+    struct rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+    // ru_maxrss is in kilobytes on Linux.
+    long peakRss = usage.ru_maxrss * 1024L;
+    fprintf(report, "Peak memory: %ld bytes resident, %lu bytes in the arena\n",
+           peakRss, (unsigned long) arenaPeak);
+
+    bool pass = true;
+    Quality quality;
+    if (goldenFilename != NULL) {
+        int goldenWidth = 0, goldenHeight = 0;
+        ImageType golden = ImageUtils::readBinaryPPM(goldenFilename, goldenWidth, goldenHeight);
+        if (golden == NULL || imageRGB == NULL) {
+            fprintf(report, "Cannot compare %s to the mosaic\n", goldenFilename);
+            return 1;
+        }
+        quality = compareImages(imageRGB, mosaicWidth, mosaicHeight,
+                golden, goldenWidth, goldenHeight);
+        pass = quality.psnr >= minPsnr && quality.ssim >= minSsim &&
+                (!exact || quality.identical);
+        fprintf(report, "Golden %dx%d: PSNR %.2f dB, SSIM %.4f%s: %s\n",
+               goldenWidth, goldenHeight, quality.psnr, quality.ssim,
+               quality.identical ? " (identical)" :
+               quality.sizeMatch ? "" : " (sizes differ, centers compared)",
+               pass ? "PASS" : "FAIL");
+        ImageUtils::freeImage(golden);
     }
-    printf("Total elapsed time: %.2f seconds\n", totalElapsedTime);
 
-    return 0;
+    if (jsonFilename != NULL) {
+        FILE *out = strcmp(jsonFilename, "-") == 0 ? stdout : fopen(jsonFilename, "w");
+        if (out == NULL) {
+            fprintf(report, "Cannot write %s\n", jsonFilename);
+            return 1;
+        }
+        fprintf(out, "{\n");
+        fprintf(out, "  \"frames\": %d,\n", totalFrames);
+        fprintf(out, "  \"frame_width\": %d,\n", width);
+        fprintf(out, "  \"frame_height\": %d,\n", height);
+        fprintf(out, "  \"iterations\": %d,\n", iterations);
+        fprintf(out, "  \"incremental_budget_bytes\": %lu,\n", (unsigned long) incrementalBudget);
+        fprintf(out, "  \"mosaic_width\": %d,\n", mosaicWidth);
+        fprintf(out, "  \"mosaic_height\": %d,\n", mosaicHeight);
+        fprintf(out, "  \"frame_align_ms\": ");
+        printStats(out, frameAlignTimes, alignedFrames);
+        fprintf(out, ",\n  \"iteration_seconds\": {\n");
+        printIterationStats(out, "align", iterations, alignField, ",");
+        printIterationStats(out, "stitch", iterations, stitchField, ",");
+        printIterationStats(out, "total", iterations, totalField, "");
+        fprintf(out, "  },\n  \"blend_phase_seconds\": {\n");
+        printIterationStats(out, "layout", iterations, layoutField, ",");
+        printIterationStats(out, "mask", iterations, maskField, ",");
+        printIterationStats(out, "pyramids", iterations, pyramidsField, ",");
+        printIterationStats(out, "collapse", iterations, collapseField, ",");
+        printIterationStats(out, "crop", iterations, cropField, "");
+        fprintf(out, "  },\n");
+        fprintf(out, "  \"peak_rss_bytes\": %ld,\n", peakRss);
+        fprintf(out, "  \"peak_arena_bytes\": %lu,\n", (unsigned long) arenaPeak);
+        if (goldenFilename != NULL) {
+            fprintf(out, "  \"quality\": {\"golden\": ");
+            printString(out, goldenFilename);
+            fprintf(out, ", \"size_match\": %s, \"identical\": %s, "
+                    "\"psnr_db\": %.4f, \"ssim\": %.6f, \"min_psnr_db\": %.4f, "
+                    "\"min_ssim\": %.6f, \"exact\": %s},\n",
+                    quality.sizeMatch ? "true" : "false",
+                    quality.identical ? "true" : "false", quality.psnr, quality.ssim,
+                    minPsnr, minSsim, exact ? "true" : "false");
+        } else {
+            fprintf(out, "  \"quality\": null,\n");
+        }
+        fprintf(out, "  \"pass\": %s\n", pass ? "true" : "false");
+        fprintf(out, "}\n");
+        if (out != stdout) fclose(out);
+    }
+
+    ImageUtils::freeImage(imageRGB);
+
+    return pass ? 0 : 1;
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks that the SIMD color conversion kernels give the same output as the
+// scalar ones, then measures how fast each kernel is.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "mosaic/ColorConvert.h"
+
+#define TIMING_WIDTH 1280
+#define TIMING_HEIGHT 720
+#define TIMING_ITERATIONS 20
+
+typedef ColorConvert::Kernels Kernels;
+typedef ColorConvert::Kernel Kernel;
+
+struct KernelInfo {
+    const char *name;
+    Kernel Kernels::*kernel;
+    // Bytes per pixel of the input and output
+    int inBpp, outBpp;
+};
+
+static const KernelInfo kernelInfos[] = {
+    { "rgb2yvu", &Kernels::rgb2yvu, 3, 3 },
+    { "yvu2rgb", &Kernels::yvu2rgb, 3, 3 },
+    { "yvu2bgr", &Kernels::yvu2bgr, 3, 3 },
+    { "nv21ToYvu", &Kernels::nv21ToYvu, 2, 3 },
+    { "yvuToRgbPreview", &Kernels::yvuToRgbPreview, 3, 3 },
+    { "yvuaToYvu", &Kernels::yvuaToYvu, 4, 3 },
+};
+static const int numKernels = sizeof(kernelInfos) / sizeof(kernelInfos[0]);
+
+static int failures = 0;
+
+// Runs a kernel of both sets on in and reports where the outputs differ.
+static void compare(const Kernels *test, const KernelInfo &info,
+        unsigned char *in, int width, int height)
+{
+    // NV21 has 1.5 bytes per pixel; the extra half is harmless.
+    int outSize = width * height * info.outBpp;
+    unsigned char *expected = new unsigned char[outSize];
+    unsigned char *actual = new unsigned char[outSize];
+    memset(expected, 0, outSize);
+    memset(actual, 0, outSize);
+
+    (ColorConvert::getScalar()->*info.kernel)(expected, in, width, height);
+    (test->*info.kernel)(actual, in, width, height);
+
+    for (int i = 0; i < outSize; i++) {
+        if (expected[i] != actual[i]) {
+            printf("FAIL %s %s %dx%d: byte %d is %d, expected %d\n", test->name,
+                   info.name, width, height, i, actual[i], expected[i]);
+            failures++;
+            break;
+        }
+    }
+    delete[] expected;
+    delete[] actual;
+}
+
+static unsigned char *randomImage(int width, int height, int bpp)
+{
+    int size = width * height * bpp;
+    unsigned char *image = new unsigned char[size];
+    for (int i = 0; i < size; i++) image[i] = rand() & 0xff;
+    return image;
+}
+
+// Feeds every combination of the three input channels through the per
+// pixel kernels, 65536 pixels at a time.
+static void compareExhaustive(const Kernels *test, const KernelInfo &info)
+{
+    const int width = 256, height = 256, size = width * height;
+    unsigned char *in = new unsigned char[size * 3];
+    for (int first = 0; first < 256; first++) {
+        for (int i = 0; i < size; i++) {
+            if (info.kernel == &Kernels::rgb2yvu) {
+                in[3 * i] = first;
+                in[3 * i + 1] = i >> 8;
+                in[3 * i + 2] = i & 0xff;
+            } else {
+                in[i] = first;
+                in[size + i] = i >> 8;
+                in[2 * size + i] = i & 0xff;
+            }
+        }
+        compare(test, info, in, width, height);
+    }
+    delete[] in;
+}
+
+static void checkKernels(const Kernels *test)
+{
+    // Sizes that leave tails for the vector loops.
+    static const int sizes[][2] = {
+        { 2, 2 }, { 6, 2 }, { 18, 4 }, { 34, 6 }, { 62, 10 }, { 320, 180 }, { 1280, 720 },
+    };
+    for (int k = 0; k < numKernels; k++) {
+        const KernelInfo &info = kernelInfos[k];
+        for (unsigned s = 0; s < sizeof(sizes) / sizeof(sizes[0]); s++) {
+            int width = sizes[s][0], height = sizes[s][1];
+            unsigned char *in = randomImage(width, height, info.inBpp);
+            compare(test, info, in, width, height);
+            delete[] in;
+        }
+        if (info.kernel != &Kernels::nv21ToYvu && info.kernel != &Kernels::yvuaToYvu) {
+            compareExhaustive(test, info);
+        }
+    }
+}
+
+static double timeKernel(const Kernels *kernels, const KernelInfo &info)
+{
+    unsigned char *in = randomImage(TIMING_WIDTH, TIMING_HEIGHT, info.inBpp);
+    unsigned char *out = new unsigned char[TIMING_WIDTH * TIMING_HEIGHT * info.outBpp];
+    struct timespec t1, t2;
+
+    (kernels->*info.kernel)(out, in, TIMING_WIDTH, TIMING_HEIGHT);
+    clock_gettime(CLOCK_MONOTONIC, &t1);
+    for (int i = 0; i < TIMING_ITERATIONS; i++) {
+        (kernels->*info.kernel)(out, in, TIMING_WIDTH, TIMING_HEIGHT);
+    }
+    clock_gettime(CLOCK_MONOTONIC, &t2);
+
+    delete[] in;
+    delete[] out;
+    double seconds = (t2.tv_sec - t1.tv_sec) + (t2.tv_nsec - t1.tv_nsec) / 1e9;
+    return (double) TIMING_WIDTH * TIMING_HEIGHT * TIMING_ITERATIONS / seconds / 1e6;
+}
+
+int main(int argc, char **argv)
+{
+    const Kernels *all[ColorConvert::MAX_KERNELS];
+    int count = ColorConvert::getAll(all, ColorConvert::MAX_KERNELS);
+
+    printf("Kernels: ");
+    for (int i = 0; i < count; i++) printf("%s%s", all[i]->name, i + 1 < count ? ", " : "\n");
+    printf("Selected: %s\n", ColorConvert::get()->name);
+
+    srand(1);
+    for (int i = 1; i < count; i++) {
+        checkKernels(all[i]);
+    }
+    if (failures > 0) {
+        printf("%d kernel checks failed\n", failures);
+        return 1;
+    }
+    printf("All kernels match the scalar ones\n\n");
+
+    printf("Throughput at %dx%d, Mpixel/s:\n", TIMING_WIDTH, TIMING_HEIGHT);
+    printf("%-16s", "");
+    for (int i = 0; i < count; i++) printf("%10s", all[i]->name);
+    printf("\n");
+    for (int k = 0; k < numKernels; k++) {
+        printf("%-16s", kernelInfos[k].name);
+        double scalar = 0;
+        for (int i = 0; i < count; i++) {
+            double rate = timeKernel(all[i], kernelInfos[k]);
+            if (i == 0) scalar = rate;
+            printf("%10.1f", rate);
+        }
+        if (count > 1) printf("   x%.1f", timeKernel(all[count - 1], kernelInfos[k]) / scalar);
+        printf("\n");
+    }
+    return 0;
+}
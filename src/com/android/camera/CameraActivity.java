@@ -37,6 +37,9 @@ import com.android.camera.ui.CameraSwitcher;
 import com.android.gallery3d.app.PhotoPage;
 import com.android.gallery3d.util.LightCycleHelper;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class CameraActivity extends ActivityBase
         implements CameraSwitcher.CameraSwitchListener {
     public static final int PHOTO_MODULE_INDEX = 0;
@@ -52,6 +55,7 @@ public class CameraActivity extends ActivityBase
     private View mControlsBackground;
     private Drawable[] mDrawables;
     private int mCurrentModuleIndex;
+    private ModulePool mModulePool;
     private MotionEvent mDown;
 
     private MyOrientationEventListener mOrientationListener;
@@ -69,21 +73,30 @@ public class CameraActivity extends ActivityBase
 
     @Override
     public void onCreate(Bundle state) {
+        StartupTrace.record(StartupTrace.ACTIVITY_CREATE);
         super.onCreate(state);
+        if (MediaStore.INTENT_ACTION_VIDEO_CAMERA.equals(getIntent().getAction())
+                || MediaStore.ACTION_VIDEO_CAPTURE.equals(getIntent().getAction())) {
+            mCurrentModuleIndex = VIDEO_MODULE_INDEX;
+        } else {
+            mCurrentModuleIndex = PHOTO_MODULE_INDEX;
+        }
+        // Start opening the camera and reading the saved camera capabilities
+        // while the layout is inflated.
+        CameraPreopener.instance().preopen(this, mCurrentModuleIndex);
+        CameraCapabilityCache.instance().load(this);
         setContentView(R.layout.camera_main);
+        mModulePool = new ModulePool(this);
         mFrame =(FrameLayout) findViewById(R.id.main_content);
         mDrawables = new Drawable[DRAW_IDS.length];
         for (int i = 0; i < DRAW_IDS.length; i++) {
             mDrawables[i] = getResources().getDrawable(DRAW_IDS[i]);
         }
         init();
-        if (MediaStore.INTENT_ACTION_VIDEO_CAMERA.equals(getIntent().getAction())
-                || MediaStore.ACTION_VIDEO_CAPTURE.equals(getIntent().getAction())) {
+        if (mCurrentModuleIndex == VIDEO_MODULE_INDEX) {
             mCurrentModule = new VideoModule();
-            mCurrentModuleIndex = VIDEO_MODULE_INDEX;
         } else {
             mCurrentModule = new PhotoModule();
-            mCurrentModuleIndex = PHOTO_MODULE_INDEX;
         }
         mCurrentModule.init(this, mFrame, true);
         mSwitcher.setCurrentIndex(mCurrentModuleIndex);
@@ -157,10 +170,29 @@ public class CameraActivity extends ActivityBase
     }
 
     private void doChangeCamera(int i) {
+        StartupTrace.record(StartupTrace.MODULE_SWITCH);
         boolean canReuse = canReuseScreenNail();
         CameraHolder.instance().keep();
         closeModule(mCurrentModule);
+        // CameraPreopener reads the camera id from the global preferences.
+        ComboPreferences.flushPendingWrites();
+        // If the next module uses another camera, open it while the module
+        // is created. Otherwise the kept camera is handed over.
+        CameraPreopener.instance().preopen(this, i);
         mCurrentModuleIndex = i;
+        CameraModule parked = mModulePool.unpark(i, mFrame, canReuse && canReuseScreenNail());
+        if (parked != null) {
+            mCurrentModule = parked;
+            resumeModule(mCurrentModule);
+        } else {
+            createModule(i, canReuse);
+        }
+        mCurrentModule.onOrientationChanged(mLastRawOrientation);
+        getCameraScreenNail().setAlpha(0f);
+        getCameraScreenNail().setOnFrameDrawnOneShot(mOnFrameDrawn);
+    }
+
+    private void createModule(int i, boolean canReuse) {
         switch (i) {
             case VIDEO_MODULE_INDEX:
                 mCurrentModule = new VideoModule();
@@ -176,9 +208,6 @@ public class CameraActivity extends ActivityBase
                 break;
         }
         openModule(mCurrentModule, canReuse);
-        mCurrentModule.onOrientationChanged(mLastRawOrientation);
-        getCameraScreenNail().setAlpha(0f);
-        getCameraScreenNail().setOnFrameDrawnOneShot(mOnFrameDrawn);
     }
 
     private Runnable mOnFrameDrawn = new Runnable() {
@@ -207,15 +236,20 @@ public class CameraActivity extends ActivityBase
 
     private void openModule(CameraModule module, boolean canReuse) {
         module.init(this, mFrame, canReuse && canReuseScreenNail());
+        resumeModule(module);
+    }
+
+    private void resumeModule(CameraModule module) {
         mPaused = false;
         module.onResumeBeforeSuper();
         module.onResumeAfterSuper();
     }
 
+    // Parks the module if it supports it, so switching back to it is fast.
     private void closeModule(CameraModule module) {
         module.onPauseBeforeSuper();
         module.onPauseAfterSuper();
-        mFrame.removeAllViews();
+        mModulePool.park(mCurrentModuleIndex, module, mFrame);
     }
 
     public ShutterButton getShutterButton() {
@@ -271,6 +305,8 @@ public class CameraActivity extends ActivityBase
             hideUI();
         }
         mCurrentModule.onConfigurationChanged(config);
+        // The parked modules were laid out for the old configuration.
+        mModulePool.clear();
     }
 
     @Override
@@ -280,6 +316,7 @@ public class CameraActivity extends ActivityBase
         mCurrentModule.onPauseBeforeSuper();
         super.onPause();
         mCurrentModule.onPauseAfterSuper();
+        ComboPreferences.flushPendingWrites();
     }
 
     @Override
@@ -302,6 +339,18 @@ public class CameraActivity extends ActivityBase
         mCurrentModule.onFullScreenChanged(full);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) mModulePool.clear();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mModulePool.clear();
+        super.onDestroy();
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
@@ -470,6 +519,13 @@ public class CameraActivity extends ActivityBase
                 ((VideoModule) mCurrentModule).isRecording() : false;
     }
 
+    // Shown by "adb shell dumpsys activity com.android.camera.CameraActivity".
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        StartupTrace.dump(prefix, writer);
+    }
+
     public CameraScreenNail getCameraScreenNail() {
         return (CameraScreenNail) mCameraScreenNail;
     }
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.app.Activity;
+import android.graphics.Point;
+import android.hardware.Camera.Parameters;
+import android.util.SparseArray;
+
+import com.android.gallery3d.common.ApiHelper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * What a camera supports, parsed once from its parameters. The getters of
+ * {@link Parameters} parse the value lists again on every call; the modules
+ * look up the same lists every time they set the parameters, so they use
+ * this instead.
+ *
+ * Instances are immutable and kept per camera id. {@link #get} builds a new
+ * one only if the value lists of the parameters changed, which some drivers
+ * do when the scene mode changes.
+ */
+public class CameraCapabilities {
+    // The keys the capabilities are built from.
+    private static final String[] KEYS = {
+        "preview-size-values",
+        "picture-size-values",
+        "video-size-values",
+        "preferred-preview-size-for-video",
+        "preview-frame-rate-values",
+        "focus-mode-values",
+        "flash-mode-values",
+        "whitebalance-values",
+        "scene-mode-values",
+        "effect-values",
+        "max-num-focus-areas",
+        "max-num-metering-areas",
+        "auto-exposure-lock-supported",
+        "auto-whitebalance-lock-supported",
+        "video-snapshot-supported",
+        "zoom-supported",
+        "max-exposure-compensation",
+        "min-exposure-compensation",
+    };
+    private static final int PREVIEW_SIZES = 0;
+    private static final int PICTURE_SIZES = 1;
+    private static final int VIDEO_SIZES = 2;
+    private static final int PREFERRED_PREVIEW_SIZE_FOR_VIDEO = 3;
+    private static final int PREVIEW_FRAME_RATES = 4;
+    private static final int FOCUS_MODES = 5;
+    private static final int FLASH_MODES = 6;
+    private static final int WHITE_BALANCES = 7;
+    private static final int SCENE_MODES = 8;
+    private static final int COLOR_EFFECTS = 9;
+    private static final int MAX_FOCUS_AREAS = 10;
+    private static final int MAX_METERING_AREAS = 11;
+    private static final int AE_LOCK_SUPPORTED = 12;
+    private static final int AWB_LOCK_SUPPORTED = 13;
+    private static final int VIDEO_SNAPSHOT_SUPPORTED = 14;
+    private static final int ZOOM_SUPPORTED = 15;
+    private static final int MAX_EXPOSURE = 16;
+    private static final int MIN_EXPOSURE = 17;
+
+    // The latest capabilities by camera id.
+    private static final SparseArray<CameraCapabilities> sCapabilities =
+            new SparseArray<CameraCapabilities>();
+
+    private static class OptimalSize {
+        double mRatio;
+        int mTargetHeight;
+        int mMaxPixels;
+        Point mSize;
+    }
+
+    // The values of KEYS this was built from.
+    private final String[] mValues;
+    // The parameters this was last checked against.
+    private Parameters mCheckedParameters;
+
+    private final int[] mPreviewWidths;
+    private final int[] mPreviewHeights;
+    private final int[] mPictureWidths;
+    private final int[] mPictureHeights;
+    // Null if the camera has no separate video sizes.
+    private final int[] mVideoWidths;
+    private final int[] mVideoHeights;
+    private final Point mPreferredPreviewSizeForVideo;
+    private final int mMaxPreviewFrameRate;
+
+    private final HashSet<String> mFocusModes;
+    private final HashSet<String> mFlashModes;
+    private final HashSet<String> mWhiteBalances;
+    private final HashSet<String> mSceneModes;
+    private final HashSet<String> mColorEffects;
+
+    private final boolean mFocusAreaSupported;
+    private final boolean mMeteringAreaSupported;
+    private final boolean mAeLockSupported;
+    private final boolean mAwbLockSupported;
+    private final boolean mVideoSnapshotSupported;
+    private final boolean mZoomSupported;
+    private final int mMaxExposureCompensation;
+    private final int mMinExposureCompensation;
+
+    // Optimal sizes computed so far. There are only a few aspect ratios.
+    private final ArrayList<OptimalSize> mOptimalPreviewSizes =
+            new ArrayList<OptimalSize>();
+    private final ArrayList<OptimalSize> mOptimalSnapshotSizes =
+            new ArrayList<OptimalSize>();
+
+    /**
+     * Returns the capabilities of camera {@code cameraId} as described by
+     * {@code parameters}. Parameters read from the same camera return the
+     * same instance unless their value lists differ.
+     */
+    public static synchronized CameraCapabilities get(int cameraId,
+            Parameters parameters) {
+        CameraCapabilities capabilities = sCapabilities.get(cameraId);
+        if (capabilities != null && capabilities.matches(parameters)) {
+            return capabilities;
+        }
+        capabilities = new CameraCapabilities(parameters);
+        sCapabilities.put(cameraId, capabilities);
+        return capabilities;
+    }
+
+    private CameraCapabilities(Parameters parameters) {
+        mValues = new String[KEYS.length];
+        for (int i = 0; i < KEYS.length; i++) {
+            mValues[i] = parameters.get(KEYS[i]);
+        }
+        mCheckedParameters = parameters;
+
+        mPreviewWidths = parseSizes(mValues[PREVIEW_SIZES], true);
+        mPreviewHeights = parseSizes(mValues[PREVIEW_SIZES], false);
+        mPictureWidths = parseSizes(mValues[PICTURE_SIZES], true);
+        mPictureHeights = parseSizes(mValues[PICTURE_SIZES], false);
+        if (mValues[VIDEO_SIZES] != null) {
+            mVideoWidths = parseSizes(mValues[VIDEO_SIZES], true);
+            mVideoHeights = parseSizes(mValues[VIDEO_SIZES], false);
+        } else {
+            mVideoWidths = null;
+            mVideoHeights = null;
+        }
+        int[] preferredWidth = parseSizes(mValues[PREFERRED_PREVIEW_SIZE_FOR_VIDEO], true);
+        int[] preferredHeight = parseSizes(mValues[PREFERRED_PREVIEW_SIZE_FOR_VIDEO], false);
+        mPreferredPreviewSizeForVideo = (preferredWidth.length == 0) ? null
+                : new Point(preferredWidth[0], preferredHeight[0]);
+
+        int maxFrameRate = -1;
+        for (String rate : split(mValues[PREVIEW_FRAME_RATES])) {
+            maxFrameRate = Math.max(maxFrameRate, parseInt(rate, -1));
+        }
+        mMaxPreviewFrameRate = maxFrameRate;
+
+        mFocusModes = toSet(mValues[FOCUS_MODES]);
+        mFlashModes = toSet(mValues[FLASH_MODES]);
+        mWhiteBalances = toSet(mValues[WHITE_BALANCES]);
+        mSceneModes = toSet(mValues[SCENE_MODES]);
+        mColorEffects = toSet(mValues[COLOR_EFFECTS]);
+
+        // Same as the checks in Util.
+        mFocusAreaSupported = ApiHelper.HAS_CAMERA_FOCUS_AREA
+                && parseInt(mValues[MAX_FOCUS_AREAS], 0) > 0
+                && mFocusModes.contains(Parameters.FOCUS_MODE_AUTO);
+        mMeteringAreaSupported = ApiHelper.HAS_CAMERA_METERING_AREA
+                && parseInt(mValues[MAX_METERING_AREAS], 0) > 0;
+        mAeLockSupported = Util.TRUE.equals(mValues[AE_LOCK_SUPPORTED]);
+        mAwbLockSupported = Util.TRUE.equals(mValues[AWB_LOCK_SUPPORTED]);
+        mVideoSnapshotSupported = Util.TRUE.equals(mValues[VIDEO_SNAPSHOT_SUPPORTED]);
+        mZoomSupported = Util.TRUE.equals(mValues[ZOOM_SUPPORTED]);
+        mMaxExposureCompensation = parseInt(mValues[MAX_EXPOSURE], 0);
+        mMinExposureCompensation = parseInt(mValues[MIN_EXPOSURE], 0);
+    }
+
+    // Returns true if the value lists of the parameters are the ones this was
+    // built from. The parameters the driver returns only change when they are
+    // read again, so a check of the same object is not repeated.
+    private boolean matches(Parameters parameters) {
+        if (parameters == mCheckedParameters) return true;
+        for (int i = 0; i < KEYS.length; i++) {
+            String value = parameters.get(KEYS[i]);
+            if (value == null ? mValues[i] != null : !value.equals(mValues[i])) {
+                return false;
+            }
+        }
+        mCheckedParameters = parameters;
+        return true;
+    }
+
+    public int getPreviewSizeCount() {
+        return mPreviewWidths.length;
+    }
+
+    public int getPreviewWidth(int index) {
+        return mPreviewWidths[index];
+    }
+
+    public int getPreviewHeight(int index) {
+        return mPreviewHeights[index];
+    }
+
+    public int getPictureSizeCount() {
+        return mPictureWidths.length;
+    }
+
+    public int getPictureWidth(int index) {
+        return mPictureWidths[index];
+    }
+
+    public int getPictureHeight(int index) {
+        return mPictureHeights[index];
+    }
+
+    public boolean hasVideoSizes() {
+        return mVideoWidths != null;
+    }
+
+    public boolean isVideoSizeSupported(int width, int height) {
+        return hasVideoSizes() && indexOf(mVideoWidths, mVideoHeights, width, height) >= 0;
+    }
+
+    public boolean isPictureSizeSupported(int width, int height) {
+        return indexOf(mPictureWidths, mPictureHeights, width, height) >= 0;
+    }
+
+    public boolean isPreviewSizeSupported(int width, int height) {
+        return indexOf(mPreviewWidths, mPreviewHeights, width, height) >= 0;
+    }
+
+    // Returns -1 if the camera does not report the frame rates.
+    public int getMaxPreviewFrameRate() {
+        return mMaxPreviewFrameRate;
+    }
+
+    public boolean isFocusModeSupported(String value) {
+        return mFocusModes.contains(value);
+    }
+
+    public boolean isFlashModeSupported(String value) {
+        return mFlashModes.contains(value);
+    }
+
+    public boolean isWhiteBalanceSupported(String value) {
+        return mWhiteBalances.contains(value);
+    }
+
+    public boolean isSceneModeSupported(String value) {
+        return mSceneModes.contains(value);
+    }
+
+    public boolean isColorEffectSupported(String value) {
+        return mColorEffects.contains(value);
+    }
+
+    public boolean isFocusAreaSupported() {
+        return mFocusAreaSupported;
+    }
+
+    public boolean isMeteringAreaSupported() {
+        return mMeteringAreaSupported;
+    }
+
+    public boolean isAutoExposureLockSupported() {
+        return mAeLockSupported;
+    }
+
+    public boolean isAutoWhiteBalanceLockSupported() {
+        return mAwbLockSupported;
+    }
+
+    public boolean isVideoSnapshotSupported() {
+        return mVideoSnapshotSupported;
+    }
+
+    public boolean isZoomSupported() {
+        return mZoomSupported;
+    }
+
+    public boolean isExposureCompensationSupported(int value) {
+        return value >= mMinExposureCompensation && value <= mMaxExposureCompensation;
+    }
+
+    /**
+     * Returns the preview size closest to the display height which has the
+     * given aspect ratio, like {@link Util#getOptimalPreviewSize}. The result
+     * is computed once per aspect ratio. Returns null if there are no preview
+     * sizes.
+     */
+    public Point getOptimalPreviewSize(Activity activity, double targetRatio) {
+        return getOptimalPreviewSize(activity, targetRatio, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #getOptimalPreviewSize(Activity, double)}, but only
+     * considers the preview sizes not larger than the preferred preview size
+     * for video.
+     */
+    public Point getOptimalPreviewSizeForVideo(Activity activity, double targetRatio) {
+        Point preferred = mPreferredPreviewSizeForVideo;
+        int maxPixels = (preferred == null) ? Integer.MAX_VALUE : preferred.x * preferred.y;
+        return getOptimalPreviewSize(activity, targetRatio, maxPixels);
+    }
+
+    private synchronized Point getOptimalPreviewSize(Activity activity,
+            double targetRatio, int maxPixels) {
+        int targetHeight = Util.getPreviewTargetHeight(activity);
+        for (OptimalSize optimal : mOptimalPreviewSizes) {
+            if (optimal.mRatio == targetRatio && optimal.mTargetHeight == targetHeight
+                    && optimal.mMaxPixels == maxPixels) {
+                return optimal.mSize;
+            }
+        }
+        int[] widths = mPreviewWidths;
+        int[] heights = mPreviewHeights;
+        if (maxPixels != Integer.MAX_VALUE) {
+            int count = 0;
+            for (int i = 0; i < widths.length; i++) {
+                if (widths[i] * heights[i] <= maxPixels) count++;
+            }
+            widths = new int[count];
+            heights = new int[count];
+            for (int i = 0, j = 0; i < mPreviewWidths.length; i++) {
+                if (mPreviewWidths[i] * mPreviewHeights[i] > maxPixels) continue;
+                widths[j] = mPreviewWidths[i];
+                heights[j++] = mPreviewHeights[i];
+            }
+        }
+        int index = Util.getOptimalPreviewSizeIndex(widths, heights, targetRatio,
+                targetHeight);
+        OptimalSize optimal = new OptimalSize();
+        optimal.mRatio = targetRatio;
+        optimal.mTargetHeight = targetHeight;
+        optimal.mMaxPixels = maxPixels;
+        optimal.mSize = (index < 0) ? null : new Point(widths[index], heights[index]);
+        mOptimalPreviewSizes.add(optimal);
+        return optimal.mSize;
+    }
+
+    /**
+     * Returns the largest picture size which has the given aspect ratio,
+     * like {@link Util#getOptimalVideoSnapshotPictureSize}. Returns null if
+     * there are no picture sizes.
+     */
+    public synchronized Point getOptimalVideoSnapshotPictureSize(double targetRatio) {
+        for (OptimalSize optimal : mOptimalSnapshotSizes) {
+            if (optimal.mRatio == targetRatio) return optimal.mSize;
+        }
+        int index = Util.getOptimalVideoSnapshotPictureSizeIndex(
+                mPictureWidths, mPictureHeights, targetRatio);
+        OptimalSize optimal = new OptimalSize();
+        optimal.mRatio = targetRatio;
+        optimal.mSize = (index < 0) ? null
+                : new Point(mPictureWidths[index], mPictureHeights[index]);
+        mOptimalSnapshotSizes.add(optimal);
+        return optimal.mSize;
+    }
+
+    private static int indexOf(int[] widths, int[] heights, int width, int height) {
+        for (int i = 0; i < widths.length; i++) {
+            if (widths[i] == width && heights[i] == height) return i;
+        }
+        return -1;
+    }
+
+    // Splits a comma-separated list the way Parameters does.
+    static String[] split(String value) {
+        if (value == null) return new String[0];
+        ArrayList<String> items = new ArrayList<String>();
+        int start = 0;
+        while (true) {
+            int end = value.indexOf(',', start);
+            if (end < 0) {
+                items.add(value.substring(start));
+                break;
+            }
+            items.add(value.substring(start, end));
+            start = end + 1;
+        }
+        return items.toArray(new String[items.size()]);
+    }
+
+    // Parses a list of sizes like "640x480,320x240" and returns the widths or
+    // the heights. Malformed sizes are left out.
+    static int[] parseSizes(String value, boolean widths) {
+        String[] sizes = split(value);
+        int[] result = new int[sizes.length];
+        int count = 0;
+        for (String size : sizes) {
+            int x = size.indexOf('x');
+            if (x < 0) continue;
+            int width = parseInt(size.substring(0, x), -1);
+            int height = parseInt(size.substring(x + 1), -1);
+            if (width <= 0 || height <= 0) continue;
+            result[count++] = widths ? width : height;
+        }
+        if (count == result.length) return result;
+        int[] trimmed = new int[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    private static HashSet<String> toSet(String value) {
+        HashSet<String> set = new HashSet<String>();
+        for (String item : split(value)) {
+            set.add(item);
+        }
+        return set;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
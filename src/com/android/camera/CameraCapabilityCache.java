@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera.Parameters;
+import android.os.Build;
+import android.os.ConditionVariable;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Keeps the parameters each camera reported the last time it was opened, so
+ * the settings UI can be built at startup before the camera is opened. The
+ * parameters are saved per camera id and dropped when the build fingerprint
+ * changes, since a system update may change what the camera supports.
+ */
+public class CameraCapabilityCache {
+    private static final String TAG = "CameraCapabilityCache";
+
+    private static final String PREF_NAME = "camera_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_PARAMETERS_PREFIX = "parameters_";
+
+    private static CameraCapabilityCache sCache;
+
+    private final ConditionVariable mLoaded = new ConditionVariable();
+    private boolean mLoadStarted;
+    private SharedPreferences mPrefs;
+    // Flattened parameters by camera id.
+    private final SparseArray<String> mParameters = new SparseArray<String>();
+
+    public static synchronized CameraCapabilityCache instance() {
+        if (sCache == null) {
+            sCache = new CameraCapabilityCache();
+        }
+        return sCache;
+    }
+
+    private CameraCapabilityCache() {
+    }
+
+    /**
+     * Starts reading the saved parameters on a background thread. Only the
+     * first call does anything.
+     */
+    public void load(Context context) {
+        synchronized (this) {
+            if (mLoadStarted) return;
+            mLoadStarted = true;
+        }
+        final Context appContext = context.getApplicationContext();
+        new Thread("CameraCapabilityCache") {
+            @Override
+            public void run() {
+                loadSync(appContext);
+            }
+        }.start();
+    }
+
+    private void loadSync(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(
+                PREF_NAME, Context.MODE_PRIVATE);
+        synchronized (this) {
+            mPrefs = prefs;
+            if (Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+                for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+                    String key = entry.getKey();
+                    if (!key.startsWith(KEY_PARAMETERS_PREFIX)) continue;
+                    try {
+                        int cameraId = Integer.parseInt(
+                                key.substring(KEY_PARAMETERS_PREFIX.length()));
+                        mParameters.put(cameraId, (String) entry.getValue());
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Ignoring bad entry " + key);
+                    }
+                }
+            } else {
+                prefs.edit().clear()
+                        .putString(KEY_FINGERPRINT, Build.FINGERPRINT).apply();
+            }
+        }
+        mLoaded.open();
+    }
+
+    /**
+     * Returns the parameters saved for {@code cameraId}, or null if there are
+     * none. Waits for {@code load()} to finish.
+     */
+    public Parameters getParameters(Context context, int cameraId) {
+        load(context);
+        mLoaded.block();
+        String flattened;
+        synchronized (this) {
+            flattened = mParameters.get(cameraId);
+        }
+        return (flattened == null) ? null : Util.unflattenParameters(flattened);
+    }
+
+    /**
+     * Saves the parameters the opened camera reported. Returns true if the
+     * camera supports the same things as the saved parameters said, i.e. a
+     * UI built from {@link #getParameters} is still valid.
+     */
+    public boolean put(Context context, int cameraId, Parameters parameters) {
+        load(context);
+        mLoaded.block();
+        String flattened = parameters.flatten();
+        synchronized (this) {
+            String old = mParameters.get(cameraId);
+            if (flattened.equals(old)) return true;
+            mParameters.put(cameraId, flattened);
+            mPrefs.edit().putString(KEY_PARAMETERS_PREFIX + cameraId, flattened).apply();
+            return (old != null) && capabilitiesOf(old).equals(capabilitiesOf(flattened));
+        }
+    }
+
+    // Returns the part of the flattened parameters that describes what the
+    // camera supports, leaving out the current values. The current values
+    // may differ from launch to launch; for example, CameraHolder restores
+    // the previous module's parameters when it hands over a kept camera.
+    static String capabilitiesOf(String flattened) {
+        String[] pairs = flattened.split(";");
+        StringBuilder builder = new StringBuilder();
+        Arrays.sort(pairs);
+        for (String pair : pairs) {
+            int end = pair.indexOf('=');
+            String key = (end < 0) ? pair : pair.substring(0, end);
+            if (key.endsWith("-values") || key.endsWith("-supported")
+                    || key.startsWith("max-") || key.startsWith("min-")
+                    || key.endsWith("-step") || key.equals("zoom-ratios")) {
+                builder.append(pair).append(';');
+            }
+        }
+        return builder.toString();
+    }
+}
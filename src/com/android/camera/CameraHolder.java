@@ -29,6 +29,7 @@ import android.util.Log;
 
 import com.android.camera.CameraManager.CameraProxy;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -61,6 +62,22 @@ public class CameraHolder {
     private static CameraProxy mMockCamera[];
     private static CameraInfo mMockCameraInfo[];
 
+    // If set, sessions with the real camera are recorded into this directory
+    // so they can be played back by ReplayCameraProxy.
+    private static File sSessionRecordingDir;
+    private CameraSessionRecorder mSessionRecorder;
+
+    // Set when mCameraDevice was opened by preopen() and nobody has asked for
+    // it yet.
+    private boolean mPreopened;
+    // A camera is being opened by preopen() without holding the lock.
+    private boolean mPreopening;
+    private long mPreopenStartTime;
+    private long mPreopenCost;  // how long opening the device took
+    private int mPreopenHitCount;
+    private int mPreopenMissCount;
+    private long mPreopenTimeSaved;
+
     /* Debug double-open issue */
     private static final boolean DEBUG_OPEN_RELEASE = true;
     private static class OpenReleaseState {
@@ -154,6 +171,33 @@ public class CameraHolder {
         sHolder = new CameraHolder();
     }
 
+    /**
+     * Records every following session with the real camera (from open() until
+     * the device is actually released) into a new file in {@code dir}. Pass
+     * null to stop recording new sessions.
+     */
+    public static synchronized void setSessionRecordingDir(File dir) {
+        sSessionRecordingDir = dir;
+    }
+
+    private CameraProxy startSessionRecording(CameraProxy device, int cameraId) {
+        File dir;
+        synchronized (CameraHolder.class) {
+            dir = sSessionRecordingDir;
+        }
+        if (dir == null || device == null) return device;
+        File file = new File(dir, "camera_session_" + cameraId + "_"
+                + System.currentTimeMillis() + ".bin");
+        try {
+            mSessionRecorder = new CameraSessionRecorder(file, cameraId);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot record the camera session to " + file, e);
+            return device;
+        }
+        Log.v(TAG, "recording camera session to " + file);
+        return new RecordingCameraProxy(device, mSessionRecorder);
+    }
+
     private CameraHolder() {
         HandlerThread ht = new HandlerThread("CameraHolder");
         ht.start();
@@ -188,7 +232,14 @@ public class CameraHolder {
         return mInfo;
     }
 
-    public synchronized CameraProxy open(int cameraId)
+    public CameraProxy open(int cameraId) throws CameraHardwareException {
+        StartupTrace.record(StartupTrace.CAMERA_OPEN_START);
+        CameraProxy device = open(cameraId, System.currentTimeMillis());
+        StartupTrace.record(StartupTrace.CAMERA_OPEN_DONE);
+        return device;
+    }
+
+    private synchronized CameraProxy open(int cameraId, long requestTime)
             throws CameraHardwareException {
         if (DEBUG_OPEN_RELEASE) {
             collectState(cameraId, mCameraDevice);
@@ -197,17 +248,41 @@ public class CameraHolder {
                 dumpStates();
             }
         }
+        // Only one camera can be opened at a time, so wait for a pre-open in
+        // progress. It is likely to be the camera asked for.
+        while (mPreopening) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
         Assert(!mCameraOpened);
+        if (mPreopened) {
+            mPreopened = false;
+            if (mCameraId == cameraId) {
+                // The caller would have started opening at requestTime, so
+                // only the part of the pre-open before that is saved.
+                long saved = Math.min(mPreopenCost, requestTime - mPreopenStartTime);
+                mPreopenHitCount++;
+                mPreopenTimeSaved += Math.max(saved, 0);
+                Log.v(TAG, "pre-opened camera " + cameraId + " used, saved "
+                        + Math.max(saved, 0) + "ms" + getPreopenStats());
+            } else {
+                mPreopenMissCount++;
+                Log.v(TAG, "pre-opened camera " + mCameraId + " not used, camera "
+                        + cameraId + " requested" + getPreopenStats());
+            }
+        }
         if (mCameraDevice != null && mCameraId != cameraId) {
-            mCameraDevice.release();
-            mCameraDevice = null;
-            mCameraId = -1;
+            releaseCameraDevice();
         }
         if (mCameraDevice == null) {
             try {
                 Log.v(TAG, "open camera " + cameraId);
                 if (mMockCameraInfo == null) {
-                    mCameraDevice = CameraManager.instance().cameraOpen(cameraId);
+                    mCameraDevice = startSessionRecording(
+                            CameraManager.instance().cameraOpen(cameraId), cameraId);
                 } else {
                     if (mMockCamera == null)
                         throw new RuntimeException();
@@ -251,6 +326,82 @@ public class CameraHolder {
         }
     }
 
+    /**
+     * Opens the camera ahead of time so that a following {@code open()} of
+     * the same camera can be served from it. The device is kept for
+     * KEEP_CAMERA_TIMEOUT like after {@code keep()}. This blocks, so it must
+     * not be called on the main thread. Nothing is done if a camera is in
+     * use or the requested camera is already held.
+     */
+    public void preopen(int cameraId) {
+        synchronized (this) {
+            if (mCameraOpened || mPreopening
+                    || cameraId < 0 || cameraId >= mNumberOfCameras) return;
+            if (mCameraDevice != null) {
+                if (mCameraId == cameraId) return;
+                // A different camera is being kept. Replace it.
+                mKeepBeforeTime = 0;
+                release();
+            }
+            mPreopening = true;
+        }
+
+        // The device is opened without the lock, so that release(), keep()
+        // and the other calls from the main thread do not wait for it. Only
+        // open() waits, as it would have to open the camera itself.
+        long start = System.currentTimeMillis();
+        CameraProxy device = null;
+        Parameters parameters = null;
+        try {
+            if (mMockCameraInfo == null) {
+                device = CameraManager.instance().cameraOpen(cameraId);
+            } else if (mMockCamera != null) {
+                device = mMockCamera[cameraId];
+            }
+            if (device != null) parameters = device.getParameters();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "fail to pre-open camera " + cameraId, e);
+            device = null;
+        }
+        long cost = System.currentTimeMillis() - start;
+
+        synchronized (this) {
+            mPreopening = false;
+            notifyAll();
+            if (device == null) return;
+
+            mCameraDevice = startSessionRecording(device, cameraId);
+            mParameters = parameters;
+            mCameraId = cameraId;
+            mPreopened = true;
+            mPreopenStartTime = start;
+            mPreopenCost = cost;
+            Log.v(TAG, "pre-opened camera " + cameraId + " in " + mPreopenCost + "ms");
+
+            keep();
+            mHandler.removeMessages(RELEASE_CAMERA);
+            mHandler.sendEmptyMessageDelayed(RELEASE_CAMERA, KEEP_CAMERA_TIMEOUT);
+        }
+    }
+
+    public synchronized int getPreopenHitCount() {
+        return mPreopenHitCount;
+    }
+
+    public synchronized int getPreopenMissCount() {
+        return mPreopenMissCount;
+    }
+
+    // Total milliseconds of open() time saved by pre-opened cameras.
+    public synchronized long getPreopenTimeSaved() {
+        return mPreopenTimeSaved;
+    }
+
+    private String getPreopenStats() {
+        return " (hits=" + mPreopenHitCount + ", misses=" + mPreopenMissCount
+                + ", saved=" + mPreopenTimeSaved + "ms)";
+    }
+
     public synchronized void release() {
         if (DEBUG_OPEN_RELEASE) {
             collectState(mCameraId, mCameraDevice);
@@ -268,9 +419,25 @@ public class CameraHolder {
                     mKeepBeforeTime - now);
             return;
         }
+        if (mPreopened) {
+            // Nobody asked for the pre-opened camera in time.
+            mPreopened = false;
+            mPreopenMissCount++;
+            Log.v(TAG, "pre-opened camera " + mCameraId + " released unused"
+                    + getPreopenStats());
+        }
         mCameraOpened = false;
+        releaseCameraDevice();
+    }
+
+    // Releases the kept device and ends the recording of its session.
+    private void releaseCameraDevice() {
         mCameraDevice.release();
         mCameraDevice = null;
+        if (mSessionRecorder != null) {
+            mSessionRecorder.close();
+            mSessionRecorder = null;
+        }
         // We must set this to null because it has a reference to Camera.
         // Camera has references to the listeners.
         mParameters = null;
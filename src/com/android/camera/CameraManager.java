@@ -290,8 +290,11 @@ public class CameraManager {
     }
 
     public class CameraProxy {
-        private CameraProxy() {
-            Assert(mCamera != null);
+        // Package-private so that RecordingCameraProxy and ReplayCameraProxy
+        // can override the calls. Only the proxy created by cameraOpen() talks
+        // to mCamera, so only that one needs an open camera.
+        CameraProxy() {
+            Assert(mCamera != null || getClass() != CameraProxy.class);
         }
 
         public android.hardware.Camera getCamera() {
@@ -335,6 +338,7 @@ public class CameraManager {
         }
 
         public void startPreviewAsync() {
+            StartupTrace.record(StartupTrace.START_PREVIEW);
             mCameraHandler.sendEmptyMessage(START_PREVIEW_ASYNC);
         }
 
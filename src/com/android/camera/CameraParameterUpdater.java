@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.hardware.Camera.Parameters;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.camera.CameraManager.CameraProxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends camera parameters to the device only when they differ from what the
+ * device last accepted. The modules rebuild all the parameters a setting
+ * may affect whenever one changes; this keeps the resulting calls that
+ * change nothing from reaching the driver.
+ *
+ * The parameters are compared key by key. Anything that may change the
+ * parameters behind the updater's back, like opening the camera or
+ * MediaRecorder, must be followed by {@link #read} or {@link #reset}.
+ */
+class CameraParameterUpdater {
+    private static final String TAG = "CameraParameterUpdater";
+
+    // The parameters the device last accepted, by key. Null if unknown.
+    private HashMap<String, String> mAccepted;
+    private int mSentCount;
+    private int mSkippedCount;
+
+    /** Forgets what the device accepted, so the next set() is sent. */
+    public synchronized void reset() {
+        mAccepted = null;
+    }
+
+    /** Reads the parameters from the device and remembers them. */
+    public synchronized Parameters read(CameraProxy device) {
+        Parameters parameters = device.getParameters();
+        mAccepted = split(parameters.flatten());
+        return parameters;
+    }
+
+    /**
+     * Remembers parameters that were sent without this updater, for example
+     * with setParametersAsync().
+     */
+    public synchronized void onParametersSent(Parameters parameters) {
+        mAccepted = split(parameters.flatten());
+    }
+
+    /**
+     * Sends {@code parameters} to the device unless they are the same as the
+     * ones it last accepted. Returns true if they were sent.
+     */
+    public synchronized boolean set(CameraProxy device, Parameters parameters) {
+        HashMap<String, String> values = split(parameters.flatten());
+        if (mAccepted != null) {
+            ArrayList<String> changed = diff(mAccepted, values);
+            if (changed.isEmpty()) {
+                mSkippedCount++;
+                return false;
+            }
+            Log.v(TAG, "changed " + TextUtils.join(",", changed));
+        }
+        device.setParameters(parameters);
+        mAccepted = values;
+        mSentCount++;
+        return true;
+    }
+
+    /**
+     * Like {@link #set}, then reads back the parameters if they were sent,
+     * since the driver may change other values as a result. Returns the
+     * parameters the device has now.
+     */
+    public synchronized Parameters setAndRead(CameraProxy device, Parameters parameters) {
+        return set(device, parameters) ? read(device) : parameters;
+    }
+
+    public synchronized int getSentCount() {
+        return mSentCount;
+    }
+
+    public synchronized int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    // Returns the keys whose values differ, including added and removed ones.
+    static ArrayList<String> diff(Map<String, String> before, Map<String, String> after) {
+        ArrayList<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            if (!TextUtils.equals(entry.getValue(), before.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key)) changed.add(key);
+        }
+        return changed;
+    }
+
+    // Splits flattened parameters ("key1=value1;key2=value2") into a map.
+    static HashMap<String, String> split(String flattened) {
+        HashMap<String, String> values = new HashMap<String, String>();
+        int start = 0;
+        int length = flattened.length();
+        while (start < length) {
+            int end = flattened.indexOf(';', start);
+            if (end < 0) end = length;
+            int equals = flattened.indexOf('=', start);
+            if (equals >= 0 && equals < end) {
+                values.put(flattened.substring(start, equals),
+                        flattened.substring(equals + 1, end));
+            }
+            start = end + 1;
+        }
+        return values;
+    }
+}
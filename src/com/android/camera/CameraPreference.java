@@ -46,6 +46,12 @@ public abstract class CameraPreference {
         a.recycle();
     }
 
+    // Used by PreferenceTreeCache to rebuild a saved preference.
+    CameraPreference(Context context, String title) {
+        mContext = context;
+        mTitle = title;
+    }
+
     public String getTitle() {
         return mTitle;
     }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.preference.PreferenceManager;
+
+/**
+ * Opens the camera that the next module will most likely ask for on a
+ * background thread, so that {@code CameraHolder.open()} finds it already
+ * opened. The hit and miss counts are kept by {@link CameraHolder}.
+ */
+public class CameraPreopener {
+    private static final String TAG = "CameraPreopener";
+
+    private static final int PREOPEN = 1;
+
+    private static CameraPreopener sPreopener;
+    private final Handler mHandler;
+
+    public static synchronized CameraPreopener instance() {
+        if (sPreopener == null) {
+            sPreopener = new CameraPreopener();
+        }
+        return sPreopener;
+    }
+
+    private class MyHandler extends Handler {
+        MyHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case PREOPEN:
+                    CameraHolder.instance().preopen(msg.arg1);
+                    break;
+            }
+        }
+    }
+
+    private CameraPreopener() {
+        HandlerThread ht = new HandlerThread(TAG);
+        ht.start();
+        mHandler = new MyHandler(ht.getLooper());
+    }
+
+    /**
+     * Returns the camera the module at {@code moduleIndex} (one of the
+     * CameraActivity.*_MODULE_INDEX values) is going to open.
+     */
+    public static int predictCameraId(Activity activity, int moduleIndex) {
+        CameraHolder holder = CameraHolder.instance();
+        switch (moduleIndex) {
+            case CameraActivity.PANORAMA_MODULE_INDEX:
+            case CameraActivity.LIGHTCYCLE_MODULE_INDEX: {
+                // See PanoramaModule.openCamera().
+                int backCameraId = holder.getBackCameraId();
+                return (backCameraId == -1) ? 0 : backCameraId;
+            }
+            default: {
+                int intentCameraId = Util.getCameraFacingIntentExtras(activity);
+                if (intentCameraId != -1) return intentCameraId;
+                // The camera id is a global preference, so the default
+                // preferences can be read before the module creates its
+                // ComboPreferences.
+                int cameraId = CameraSettings.readPreferredCameraId(
+                        PreferenceManager.getDefaultSharedPreferences(activity));
+                return (cameraId >= 0 && cameraId < holder.getNumberOfCameras())
+                        ? cameraId : 0;
+            }
+        }
+    }
+
+    /**
+     * Starts opening the camera the module at {@code moduleIndex} will use.
+     * Returns immediately.
+     */
+    public void preopen(Activity activity, int moduleIndex) {
+        try {
+            Util.throwIfCameraDisabled(activity);
+        } catch (CameraDisabledException e) {
+            return;
+        }
+        int cameraId = predictCameraId(activity, moduleIndex);
+        mHandler.removeMessages(PREOPEN);
+        mHandler.obtainMessage(PREOPEN, cameraId, 0).sendToTarget();
+    }
+}
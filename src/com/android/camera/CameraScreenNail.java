@@ -53,6 +53,8 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
     // True if first onFrameAvailable has been called. If screen nail is drawn
     // too early, it will be all white.
     private boolean mFirstFrameArrived;
+    // Whether the first frame since mFirstFrameArrived was set is drawn.
+    private boolean mFirstFrameDrawn;
     private Listener mListener;
     private final float[] mTextureTransformMatrix = new float[16];
 
@@ -292,6 +294,10 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
             if (!mVisible) mVisible = true;
             SurfaceTexture surfaceTexture = getSurfaceTexture();
             if (surfaceTexture == null || !mFirstFrameArrived) return;
+            if (!mFirstFrameDrawn) {
+                StartupTrace.record(StartupTrace.FIRST_FRAME_DRAWN);
+                mFirstFrameDrawn = true;
+            }
             if (mOnFrameDrawnListener != null) {
                 mOnFrameDrawnListener.run();
                 mOnFrameDrawnListener = null;
@@ -393,6 +399,10 @@ public class CameraScreenNail extends SurfaceTextureScreenNail {
             if (getSurfaceTexture() != surfaceTexture) {
                 return;
             }
+            if (!mFirstFrameArrived) {
+                StartupTrace.record(StartupTrace.FIRST_FRAME_AVAILABLE);
+                mFirstFrameDrawn = false;
+            }
             mFirstFrameArrived = true;
             if (mVisible) {
                 if (mAnimState == ANIM_SWITCH_WAITING_FIRST_FRAME) {
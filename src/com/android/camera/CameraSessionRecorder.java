@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes a camera session (the calls made on a {@code CameraProxy}, how long
+ * each of them blocked, and the callbacks the device delivered together with
+ * their payloads) to a file, so it can be played back later by
+ * {@link ReplayCameraProxy} on a device without camera hardware.
+ *
+ * <p>The file is a sequence of records written with {@code DataOutputStream}.
+ * Every record starts with a type byte and the time in milliseconds since
+ * the recording started.
+ *
+ * <p>The record methods are called on the camera callback threads, so they
+ * only take the time and queue the record. The file is written on a writer
+ * thread, which keeps disk I/O from delaying the callbacks being timed.
+ */
+public class CameraSessionRecorder {
+    private static final String TAG = "CameraSessionRecorder";
+
+    static final int MAGIC = 0x43414d53;  // "CAMS"
+    static final int VERSION = 1;
+
+    // Record types.
+    static final int RECORD_CALL = 1;
+    static final int RECORD_PARAMETERS = 2;
+    static final int RECORD_CALLBACK = 3;
+    static final int RECORD_END = 4;
+
+    // Callback kinds. Picture and focus callbacks are timed from the call
+    // that triggered them. Preview frames and focus moves are timed from the
+    // previous callback of the same kind (or from startPreview/the
+    // registering call for the first one).
+    public static final int CALLBACK_SHUTTER = 1;
+    public static final int CALLBACK_RAW = 2;
+    public static final int CALLBACK_POSTVIEW = 3;
+    public static final int CALLBACK_JPEG = 4;
+    public static final int CALLBACK_AUTO_FOCUS = 5;
+    public static final int CALLBACK_AUTO_FOCUS_MOVING = 6;
+    public static final int CALLBACK_PREVIEW_FRAME = 7;
+
+    // Preview frames are large, so only keep the first few seconds of them.
+    // The replay loops over the recorded frames.
+    private static final int DEFAULT_MAX_PREVIEW_FRAMES = 90;
+
+    // A record to write. Runs on the writer thread.
+    private abstract class Record implements Runnable {
+        abstract void write() throws IOException;
+
+        @Override
+        public void run() {
+            if (mFailed) return;
+            try {
+                write();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    // Only used on the writer thread once the header is written.
+    private final DataOutputStream mOut;
+    private boolean mFailed;
+
+    private final HandlerThread mWriterThread;
+    private final Handler mWriter;
+    private final long mStartTime;
+    private final int mMaxPreviewFrames;
+    private int mPreviewFrameCount;
+    private boolean mClosed;
+
+    public CameraSessionRecorder(File file, int cameraId) throws IOException {
+        this(file, cameraId, DEFAULT_MAX_PREVIEW_FRAMES);
+    }
+
+    public CameraSessionRecorder(File file, int cameraId, int maxPreviewFrames)
+            throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 64 * 1024));
+        mMaxPreviewFrames = maxPreviewFrames;
+        mStartTime = SystemClock.uptimeMillis();
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+        mOut.writeInt(cameraId);
+
+        mWriterThread = new HandlerThread(TAG);
+        mWriterThread.start();
+        mWriter = new Handler(mWriterThread.getLooper());
+    }
+
+    public synchronized void recordCall(final String method, final long startTime,
+            final long duration) {
+        if (mClosed) return;
+        mWriter.post(new Record() {
+            @Override
+            void write() throws IOException {
+                writeHeader(RECORD_CALL, startTime);
+                mOut.writeUTF(method);
+                mOut.writeLong(duration);
+            }
+        });
+    }
+
+    public synchronized void recordParameters(final String flattened) {
+        if (mClosed || flattened == null) return;
+        final long time = SystemClock.uptimeMillis();
+        mWriter.post(new Record() {
+            @Override
+            void write() throws IOException {
+                writeHeader(RECORD_PARAMETERS, time);
+                writeBytes(mOut, flattened.getBytes("UTF-8"));
+            }
+        });
+    }
+
+    /**
+     * Records a callback delivered by the device.
+     *
+     * @param kind one of the CALLBACK_* constants
+     * @param delay milliseconds since the call (or frame) this callback is
+     *     timed from
+     * @param arg the integer or boolean (1/0) argument of the callback
+     * @param data the payload, or null
+     */
+    public synchronized void recordCallback(final int kind, final long delay, final int arg,
+            byte[] data) {
+        if (mClosed) return;
+        if (kind == CALLBACK_PREVIEW_FRAME) {
+            if (mPreviewFrameCount >= mMaxPreviewFrames) return;
+            mPreviewFrameCount++;
+            // The callback buffer goes back to the camera once the callback
+            // returns, so keep a copy until it is written.
+            if (data != null) data = data.clone();
+        }
+        final byte[] payload = data;
+        final long time = SystemClock.uptimeMillis();
+        mWriter.post(new Record() {
+            @Override
+            void write() throws IOException {
+                writeHeader(RECORD_CALLBACK, time);
+                mOut.writeByte(kind);
+                mOut.writeLong(delay);
+                mOut.writeInt(arg);
+                writeBytes(mOut, payload);
+            }
+        });
+    }
+
+    /**
+     * Stops recording. The records queued so far are still written; use
+     * {@link #waitUntilClosed} to wait for the file to be complete.
+     */
+    public synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        final long time = SystemClock.uptimeMillis();
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mFailed) {
+                    try {
+                        writeHeader(RECORD_END, time);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to finish the session file", e);
+                    }
+                    Util.closeSilently(mOut);
+                }
+                mWriterThread.quit();
+            }
+        });
+    }
+
+    // Waits until the file is complete. Only call it after close().
+    public void waitUntilClosed() {
+        while (mWriterThread.isAlive()) {
+            try {
+                mWriterThread.join();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void writeHeader(int type, long time) throws IOException {
+        mOut.writeByte(type);
+        mOut.writeLong(time - mStartTime);
+    }
+
+    private void fail(IOException e) {
+        // Stop recording rather than crash the camera session.
+        Log.e(TAG, "Failed to write the session file", e);
+        mFailed = true;
+        Util.closeSilently(mOut);
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        if (data == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+}
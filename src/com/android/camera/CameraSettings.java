@@ -77,6 +77,9 @@ public class CameraSettings {
     private final Parameters mParameters;
     private final CameraInfo[] mCameraInfo;
     private final int mCameraId;
+    // Keys of the preferences resetIfInvalid() was called on. They are
+    // checked again when the tree is read from PreferenceTreeCache.
+    private final ArrayList<String> mValidatedKeys = new ArrayList<String>();
 
     public CameraSettings(Activity activity, Parameters parameters,
                           int cameraId, CameraInfo[] cameraInfo) {
@@ -87,13 +90,34 @@ public class CameraSettings {
     }
 
     public PreferenceGroup getPreferenceGroup(int preferenceRes) {
-        PreferenceInflater inflater = new PreferenceInflater(mContext);
-        PreferenceGroup group =
-                (PreferenceGroup) inflater.inflate(preferenceRes);
-        if (mParameters != null) initPreference(group);
+        if (mParameters == null) return inflate(preferenceRes);
+
+        String fingerprint = PreferenceTreeCache.fingerprint(
+                mContext, mParameters, mCameraInfo.length);
+        mValidatedKeys.clear();
+        PreferenceGroup group = PreferenceTreeCache.load(
+                mContext, preferenceRes, mCameraId, fingerprint, mValidatedKeys);
+        if (group != null) {
+            // The saved values may have changed since the tree was saved.
+            for (String key : mValidatedKeys) {
+                ListPreference pref = group.findPreference(key);
+                if (pref != null) resetIfInvalid(pref);
+            }
+            return group;
+        }
+        mValidatedKeys.clear();
+        group = inflate(preferenceRes);
+        initPreference(group);
+        PreferenceTreeCache.save(mContext, preferenceRes, mCameraId, fingerprint,
+                group, mValidatedKeys);
         return group;
     }
 
+    private PreferenceGroup inflate(int preferenceRes) {
+        PreferenceInflater inflater = new PreferenceInflater(mContext);
+        return (PreferenceGroup) inflater.inflate(preferenceRes);
+    }
+
     @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
     public static String getDefaultVideoQuality(int cameraId,
             String defaultQuality) {
@@ -146,6 +170,17 @@ public class CameraSettings {
         return false;
     }
 
+    public static boolean setCameraPictureSize(String candidate,
+            CameraCapabilities capabilities, Parameters parameters) {
+        int index = candidate.indexOf('x');
+        if (index == NOT_FOUND) return false;
+        int width = Integer.parseInt(candidate.substring(0, index));
+        int height = Integer.parseInt(candidate.substring(index + 1));
+        if (!capabilities.isPictureSizeSupported(width, height)) return false;
+        parameters.setPictureSize(width, height);
+        return true;
+    }
+
     public static int getMaxVideoDuration(Context context) {
         int duration = 0;  // in milliseconds, 0 means unlimited.
         try {
@@ -344,6 +379,7 @@ public class CameraSettings {
     }
 
     private void resetIfInvalid(ListPreference pref) {
+        if (!mValidatedKeys.contains(pref.getKey())) mValidatedKeys.add(pref.getKey());
         // Set the value to the first entry if it is invalid.
         String value = pref.getValue();
         if (pref.findIndexOfValue(value) == NOT_FOUND) {
@@ -19,13 +19,26 @@ package com.android.camera;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.preference.PreferenceManager;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * The global preferences and the preferences of one camera, seen as one.
+ * Reads go to an immutable snapshot of the merged values, which is replaced
+ * as a whole when the preferences change. Edits update the snapshot at once.
+ * Applied edits are written to the underlying preferences in batches on a
+ * background thread, see {@link #flushPendingWrites()}; committed edits are
+ * written at once.
+ */
 public class ComboPreferences implements SharedPreferences, OnSharedPreferenceChangeListener {
     private SharedPreferences mPrefGlobal;  // global preferences
     private SharedPreferences mPrefLocal;  // per-camera preferences
@@ -33,6 +46,52 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
     private static WeakHashMap<Context, ComboPreferences> sMap =
             new WeakHashMap<Context, ComboPreferences>();
 
+    private static final Set<String> GLOBAL_KEYS = new HashSet<String>(Arrays.asList(
+            CameraSettings.KEY_VIDEO_TIME_LAPSE_FRAME_INTERVAL,
+            CameraSettings.KEY_CAMERA_ID,
+            CameraSettings.KEY_RECORD_LOCATION,
+            CameraSettings.KEY_CAMERA_FIRST_USE_HINT_SHOWN,
+            CameraSettings.KEY_VIDEO_FIRST_USE_HINT_SHOWN,
+            CameraSettings.KEY_VIDEO_EFFECT));
+
+    // Edits not yet written to the underlying preferences. Guarded by itself.
+    private static final HashMap<SharedPreferences, PendingEdit> sPendingEdits =
+            new HashMap<SharedPreferences, PendingEdit>();
+    private static final Object REMOVED = new Object();
+    // Read for a stored value that is not of the type asked for.
+    private static final Object OTHER_TYPE = new Object();
+    private static final int WRITE_DELAY_MS = 300;
+    private static Handler sWriteHandler;
+    private static boolean sWriteScheduled;
+
+    // The merged values by key. Never modified.
+    private static class Snapshot {
+        final HashMap<String, Object> mValues;
+
+        Snapshot(HashMap<String, Object> values) {
+            mValues = values;
+        }
+
+        Object get(String key) {
+            return mValues.get(key);
+        }
+    }
+
+    private static class PendingEdit {
+        boolean mClear;
+        final HashMap<String, Object> mValues = new HashMap<String, Object>();
+    }
+
+    // Null when it has to be built again from the underlying preferences.
+    // Only set with mSnapshotLock held.
+    private volatile Snapshot mSnapshot;
+    // Changed whenever mSnapshot is dropped, so a snapshot that was being
+    // built at the time is not used. Guarded by mSnapshotLock.
+    private int mGeneration;
+    // Never held while taking another lock, so the preference listener can
+    // drop the snapshot from any thread.
+    private final Object mSnapshotLock = new Object();
+
     public ComboPreferences(Context context) {
         mPrefGlobal = PreferenceManager.getDefaultSharedPreferences(context);
         mPrefGlobal.registerOnSharedPreferenceChangeListener(this);
@@ -48,6 +107,14 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
         }
     }
 
+    // Makes these the preferences get() returns for the context again, after
+    // another instance was created for it, e.g. by another camera module.
+    public void setCurrent(Context context) {
+        synchronized (sMap) {
+            sMap.put(context, this);
+        }
+    }
+
     // Sets the camera id and reads its preferences. Each camera has its own
     // preferences.
     public void setLocalId(Context context, int cameraId) {
@@ -58,13 +125,21 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
         mPrefLocal = context.getSharedPreferences(
                 prefName, Context.MODE_PRIVATE);
         mPrefLocal.registerOnSharedPreferenceChangeListener(this);
+        invalidate();
     }
 
+    // The caller may read or write the returned preferences directly, so the
+    // pending edits are written first and the snapshot is built again on the
+    // next read.
     public SharedPreferences getGlobal() {
+        flushPendingWrites();
+        invalidate();
         return mPrefGlobal;
     }
 
     public SharedPreferences getLocal() {
+        flushPendingWrites();
+        invalidate();
         return mPrefLocal;
     }
 
@@ -74,57 +149,143 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
     }
 
     private static boolean isGlobal(String key) {
-        return key.equals(CameraSettings.KEY_VIDEO_TIME_LAPSE_FRAME_INTERVAL)
-                || key.equals(CameraSettings.KEY_CAMERA_ID)
-                || key.equals(CameraSettings.KEY_RECORD_LOCATION)
-                || key.equals(CameraSettings.KEY_CAMERA_FIRST_USE_HINT_SHOWN)
-                || key.equals(CameraSettings.KEY_VIDEO_FIRST_USE_HINT_SHOWN)
-                || key.equals(CameraSettings.KEY_VIDEO_EFFECT);
+        return GLOBAL_KEYS.contains(key);
+    }
+
+    private void invalidate() {
+        synchronized (mSnapshotLock) {
+            mGeneration++;
+            mSnapshot = null;
+        }
+    }
+
+    private int getGeneration() {
+        synchronized (mSnapshotLock) {
+            return mGeneration;
+        }
+    }
+
+    // Sets the snapshot unless it was dropped since generation was read.
+    private void setSnapshot(Snapshot snapshot, int generation) {
+        synchronized (mSnapshotLock) {
+            if (generation == mGeneration) mSnapshot = snapshot;
+        }
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        return (snapshot != null) ? snapshot : buildSnapshot();
+    }
+
+    private synchronized Snapshot buildSnapshot() {
+        int generation = getGeneration();
+        HashMap<String, Object> values;
+        Map<String, Object> local;
+        synchronized (sPendingEdits) {
+            values = readWithPendingEdits(mPrefGlobal);
+            local = (mPrefLocal == null) ? null : readWithPendingEdits(mPrefLocal);
+        }
+        if (local != null) {
+            for (Map.Entry<String, Object> entry : local.entrySet()) {
+                if (isGlobal(entry.getKey())) continue;
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+        Snapshot snapshot = new Snapshot(values);
+        setSnapshot(snapshot, generation);
+        return snapshot;
+    }
+
+    // Must be called with sPendingEdits locked.
+    private static HashMap<String, Object> readWithPendingEdits(SharedPreferences prefs) {
+        HashMap<String, Object> values = new HashMap<String, Object>(prefs.getAll());
+        PendingEdit pending = sPendingEdits.get(prefs);
+        if (pending != null) {
+            if (pending.mClear) values.clear();
+            for (Map.Entry<String, Object> entry : pending.mValues.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    values.remove(entry.getKey());
+                } else {
+                    values.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return values;
+    }
+
+    // The value of one key as buildSnapshot() would merge it, read as the
+    // type of like. Must be called with sPendingEdits locked.
+    private Object readMergedLocked(String key, Object like) {
+        if (!isGlobal(key) && mPrefLocal != null) {
+            Object value = readLocked(mPrefLocal, key, like);
+            if (value != null) return value;
+        }
+        return readLocked(mPrefGlobal, key, like);
+    }
+
+    // Reads one key without copying the preferences with getAll(). The value
+    // is read as the type of like; OTHER_TYPE is returned if it is stored as
+    // another type. Must be called with sPendingEdits locked.
+    private static Object readLocked(SharedPreferences prefs, String key, Object like) {
+        PendingEdit pending = sPendingEdits.get(prefs);
+        if (pending != null) {
+            Object value = pending.mValues.get(key);
+            if (value != null) return (value == REMOVED) ? null : value;
+            if (pending.mClear) return null;
+        }
+        if (!prefs.contains(key)) return null;
+        try {
+            if (like instanceof String) return prefs.getString(key, null);
+            if (like instanceof Integer) return prefs.getInt(key, 0);
+            if (like instanceof Long) return prefs.getLong(key, 0);
+            if (like instanceof Float) return prefs.getFloat(key, 0);
+            if (like instanceof Boolean) return prefs.getBoolean(key, false);
+        } catch (ClassCastException e) {
+            // Stored as another type.
+        }
+        return OTHER_TYPE;
+    }
+
+    // Whether the snapshot holds the value the key has now. The key is null
+    // if the preferences were cleared.
+    private boolean isCurrent(Snapshot snapshot, String key) {
+        if (key == null) return false;
+        Object current = snapshot.get(key);
+        Object value;
+        synchronized (sPendingEdits) {
+            value = readMergedLocked(key, current);
+        }
+        return (value == null) ? (current == null) : value.equals(current);
     }
 
     @Override
     public String getString(String key, String defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getString(key, defValue);
-        } else {
-            return mPrefLocal.getString(key, defValue);
-        }
+        Object value = getSnapshot().get(key);
+        return (value != null) ? (String) value : defValue;
     }
 
     @Override
     public int getInt(String key, int defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getInt(key, defValue);
-        } else {
-            return mPrefLocal.getInt(key, defValue);
-        }
+        Object value = getSnapshot().get(key);
+        return (value != null) ? (Integer) value : defValue;
     }
 
     @Override
     public long getLong(String key, long defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getLong(key, defValue);
-        } else {
-            return mPrefLocal.getLong(key, defValue);
-        }
+        Object value = getSnapshot().get(key);
+        return (value != null) ? (Long) value : defValue;
     }
 
     @Override
     public float getFloat(String key, float defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getFloat(key, defValue);
-        } else {
-            return mPrefLocal.getFloat(key, defValue);
-        }
+        Object value = getSnapshot().get(key);
+        return (value != null) ? (Float) value : defValue;
     }
 
     @Override
     public boolean getBoolean(String key, boolean defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getBoolean(key, defValue);
-        } else {
-            return mPrefLocal.getBoolean(key, defValue);
-        }
+        Object value = getSnapshot().get(key);
+        return (value != null) ? (Boolean) value : defValue;
     }
 
     // This method is not used.
@@ -135,95 +296,192 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
 
     @Override
     public boolean contains(String key) {
-        if (mPrefLocal.contains(key)) return true;
-        if (mPrefGlobal.contains(key)) return true;
-        return false;
+        return getSnapshot().get(key) != null;
     }
 
-    private class MyEditor implements Editor {
-        private Editor mEditorGlobal;
-        private Editor mEditorLocal;
+    /**
+     * Writes the edits of all instances that are not written yet to the
+     * underlying preferences. Call it before code that reads those
+     * preferences directly, like another activity, may run.
+     */
+    public static void flushPendingWrites() {
+        writePendingEdits(false);
+    }
 
-        MyEditor() {
-            mEditorGlobal = mPrefGlobal.edit();
-            mEditorLocal = mPrefLocal.edit();
+    // Writes the pending edits with commit() or apply(). Returns false if a
+    // commit() failed.
+    private static boolean writePendingEdits(boolean commit) {
+        boolean result = true;
+        synchronized (sPendingEdits) {
+            for (Map.Entry<SharedPreferences, PendingEdit> entry
+                    : sPendingEdits.entrySet()) {
+                PendingEdit pending = entry.getValue();
+                Editor editor = entry.getKey().edit();
+                if (pending.mClear) editor.clear();
+                for (Map.Entry<String, Object> value : pending.mValues.entrySet()) {
+                    putValue(editor, value.getKey(), value.getValue());
+                }
+                // Both update the preferences in memory at once, so readers
+                // never miss an edit once it leaves sPendingEdits.
+                if (commit) {
+                    result &= editor.commit();
+                } else {
+                    editor.apply();
+                }
+            }
+            sPendingEdits.clear();
+            sWriteScheduled = false;
         }
+        return result;
+    }
+
+    private static void putValue(Editor editor, String key, Object value) {
+        if (value == REMOVED) {
+            editor.remove(key);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        }
+    }
+
+    private static PendingEdit getPendingEdit(SharedPreferences prefs) {
+        PendingEdit pending = sPendingEdits.get(prefs);
+        if (pending == null) {
+            pending = new PendingEdit();
+            sPendingEdits.put(prefs, pending);
+        }
+        return pending;
+    }
+
+    private static void scheduleWrite() {
+        synchronized (sPendingEdits) {
+            if (sWriteScheduled) return;
+            sWriteScheduled = true;
+            if (sWriteHandler == null) {
+                HandlerThread thread = new HandlerThread("ComboPreferencesWriter");
+                thread.start();
+                sWriteHandler = new Handler(thread.getLooper());
+            }
+            sWriteHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    flushPendingWrites();
+                }
+            }, WRITE_DELAY_MS);
+        }
+    }
+
+    private class MyEditor implements Editor {
+        private boolean mClear;
+        // Values by key, or REMOVED.
+        private final HashMap<String, Object> mChanges = new HashMap<String, Object>();
 
         @Override
         public boolean commit() {
-            boolean result1 = mEditorGlobal.commit();
-            boolean result2 = mEditorLocal.commit();
-            return result1 && result2;
+            publish();
+            // Unlike apply(), write through at once and report the result.
+            return writePendingEdits(true);
         }
 
         @Override
         public void apply() {
-            mEditorGlobal.apply();
-            mEditorLocal.apply();
+            publish();
+            scheduleWrite();
+        }
+
+        // Updates the snapshot and queues the edit for writing.
+        private void publish() {
+            synchronized (ComboPreferences.this) {
+                int generation = getGeneration();
+                HashMap<String, Object> values = mClear
+                        ? new HashMap<String, Object>()
+                        : new HashMap<String, Object>(getSnapshot().mValues);
+                for (Map.Entry<String, Object> entry : mChanges.entrySet()) {
+                    Object value = entry.getValue();
+                    if (value == REMOVED) {
+                        values.remove(entry.getKey());
+                    } else {
+                        values.put(entry.getKey(), value);
+                    }
+                }
+                synchronized (sPendingEdits) {
+                    if (mClear) {
+                        clearPending(mPrefGlobal);
+                        clearPending(mPrefLocal);
+                    }
+                    for (Map.Entry<String, Object> entry : mChanges.entrySet()) {
+                        String key = entry.getKey();
+                        Object value = entry.getValue();
+                        if (value == REMOVED) {
+                            getPendingEdit(mPrefGlobal).mValues.put(key, REMOVED);
+                            getPendingEdit(mPrefLocal).mValues.put(key, REMOVED);
+                        } else if (isGlobal(key)) {
+                            getPendingEdit(mPrefGlobal).mValues.put(key, value);
+                        } else {
+                            getPendingEdit(mPrefLocal).mValues.put(key, value);
+                        }
+                    }
+                }
+                // If the snapshot was dropped meanwhile, the next read
+                // builds it again, with this edit as it is pending.
+                setSnapshot(new Snapshot(values), generation);
+            }
+        }
+
+        private void clearPending(SharedPreferences prefs) {
+            PendingEdit pending = getPendingEdit(prefs);
+            pending.mClear = true;
+            pending.mValues.clear();
         }
 
         // Note: clear() and remove() affects both local and global preferences.
         @Override
         public Editor clear() {
-            mEditorGlobal.clear();
-            mEditorLocal.clear();
+            // Like SharedPreferences, clear first no matter the call order.
+            mClear = true;
             return this;
         }
 
         @Override
         public Editor remove(String key) {
-            mEditorGlobal.remove(key);
-            mEditorLocal.remove(key);
+            mChanges.put(key, REMOVED);
             return this;
         }
 
         @Override
         public Editor putString(String key, String value) {
-            if (isGlobal(key)) {
-                mEditorGlobal.putString(key, value);
-            } else {
-                mEditorLocal.putString(key, value);
-            }
+            mChanges.put(key, (value == null) ? REMOVED : value);
             return this;
         }
 
         @Override
         public Editor putInt(String key, int value) {
-            if (isGlobal(key)) {
-                mEditorGlobal.putInt(key, value);
-            } else {
-                mEditorLocal.putInt(key, value);
-            }
+            mChanges.put(key, value);
             return this;
         }
 
         @Override
         public Editor putLong(String key, long value) {
-            if (isGlobal(key)) {
-                mEditorGlobal.putLong(key, value);
-            } else {
-                mEditorLocal.putLong(key, value);
-            }
+            mChanges.put(key, value);
             return this;
         }
 
         @Override
         public Editor putFloat(String key, float value) {
-            if (isGlobal(key)) {
-                mEditorGlobal.putFloat(key, value);
-            } else {
-                mEditorLocal.putFloat(key, value);
-            }
+            mChanges.put(key, value);
             return this;
         }
 
         @Override
         public Editor putBoolean(String key, boolean value) {
-            if (isGlobal(key)) {
-                mEditorGlobal.putBoolean(key, value);
-            } else {
-                mEditorLocal.putBoolean(key, value);
-            }
+            mChanges.put(key, value);
             return this;
         }
 
@@ -256,6 +514,10 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
             String key) {
+        // The edits made through this class are in the snapshot already.
+        // Only a change made elsewhere needs it to be built again.
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null && !isCurrent(snapshot, key)) invalidate();
         for (OnSharedPreferenceChangeListener listener : mListeners) {
             listener.onSharedPreferenceChanged(this, key);
         }
@@ -47,6 +47,19 @@ public class IconListPreference extends ListPreference {
         a.recycle();
     }
 
+    // Used by PreferenceTreeCache to rebuild a saved preference.
+    IconListPreference(Context context, String title, String key,
+            CharSequence[] defaultValues, CharSequence[] entries,
+            CharSequence[] entryValues, int singleIconId, int[] iconIds,
+            int[] largeIconIds, int[] imageIds, boolean useSingleIcon) {
+        super(context, title, key, defaultValues, entries, entryValues);
+        mSingleIconId = singleIconId;
+        mIconIds = iconIds;
+        mLargeIconIds = largeIconIds;
+        mImageIds = imageIds;
+        mUseSingleIcon = useSingleIcon;
+    }
+
     public int getSingleIcon() {
         return mSingleIconId;
     }
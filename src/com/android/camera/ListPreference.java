@@ -69,10 +69,25 @@ public class ListPreference extends CameraPreference {
         a.recycle();
     }
 
+    // Used by PreferenceTreeCache to rebuild a saved preference.
+    ListPreference(Context context, String title, String key,
+            CharSequence[] defaultValues, CharSequence[] entries,
+            CharSequence[] entryValues) {
+        super(context, title);
+        mKey = key;
+        mDefaultValues = defaultValues;
+        setEntries(entries);
+        setEntryValues(entryValues);
+    }
+
     public String getKey() {
         return mKey;
     }
 
+    public CharSequence[] getDefaultValues() {
+        return mDefaultValues;
+    }
+
     public CharSequence[] getEntries() {
         return mEntries;
     }
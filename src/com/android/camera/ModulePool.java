@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps modules the user switched away from, so that switching back does not
+ * inflate the layout and build the controls again. The memory the parked
+ * modules may use is a fraction of the heap limit; when it is exceeded, the
+ * module parked the longest ago is dropped.
+ */
+class ModulePool {
+    private static final String TAG = "ModulePool";
+
+    // The part of the heap limit parked modules may use.
+    private static final int BUDGET_FRACTION = 16;
+    // Devices with a smaller heap limit do not keep modules.
+    private static final int MIN_MEMORY_CLASS_MB = 32;
+    // The cost of a view with its renderers and listeners. This is a
+    // placeholder, not a measurement: it has not been checked against a heap
+    // dump of a parked module. Bitmaps shown by image views are counted
+    // separately.
+    private static final int BYTES_PER_VIEW = 2048;
+
+    private static class Entry {
+        int mModuleIndex;
+        ParkableModule mModule;
+        ArrayList<View> mViews;
+        int mSize;
+    }
+
+    private final int mBudget;
+    // Parked modules, the most recently parked last.
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private int mSize;
+
+    public ModulePool(Context context) {
+        ActivityManager am = (ActivityManager)
+                context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = am.getMemoryClass();
+        mBudget = (memoryClass < MIN_MEMORY_CLASS_MB)
+                ? 0 : memoryClass * 1024 * 1024 / BUDGET_FRACTION;
+    }
+
+    /**
+     * Parks a paused module and detaches its views from {@code frame}.
+     * Returns false if the module was not kept; its views are removed
+     * either way.
+     */
+    public boolean park(int moduleIndex, CameraModule module, ViewGroup frame) {
+        ArrayList<View> views = new ArrayList<View>();
+        for (int i = 0; i < frame.getChildCount(); i++) {
+            views.add(frame.getChildAt(i));
+        }
+        frame.removeAllViews();
+        if (!(module instanceof ParkableModule)) return false;
+
+        remove(moduleIndex);
+        Entry entry = new Entry();
+        entry.mModuleIndex = moduleIndex;
+        entry.mModule = (ParkableModule) module;
+        entry.mViews = views;
+        for (View view : views) {
+            entry.mSize += estimateSize(view);
+        }
+        if (entry.mSize > mBudget) return false;
+        while (mSize + entry.mSize > mBudget) {
+            Entry oldest = mEntries.remove(0);
+            mSize -= oldest.mSize;
+            Log.v(TAG, "drop module " + oldest.mModuleIndex);
+        }
+        mEntries.add(entry);
+        mSize += entry.mSize;
+        Log.v(TAG, "park module " + moduleIndex + ", " + entry.mSize + " bytes, "
+                + mSize + "/" + mBudget + " bytes used");
+        return true;
+    }
+
+    /**
+     * Attaches the views of the parked module at {@code moduleIndex} to
+     * {@code frame} and returns the module, ready to be resumed. Returns
+     * null if there is no such module or it cannot be reused.
+     */
+    public CameraModule unpark(int moduleIndex, ViewGroup frame, boolean reuseScreenNail) {
+        Entry entry = remove(moduleIndex);
+        if (entry == null) return null;
+        if (!entry.mModule.canUnpark()) {
+            Log.v(TAG, "module " + moduleIndex + " cannot be unparked");
+            return null;
+        }
+        for (View view : entry.mViews) {
+            frame.addView(view);
+        }
+        entry.mModule.onUnpark(reuseScreenNail);
+        Log.v(TAG, "unpark module " + moduleIndex);
+        return entry.mModule;
+    }
+
+    /** Drops all the parked modules. */
+    public void clear() {
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    public int getParkedCount() {
+        return mEntries.size();
+    }
+
+    private Entry remove(int moduleIndex) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.get(i);
+            if (entry.mModuleIndex == moduleIndex) {
+                mEntries.remove(i);
+                mSize -= entry.mSize;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static int estimateSize(View view) {
+        int size = BYTES_PER_VIEW;
+        if (view instanceof ImageView) {
+            Drawable drawable = ((ImageView) view).getDrawable();
+            if (drawable instanceof BitmapDrawable) {
+                Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+                if (bitmap != null) size += bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) {
+                size += estimateSize(group.getChildAt(i));
+            }
+        }
+        return size;
+    }
+}
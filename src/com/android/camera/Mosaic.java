@@ -16,21 +16,25 @@
 
 package com.android.camera;
 
+import java.nio.ByteBuffer;
+
 /**
  * The Java interface to JNI calls regarding mosaic stitching.
  *
  * A high-level usage is:
  *
  * Mosaic mosaic = new Mosaic();
- * mosaic.setSourceImageDimensions(width, height);
- * mosaic.reset(blendType);
+ * mosaic.allocateMosaicMemory(width, height);
+ * mosaic.reset();
  *
  * while ((pixels = hasNextImage()) != null) {
  *    mosaic.setSourceImage(pixels);
  * }
  *
  * mosaic.createMosaic(highRes);
- * byte[] result = mosaic.getFinalMosaic();
+ * int[] result = mosaic.getFinalMosaic(highRes);
+ * mosaic.freeMosaicMemory();
+ * mosaic.release();
  *
  */
 public class Mosaic {
@@ -96,6 +100,86 @@ public class Mosaic {
         System.loadLibrary("jni_mosaic");
     }
 
+    /**
+     * Receives the progress of createMosaic() while it runs.
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the thread running createMosaic() when the progress
+         * changes, at most every 50 milliseconds and once it reaches 100.
+         * @param hires True if the high-res mosaic is being created.
+         * @param progress A number from 0-100 where 50 denotes that the mosaic
+         *          computation is 50% done.
+         */
+        public void onProgress(boolean hires, int progress);
+    }
+
+    private volatile ProgressListener mProgressListener;
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    // Called by the native code while createMosaic() runs.
+    private void onProgress(boolean hires, int progress) {
+        ProgressListener listener = mProgressListener;
+        if (listener != null) listener.onProgress(hires, progress);
+    }
+
+    // The native state of this mosaic. Each Mosaic has its own, so several
+    // mosaics can be stitched at the same time.
+    private long mNativeContext;
+
+    // Held by createMosaic() of each resolution and by getFinalMosaicNV21() while it
+    // copies, so that the mosaic it reads is not freed under it. The calls that free
+    // both mosaics take the low-res lock first.
+    private final Object[] mResultLocks = { new Object(), new Object() };
+
+    private Object getResultLock(boolean hires) {
+        return mResultLocks[hires ? 1 : 0];
+    }
+
+    /**
+     * Creates a mosaic whose frames are passed with setSourceImage().
+     */
+    public Mosaic() {
+        this(false);
+    }
+
+    /**
+     * @param usePreview True if the frames are read back from the GPU preview
+     *        of MosaicRenderer and passed with setSourceImageFromGPU(). The
+     *        preview buffers are shared, so at most one such mosaic may have
+     *        its memory allocated at a time.
+     */
+    public Mosaic(boolean usePreview) {
+        nativeCreate(usePreview);
+    }
+
+    /**
+     * Frees the native state of the mosaic. It cannot be used afterwards.
+     * Must not be called while another call on this mosaic runs.
+     */
+    public synchronized void release() {
+        synchronized (getResultLock(false)) {
+            synchronized (getResultLock(true)) {
+                nativeDestroy();
+            }
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            release();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private native void nativeCreate(boolean usePreview);
+    private native void nativeDestroy();
+
     /**
      * Allocate memory for the image frames at the given resolution.
      *
@@ -108,7 +192,15 @@ public class Mosaic {
      * Free memory allocated by allocateMosaicMemory.
      *
      */
-    public native void freeMosaicMemory();
+    public void freeMosaicMemory() {
+        synchronized (getResultLock(false)) {
+            synchronized (getResultLock(true)) {
+                nativeFreeMosaicMemory();
+            }
+        }
+    }
+
+    private native void nativeFreeMosaicMemory();
 
     /**
      * Pass the input image frame to the native layer. Each time the a new
@@ -131,13 +223,26 @@ public class Mosaic {
      * using glReadPixels directly from GPU memory (where it is accessed by
      * an associated SurfaceTexture).
      *
+     * @param slot the slot of the preview ring MosaicRenderer.transferGPUtoCPU()
+     *        read the frame into. The slot must not be written until this returns.
      * @return Float array of length 11; first 9 entries correspond to the 3x3
      *         transformation matrix between the first frame and the passed frame;
      *         the 10th entry is the number of the passed frame, where the counting
      *         starts from 1; and the 11th entry is the returning code, whose value
      *         is one of those MOSAIC_RET_* returning flags defined above.
      */
-    public native float[] setSourceImageFromGPU();
+    public native float[] setSourceImageFromGPU(int slot);
+
+    /**
+     * Compares a frame waiting in the preview ring with the last frame added
+     * to the mosaic, on a sparse grid of low-res luma samples. This is much
+     * cheaper than aligning the frame.
+     *
+     * @param slot the slot of the preview ring the frame is in.
+     * @return the mean absolute luma difference, from 0 to 255, or -1 if no
+     *         frame has been added to the mosaic yet.
+     */
+    public native float getFrameDifference(int slot);
 
     /**
      * Set the type of blending.
@@ -154,10 +259,19 @@ public class Mosaic {
      */
     public native void setStripType(int type);
 
+    /**
+     * Set the number of threads blending the low-res or the high-res mosaic. Takes effect at
+     * the next reset() for the low-res one and createMosaic(true) for the high-res one.
+     * @param hires Boolean flag to select the high-res or the low-res mosaic.
+     * @param count the number of threads, or 0 (the default) for one per CPU.
+     */
+    public native void setBlendingThreadCount(boolean hires, int count);
+
     /**
      * Tell the native layer to create the final mosaic after all the input frame
      * data have been collected.
      * The case of generating high-resolution mosaic may take dozens of seconds to finish.
+     * The low-res and the high-res mosaics can be created at the same time on two threads.
      *
      * @param value True means generating a high-resolution mosaic -
      *        which is based on the original images set in setSourceImage().
@@ -166,35 +280,163 @@ public class Mosaic {
      * @return Returns a status code suggesting if the mosaic building was
      *        successful, in error, or was cancelled by the user.
      */
-    public native int createMosaic(boolean value);
+    public int createMosaic(boolean value) {
+        synchronized (getResultLock(value)) {
+            return nativeCreateMosaic(value);
+        }
+    }
+
+    private native int nativeCreateMosaic(boolean value);
 
     /**
      * Get the data for the created mosaic.
      *
+     * @param hires Boolean flag to select the high-res or the low-res mosaic.
      * @return Returns an integer array which contains the final mosaic in the ARGB_8888 format.
      *         The first MosaicWidth*MosaicHeight values contain the image data, followed by 2
      *         integers corresponding to the values MosaicWidth and MosaicHeight respectively.
+     *         Returns null if there is no mosaic.
      */
-    public native int[] getFinalMosaic();
+    public int[] getFinalMosaic(boolean hires) {
+        synchronized (getResultLock(hires)) {
+            return nativeGetFinalMosaic(hires);
+        }
+    }
+
+    private native int[] nativeGetFinalMosaic(boolean hires);
 
     /**
-     * Get the data for the created mosaic.
+     * Get a rough preview of the mosaic captured so far. The low-res frames
+     * added so far are placed by their translation at half of their size,
+     * without blending.
+     *
+     * @return Returns an integer array in the same format as getFinalMosaic(boolean).
+     *         The width and height are 0 if no frame was added yet.
+     */
+    public native int[] getPreviewMosaic();
+
+    /**
+     * Get the size of the created mosaic.
      *
-     * @return Returns a byte array which contains the final mosaic in the NV21 format.
-     *         The first MosaicWidth*MosaicHeight*1.5 values contain the image data, followed by
-     *         8 bytes which pack the MosaicWidth and MosaicHeight integers into 4 bytes each
-     *         respectively.
+     * @param hires Boolean flag to select the high-res or the low-res mosaic.
+     * @return Returns an array with the width and the height of the mosaic, or null if there
+     *         is no mosaic.
      */
-    public native byte[] getFinalMosaicNV21();
+    public native int[] getFinalMosaicSize(boolean hires);
+
+    /**
+     * Copy the created mosaic in the NV21 format into a buffer, from its position on. The
+     * position is moved past the mosaic. The mosaic is converted in place, so
+     * getFinalMosaic() fails after this.
+     *
+     * @param hires Boolean flag to select the high-res or the low-res mosaic.
+     * @param dst the buffer, with at least width*height*3/2 bytes remaining.
+     * @return Returns true if the mosaic was copied, false if there is no mosaic or it does not
+     *         fit.
+     */
+    public boolean getFinalMosaicNV21(boolean hires, ByteBuffer dst) {
+        synchronized (getResultLock(hires)) {
+            ByteBuffer src = getFinalMosaicNV21Buffer(hires);
+            if (src == null || src.remaining() > dst.remaining()) return false;
+            dst.put(src);
+            return true;
+        }
+    }
+
+    /**
+     * Receives the created mosaic in the NV21 format as bands of rows, from the top.
+     */
+    public interface TileVisitor {
+        /**
+         * Called for each band of rows. The buffers are read-only views of the native memory
+         * of the mosaic, so nothing is copied; they must not be used after this returns.
+         *
+         * @param top the first row of the band in the mosaic.
+         * @param width the width of the mosaic.
+         * @param height the number of rows of the band.
+         * @param y the luma of the band, height rows of width bytes.
+         * @param vu the chroma of the band, height/2 rows of width interleaved V and U bytes.
+         * @return true to go on with the next band, false to stop.
+         */
+        public boolean visitTile(int top, int width, int height, ByteBuffer y, ByteBuffer vu);
+    }
+
+    /**
+     * Pass the created mosaic in the NV21 format to a visitor as bands of rows, to stream it
+     * to an encoder without copying the whole mosaic. The mosaic of this resolution is held
+     * while the visitor runs, so createMosaic(), reset(), freeMosaicMemory() and release()
+     * wait for it; the visitor must not call them. The mosaic is converted in place, so
+     * getFinalMosaic() fails after this.
+     *
+     * @param hires Boolean flag to select the high-res or the low-res mosaic.
+     * @param rows the number of rows of each band, which must be even; the last band may
+     *        have fewer.
+     * @param visitor the visitor called for each band.
+     * @return Returns true if the mosaic was visited, false if there is no mosaic.
+     */
+    public boolean visitFinalMosaicTiles(boolean hires, int rows, TileVisitor visitor) {
+        if (rows <= 0 || rows % 2 != 0) {
+            throw new IllegalArgumentException("rows must be even: " + rows);
+        }
+        synchronized (getResultLock(hires)) {
+            int[] size = getFinalMosaicSize(hires);
+            ByteBuffer nv21 = getFinalMosaicNV21Buffer(hires);
+            if (size == null || nv21 == null) return false;
+
+            int width = size[0];
+            int height = size[1];
+            for (int top = 0; top < height; top += rows) {
+                int bandHeight = Math.min(rows, height - top);
+                ByteBuffer y = slice(nv21, top * width, bandHeight * width);
+                ByteBuffer vu = slice(nv21, width * height + top / 2 * width,
+                        bandHeight / 2 * width);
+                if (!visitor.visitTile(top, width, bandHeight, y, vu)) break;
+            }
+            return true;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    // Returns a direct buffer over the native memory of the mosaic, or null if there is
+    // none. It is only used while the result lock of the resolution is held.
+    private native ByteBuffer getFinalMosaicNV21Buffer(boolean hires);
 
     /**
      * Reset the state of the frame arrays which maintain the captured frame data.
      * Also re-initializes the native mosaic object to make it ready for capturing a new mosaic.
      */
-    public native void reset();
+    public void reset() {
+        synchronized (getResultLock(false)) {
+            synchronized (getResultLock(true)) {
+                nativeReset();
+            }
+        }
+    }
+
+    private native void nativeReset();
+
+    /**
+     * Get the most memory the arena of the mosaic held at once since the mosaic was last
+     * created. The arena holds the frame records, the triangulation, the site lists and
+     * masks of the blending and the export temporaries. The input frames, the frame
+     * pyramids and the created mosaic are allocated apart and not counted; they are most
+     * of the memory of a session.
+     *
+     * @param hires Boolean flag to select the high-res or the low-res mosaic.
+     * @return Returns the number of bytes. The arena is kept for the next mosaic of the
+     *          same resolution until freeMosaicMemory().
+     */
+    public native long getArenaPeakBytes(boolean hires);
 
     /**
-     * Get the progress status of the mosaic computation process.
+     * Get the progress status of the mosaic computation process. Rather than
+     * polling it, use setProgressListener() to be told when it changes.
      * @param hires Boolean flag to select whether to report progress of the
      *              low-res or high-res mosaicer.
      * @param cancelComputation Boolean flag to allow cancelling the
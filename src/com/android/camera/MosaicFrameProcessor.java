@@ -16,14 +16,41 @@
 
 package com.android.camera;
 
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+
 /**
  * Class to handle the processing of each frame by Mosaicer.
+ *
+ * There is one instance, since it is fed from the preview of the shared
+ * {@link MosaicRenderer}. Other stitches can use a {@link Mosaic} of their
+ * own at the same time.
+ *
+ * The GL thread reads the preview frames back into a ring of
+ * {@link MosaicRenderer#PREVIEW_RING_SIZE} slots with {@link #beginFrame} and
+ * {@link #endFrame}, and an alignment thread feeds them to the mosaicer in
+ * order. The preview never waits for the alignment: when the ring is full,
+ * the frame is dropped.
+ *
+ * Frames that add little to the mosaic are not aligned. While the user pans
+ * slowly, a frame is skipped if the pan since the last aligned frame,
+ * estimated from the panning rate, is too small, or if it hardly differs from
+ * that frame. Skipped frames do not count against MAX_NUMBER_OF_FRAMES.
+ *
+ * While a mosaic is captured, a rough preview of it is built from the aligned
+ * frames and passed to the {@link PreviewMosaicListener} every
+ * PREVIEW_MOSAIC_INTERVAL_MS, so it can be shown as soon as the capture ends.
  */
 public class MosaicFrameProcessor {
     private static final String TAG = "MosaicFrameProcessor";
-    private static final int NUM_FRAMES_IN_BUFFER = 2;
+    private static final int RING_SIZE = MosaicRenderer.PREVIEW_RING_SIZE;
     private static final int MAX_NUMBER_OF_FRAMES = 100;
     private static final int MOSAIC_RET_CODE_INDEX = 10;
     private static final int FRAME_COUNT_INDEX = 9;
@@ -31,17 +58,31 @@ public class MosaicFrameProcessor {
     private static final int Y_COORD_INDEX = 5;
     private static final int HR_TO_LR_DOWNSAMPLE_FACTOR = 4;
     private static final int WINDOW_SIZE = 3;
+    // A frame aligned later than this after it was read back counts as late.
+    private static final long LATE_FRAME_MS = 100;
+    // The estimated pan, as a fraction of the frame size, a frame must add
+    // to be aligned. Once half of the frames are used, twice as much.
+    private static final float MIN_FRAME_STEP = 0.02f;
+    // Frames whose mean luma differs less from the last aligned frame are
+    // treated as taken by a still camera.
+    private static final float STILL_FRAME_DIFFERENCE = 2f;
+    // At most this many frames are skipped in a row on the estimated pan
+    // alone, so the panning rate follows changes in speed.
+    private static final int MAX_SKIPPED_FRAMES = 3;
+    // How often the preview of the mosaic is refreshed while capturing.
+    private static final long PREVIEW_MOSAIC_INTERVAL_MS = 500;
+
+    private static final int MSG_ALIGN_FRAMES = 0;
 
     private Mosaic mMosaicer;
-    private boolean mIsMosaicMemoryAllocated = false;
+    private volatile boolean mIsMosaicMemoryAllocated = false;
     private float mTranslationLastX;
     private float mTranslationLastY;
 
-    private int mFillIn = 0;
     private int mTotalFrameCount = 0;
-    private int mLastProcessFrameIdx = -1;
-    private int mCurrProcessFrameIdx = -1;
     private boolean mFirstRun;
+    // Frames skipped since the last aligned frame.
+    private int mFramesSinceAligned;
 
     // Panning rate is in unit of percentage of image content translation per
     // frame. Use moving average to calculate the panning rate.
@@ -54,12 +95,40 @@ public class MosaicFrameProcessor {
     private float mTotalTranslationX = 0f;
     private float mTotalTranslationY = 0f;
 
-    private ProgressListener mProgressListener;
+    private volatile ProgressListener mProgressListener;
+    private volatile PreviewMosaicListener mPreviewMosaicListener;
+    private volatile CreateMosaicListener mCreateMosaicListener;
+    // When the preview of the mosaic was last built, or 0 if not yet.
+    private long mPreviewMosaicTime;
 
     private int mPreviewWidth;
     private int mPreviewHeight;
     private int mPreviewBufferSize;
 
+    // The ring of frames waiting for the alignment, guarded by this. The
+    // frames are in the slots mHead to mHead + mQueued - 1 (modulo RING_SIZE).
+    // The slot at mHead is being aligned or is next.
+    private final long[] mQueuedTime = new long[RING_SIZE];
+    private int mHead;
+    private int mQueued;
+    // True while the GL thread reads a frame into the slot after the last one.
+    private boolean mWriting;
+    private int mWritingGeneration;
+    // False after the frames of the current mosaic are done with.
+    private boolean mAccepting;
+    // Changes when the queued frames are dropped.
+    private int mGeneration;
+    private int mAlignedFrameCount;
+    private int mDroppedFrameCount;
+    private int mLateFrameCount;
+    private int mSkippedFrameCount;
+
+    // Held while the mosaicer aligns a frame, so it is not reset or freed
+    // meanwhile. Taken before the lock of this.
+    private final Object mAlignLock = new Object();
+    private final Handler mAlignHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     private static MosaicFrameProcessor sMosaicFrameProcessor; // singleton
 
     public interface ProgressListener {
@@ -67,7 +136,17 @@ public class MosaicFrameProcessor {
                 float progressX, float progressY);
     }
 
-    public static MosaicFrameProcessor getInstance() {
+    public interface PreviewMosaicListener {
+        public void onPreviewMosaic(Bitmap mosaic);
+    }
+
+    public interface CreateMosaicListener {
+        public void onCreateMosaicProgress(boolean highRes, int progress);
+    }
+
+    // Called from the main thread and the GL thread, which must get the same
+    // instance as it owns the native preview buffers.
+    public static synchronized MosaicFrameProcessor getInstance() {
         if (sMosaicFrameProcessor == null) {
             sMosaicFrameProcessor = new MosaicFrameProcessor();
         }
@@ -75,15 +154,66 @@ public class MosaicFrameProcessor {
     }
 
     private MosaicFrameProcessor() {
-        mMosaicer = new Mosaic();
+        mMosaicer = new Mosaic(true);
+        // The low-res and the high-res mosaics are created at the same time,
+        // so the CPUs are split between them instead of each blending on one
+        // thread per CPU. The low-res one has a sixteenth of the pixels.
+        int cpus = Runtime.getRuntime().availableProcessors();
+        mMosaicer.setBlendingThreadCount(false, 1);
+        mMosaicer.setBlendingThreadCount(true, Math.max(cpus - 1, 1));
+        mMosaicer.setProgressListener(new Mosaic.ProgressListener() {
+            @Override
+            public void onProgress(final boolean hires, final int progress) {
+                if (mCreateMosaicListener == null) return;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        CreateMosaicListener listener = mCreateMosaicListener;
+                        if (listener != null) listener.onCreateMosaicProgress(hires, progress);
+                    }
+                });
+            }
+        });
+        HandlerThread thread = new HandlerThread("MosaicAlignment");
+        thread.start();
+        mAlignHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_ALIGN_FRAMES) alignQueuedFrames();
+            }
+        };
     }
 
+    /**
+     * Sets the listener for the alignment progress. It is called on the main
+     * thread.
+     */
     public void setProgressListener(ProgressListener listener) {
         mProgressListener = listener;
     }
 
-    public int reportProgress(boolean hires, boolean cancel) {
-        return mMosaicer.reportProgress(hires, cancel);
+    /**
+     * Sets the listener for the preview of the mosaic being captured. It is
+     * called on the main thread.
+     */
+    public void setPreviewMosaicListener(PreviewMosaicListener listener) {
+        mPreviewMosaicListener = listener;
+    }
+
+    /**
+     * Sets the listener for the progress of {@link #createMosaic}. It is
+     * called on the main thread, at a bounded rate.
+     */
+    public void setCreateMosaicListener(CreateMosaicListener listener) {
+        mCreateMosaicListener = listener;
+    }
+
+    /**
+     * Cancels the creation of the low-res or high-res mosaic, whether it is
+     * running or starts later, until {@link #reset}.
+     */
+    public void cancelCreateMosaic(boolean highRes) {
+        mMosaicer.reportProgress(highRes, true);
     }
 
     public void initialize(int previewWidth, int previewHeight, int bufSize) {
@@ -96,12 +226,26 @@ public class MosaicFrameProcessor {
     }
 
     public void clear() {
-        if (mIsMosaicMemoryAllocated) {
-            mMosaicer.freeMosaicMemory();
-            mIsMosaicMemoryAllocated = false;
+        synchronized (mAlignLock) {
+            synchronized (this) {
+                mAccepting = false;
+                // The GL thread may still be reading a frame into the ring.
+                while (mWriting) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+                dropQueuedFrames();
+            }
+            if (mIsMosaicMemoryAllocated) {
+                mMosaicer.freeMosaicMemory();
+                mIsMosaicMemoryAllocated = false;
+            }
         }
         synchronized (this) {
-            notify();
+            notifyAll();
         }
     }
 
@@ -124,76 +268,246 @@ public class MosaicFrameProcessor {
     public void reset() {
         // reset() can be called even if MosaicFrameProcessor is not initialized.
         // Only counters will be changed.
-        mFirstRun = true;
-        mTotalFrameCount = 0;
-        mFillIn = 0;
-        mTotalTranslationX = 0;
-        mTranslationLastX = 0;
-        mTotalTranslationY = 0;
-        mTranslationLastY = 0;
-        mPanningRateX = 0;
-        mPanningRateY = 0;
-        mLastProcessFrameIdx = -1;
-        mCurrProcessFrameIdx = -1;
-        for (int i = 0; i < WINDOW_SIZE; ++i) {
-            mDeltaX[i] = 0f;
-            mDeltaY[i] = 0f;
+        synchronized (mAlignLock) {
+            synchronized (this) {
+                dropQueuedFrames();
+                mAccepting = true;
+                mAlignedFrameCount = 0;
+                mDroppedFrameCount = 0;
+                mLateFrameCount = 0;
+                mSkippedFrameCount = 0;
+            }
+            mFirstRun = true;
+            mFramesSinceAligned = 0;
+            mPreviewMosaicTime = 0;
+            mTotalFrameCount = 0;
+            mTotalTranslationX = 0;
+            mTranslationLastX = 0;
+            mTotalTranslationY = 0;
+            mTranslationLastY = 0;
+            mPanningRateX = 0;
+            mPanningRateY = 0;
+            for (int i = 0; i < WINDOW_SIZE; ++i) {
+                mDeltaX[i] = 0f;
+                mDeltaY[i] = 0f;
+            }
+            mMosaicer.reset();
         }
-        mMosaicer.reset();
     }
 
+    /**
+     * Creates the final mosaic. The frames already read back are aligned
+     * first; later frames are dropped until {@link #reset}.
+     */
     public int createMosaic(boolean highRes) {
+        finishAlignment();
         return mMosaicer.createMosaic(highRes);
     }
 
-    public byte[] getFinalMosaicNV21() {
-        return mMosaicer.getFinalMosaicNV21();
+    public int[] getFinalMosaicSize(boolean highRes) {
+        return mMosaicer.getFinalMosaicSize(highRes);
     }
 
-    // Processes the last filled image frame through the mosaicer and
-    // updates the UI to show progress.
-    // When done, processes and displays the final mosaic.
-    public void processFrame() {
-        if (!mIsMosaicMemoryAllocated) {
-            // clear() is called and buffers are cleared, stop computation.
-            // This can happen when the onPause() is called in the activity, but still some frames
-            // are not processed yet and thus the callback may be invoked.
-            return;
+    public boolean getFinalMosaicNV21(boolean highRes, ByteBuffer dst) {
+        return mMosaicer.getFinalMosaicNV21(highRes, dst);
+    }
+
+    public long getArenaPeakBytes(boolean highRes) {
+        return mMosaicer.getArenaPeakBytes(highRes);
+    }
+
+    /**
+     * Called by the GL thread before it reads a preview frame back from the
+     * GPU. Returns the slot of the ring to read the frame into and pass to
+     * {@link #endFrame}, or -1 if the frame should not be read back because
+     * the ring is full or no mosaic is being captured.
+     */
+    public synchronized int beginFrame() {
+        if (!mAccepting || !mIsMosaicMemoryAllocated || mWriting) return -1;
+        if (mQueued == RING_SIZE) {
+            mDroppedFrameCount++;
+            return -1;
         }
+        mWriting = true;
+        mWritingGeneration = mGeneration;
+        return (mHead + mQueued) % RING_SIZE;
+    }
+
+    /**
+     * Called by the GL thread when the frame is in {@code slot}. Queues the
+     * frame for the alignment.
+     */
+    public void endFrame(int slot) {
+        synchronized (this) {
+            mWriting = false;
+            notifyAll();
+            // Drop the frame if the ring was reset while it was read back.
+            if (!mAccepting || mWritingGeneration != mGeneration) return;
+            mQueuedTime[slot] = SystemClock.uptimeMillis();
+            mQueued++;
+        }
+        mAlignHandler.sendEmptyMessage(MSG_ALIGN_FRAMES);
+    }
+
+    public synchronized int getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
 
-        mCurrProcessFrameIdx = mFillIn;
-        mFillIn = ((mFillIn + 1) % NUM_FRAMES_IN_BUFFER);
-
-        // Check that we are trying to process a frame different from the
-        // last one processed (useful if this class was running asynchronously)
-        if (mCurrProcessFrameIdx != mLastProcessFrameIdx) {
-            mLastProcessFrameIdx = mCurrProcessFrameIdx;
-
-            // TODO: make the termination condition regarding reaching
-            // MAX_NUMBER_OF_FRAMES solely determined in the library.
-            if (mTotalFrameCount < MAX_NUMBER_OF_FRAMES) {
-                // If we are still collecting new frames for the current mosaic,
-                // process the new frame.
-                calculateTranslationRate();
-
-                // Publish progress of the ongoing processing
-                if (mProgressListener != null) {
-                    mProgressListener.onProgress(false, mPanningRateX, mPanningRateY,
-                            mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth,
-                            mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight);
+    public synchronized int getLateFrameCount() {
+        return mLateFrameCount;
+    }
+
+    public synchronized int getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+
+    // Must be called with the lock of this held.
+    private void dropQueuedFrames() {
+        mGeneration++;
+        mHead = 0;
+        mQueued = 0;
+        notifyAll();
+    }
+
+    // Stops taking new frames and waits until the queued ones are aligned.
+    private void finishAlignment() {
+        synchronized (this) {
+            mAccepting = false;
+            while (mQueued > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignore
                 }
-            } else {
-                if (mProgressListener != null) {
-                    mProgressListener.onProgress(true, mPanningRateX, mPanningRateY,
-                            mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth,
-                            mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight);
+            }
+            Log.v(TAG, "aligned " + mAlignedFrameCount + " frames, skipped "
+                    + mSkippedFrameCount + ", dropped " + mDroppedFrameCount
+                    + ", late " + mLateFrameCount);
+        }
+    }
+
+    // Runs on the alignment thread.
+    private void alignQueuedFrames() {
+        while (true) {
+            int slot;
+            int generation;
+            long queuedTime;
+            synchronized (this) {
+                if (mQueued == 0) return;
+                slot = mHead;
+                generation = mGeneration;
+                queuedTime = mQueuedTime[slot];
+            }
+            synchronized (mAlignLock) {
+                // The generation only changes with mAlignLock held.
+                if (generation == mGeneration && mIsMosaicMemoryAllocated) {
+                    alignFrame(slot, queuedTime);
+                }
+            }
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mHead = (mHead + 1) % RING_SIZE;
+                    mQueued--;
                 }
+                notifyAll();
             }
         }
     }
 
-    public void calculateTranslationRate() {
-        float[] frameData = mMosaicer.setSourceImageFromGPU();
+    // Processes the frame in the slot through the mosaicer and updates the UI
+    // to show progress.
+    private void alignFrame(int slot, long queuedTime) {
+        final boolean finished;
+        // TODO: make the termination condition regarding reaching
+        // MAX_NUMBER_OF_FRAMES solely determined in the library.
+        if (mTotalFrameCount < MAX_NUMBER_OF_FRAMES) {
+            if (!shouldAlign(slot)) {
+                mFramesSinceAligned++;
+                synchronized (this) {
+                    mSkippedFrameCount++;
+                }
+                return;
+            }
+            // If we are still collecting new frames for the current mosaic,
+            // process the new frame.
+            calculateTranslationRate(slot, mFramesSinceAligned + 1);
+            mFramesSinceAligned = 0;
+            updatePreviewMosaic();
+            finished = false;
+        } else {
+            finished = true;
+        }
+        long latency = SystemClock.uptimeMillis() - queuedTime;
+        synchronized (this) {
+            mAlignedFrameCount++;
+            if (latency > LATE_FRAME_MS) mLateFrameCount++;
+        }
+
+        // Publish progress of the ongoing processing
+        final float panningRateX = mPanningRateX;
+        final float panningRateY = mPanningRateY;
+        final float progressX =
+                mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth;
+        final float progressY =
+                mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ProgressListener listener = mProgressListener;
+                if (listener != null) {
+                    listener.onProgress(finished, panningRateX, panningRateY,
+                            progressX, progressY);
+                }
+            }
+        });
+    }
+
+    // Passes the preview of the mosaic to the listener, unless it was built
+    // less than PREVIEW_MOSAIC_INTERVAL_MS ago.
+    private void updatePreviewMosaic() {
+        if (mPreviewMosaicListener == null) return;
+        long now = SystemClock.uptimeMillis();
+        if (mPreviewMosaicTime != 0
+                && now - mPreviewMosaicTime < PREVIEW_MOSAIC_INTERVAL_MS) {
+            return;
+        }
+
+        int[] data = mMosaicer.getPreviewMosaic();
+        if (data == null) return;
+        int width = data[data.length - 2];
+        int height = data[data.length - 1];
+        if (width <= 0 || height <= 0) return;
+        mPreviewMosaicTime = now;
+
+        final Bitmap bitmap = Bitmap.createBitmap(data, width, height, Bitmap.Config.ARGB_8888);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PreviewMosaicListener listener = mPreviewMosaicListener;
+                if (listener != null) listener.onPreviewMosaic(bitmap);
+            }
+        });
+    }
+
+    // Returns false if the frame in the slot would add little to the mosaic.
+    private boolean shouldAlign(int slot) {
+        // Wait until the panning rate is known.
+        if (mFirstRun || mTotalFrameCount <= WINDOW_SIZE) return true;
+
+        float minStep = (mTotalFrameCount < MAX_NUMBER_OF_FRAMES / 2)
+                ? MIN_FRAME_STEP : 2 * MIN_FRAME_STEP;
+        float step = Math.max(mPanningRateX, mPanningRateY) * (mFramesSinceAligned + 1);
+        if (step >= minStep) return true;
+
+        float difference = mMosaicer.getFrameDifference(slot);
+        if (difference >= 0 && difference < STILL_FRAME_DIFFERENCE) return false;
+        return mFramesSinceAligned >= MAX_SKIPPED_FRAMES;
+    }
+
+    // The translation since the last aligned frame is spread over the frames
+    // in between, so the panning rate stays per preview frame.
+    private void calculateTranslationRate(int slot, int frames) {
+        float[] frameData = mMosaicer.setSourceImageFromGPU(slot);
         int ret_code = (int) frameData[MOSAIC_RET_CODE_INDEX];
         mTotalFrameCount  = (int) frameData[FRAME_COUNT_INDEX];
         float translationCurrX = frameData[X_COORD_INDEX];
@@ -212,8 +526,8 @@ public class MosaicFrameProcessor {
         int idx = mOldestIdx;
         mTotalTranslationX -= mDeltaX[idx];
         mTotalTranslationY -= mDeltaY[idx];
-        mDeltaX[idx] = Math.abs(translationCurrX - mTranslationLastX);
-        mDeltaY[idx] = Math.abs(translationCurrY - mTranslationLastY);
+        mDeltaX[idx] = Math.abs(translationCurrX - mTranslationLastX) / frames;
+        mDeltaY[idx] = Math.abs(translationCurrY - mTranslationLastY) / frames;
         mTotalTranslationX += mDeltaX[idx];
         mTotalTranslationY += mDeltaY[idx];
 
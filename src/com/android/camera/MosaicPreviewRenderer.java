@@ -63,7 +63,7 @@ public class MosaicPreviewRenderer {
         public static final int MSG_INIT_EGL_SYNC = 0;
         public static final int MSG_SHOW_PREVIEW_FRAME_SYNC = 1;
         public static final int MSG_SHOW_PREVIEW_FRAME = 2;
-        public static final int MSG_ALIGN_FRAME_SYNC = 3;
+        public static final int MSG_ALIGN_FRAME = 3;
         public static final int MSG_RELEASE = 4;
 
         public EGLHandler(Looper looper) {
@@ -84,9 +84,8 @@ public class MosaicPreviewRenderer {
                 case MSG_SHOW_PREVIEW_FRAME:
                     doShowPreviewFrame();
                     break;
-                case MSG_ALIGN_FRAME_SYNC:
+                case MSG_ALIGN_FRAME:
                     doAlignFrame();
-                    mEglThreadBlockVar.open();
                     break;
                 case MSG_RELEASE:
                     doRelease();
@@ -101,8 +100,15 @@ public class MosaicPreviewRenderer {
             MosaicRenderer.setWarping(true);
             // Call preprocess to render it to low-res and high-res RGB textures.
             MosaicRenderer.preprocess(mTransformMatrix);
-            // Now, transfer the textures from GPU to CPU memory for processing
-            MosaicRenderer.transferGPUtoCPU();
+            // Now, transfer the textures from GPU to CPU memory for processing,
+            // unless the frame processor is still busy with earlier frames.
+            // The preview is drawn with the latest alignment either way.
+            MosaicFrameProcessor processor = MosaicFrameProcessor.getInstance();
+            int slot = processor.beginFrame();
+            if (slot >= 0) {
+                MosaicRenderer.transferGPUtoCPU(slot);
+                processor.endFrame(slot);
+            }
             MosaicRenderer.updateMatrix();
             draw();
             mEgl.eglSwapBuffers(mEglDisplay, mEglSurface);
@@ -214,8 +220,8 @@ public class MosaicPreviewRenderer {
         mEglHandler.sendEmptyMessage(EGLHandler.MSG_SHOW_PREVIEW_FRAME);
     }
 
-    public void alignFrameSync() {
-        mEglHandler.sendMessageSync(EGLHandler.MSG_ALIGN_FRAME_SYNC);
+    public void alignFrame() {
+        mEglHandler.sendEmptyMessage(EGLHandler.MSG_ALIGN_FRAME);
     }
 
     public SurfaceTexture getInputSurfaceTexture() {
@@ -56,12 +56,21 @@ public class MosaicRenderer
       */
      public static native void preprocess(float[] stMatrix);
 
+     /**
+      * The number of frames transferGPUtoCPU() can hold for the mosaicing
+      * library. Must match PREVIEW_RING_SIZE in mosaic_renderer_jni.h.
+      */
+     public static final int PREVIEW_RING_SIZE = 3;
+
      /**
       * This function calls glReadPixels to transfer both the low-res and high-res
       * data from the GPU memory to the CPU memory for further processing by the
       * mosaicing library.
+      *
+      * @param slot the slot of the preview ring to read the frame into, from 0
+      *        to PREVIEW_RING_SIZE - 1.
       */
-     public static native void transferGPUtoCPU();
+     public static native void transferGPUtoCPU(int slot);
 
      /**
       * Function to be called in onDrawFrame() to update the screen with
@@ -66,6 +66,7 @@ import com.android.gallery3d.ui.GLRootView;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.List;
@@ -122,7 +123,6 @@ public class PanoramaModule implements CameraModule,
     private MosaicPreviewRenderer mMosaicPreviewRenderer;
     private TextView mTooFastPrompt;
     private ShutterButton mShutterButton;
-    private Object mWaitObject = new Object();
 
     private DateFormat mGPSDateStampFormat;
     private DateFormat mGPSTimeStampFormat;
@@ -150,7 +150,10 @@ public class PanoramaModule implements CameraModule,
     private Handler mMainHandler;
     private SurfaceTexture mCameraTexture;
     private boolean mThreadRunning;
-    private boolean mCancelComputation;
+    // Whether the user cancelled the mosaics being created.
+    private boolean mCancelled;
+    // The latest preview of the mosaic being captured.
+    private Bitmap mPreviewMosaic;
     private float mHorizontalViewAngle;
     private float mVerticalViewAngle;
 
@@ -250,8 +253,9 @@ public class PanoramaModule implements CameraModule,
                     if (mCaptureState == CAPTURE_STATE_VIEWFINDER) {
                         mMosaicPreviewRenderer.showPreviewFrame();
                     } else {
-                        mMosaicPreviewRenderer.alignFrameSync();
-                        mMosaicFrameProcessor.processFrame();
+                        // The frame processor reports the progress of
+                        // the alignment to the progress listener.
+                        mMosaicPreviewRenderer.alignFrame();
                     }
                 }
             }
@@ -285,9 +289,9 @@ public class PanoramaModule implements CameraModule,
             public void handleMessage(Message msg) {
                 switch (msg.what) {
                     case MSG_LOW_RES_FINAL_MOSAIC_READY:
-                        onBackgroundThreadFinished();
-                        showFinalMosaic((Bitmap) msg.obj);
-                        saveHighResMosaic();
+                        // The high-res mosaic is still being created.
+                        mRotateDialog.dismissDialog();
+                        if (!mCancelled) showFinalMosaic((Bitmap) msg.obj);
                         break;
                     case MSG_GENERATE_FINAL_MOSAIC_ERROR:
                         onBackgroundThreadFinished();
@@ -488,7 +492,6 @@ public class PanoramaModule implements CameraModule,
 
     public void startCapture() {
         // Reset values so we can do this again.
-        mCancelComputation = false;
         mTimeTaken = System.currentTimeMillis();
         mActivity.setSwipingEnabled(false);
         mActivity.hideSwitcher();
@@ -497,6 +500,14 @@ public class PanoramaModule implements CameraModule,
         mCaptureIndicator.setVisibility(View.VISIBLE);
         showDirectionIndicators(PanoProgressBar.DIRECTION_NONE);
 
+        mPreviewMosaic = null;
+        mMosaicFrameProcessor.setPreviewMosaicListener(
+                new MosaicFrameProcessor.PreviewMosaicListener() {
+            @Override
+            public void onPreviewMosaic(Bitmap mosaic) {
+                if (mCaptureState == CAPTURE_STATE_MOSAIC) mPreviewMosaic = mosaic;
+            }
+        });
         mMosaicFrameProcessor.setProgressListener(new MosaicFrameProcessor.ProgressListener() {
             @Override
             public void onProgress(boolean isFinished, float panningRateX, float panningRateY,
@@ -543,25 +554,73 @@ public class PanoramaModule implements CameraModule,
         hideDirectionIndicators();
 
         mMosaicFrameProcessor.setProgressListener(null);
+        mMosaicFrameProcessor.setPreviewMosaicListener(null);
         stopCameraPreview();
 
         mCameraTexture.setOnFrameAvailableListener(null);
 
+        Bitmap previewMosaic = mPreviewMosaic;
+        mPreviewMosaic = null;
         if (!aborted && !mThreadRunning) {
-            mRotateDialog.showWaitingDialog(mPreparePreviewString);
+            // Show the preview of the mosaic until the low-res one is ready.
+            if (previewMosaic != null) {
+                showFinalMosaic(previewMosaic);
+            } else {
+                mRotateDialog.showWaitingDialog(mPreparePreviewString);
+            }
             // Hide shutter button, shutter icon, etc when waiting for
             // panorama to stitch
             mActivity.hideUI();
+            mCancelled = false;
+            // Both mosaics report their progress from the start.
+            reportProgress();
             runBackgroundThread(new Thread() {
                 @Override
                 public void run() {
+                    // The high-res mosaic is created at the same time as the
+                    // low-res one rather than after it, so it is saved sooner.
+                    // MosaicFrameProcessor splits the blending threads between
+                    // them. The memory of the two adds up, since both are
+                    // blended at once.
+                    final MosaicJpeg[] highRes = new MosaicJpeg[1];
+                    Thread highResThread = new Thread() {
+                        @Override
+                        public void run() {
+                            mPartialWakeLock.acquire();
+                            try {
+                                highRes[0] = generateFinalMosaic(true);
+                            } finally {
+                                mPartialWakeLock.release();
+                            }
+                        }
+                    };
+                    highResThread.start();
+
                     MosaicJpeg jpeg = generateFinalMosaic(false);
 
-                    if (jpeg != null && jpeg.isValid) {
+                    boolean lowResValid = (jpeg != null && jpeg.isValid);
+                    if (lowResValid) {
                         Bitmap bitmap = null;
                         bitmap = BitmapFactory.decodeByteArray(jpeg.data, 0, jpeg.data.length);
                         mMainHandler.sendMessage(mMainHandler.obtainMessage(
                                 MSG_LOW_RES_FINAL_MOSAIC_READY, bitmap));
+                    } else {
+                        // Without the low-res review nothing is saved.
+                        cancelHighResComputation();
+                    }
+
+                    // The result of the high-res mosaic is only handled after
+                    // the low-res one, whichever is done first.
+                    while (highResThread.isAlive()) {
+                        try {
+                            highResThread.join();
+                        } catch (InterruptedException e) {
+                            // ignore
+                        }
+                    }
+
+                    if (lowResValid) {
+                        saveHighResMosaic(highRes[0]);
                     } else {
                         mMainHandler.sendMessage(mMainHandler.obtainMessage(
                                 MSG_RESET_TO_PREVIEW));
@@ -655,7 +714,7 @@ public class PanoramaModule implements CameraModule,
             @Override
             public void onClick(View arg0) {
                 if (mPaused || mCameraTexture == null) return;
-                cancelHighResComputation();
+                cancelComputation();
             }
         });
 
@@ -707,31 +766,14 @@ public class PanoramaModule implements CameraModule,
     public void reportProgress() {
         mSavingProgressBar.reset();
         mSavingProgressBar.setRightIncreasing(true);
-        Thread t = new Thread() {
+        mMosaicFrameProcessor.setCreateMosaicListener(
+                new MosaicFrameProcessor.CreateMosaicListener() {
             @Override
-            public void run() {
-                while (mThreadRunning) {
-                    final int progress = mMosaicFrameProcessor.reportProgress(
-                            true, mCancelComputation);
-
-                    try {
-                        synchronized (mWaitObject) {
-                            mWaitObject.wait(50);
-                        }
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException("Panorama reportProgress failed", e);
-                    }
-                    // Update the progress bar
-                    mActivity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mSavingProgressBar.setProgress(progress);
-                        }
-                    });
-                }
+            public void onCreateMosaicProgress(boolean highRes, int progress) {
+                // Update the progress bar
+                if (highRes && mThreadRunning) mSavingProgressBar.setProgress(progress);
             }
-        };
-        t.start();
+        });
     }
 
     private int getCaptureOrientation() {
@@ -752,35 +794,23 @@ public class PanoramaModule implements CameraModule,
         return orientation;
     }
 
-    public void saveHighResMosaic() {
-        runBackgroundThread(new Thread() {
-            @Override
-            public void run() {
-                mPartialWakeLock.acquire();
-                MosaicJpeg jpeg;
-                try {
-                    jpeg = generateFinalMosaic(true);
-                } finally {
-                    mPartialWakeLock.release();
-                }
-
-                if (jpeg == null) {  // Cancelled by user.
-                    mMainHandler.sendEmptyMessage(MSG_RESET_TO_PREVIEW);
-                } else if (!jpeg.isValid) {  // Error when generating mosaic.
-                    mMainHandler.sendEmptyMessage(MSG_GENERATE_FINAL_MOSAIC_ERROR);
-                } else {
-                    int orientation = getCaptureOrientation();
-                    Uri uri = savePanorama(jpeg.data, jpeg.width, jpeg.height, orientation);
-                    if (uri != null) {
-                        mActivity.addSecureAlbumItemIfNeeded(false, uri);
-                        Util.broadcastNewPicture(mActivity, uri);
-                    }
-                    mMainHandler.sendMessage(
-                            mMainHandler.obtainMessage(MSG_RESET_TO_PREVIEW));
-                }
+    // Saves the high-res mosaic created by generateFinalMosaic(true). Runs
+    // on the background thread.
+    private void saveHighResMosaic(MosaicJpeg jpeg) {
+        if (jpeg == null) {  // Cancelled by user.
+            mMainHandler.sendEmptyMessage(MSG_RESET_TO_PREVIEW);
+        } else if (!jpeg.isValid) {  // Error when generating mosaic.
+            mMainHandler.sendEmptyMessage(MSG_GENERATE_FINAL_MOSAIC_ERROR);
+        } else {
+            int orientation = getCaptureOrientation();
+            Uri uri = savePanorama(jpeg.data, jpeg.width, jpeg.height, orientation);
+            if (uri != null) {
+                mActivity.addSecureAlbumItemIfNeeded(false, uri);
+                Util.broadcastNewPicture(mActivity, uri);
             }
-        });
-        reportProgress();
+            mMainHandler.sendMessage(
+                    mMainHandler.obtainMessage(MSG_RESET_TO_PREVIEW));
+        }
     }
 
     private void runBackgroundThread(Thread thread) {
@@ -790,14 +820,20 @@ public class PanoramaModule implements CameraModule,
 
     private void onBackgroundThreadFinished() {
         mThreadRunning = false;
+        mMosaicFrameProcessor.setCreateMosaicListener(null);
         mRotateDialog.dismissDialog();
     }
 
     private void cancelHighResComputation() {
-        mCancelComputation = true;
-        synchronized (mWaitObject) {
-            mWaitObject.notify();
-        }
+        mMosaicFrameProcessor.cancelCreateMosaic(true);
+    }
+
+    // Cancels both mosaics when the user cancels. The low-res one may still be
+    // running, and is not shown for review once it is done.
+    private void cancelComputation() {
+        mCancelled = true;
+        mMosaicFrameProcessor.cancelCreateMosaic(false);
+        cancelHighResComputation();
     }
 
     // This function will be called upon the first camera frame is available.
@@ -1065,23 +1101,28 @@ public class PanoramaModule implements CameraModule,
             return new MosaicJpeg();
         }
 
-        byte[] imageData = mMosaicFrameProcessor.getFinalMosaicNV21();
-        if (imageData == null) {
-            Log.e(TAG, "getFinalMosaicNV21() returned null.");
+        int[] size = mMosaicFrameProcessor.getFinalMosaicSize(highRes);
+        if (size == null) {
+            Log.e(TAG, "getFinalMosaicSize() returned null.");
             return new MosaicJpeg();
         }
 
-        int len = imageData.length - 8;
-        int width = (imageData[len + 0] << 24) + ((imageData[len + 1] & 0xFF) << 16)
-                + ((imageData[len + 2] & 0xFF) << 8) + (imageData[len + 3] & 0xFF);
-        int height = (imageData[len + 4] << 24) + ((imageData[len + 5] & 0xFF) << 16)
-                + ((imageData[len + 6] & 0xFF) << 8) + (imageData[len + 7] & 0xFF);
-        Log.v(TAG, "ImLength = " + (len) + ", W = " + width + ", H = " + height);
+        int width = size[0];
+        int height = size[1];
+        Log.v(TAG, "W = " + width + ", H = " + height);
+        Log.v(TAG, "Peak mosaic arena = "
+                + mMosaicFrameProcessor.getArenaPeakBytes(highRes) + " bytes");
 
         if (width <= 0 || height <= 0) {
             // TODO: pop up an error message indicating that the final result is not generated.
-            Log.e(TAG, "width|height <= 0!!, len = " + (len) + ", W = " + width + ", H = " +
-                    height);
+            Log.e(TAG, "width|height <= 0!!, W = " + width + ", H = " + height);
+            return new MosaicJpeg();
+        }
+
+        // YuvImage needs an array, so this is the one copy of the mosaic.
+        byte[] imageData = new byte[width * height * 3 / 2];
+        if (!mMosaicFrameProcessor.getFinalMosaicNV21(highRes, ByteBuffer.wrap(imageData))) {
+            Log.e(TAG, "getFinalMosaicNV21() failed.");
             return new MosaicJpeg();
         }
 
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * A module that {@link ModulePool} can keep after it is switched away from.
+ * A parked module has been paused (so its camera is closed) and its views
+ * are detached from the activity, but its views, preferences and controllers
+ * are kept. When the user switches back, the module gets
+ * {@link #onUnpark} instead of {@code init()}, and is then resumed.
+ */
+interface ParkableModule extends CameraModule {
+    /**
+     * Returns false if the module cannot be resumed as it is, for example
+     * because another module switched to a different camera.
+     */
+    public boolean canUnpark();
+
+    /**
+     * Called after the views are attached again, before the module is
+     * resumed. Sets up what other modules may have changed in the activity,
+     * like the camera screen nail and the shutter button.
+     */
+    public void onUnpark(boolean reuseScreenNail);
+}
@@ -26,6 +26,7 @@ import android.content.Intent;
 import android.content.SharedPreferences.Editor;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.graphics.Point;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Face;
@@ -80,12 +81,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Formatter;
 import java.util.List;
 
 public class PhotoModule
-    implements CameraModule,
+    implements ParkableModule,
     FocusOverlayManager.Listener,
     CameraPreference.OnPreferenceChangedListener,
     LocationManager.Listener,
@@ -143,6 +143,7 @@ public class PhotoModule
     // When setCameraParametersWhenIdle() is called, we accumulate the subsets
     // needed to be updated in mUpdateSet.
     private int mUpdateSet;
+    private final CameraParameterUpdater mParameterUpdater = new CameraParameterUpdater();
 
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
@@ -301,6 +302,12 @@ public class PhotoModule
     CameraStartUpThread mCameraStartUpThread;
     ConditionVariable mStartPreviewPrerequisiteReady = new ConditionVariable();
 
+    // True if the photo controls were built in init() from the capabilities
+    // saved by an earlier launch.
+    private boolean mControlsFromCache;
+    // True if the opened camera supports the same things as the cache said.
+    private volatile boolean mCachedCapabilitiesValid;
+
     private PreviewGestures mGestures;
 
     // The purpose is not to block the main thread in onCreate and onResume.
@@ -318,7 +325,9 @@ public class PhotoModule
                 // operations to ensure that onPause() can be done ASAP.
                 if (mCancelled) return;
                 mCameraDevice = Util.openCamera(mActivity, mCameraId);
-                mParameters = mCameraDevice.getParameters();
+                mParameters = mParameterUpdater.read(mCameraDevice);
+                mCachedCapabilitiesValid = CameraCapabilityCache.instance().put(
+                        mActivity, mCameraId, mParameters);
                 // Wait until all the initialization needed by startPreview are
                 // done.
                 mStartPreviewPrerequisiteReady.block();
@@ -437,44 +446,118 @@ public class PhotoModule
     }
 
     @Override
-    public void init(CameraActivity activity, View parent, boolean reuseNail) {
+    public void init(CameraActivity activity, View parent, final boolean reuseNail) {
         mActivity = activity;
         mRootView = parent;
-        mPreferences = new ComboPreferences(mActivity);
-        CameraSettings.upgradeGlobalPreferences(mPreferences.getGlobal());
-        mCameraId = getPreferredCameraId(mPreferences);
-
         mContentResolver = mActivity.getContentResolver();
-
-        // To reduce startup time, open the camera and start the preview in
-        // another thread.
-        mCameraStartUpThread = new CameraStartUpThread();
-        mCameraStartUpThread.start();
-
-        mActivity.getLayoutInflater().inflate(R.layout.photo_module, (ViewGroup) mRootView);
-
-        // Surface texture is from camera screen nail and startPreview needs it.
-        // This must be done before startPreview.
         mIsImageCaptureIntent = isImageCaptureIntent();
-        if (reuseNail) {
-            mActivity.reuseCameraScreenNail(!mIsImageCaptureIntent);
-        } else {
-            mActivity.createCameraScreenNail(!mIsImageCaptureIntent);
-        }
 
-        mPreferences.setLocalId(mActivity, mCameraId);
-        CameraSettings.upgradeLocalPreferences(mPreferences.getLocal());
-        // we need to reset exposure for the preview
-        resetExposureCompensation();
-        // Starting the preview needs preferences, camera screen nail, and
-        // focus area indicator.
-        mStartPreviewPrerequisiteReady.open();
+        // Preferences are read on worker threads while the views are set up
+        // on the main thread.
+        StartupTaskGraph graph = new StartupTaskGraph("PhotoModule.init");
+        StartupTaskGraph.Task globalPreferences = graph.addBackgroundTask(
+                "globalPreferences", new Runnable() {
+            @Override
+            public void run() {
+                mPreferences = new ComboPreferences(mActivity);
+                CameraSettings.upgradeGlobalPreferences(mPreferences.getGlobal());
+                mCameraId = getPreferredCameraId(mPreferences);
+            }
+        });
+        graph.addBackgroundTask("startCamera", new Runnable() {
+            @Override
+            public void run() {
+                // To reduce startup time, open the camera and start the
+                // preview in another thread.
+                mCameraStartUpThread = new CameraStartUpThread();
+                mCameraStartUpThread.start();
+            }
+        }, globalPreferences);
+        StartupTaskGraph.Task inflate = graph.addMainThreadTask("inflate", new Runnable() {
+            @Override
+            public void run() {
+                mActivity.getLayoutInflater().inflate(
+                        R.layout.photo_module, (ViewGroup) mRootView);
+            }
+        });
+        StartupTaskGraph.Task screenNail = graph.addMainThreadTask("screenNail", new Runnable() {
+            @Override
+            public void run() {
+                // Surface texture is from camera screen nail and startPreview
+                // needs it. This must be done before startPreview.
+                if (reuseNail) {
+                    mActivity.reuseCameraScreenNail(!mIsImageCaptureIntent);
+                } else {
+                    mActivity.createCameraScreenNail(!mIsImageCaptureIntent);
+                }
+            }
+        });
+        StartupTaskGraph.Task localPreferences = graph.addBackgroundTask(
+                "localPreferences", new Runnable() {
+            @Override
+            public void run() {
+                mPreferences.setLocalId(mActivity, mCameraId);
+                CameraSettings.upgradeLocalPreferences(mPreferences.getLocal());
+                // we need to reset exposure for the preview
+                resetExposureCompensation();
+            }
+        }, globalPreferences);
+        graph.addMainThreadTask("previewPrerequisites", new Runnable() {
+            @Override
+            public void run() {
+                // Starting the preview needs preferences, camera screen nail,
+                // and focus area indicator.
+                mStartPreviewPrerequisiteReady.open();
+            }
+        }, inflate, screenNail, localPreferences);
+        graph.addMainThreadTask("controls", new Runnable() {
+            @Override
+            public void run() {
+                initializeControlByIntent();
+                mQuickCapture = mActivity.getIntent().getBooleanExtra(
+                        EXTRA_QUICK_CAPTURE, false);
+                initializeMiscControls();
+                mLocationManager = new LocationManager(mActivity, PhotoModule.this);
+                initOnScreenIndicator();
+            }
+        }, inflate, screenNail);
+        StartupTaskGraph.Task cachedPreferences = graph.addBackgroundTask(
+                "cachedPreferences", new Runnable() {
+            @Override
+            public void run() {
+                loadCachedPreferences();
+            }
+        }, localPreferences);
+        graph.addMainThreadTask("cachedControls", new Runnable() {
+            @Override
+            public void run() {
+                initializeControlsFromCache();
+            }
+        }, cachedPreferences, inflate);
+        graph.run();
+    }
 
-        initializeControlByIntent();
-        mQuickCapture = mActivity.getIntent().getBooleanExtra(EXTRA_QUICK_CAPTURE, false);
-        initializeMiscControls();
-        mLocationManager = new LocationManager(mActivity, this);
-        initOnScreenIndicator();
+    // Builds the preference group from the parameters saved by an earlier
+    // launch, so the pie menu does not have to wait for the camera to open.
+    private void loadCachedPreferences() {
+        Parameters cached = CameraCapabilityCache.instance().getParameters(
+                mActivity, mCameraId);
+        if (cached == null) return;
+        CameraSettings settings = new CameraSettings(mActivity, cached,
+                mCameraId, CameraHolder.instance().getCameraInfo());
+        mPreferenceGroup = settings.getPreferenceGroup(R.xml.camera_preferences);
+        mControlsFromCache = true;
+    }
+
+    // If the opened camera turns out to support something else than the
+    // cache said, initializeAfterCameraOpen() builds the controls again.
+    private void initializeControlsFromCache() {
+        if (!mControlsFromCache) return;
+        mPieRenderer = new PieRenderer(mActivity);
+        mPhotoControl = new PhotoController(mActivity, this, mPieRenderer);
+        mPhotoControl.setListener(this);
+        mPieRenderer.setPieListener(this);
+        mPhotoControl.initialize(mPreferenceGroup);
     }
 
     // Prompt the user to pick to record location for the very first run of
@@ -565,7 +648,12 @@ public class PhotoModule
             mGestures = new PreviewGestures(mActivity, this, mZoomRenderer, mPieRenderer);
         }
         initializeRenderOverlay();
-        initializePhotoControl();
+        if (mControlsFromCache && mCachedCapabilitiesValid) {
+            updateSceneModeUI();
+        } else {
+            initializePhotoControl();
+        }
+        mControlsFromCache = false;
 
         // These depend on camera parameters.
         setPreviewFrameLayoutAspectRatio();
@@ -685,6 +773,7 @@ public class PhotoModule
             // Set zoom parameters asynchronously
             mParameters.setZoom(mZoomValue);
             mCameraDevice.setParametersAsync(mParameters);
+            mParameterUpdater.onParametersSent(mParameters);
             if (mZoomRenderer != null) {
                 Parameters p = mCameraDevice.getParameters();
                 mZoomRenderer.setZoomValue(mZoomRatios.get(p.getZoom()));
@@ -1300,7 +1389,7 @@ public class PhotoModule
         mParameters.setRotation(mJpegRotation);
         Location loc = mLocationManager.getCurrentLocation();
         Util.setGpsParameters(mParameters, loc);
-        mCameraDevice.setParameters(mParameters);
+        mParameterUpdater.set(mCameraDevice, mParameters);
 
         mCameraDevice.takePicture2(mShutterCallback, mRawPictureCallback,
                 mPostViewPictureCallback, new JpegPictureCallback(loc),
@@ -1688,6 +1777,31 @@ public class PhotoModule
         PopupManager.getInstance(mActivity).notifyShowPopup(null);
     }
 
+    @Override
+    public boolean canUnpark() {
+        return !mOpenCameraFail && !mCameraDisabled
+                && mCameraId == getPreferredCameraId(mPreferences);
+    }
+
+    @Override
+    public void onUnpark(boolean reuseScreenNail) {
+        // The preferences the new preference views bind to. Another module
+        // may have created its own while this one was parked.
+        mPreferences.setCurrent(mActivity);
+        if (reuseScreenNail) {
+            mActivity.reuseCameraScreenNail(!mIsImageCaptureIntent);
+        } else {
+            mActivity.createCameraScreenNail(!mIsImageCaptureIntent);
+        }
+        mActivity.setSingleTapUpListener(mPreviewFrameLayout);
+        // Otherwise initializeFirstTime() sets up the shutter button.
+        if (mFirstTimeInitialized) {
+            mShutterButton.setImageResource(R.drawable.btn_new_shutter);
+            mShutterButton.setOnShutterButtonListener(this);
+            mShutterButton.setVisibility(View.VISIBLE);
+        }
+    }
+
     void waitCameraStartUpThread() {
         try {
             if (mCameraStartUpThread != null) {
@@ -2034,6 +2148,7 @@ public class PhotoModule
             }
             mCameraDevice.setErrorCallback(null);
             CameraHolder.instance().release();
+            mParameterUpdater.reset();
             mFaceDetectionStarted = false;
             mCameraDevice = null;
             setCameraState(PREVIEW_STOPPED);
@@ -2130,10 +2245,10 @@ public class PhotoModule
     private void updateCameraParametersInitialize() {
         // Reset preview frame rate to the maximum because it may be lowered by
         // video camera application.
-        List<Integer> frameRates = mParameters.getSupportedPreviewFrameRates();
-        if (frameRates != null) {
-            Integer max = Collections.max(frameRates);
-            mParameters.setPreviewFrameRate(max);
+        int maxFrameRate = CameraCapabilities.get(mCameraId, mParameters)
+                .getMaxPreviewFrameRate();
+        if (maxFrameRate > 0) {
+            mParameters.setPreviewFrameRate(maxFrameRate);
         }
 
         mParameters.set(Util.RECORDING_HINT, Util.FALSE);
@@ -2187,6 +2302,7 @@ public class PhotoModule
         setAutoWhiteBalanceLockIfSupported();
         setFocusAreasIfSupported();
         setMeteringAreasIfSupported();
+        CameraCapabilities capabilities = CameraCapabilities.get(mCameraId, mParameters);
 
         // Set picture size.
         String pictureSize = mPreferences.getString(
@@ -2194,27 +2310,25 @@ public class PhotoModule
         if (pictureSize == null) {
             CameraSettings.initialCameraPictureSize(mActivity, mParameters);
         } else {
-            List<Size> supported = mParameters.getSupportedPictureSizes();
             CameraSettings.setCameraPictureSize(
-                    pictureSize, supported, mParameters);
+                    pictureSize, capabilities, mParameters);
         }
         Size size = mParameters.getPictureSize();
 
         // Set a preview size that is closest to the viewfinder height and has
         // the right aspect ratio.
-        List<Size> sizes = mParameters.getSupportedPreviewSizes();
-        Size optimalSize = Util.getOptimalPreviewSize(mActivity, sizes,
+        Point optimalSize = capabilities.getOptimalPreviewSize(mActivity,
                 (double) size.width / size.height);
         Size original = mParameters.getPreviewSize();
-        if (!original.equals(optimalSize)) {
-            mParameters.setPreviewSize(optimalSize.width, optimalSize.height);
+        if (original.width != optimalSize.x || original.height != optimalSize.y) {
+            mParameters.setPreviewSize(optimalSize.x, optimalSize.y);
 
             // Zoom related settings will be changed for different preview
             // sizes, so set and read the parameters to get latest values
-            mCameraDevice.setParameters(mParameters);
-            mParameters = mCameraDevice.getParameters();
+            mParameters = mParameterUpdater.setAndRead(mCameraDevice, mParameters);
+            capabilities = CameraCapabilities.get(mCameraId, mParameters);
         }
-        Log.v(TAG, "Preview size is " + optimalSize.width + "x" + optimalSize.height);
+        Log.v(TAG, "Preview size is " + optimalSize.x + "x" + optimalSize.y);
 
         // Since changing scene mode may change supported values, set scene mode
         // first. HDR is a scene mode. To promote it in UI, it is stored in a
@@ -2228,15 +2342,15 @@ public class PhotoModule
                 CameraSettings.KEY_SCENE_MODE,
                 mActivity.getString(R.string.pref_camera_scenemode_default));
         }
-        if (Util.isSupported(mSceneMode, mParameters.getSupportedSceneModes())) {
+        if (capabilities.isSceneModeSupported(mSceneMode)) {
             if (!mParameters.getSceneMode().equals(mSceneMode)) {
                 mParameters.setSceneMode(mSceneMode);
 
                 // Setting scene mode will change the settings of flash mode,
                 // white balance, and focus mode. Here we read back the
                 // parameters, so we can know those settings.
-                mCameraDevice.setParameters(mParameters);
-                mParameters = mCameraDevice.getParameters();
+                mParameters = mParameterUpdater.setAndRead(mCameraDevice, mParameters);
+                capabilities = CameraCapabilities.get(mCameraId, mParameters);
             }
         } else {
             mSceneMode = mParameters.getSceneMode();
@@ -2264,15 +2378,13 @@ public class PhotoModule
         String colorEffect = mPreferences.getString(
                 CameraSettings.KEY_COLOR_EFFECT,
                 mActivity.getString(R.string.pref_camera_coloreffect_default));
-        if (Util.isSupported(colorEffect, mParameters.getSupportedColorEffects())) {
+        if (capabilities.isColorEffectSupported(colorEffect)) {
             mParameters.setColorEffect(colorEffect);
         }
 
         // Set exposure compensation
         int value = CameraSettings.readExposure(mPreferences);
-        int max = mParameters.getMaxExposureCompensation();
-        int min = mParameters.getMinExposureCompensation();
-        if (value >= min && value <= max) {
+        if (capabilities.isExposureCompensationSupported(value)) {
             mParameters.setExposureCompensation(value);
         } else {
             Log.w(TAG, "invalid exposure range: " + value);
@@ -2283,8 +2395,7 @@ public class PhotoModule
             String flashMode = mPreferences.getString(
                     CameraSettings.KEY_FLASH_MODE,
                     mActivity.getString(R.string.pref_camera_flashmode_default));
-            List<String> supportedFlash = mParameters.getSupportedFlashModes();
-            if (Util.isSupported(flashMode, supportedFlash)) {
+            if (capabilities.isFlashModeSupported(flashMode)) {
                 mParameters.setFlashMode(flashMode);
             } else {
                 flashMode = mParameters.getFlashMode();
@@ -2298,8 +2409,7 @@ public class PhotoModule
             String whiteBalance = mPreferences.getString(
                     CameraSettings.KEY_WHITE_BALANCE,
                     mActivity.getString(R.string.pref_camera_whitebalance_default));
-            if (Util.isSupported(whiteBalance,
-                    mParameters.getSupportedWhiteBalance())) {
+            if (capabilities.isWhiteBalanceSupported(whiteBalance)) {
                 mParameters.setWhiteBalance(whiteBalance);
             } else {
                 whiteBalance = mParameters.getWhiteBalance();
@@ -2346,7 +2456,7 @@ public class PhotoModule
             updateCameraParametersPreference();
         }
 
-        mCameraDevice.setParameters(mParameters);
+        mParameterUpdater.set(mCameraDevice, mParameters);
     }
 
     // If the Camera is idle, update the parameters immediately, otherwise
@@ -2460,7 +2570,7 @@ public class PhotoModule
         CameraSettings.upgradeLocalPreferences(mPreferences.getLocal());
         try {
             mCameraDevice = Util.openCamera(mActivity, mCameraId);
-            mParameters = mCameraDevice.getParameters();
+            mParameters = mParameterUpdater.read(mCameraDevice);
         } catch (CameraHardwareException e) {
             Util.showErrorAndFinish(mActivity, R.string.cannot_connect_camera);
             return;
@@ -2559,11 +2669,12 @@ public class PhotoModule
 
     private void initializeCapabilities() {
         mInitialParams = mCameraDevice.getParameters();
-        mFocusAreaSupported = Util.isFocusAreaSupported(mInitialParams);
-        mMeteringAreaSupported = Util.isMeteringAreaSupported(mInitialParams);
-        mAeLockSupported = Util.isAutoExposureLockSupported(mInitialParams);
-        mAwbLockSupported = Util.isAutoWhiteBalanceLockSupported(mInitialParams);
-        mContinousFocusSupported = mInitialParams.getSupportedFocusModes().contains(
+        CameraCapabilities capabilities = CameraCapabilities.get(mCameraId, mInitialParams);
+        mFocusAreaSupported = capabilities.isFocusAreaSupported();
+        mMeteringAreaSupported = capabilities.isMeteringAreaSupported();
+        mAeLockSupported = capabilities.isAutoExposureLockSupported();
+        mAwbLockSupported = capabilities.isAutoWhiteBalanceLockSupported();
+        mContinousFocusSupported = capabilities.isFocusModeSupported(
                 Util.FOCUS_MODE_CONTINUOUS_PICTURE);
     }
 
@@ -33,6 +33,10 @@ public class PreferenceGroup extends CameraPreference {
         super(context, attrs);
     }
 
+    PreferenceGroup(Context context, String title) {
+        super(context, title);
+    }
+
     public void addChild(CameraPreference child) {
         list.add(child);
     }
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.hardware.Camera.Parameters;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Saves the preference trees built by {@link CameraSettings} in a compact
+ * binary form, so later launches can read them back instead of inflating
+ * the XML resource and filtering it against the camera parameters again.
+ * A tree is saved per resource and camera id, along with a fingerprint of
+ * everything it was built from; a tree whose fingerprint does not match is
+ * not used.
+ */
+public class PreferenceTreeCache {
+    private static final String TAG = "PreferenceTreeCache";
+
+    private static final String DIR_NAME = "preference_trees";
+    private static final int MAGIC = 0x50524654;  // "PRFT"
+    private static final int VERSION = 1;
+
+    private static final int TYPE_GROUP = 0;
+    private static final int TYPE_LIST = 1;
+    private static final int TYPE_ICON_LIST = 2;
+    private static final int TYPE_RECORD_LOCATION = 3;
+
+    private PreferenceTreeCache() {
+    }
+
+    /**
+     * Returns a fingerprint of what a tree built from {@code parameters}
+     * depends on: the camera capabilities, the number of cameras, the
+     * system build, the installed app (for the resources) and the locale.
+     */
+    public static String fingerprint(Context context, Parameters parameters,
+            int numberOfCameras) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(Build.FINGERPRINT).append('\n')
+                .append(new File(context.getApplicationInfo().sourceDir).lastModified())
+                .append('\n')
+                .append(context.getResources().getConfiguration().locale).append('\n')
+                .append(numberOfCameras).append('\n')
+                .append(CameraCapabilityCache.capabilitiesOf(parameters.flatten()));
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(
+                    builder.toString().getBytes());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(builder.toString().hashCode());
+        }
+    }
+
+    private static File getFile(Context context, int resId, int cameraId) {
+        File dir = new File(context.getCacheDir(), DIR_NAME);
+        return new File(dir, Integer.toHexString(resId) + "_" + cameraId);
+    }
+
+    /**
+     * Reads the tree saved for {@code resId} and {@code cameraId}. Returns
+     * null if there is none or it was saved with another fingerprint. The
+     * keys passed to {@link #save} are added to {@code validatedKeys}.
+     */
+    public static PreferenceGroup load(Context context, int resId, int cameraId,
+            String fingerprint, List<String> validatedKeys) {
+        File file = getFile(context, resId, cameraId);
+        if (!file.exists()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !fingerprint.equals(in.readUTF())) {
+                return null;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                validatedKeys.add(in.readUTF());
+            }
+            CameraPreference root = readPreference(in, context);
+            return (root instanceof PreferenceGroup) ? (PreferenceGroup) root : null;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + file, e);
+            return null;
+        } finally {
+            Util.closeSilently(in);
+        }
+    }
+
+    /**
+     * Saves {@code group} and the keys of the preferences whose values have
+     * to be checked again after loading.
+     */
+    public static void save(Context context, int resId, int cameraId,
+            String fingerprint, PreferenceGroup group, List<String> validatedKeys) {
+        File file = getFile(context, resId, cameraId);
+        File tmp = new File(file.getPath() + ".tmp");
+        file.getParentFile().mkdirs();
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(validatedKeys.size());
+            for (String key : validatedKeys) {
+                out.writeUTF(key);
+            }
+            writePreference(out, group);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) Log.w(TAG, "Cannot rename " + tmp);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + tmp, e);
+        } finally {
+            Util.closeSilently(out);
+            tmp.delete();
+        }
+    }
+
+    private static void writePreference(DataOutputStream out, CameraPreference pref)
+            throws IOException {
+        if (pref instanceof PreferenceGroup) {
+            PreferenceGroup group = (PreferenceGroup) pref;
+            out.writeByte(TYPE_GROUP);
+            writeString(out, group.getTitle());
+            out.writeInt(group.size());
+            for (int i = 0; i < group.size(); i++) {
+                writePreference(out, group.get(i));
+            }
+            return;
+        }
+        // Subclasses first.
+        if (pref instanceof RecordLocationPreference) {
+            out.writeByte(TYPE_RECORD_LOCATION);
+        } else if (pref instanceof IconListPreference) {
+            out.writeByte(TYPE_ICON_LIST);
+        } else if (pref instanceof ListPreference) {
+            out.writeByte(TYPE_LIST);
+        } else {
+            throw new IOException("Unknown preference " + pref.getClass());
+        }
+        ListPreference list = (ListPreference) pref;
+        writeString(out, list.getTitle());
+        out.writeUTF(list.getKey());
+        writeStrings(out, list.getDefaultValues());
+        writeStrings(out, list.getEntries());
+        writeStrings(out, list.getEntryValues());
+        if (pref instanceof IconListPreference) {
+            IconListPreference icons = (IconListPreference) pref;
+            out.writeInt(icons.getSingleIcon());
+            writeInts(out, icons.getIconIds());
+            writeInts(out, icons.getLargeIconIds());
+            writeInts(out, icons.getImageIds());
+            out.writeBoolean(icons.getUseSingleIcon());
+        }
+    }
+
+    private static CameraPreference readPreference(DataInputStream in, Context context)
+            throws IOException {
+        int type = in.readByte();
+        String title = readString(in);
+        if (type == TYPE_GROUP) {
+            PreferenceGroup group = new PreferenceGroup(context, title);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                group.addChild(readPreference(in, context));
+            }
+            return group;
+        }
+        String key = in.readUTF();
+        CharSequence[] defaultValues = readStrings(in);
+        CharSequence[] entries = readStrings(in);
+        CharSequence[] entryValues = readStrings(in);
+        switch (type) {
+            case TYPE_LIST:
+                return new ListPreference(context, title, key, defaultValues,
+                        entries, entryValues);
+            case TYPE_ICON_LIST:
+            case TYPE_RECORD_LOCATION: {
+                int singleIconId = in.readInt();
+                int[] iconIds = readInts(in);
+                int[] largeIconIds = readInts(in);
+                int[] imageIds = readInts(in);
+                boolean useSingleIcon = in.readBoolean();
+                if (type == TYPE_ICON_LIST) {
+                    return new IconListPreference(context, title, key, defaultValues,
+                            entries, entryValues, singleIconId, iconIds,
+                            largeIconIds, imageIds, useSingleIcon);
+                }
+                return new RecordLocationPreference(context, title, key, defaultValues,
+                        entries, entryValues, singleIconId, iconIds,
+                        largeIconIds, imageIds, useSingleIcon);
+            }
+            default:
+                throw new IOException("Unknown preference type " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, CharSequence s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s.toString());
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeStrings(DataOutputStream out, CharSequence[] strings)
+            throws IOException {
+        out.writeInt(strings == null ? -1 : strings.length);
+        if (strings == null) return;
+        for (CharSequence s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    private static CharSequence[] readStrings(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        CharSequence[] strings = new CharSequence[length];
+        for (int i = 0; i < length; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values == null) return;
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+}
@@ -40,6 +40,15 @@ public class RecordLocationPreference extends IconListPreference {
         mResolver = context.getContentResolver();
     }
 
+    RecordLocationPreference(Context context, String title, String key,
+            CharSequence[] defaultValues, CharSequence[] entries,
+            CharSequence[] entryValues, int singleIconId, int[] iconIds,
+            int[] largeIconIds, int[] imageIds, boolean useSingleIcon) {
+        super(context, title, key, defaultValues, entries, entryValues,
+                singleIconId, iconIds, largeIconIds, imageIds, useSingleIcon);
+        mResolver = context.getContentResolver();
+    }
+
     @Override
     public String getValue() {
         return get(getSharedPreferences(), mResolver) ? VALUE_ON : VALUE_OFF;
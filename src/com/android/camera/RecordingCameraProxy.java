@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.Camera.AutoFocusCallback;
+import android.hardware.Camera.AutoFocusMoveCallback;
+import android.hardware.Camera.ErrorCallback;
+import android.hardware.Camera.FaceDetectionListener;
+import android.hardware.Camera.OnZoomChangeListener;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.ShutterCallback;
+import android.os.SystemClock;
+import android.view.SurfaceHolder;
+
+import com.android.camera.CameraManager.CameraProxy;
+import com.android.gallery3d.common.ApiHelper;
+
+import java.io.IOException;
+
+/**
+ * A {@code CameraProxy} that forwards every call to a real device and writes
+ * the calls and the resulting callbacks to a {@link CameraSessionRecorder}.
+ */
+class RecordingCameraProxy extends CameraProxy {
+    private final CameraProxy mDevice;
+    private final CameraSessionRecorder mRecorder;
+
+    // Preview frames and focus moves are timed from the previous callback
+    // of the same kind.
+    private long mLastPreviewFrameTime;
+    private long mLastFocusMoveTime;
+
+    RecordingCameraProxy(CameraProxy device, CameraSessionRecorder recorder) {
+        CameraManager.instance().super();
+        mDevice = device;
+        mRecorder = recorder;
+    }
+
+    private void recordCall(String method, long startTime) {
+        mRecorder.recordCall(method, startTime, SystemClock.uptimeMillis() - startTime);
+    }
+
+    @Override
+    public Camera getCamera() {
+        return mDevice.getCamera();
+    }
+
+    @Override
+    public void release() {
+        long start = SystemClock.uptimeMillis();
+        mDevice.release();
+        recordCall("release", start);
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        long start = SystemClock.uptimeMillis();
+        mDevice.reconnect();
+        recordCall("reconnect", start);
+    }
+
+    @Override
+    public void unlock() {
+        long start = SystemClock.uptimeMillis();
+        mDevice.unlock();
+        recordCall("unlock", start);
+    }
+
+    @Override
+    public void lock() {
+        long start = SystemClock.uptimeMillis();
+        mDevice.lock();
+        recordCall("lock", start);
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
+    @Override
+    public void setPreviewTextureAsync(SurfaceTexture surfaceTexture) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.setPreviewTextureAsync(surfaceTexture);
+        recordCall("setPreviewTextureAsync", start);
+    }
+
+    @Override
+    public void setPreviewDisplayAsync(SurfaceHolder surfaceHolder) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.setPreviewDisplayAsync(surfaceHolder);
+        recordCall("setPreviewDisplayAsync", start);
+    }
+
+    @Override
+    public void startPreviewAsync() {
+        long start = SystemClock.uptimeMillis();
+        mLastPreviewFrameTime = start;
+        mDevice.startPreviewAsync();
+        recordCall("startPreviewAsync", start);
+    }
+
+    @Override
+    public void stopPreview() {
+        long start = SystemClock.uptimeMillis();
+        mDevice.stopPreview();
+        recordCall("stopPreview", start);
+    }
+
+    @Override
+    public void setPreviewCallback(PreviewCallback cb) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.setPreviewCallback(wrap(cb));
+        recordCall("setPreviewCallback", start);
+    }
+
+    @Override
+    public void setPreviewCallbackWithBuffer(PreviewCallback cb) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.setPreviewCallbackWithBuffer(wrap(cb));
+        recordCall("setPreviewCallbackWithBuffer", start);
+    }
+
+    @Override
+    public void addCallbackBuffer(byte[] callbackBuffer) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.addCallbackBuffer(callbackBuffer);
+        recordCall("addCallbackBuffer", start);
+    }
+
+    @Override
+    public void autoFocus(final AutoFocusCallback cb) {
+        final long start = SystemClock.uptimeMillis();
+        AutoFocusCallback wrapper = (cb == null) ? null : new AutoFocusCallback() {
+            @Override
+            public void onAutoFocus(boolean success, Camera camera) {
+                mRecorder.recordCallback(CameraSessionRecorder.CALLBACK_AUTO_FOCUS,
+                        SystemClock.uptimeMillis() - start, success ? 1 : 0, null);
+                cb.onAutoFocus(success, camera);
+            }
+        };
+        mDevice.autoFocus(wrapper);
+        recordCall("autoFocus", start);
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+        long start = SystemClock.uptimeMillis();
+        mDevice.cancelAutoFocus();
+        recordCall("cancelAutoFocus", start);
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void setAutoFocusMoveCallback(final AutoFocusMoveCallback cb) {
+        long start = SystemClock.uptimeMillis();
+        mLastFocusMoveTime = start;
+        AutoFocusMoveCallback wrapper = (cb == null) ? null : new AutoFocusMoveCallback() {
+            @Override
+            public void onAutoFocusMoving(boolean moving, Camera camera) {
+                long now = SystemClock.uptimeMillis();
+                mRecorder.recordCallback(CameraSessionRecorder.CALLBACK_AUTO_FOCUS_MOVING,
+                        now - mLastFocusMoveTime, moving ? 1 : 0, null);
+                mLastFocusMoveTime = now;
+                cb.onAutoFocusMoving(moving, camera);
+            }
+        };
+        mDevice.setAutoFocusMoveCallback(wrapper);
+        recordCall("setAutoFocusMoveCallback", start);
+    }
+
+    @Override
+    public void takePicture(ShutterCallback shutter, PictureCallback raw,
+            PictureCallback postview, PictureCallback jpeg) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.takePicture(wrap(shutter, start),
+                wrap(raw, CameraSessionRecorder.CALLBACK_RAW, start),
+                wrap(postview, CameraSessionRecorder.CALLBACK_POSTVIEW, start),
+                wrap(jpeg, CameraSessionRecorder.CALLBACK_JPEG, start));
+        recordCall("takePicture", start);
+    }
+
+    @Override
+    public void takePicture2(ShutterCallback shutter, PictureCallback raw,
+            PictureCallback postview, PictureCallback jpeg,
+            int cameraState, int focusState) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.takePicture2(wrap(shutter, start),
+                wrap(raw, CameraSessionRecorder.CALLBACK_RAW, start),
+                wrap(postview, CameraSessionRecorder.CALLBACK_POSTVIEW, start),
+                wrap(jpeg, CameraSessionRecorder.CALLBACK_JPEG, start),
+                cameraState, focusState);
+        recordCall("takePicture", start);
+    }
+
+    @Override
+    public void setDisplayOrientation(int degrees) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.setDisplayOrientation(degrees);
+        recordCall("setDisplayOrientation", start);
+    }
+
+    @Override
+    public void setZoomChangeListener(OnZoomChangeListener listener) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.setZoomChangeListener(listener);
+        recordCall("setZoomChangeListener", start);
+    }
+
+    // Zoom, face detection and error callbacks are not recorded; the calls
+    // that register them are still timed.
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    @Override
+    public void setFaceDetectionListener(FaceDetectionListener listener) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.setFaceDetectionListener(listener);
+        recordCall("setFaceDetectionListener", start);
+    }
+
+    @Override
+    public void startFaceDetection() {
+        long start = SystemClock.uptimeMillis();
+        mDevice.startFaceDetection();
+        recordCall("startFaceDetection", start);
+    }
+
+    @Override
+    public void stopFaceDetection() {
+        long start = SystemClock.uptimeMillis();
+        mDevice.stopFaceDetection();
+        recordCall("stopFaceDetection", start);
+    }
+
+    @Override
+    public void setErrorCallback(ErrorCallback cb) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.setErrorCallback(cb);
+        recordCall("setErrorCallback", start);
+    }
+
+    @Override
+    public void setParameters(Parameters params) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.setParameters(params);
+        recordCall("setParameters", start);
+    }
+
+    @Override
+    public void setParametersAsync(Parameters params) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.setParametersAsync(params);
+        recordCall("setParametersAsync", start);
+    }
+
+    @Override
+    public Parameters getParameters() {
+        long start = SystemClock.uptimeMillis();
+        Parameters parameters = mDevice.getParameters();
+        recordCall("getParameters", start);
+        if (parameters != null) mRecorder.recordParameters(parameters.flatten());
+        return parameters;
+    }
+
+    @Override
+    public void enableShutterSound(boolean enable) {
+        long start = SystemClock.uptimeMillis();
+        mDevice.enableShutterSound(enable);
+        recordCall("enableShutterSound", start);
+    }
+
+    @Override
+    public void waitForIdle() {
+        long start = SystemClock.uptimeMillis();
+        mDevice.waitForIdle();
+        recordCall("waitForIdle", start);
+    }
+
+    private PreviewCallback wrap(final PreviewCallback cb) {
+        if (cb == null) return null;
+        return new PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                long now = SystemClock.uptimeMillis();
+                mRecorder.recordCallback(CameraSessionRecorder.CALLBACK_PREVIEW_FRAME,
+                        now - mLastPreviewFrameTime, 0, data);
+                mLastPreviewFrameTime = now;
+                cb.onPreviewFrame(data, camera);
+            }
+        };
+    }
+
+    private ShutterCallback wrap(final ShutterCallback cb, final long start) {
+        if (cb == null) return null;
+        return new ShutterCallback() {
+            @Override
+            public void onShutter() {
+                mRecorder.recordCallback(CameraSessionRecorder.CALLBACK_SHUTTER,
+                        SystemClock.uptimeMillis() - start, 0, null);
+                cb.onShutter();
+            }
+        };
+    }
+
+    private PictureCallback wrap(final PictureCallback cb, final int kind,
+            final long start) {
+        if (cb == null) return null;
+        return new PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera camera) {
+                mRecorder.recordCallback(kind, SystemClock.uptimeMillis() - start, 0, data);
+                cb.onPictureTaken(data, camera);
+            }
+        };
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.Camera.AutoFocusCallback;
+import android.hardware.Camera.AutoFocusMoveCallback;
+import android.hardware.Camera.ErrorCallback;
+import android.hardware.Camera.FaceDetectionListener;
+import android.hardware.Camera.OnZoomChangeListener;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.ShutterCallback;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.view.SurfaceHolder;
+
+import com.android.camera.CameraManager.CameraProxy;
+import com.android.gallery3d.common.ApiHelper;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A {@code CameraProxy} that plays back a session written by
+ * {@link CameraSessionRecorder}. Every call blocks for as long as the same
+ * call did in the recording, and preview frames, focus results and pictures
+ * are delivered with the recorded delays and payloads. Recorded calls and
+ * callbacks are used in order and start over once they run out, so the
+ * playback is deterministic however long the benchmark runs.
+ *
+ * <p>It can be handed to {@link CameraHolder#injectMockCamera} to run the
+ * capture pipeline on a device or emulator without camera hardware.
+ * {@link #getCamera()} returns null, so video recording is not supported.
+ */
+public class ReplayCameraProxy extends CameraProxy {
+    private static class RecordedCallback {
+        long delay;
+        int arg;
+        byte[] data;
+    }
+
+    // Recorded values of one kind. next() wraps around at the end.
+    private static class Recording<T> {
+        private final ArrayList<T> mValues = new ArrayList<T>();
+        private int mNext;
+
+        void add(T value) {
+            mValues.add(value);
+        }
+
+        T next() {
+            if (mValues.isEmpty()) return null;
+            T value = mValues.get(mNext);
+            mNext = (mNext + 1) % mValues.size();
+            return value;
+        }
+    }
+
+    // Callbacks are delivered on the main thread, like the ones of a camera
+    // opened from a thread without a looper.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Object mPreviewToken = new Object();
+    private final Object mFocusMoveToken = new Object();
+
+    private final HashMap<String, Recording<Long>> mCallDurations;
+    private final SparseArray<Recording<RecordedCallback>> mCallbacks;
+    private String mParameters;
+    private float mTimeScale = 1f;
+
+    private boolean mPreviewing;
+    private PreviewCallback mPreviewCallback;
+    private boolean mWithBuffer;
+    private final LinkedList<byte[]> mCallbackBuffers = new LinkedList<byte[]>();
+    private AutoFocusMoveCallback mAutoFocusMoveCallback;
+
+    private int mPreviewFrameCount;
+    private int mDroppedPreviewFrameCount;
+
+    private ReplayCameraProxy(HashMap<String, Recording<Long>> callDurations,
+            SparseArray<Recording<RecordedCallback>> callbacks, String parameters) {
+        CameraManager.instance().super();
+        mCallDurations = callDurations;
+        mCallbacks = callbacks;
+        mParameters = parameters;
+    }
+
+    public static ReplayCameraProxy load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != CameraSessionRecorder.MAGIC
+                    || in.readInt() != CameraSessionRecorder.VERSION) {
+                throw new IOException("Not a camera session file: " + file);
+            }
+            in.readInt();  // camera id
+
+            HashMap<String, Recording<Long>> durations =
+                    new HashMap<String, Recording<Long>>();
+            SparseArray<Recording<RecordedCallback>> callbacks =
+                    new SparseArray<Recording<RecordedCallback>>();
+            String parameters = null;
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    // The recording was not closed properly. Use what we have.
+                    break;
+                }
+                if (type == CameraSessionRecorder.RECORD_END) break;
+                in.readLong();  // time since the recording started
+                switch (type) {
+                    case CameraSessionRecorder.RECORD_CALL: {
+                        String method = in.readUTF();
+                        Recording<Long> recording = durations.get(method);
+                        if (recording == null) {
+                            recording = new Recording<Long>();
+                            durations.put(method, recording);
+                        }
+                        recording.add(in.readLong());
+                        break;
+                    }
+                    case CameraSessionRecorder.RECORD_PARAMETERS: {
+                        byte[] data = CameraSessionRecorder.readBytes(in);
+                        // The first parameters are what the device reported
+                        // when it was opened.
+                        if (parameters == null) parameters = new String(data, "UTF-8");
+                        break;
+                    }
+                    case CameraSessionRecorder.RECORD_CALLBACK: {
+                        int kind = in.readByte();
+                        RecordedCallback cb = new RecordedCallback();
+                        cb.delay = in.readLong();
+                        cb.arg = in.readInt();
+                        cb.data = CameraSessionRecorder.readBytes(in);
+                        Recording<RecordedCallback> recording = callbacks.get(kind);
+                        if (recording == null) {
+                            recording = new Recording<RecordedCallback>();
+                            callbacks.put(kind, recording);
+                        }
+                        recording.add(cb);
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                }
+            }
+            if (parameters == null) {
+                throw new IOException("No camera parameters in " + file);
+            }
+            return new ReplayCameraProxy(durations, callbacks, parameters);
+        } finally {
+            Util.closeSilently(in);
+        }
+    }
+
+    /**
+     * Scales all recorded delays. 1 plays the session back in real time and
+     * 0 plays it back as fast as possible.
+     */
+    public synchronized void setTimeScale(float scale) {
+        mTimeScale = scale;
+    }
+
+    public synchronized int getPreviewFrameCount() {
+        return mPreviewFrameCount;
+    }
+
+    // Frames that arrived while no callback buffer was queued.
+    public synchronized int getDroppedPreviewFrameCount() {
+        return mDroppedPreviewFrameCount;
+    }
+
+    private long scale(long delay) {
+        return (long) (delay * mTimeScale);
+    }
+
+    private void simulateCall(String method) {
+        long duration;
+        synchronized (this) {
+            Recording<Long> recording = mCallDurations.get(method);
+            Long value = (recording == null) ? null : recording.next();
+            if (value == null) return;
+            duration = scale(value);
+        }
+        if (duration > 0) SystemClock.sleep(duration);
+    }
+
+    private synchronized RecordedCallback nextCallback(int kind) {
+        Recording<RecordedCallback> recording = mCallbacks.get(kind);
+        return (recording == null) ? null : recording.next();
+    }
+
+    @Override
+    public Camera getCamera() {
+        return null;
+    }
+
+    @Override
+    public void release() {
+        simulateCall("release");
+        synchronized (this) {
+            stopPreviewLocked();
+            mAutoFocusMoveCallback = null;
+        }
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        simulateCall("reconnect");
+    }
+
+    @Override
+    public void unlock() {
+        simulateCall("unlock");
+    }
+
+    @Override
+    public void lock() {
+        simulateCall("lock");
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
+    @Override
+    public void setPreviewTextureAsync(SurfaceTexture surfaceTexture) {
+    }
+
+    @Override
+    public void setPreviewDisplayAsync(SurfaceHolder surfaceHolder) {
+    }
+
+    @Override
+    public synchronized void startPreviewAsync() {
+        if (mPreviewing) return;
+        mPreviewing = true;
+        long now = SystemClock.uptimeMillis();
+        schedulePreviewFrameLocked(now);
+        scheduleFocusMoveLocked(now);
+    }
+
+    @Override
+    public void stopPreview() {
+        simulateCall("stopPreview");
+        synchronized (this) {
+            stopPreviewLocked();
+        }
+    }
+
+    private void stopPreviewLocked() {
+        mPreviewing = false;
+        mCallbackBuffers.clear();
+        mHandler.removeCallbacksAndMessages(mPreviewToken);
+        mHandler.removeCallbacksAndMessages(mFocusMoveToken);
+    }
+
+    @Override
+    public void setPreviewCallback(PreviewCallback cb) {
+        simulateCall("setPreviewCallback");
+        setPreviewCallback(cb, false);
+    }
+
+    @Override
+    public void setPreviewCallbackWithBuffer(PreviewCallback cb) {
+        simulateCall("setPreviewCallbackWithBuffer");
+        setPreviewCallback(cb, true);
+    }
+
+    private synchronized void setPreviewCallback(PreviewCallback cb, boolean withBuffer) {
+        boolean wasDelivering = mPreviewCallback != null;
+        mPreviewCallback = cb;
+        mWithBuffer = withBuffer;
+        if (!withBuffer) mCallbackBuffers.clear();
+        if (cb == null) {
+            mHandler.removeCallbacksAndMessages(mPreviewToken);
+        } else if (!wasDelivering && mPreviewing) {
+            schedulePreviewFrameLocked(SystemClock.uptimeMillis());
+        }
+    }
+
+    @Override
+    public void addCallbackBuffer(byte[] callbackBuffer) {
+        simulateCall("addCallbackBuffer");
+        synchronized (this) {
+            mCallbackBuffers.add(callbackBuffer);
+        }
+    }
+
+    private void schedulePreviewFrameLocked(long from) {
+        if (mPreviewCallback == null) return;
+        final RecordedCallback frame = nextCallback(CameraSessionRecorder.CALLBACK_PREVIEW_FRAME);
+        if (frame == null || frame.data == null) return;
+        final long time = from + scale(frame.delay);
+        mHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                deliverPreviewFrame(frame, time);
+            }
+        }, mPreviewToken, time);
+    }
+
+    private void deliverPreviewFrame(RecordedCallback frame, long time) {
+        PreviewCallback cb;
+        byte[] data;
+        synchronized (this) {
+            if (!mPreviewing || mPreviewCallback == null) return;
+            cb = mPreviewCallback;
+            mPreviewFrameCount++;
+            if (mWithBuffer) {
+                data = mCallbackBuffers.poll();
+                if (data == null || data.length < frame.data.length) {
+                    mDroppedPreviewFrameCount++;
+                    data = null;
+                } else {
+                    System.arraycopy(frame.data, 0, data, 0, frame.data.length);
+                }
+            } else {
+                data = frame.data.clone();
+            }
+            schedulePreviewFrameLocked(time);
+        }
+        if (data != null) cb.onPreviewFrame(data, null);
+    }
+
+    @Override
+    public void autoFocus(final AutoFocusCallback cb) {
+        // The result is timed from the start of the call, like in the recording.
+        long start = SystemClock.uptimeMillis();
+        simulateCall("autoFocus");
+        final RecordedCallback result = nextCallback(CameraSessionRecorder.CALLBACK_AUTO_FOCUS);
+        if (cb == null || result == null) return;
+        mHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                cb.onAutoFocus(result.arg != 0, null);
+            }
+        }, start + scale(result.delay));
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+        simulateCall("cancelAutoFocus");
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void setAutoFocusMoveCallback(AutoFocusMoveCallback cb) {
+        simulateCall("setAutoFocusMoveCallback");
+        synchronized (this) {
+            mAutoFocusMoveCallback = cb;
+            mHandler.removeCallbacksAndMessages(mFocusMoveToken);
+            if (mPreviewing) scheduleFocusMoveLocked(SystemClock.uptimeMillis());
+        }
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
+    private void scheduleFocusMoveLocked(long from) {
+        if (mAutoFocusMoveCallback == null) return;
+        final RecordedCallback move = nextCallback(
+                CameraSessionRecorder.CALLBACK_AUTO_FOCUS_MOVING);
+        if (move == null) return;
+        final long time = from + scale(move.delay);
+        mHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                AutoFocusMoveCallback cb;
+                synchronized (ReplayCameraProxy.this) {
+                    cb = mAutoFocusMoveCallback;
+                    if (!mPreviewing || cb == null) return;
+                    scheduleFocusMoveLocked(time);
+                }
+                cb.onAutoFocusMoving(move.arg != 0, null);
+            }
+        }, mFocusMoveToken, time);
+    }
+
+    @Override
+    public void takePicture(ShutterCallback shutter, PictureCallback raw,
+            PictureCallback postview, PictureCallback jpeg) {
+        // The callbacks are timed from the start of the call, like in the
+        // recording.
+        long start = SystemClock.uptimeMillis();
+        simulateCall("takePicture");
+        // Like the real device, taking a picture stops the preview.
+        synchronized (this) {
+            stopPreviewLocked();
+        }
+        final ShutterCallback shutterCallback = shutter;
+        final RecordedCallback shutterResult = nextCallback(CameraSessionRecorder.CALLBACK_SHUTTER);
+        if (shutter != null && shutterResult != null) {
+            mHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    shutterCallback.onShutter();
+                }
+            }, start + scale(shutterResult.delay));
+        }
+        postPicture(raw, CameraSessionRecorder.CALLBACK_RAW, start);
+        postPicture(postview, CameraSessionRecorder.CALLBACK_POSTVIEW, start);
+        postPicture(jpeg, CameraSessionRecorder.CALLBACK_JPEG, start);
+    }
+
+    @Override
+    public void takePicture2(ShutterCallback shutter, PictureCallback raw,
+            PictureCallback postview, PictureCallback jpeg,
+            int cameraState, int focusState) {
+        takePicture(shutter, raw, postview, jpeg);
+    }
+
+    private void postPicture(final PictureCallback cb, int kind, long start) {
+        final RecordedCallback result = nextCallback(kind);
+        if (cb == null || result == null) return;
+        mHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                cb.onPictureTaken(result.data, null);
+            }
+        }, start + scale(result.delay));
+    }
+
+    @Override
+    public void setDisplayOrientation(int degrees) {
+        simulateCall("setDisplayOrientation");
+    }
+
+    @Override
+    public void setZoomChangeListener(OnZoomChangeListener listener) {
+        simulateCall("setZoomChangeListener");
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
+    @Override
+    public void setFaceDetectionListener(FaceDetectionListener listener) {
+        simulateCall("setFaceDetectionListener");
+    }
+
+    @Override
+    public void startFaceDetection() {
+        simulateCall("startFaceDetection");
+    }
+
+    @Override
+    public void stopFaceDetection() {
+        simulateCall("stopFaceDetection");
+    }
+
+    @Override
+    public void setErrorCallback(ErrorCallback cb) {
+        simulateCall("setErrorCallback");
+    }
+
+    @Override
+    public void setParameters(Parameters params) {
+        simulateCall("setParameters");
+        synchronized (this) {
+            mParameters = params.flatten();
+        }
+    }
+
+    @Override
+    public void setParametersAsync(Parameters params) {
+        synchronized (this) {
+            mParameters = params.flatten();
+        }
+    }
+
+    @Override
+    public Parameters getParameters() {
+        simulateCall("getParameters");
+        synchronized (this) {
+            return Util.unflattenParameters(mParameters);
+        }
+    }
+
+    @Override
+    public void enableShutterSound(boolean enable) {
+        simulateCall("enableShutterSound");
+    }
+
+    @Override
+    public void waitForIdle() {
+    }
+}
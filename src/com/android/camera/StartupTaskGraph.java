@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the initialization steps of a module as a graph of tasks. Each task
+ * names the tasks it depends on and whether it must run on the main thread
+ * (because it touches views). Main thread tasks run on the thread that calls
+ * {@link #run()}, the others on a small pool of worker threads, and a task
+ * starts as soon as everything it depends on is done. When the graph is done
+ * the critical path, the chain of tasks that determined how long it took, is
+ * logged.
+ */
+class StartupTaskGraph {
+    private static final String TAG = "StartupTaskGraph";
+
+    private static ExecutorService sExecutor;
+
+    static class Task {
+        private final String mName;
+        private final Runnable mRunnable;
+        private final boolean mOnMainThread;
+        private final Task[] mDependencies;
+        private final ArrayList<Task> mDependents = new ArrayList<Task>();
+        private int mPendingDependencies;
+        private long mStartTime;
+        private long mEndTime;
+
+        private Task(String name, Runnable runnable, boolean onMainThread,
+                Task[] dependencies) {
+            mName = name;
+            mRunnable = runnable;
+            mOnMainThread = onMainThread;
+            mDependencies = dependencies;
+        }
+    }
+
+    private final String mName;
+    private final ArrayList<Task> mTasks = new ArrayList<Task>();
+    // Main thread tasks whose dependencies are done. Guarded by this.
+    private final ArrayList<Task> mReadyMainTasks = new ArrayList<Task>();
+    private int mRemaining;
+    // Background tasks handed to the executor and not done yet.
+    private int mRunningBackground;
+    private RuntimeException mFailure;
+    private String mCriticalPath;
+
+    public StartupTaskGraph(String name) {
+        mName = name;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            int threads = Math.max(1, Math.min(
+                    Runtime.getRuntime().availableProcessors() - 1, 3));
+            sExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "StartupTask");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    public Task addMainThreadTask(String name, Runnable runnable, Task... dependencies) {
+        return add(new Task(name, runnable, true, dependencies));
+    }
+
+    public Task addBackgroundTask(String name, Runnable runnable, Task... dependencies) {
+        return add(new Task(name, runnable, false, dependencies));
+    }
+
+    private Task add(Task task) {
+        for (Task dependency : task.mDependencies) {
+            Util.Assert(mTasks.contains(dependency));
+            dependency.mDependents.add(task);
+        }
+        mTasks.add(task);
+        return task;
+    }
+
+    /**
+     * Runs all the tasks and returns when they are done. Must be called on
+     * the main thread. A RuntimeException thrown by a task is rethrown here,
+     * once the background tasks already running are done. No new task is
+     * started after a failure.
+     */
+    public void run() {
+        long startTime = SystemClock.uptimeMillis();
+        synchronized (this) {
+            mRemaining = mTasks.size();
+            for (Task task : mTasks) {
+                task.mPendingDependencies = task.mDependencies.length;
+            }
+            for (Task task : mTasks) {
+                if (task.mPendingDependencies == 0) scheduleLocked(task);
+            }
+        }
+
+        while (true) {
+            Task next;
+            synchronized (this) {
+                while (mReadyMainTasks.isEmpty() && mRemaining > 0 && mFailure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Keep waiting. The workers cannot be abandoned.
+                    }
+                }
+                if (mFailure != null) {
+                    // The workers may still touch the module, so wait for
+                    // them before giving up.
+                    while (mRunningBackground > 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // Keep waiting. The workers cannot be abandoned.
+                        }
+                    }
+                    throw new RuntimeException(mName + " failed", mFailure);
+                }
+                if (mRemaining == 0) break;
+                next = mReadyMainTasks.remove(0);
+            }
+            execute(next);
+        }
+
+        String criticalPath = computeCriticalPath();
+        synchronized (this) {
+            mCriticalPath = criticalPath;
+        }
+        Log.v(TAG, mName + ": " + (SystemClock.uptimeMillis() - startTime)
+                + "ms, critical path: " + criticalPath);
+    }
+
+    /**
+     * Returns the critical path of the last run, for example
+     * "prefs 12ms -> camera 3ms", or null if the graph has not run.
+     */
+    public synchronized String getCriticalPath() {
+        return mCriticalPath;
+    }
+
+    private void scheduleLocked(final Task task) {
+        if (mFailure != null) return;
+        if (task.mOnMainThread) {
+            mReadyMainTasks.add(task);
+            notifyAll();
+        } else {
+            mRunningBackground++;
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(task);
+                }
+            });
+        }
+    }
+
+    private void execute(Task task) {
+        task.mStartTime = SystemClock.uptimeMillis();
+        RuntimeException failure = null;
+        try {
+            task.mRunnable.run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        task.mEndTime = SystemClock.uptimeMillis();
+        synchronized (this) {
+            if (!task.mOnMainThread) mRunningBackground--;
+            if (failure != null) {
+                if (mFailure == null) mFailure = failure;
+            } else {
+                mRemaining--;
+                for (Task dependent : task.mDependents) {
+                    if (--dependent.mPendingDependencies == 0) scheduleLocked(dependent);
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    // Walks back from the task that finished last, each time to the
+    // dependency that finished last. Each task is reported with its own run
+    // time; gaps between them are time spent waiting for a thread.
+    private synchronized String computeCriticalPath() {
+        Task last = null;
+        for (Task task : mTasks) {
+            if (last == null || task.mEndTime > last.mEndTime) last = task;
+        }
+        StringBuilder path = new StringBuilder();
+        for (Task task = last; task != null; ) {
+            String step = task.mName + " " + (task.mEndTime - task.mStartTime) + "ms";
+            path.insert(0, (path.length() == 0) ? step : step + " -> ");
+            Task latest = null;
+            for (Task dependency : task.mDependencies) {
+                if (latest == null || dependency.mEndTime > latest.mEndTime) {
+                    latest = dependency;
+                }
+            }
+            task = latest;
+        }
+        return path.toString();
+    }
+}
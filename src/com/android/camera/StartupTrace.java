@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Records when each phase of a camera startup happened, from the activity
+ * being created to the first preview frame being drawn. The events are kept
+ * in a fixed-size ring, so recording never allocates and old startups are
+ * overwritten. A startup begins at {@link #ACTIVITY_CREATE} or
+ * {@link #MODULE_SWITCH}; the times of the other phases are reported
+ * relative to it.
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    public static final int ACTIVITY_CREATE = 0;
+    public static final int MODULE_SWITCH = 1;
+    public static final int CAMERA_OPEN_START = 2;
+    public static final int CAMERA_OPEN_DONE = 3;
+    public static final int START_PREVIEW = 4;
+    public static final int FIRST_FRAME_AVAILABLE = 5;
+    public static final int FIRST_FRAME_DRAWN = 6;
+    public static final int PHASE_COUNT = 7;
+
+    private static final String[] PHASE_NAMES = {
+            "activity create",
+            "module switch",
+            "camera open start",
+            "camera open done",
+            "start preview",
+            "first frame available",
+            "first frame drawn",
+    };
+
+    private static final int CAPACITY = 64;
+
+    private static final int[] sPhases = new int[CAPACITY];
+    private static final long[] sTimes = new long[CAPACITY];
+    // Index of the next slot to write and the number of valid slots.
+    private static int sNext;
+    private static int sSize;
+
+    private StartupTrace() {
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    /** Records that {@code phase} happened now. Can be called on any thread. */
+    public static void record(int phase) {
+        long now = SystemClock.uptimeMillis();
+        synchronized (StartupTrace.class) {
+            sPhases[sNext] = phase;
+            sTimes[sNext] = now;
+            sNext = (sNext + 1) % CAPACITY;
+            if (sSize < CAPACITY) sSize++;
+        }
+        if (phase == FIRST_FRAME_DRAWN) {
+            Log.v(TAG, "startup: " + summarize());
+        }
+    }
+
+    public static synchronized void clear() {
+        sNext = 0;
+        sSize = 0;
+    }
+
+    // Returns the ring index of the i-th oldest event.
+    private static int slot(int i) {
+        return (sNext - sSize + i + CAPACITY) % CAPACITY;
+    }
+
+    // Returns the age index (see slot()) of the start of the latest startup,
+    // or -1 if it has been overwritten.
+    private static int findLastStart() {
+        for (int i = sSize - 1; i >= 0; i--) {
+            int phase = sPhases[slot(i)];
+            if (phase == ACTIVITY_CREATE || phase == MODULE_SWITCH) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the milliseconds from the start of the latest startup to the
+     * first time {@code phase} was recorded after it, or -1 if it was not.
+     */
+    public static synchronized long getPhaseTime(int phase) {
+        int start = findLastStart();
+        if (start < 0) return -1;
+        long startTime = sTimes[slot(start)];
+        if (phase == sPhases[slot(start)]) return 0;
+        for (int i = start + 1; i < sSize; i++) {
+            if (sPhases[slot(i)] == phase) return sTimes[slot(i)] - startTime;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the phases of the latest startup and their times, for example
+     * "activity create +0ms, camera open start +3ms, ...".
+     */
+    public static synchronized String summarize() {
+        int start = findLastStart();
+        if (start < 0) return "none";
+        long startTime = sTimes[slot(start)];
+        StringBuilder builder = new StringBuilder();
+        for (int i = start; i < sSize; i++) {
+            if (builder.length() > 0) builder.append(", ");
+            builder.append(PHASE_NAMES[sPhases[slot(i)]]).append(" +")
+                    .append(sTimes[slot(i)] - startTime).append("ms");
+        }
+        return builder.toString();
+    }
+
+    /** Writes all the events still in the ring, oldest first. */
+    public static synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Startup trace (uptime ms):");
+        long startTime = 0;
+        for (int i = 0; i < sSize; i++) {
+            int phase = sPhases[slot(i)];
+            long time = sTimes[slot(i)];
+            if (phase == ACTIVITY_CREATE || phase == MODULE_SWITCH) startTime = time;
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(time);
+            writer.print(" ");
+            writer.print(PHASE_NAMES[phase]);
+            if (startTime != 0) {
+                writer.print(" +");
+                writer.print(time - startTime);
+                writer.print("ms");
+            }
+            writer.println();
+        }
+    }
+}
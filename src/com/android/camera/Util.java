@@ -310,7 +310,7 @@ public class Util {
     }
 
     @TargetApi(ApiHelper.VERSION_CODES.ICE_CREAM_SANDWICH)
-    private static void throwIfCameraDisabled(Activity activity) throws CameraDisabledException {
+    static void throwIfCameraDisabled(Activity activity) throws CameraDisabledException {
         // Check if device policy has disabled the camera.
         if (ApiHelper.HAS_GET_CAMERA_DISABLED) {
             DevicePolicyManager dpm = (DevicePolicyManager) activity.getSystemService(
@@ -450,73 +450,106 @@ public class Util {
 
     public static Size getOptimalPreviewSize(Activity currentActivity,
             List<Size> sizes, double targetRatio) {
-        // Use a very small tolerance because we want an exact match.
-        final double ASPECT_TOLERANCE = 0.001;
         if (sizes == null) return null;
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
+        }
+        int index = getOptimalPreviewSizeIndex(widths, heights, targetRatio,
+                getPreviewTargetHeight(currentActivity));
+        return (index < 0) ? null : sizes.get(index);
+    }
 
-        Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
-
+    // Returns the height the preview size should be closest to.
+    public static int getPreviewTargetHeight(Activity currentActivity) {
         // Because of bugs of overlay and layout, we sometimes will try to
         // layout the viewfinder in the portrait orientation and thus get the
         // wrong size of preview surface. When we change the preview size, the
         // new overlay will be created before the old one closed, which causes
         // an exception. For now, just get the screen size.
         Point point = getDefaultDisplaySize(currentActivity, new Point());
-        int targetHeight = Math.min(point.x, point.y);
+        return Math.min(point.x, point.y);
+    }
+
+    // Returns the index of the size closest to targetHeight which matches the
+    // given aspect ratio, or -1 if there are no sizes.
+    public static int getOptimalPreviewSizeIndex(int[] widths, int[] heights,
+            double targetRatio, int targetHeight) {
+        // Use a very small tolerance because we want an exact match.
+        final double ASPECT_TOLERANCE = 0.001;
+
+        int optimal = -1;
+        double minDiff = Double.MAX_VALUE;
+
         // Try to find an size match aspect ratio and size
-        for (Size size : sizes) {
-            double ratio = (double) size.width / size.height;
+        for (int i = 0; i < widths.length; i++) {
+            double ratio = (double) widths[i] / heights[i];
             if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) continue;
-            if (Math.abs(size.height - targetHeight) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
+            if (Math.abs(heights[i] - targetHeight) < minDiff) {
+                optimal = i;
+                minDiff = Math.abs(heights[i] - targetHeight);
             }
         }
         // Cannot find the one match the aspect ratio. This should not happen.
         // Ignore the requirement.
-        if (optimalSize == null) {
+        if (optimal < 0 && widths.length > 0) {
             Log.w(TAG, "No preview size match the aspect ratio");
             minDiff = Double.MAX_VALUE;
-            for (Size size : sizes) {
-                if (Math.abs(size.height - targetHeight) < minDiff) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
+            for (int i = 0; i < widths.length; i++) {
+                if (Math.abs(heights[i] - targetHeight) < minDiff) {
+                    optimal = i;
+                    minDiff = Math.abs(heights[i] - targetHeight);
                 }
             }
         }
-        return optimalSize;
+        return optimal;
     }
 
     // Returns the largest picture size which matches the given aspect ratio.
     public static Size getOptimalVideoSnapshotPictureSize(
             List<Size> sizes, double targetRatio) {
+        if (sizes == null) return null;
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
+        }
+        int index = getOptimalVideoSnapshotPictureSizeIndex(widths, heights, targetRatio);
+        return (index < 0) ? null : sizes.get(index);
+    }
+
+    // Returns the index of the largest picture size which matches the given
+    // aspect ratio, or -1 if there are no sizes.
+    public static int getOptimalVideoSnapshotPictureSizeIndex(int[] widths,
+            int[] heights, double targetRatio) {
         // Use a very small tolerance because we want an exact match.
         final double ASPECT_TOLERANCE = 0.001;
-        if (sizes == null) return null;
 
-        Size optimalSize = null;
+        int optimal = -1;
 
         // Try to find a size matches aspect ratio and has the largest width
-        for (Size size : sizes) {
-            double ratio = (double) size.width / size.height;
+        for (int i = 0; i < widths.length; i++) {
+            double ratio = (double) widths[i] / heights[i];
             if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) continue;
-            if (optimalSize == null || size.width > optimalSize.width) {
-                optimalSize = size;
+            if (optimal < 0 || widths[i] > widths[optimal]) {
+                optimal = i;
             }
         }
 
         // Cannot find one that matches the aspect ratio. This should not happen.
         // Ignore the requirement.
-        if (optimalSize == null) {
+        if (optimal < 0 && widths.length > 0) {
             Log.w(TAG, "No picture size match the aspect ratio");
-            for (Size size : sizes) {
-                if (optimalSize == null || size.width > optimalSize.width) {
-                    optimalSize = size;
+            for (int i = 0; i < widths.length; i++) {
+                if (optimal < 0 || widths[i] > widths[optimal]) {
+                    optimal = i;
                 }
             }
         }
-        return optimalSize;
+        return optimal;
     }
 
     public static void dumpParameters(Parameters parameters) {
@@ -557,6 +590,16 @@ public class Util {
         return true;
     }
 
+    /**
+     * Returns a {@code Parameters} holding the given flattened parameters,
+     * without an opened camera.
+     */
+    public static Parameters unflattenParameters(String flattened) {
+        Parameters parameters = Camera.getEmptyParameters();
+        parameters.unflatten(flattened);
+        return parameters;
+    }
+
     // This is for test only. Allow the camera to launch the specific camera.
     public static int getCameraFacingIntentExtras(Activity currentActivity) {
         int cameraId = -1;
@@ -28,6 +28,7 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences.Editor;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.graphics.Point;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PictureCallback;
@@ -80,10 +81,9 @@ import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 
-public class VideoModule implements CameraModule,
+public class VideoModule implements ParkableModule,
     CameraPreference.OnPreferenceChangedListener,
     ShutterButton.OnShutterButtonListener,
     MediaRecorder.OnErrorListener,
@@ -124,6 +124,7 @@ public class VideoModule implements CameraModule,
     private boolean mPaused;
     private int mCameraId;
     private Parameters mParameters;
+    private final CameraParameterUpdater mParameterUpdater = new CameraParameterUpdater();
 
     private boolean mSnapshotInProgress = false;
 
@@ -245,7 +246,7 @@ public class VideoModule implements CameraModule,
     private void openCamera() {
         try {
             mActivity.mCameraDevice = Util.openCamera(mActivity, mCameraId);
-            mParameters = mActivity.mCameraDevice.getParameters();
+            mParameters = mParameterUpdater.read(mActivity.mCameraDevice);
         } catch (CameraHardwareException e) {
             mActivity.mOpenCameraFail = true;
         } catch (CameraDisabledException e) {
@@ -506,6 +507,28 @@ public class VideoModule implements CameraModule,
     @Override
     public void onStop() {}
 
+    @Override
+    public boolean canUnpark() {
+        return !mActivity.mOpenCameraFail && !mActivity.mCameraDisabled
+                && mCameraId == getPreferredCameraId(mPreferences);
+    }
+
+    @Override
+    public void onUnpark(boolean reuseScreenNail) {
+        // The preferences the new preference views bind to. Another module
+        // may have created its own while this one was parked.
+        mPreferences.setCurrent(mActivity);
+        if (reuseScreenNail) {
+            mActivity.reuseCameraScreenNail(!mIsVideoCaptureIntent);
+        } else {
+            mActivity.createCameraScreenNail(!mIsVideoCaptureIntent);
+        }
+        mShutterButton.setImageResource(R.drawable.btn_new_shutter_video);
+        mShutterButton.setOnShutterButtonListener(this);
+        mShutterButton.requestFocus();
+        initializeVideoSnapshot();
+    }
+
     private void loadCameraPreferences() {
         CameraSettings settings = new CameraSettings(mActivity, mParameters,
                 mCameraId, CameraHolder.instance().getCameraInfo());
@@ -767,27 +790,18 @@ public class VideoModule implements CameraModule,
 
     @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
     private void getDesiredPreviewSize() {
-        mParameters = mActivity.mCameraDevice.getParameters();
+        mParameters = mParameterUpdater.read(mActivity.mCameraDevice);
+        CameraCapabilities capabilities = CameraCapabilities.get(mCameraId, mParameters);
         if (ApiHelper.HAS_GET_SUPPORTED_VIDEO_SIZE) {
-            if (mParameters.getSupportedVideoSizes() == null || effectsActive()) {
+            if (!capabilities.hasVideoSizes() || effectsActive()) {
                 mDesiredPreviewWidth = mProfile.videoFrameWidth;
                 mDesiredPreviewHeight = mProfile.videoFrameHeight;
             } else {  // Driver supports separates outputs for preview and video.
-                List<Size> sizes = mParameters.getSupportedPreviewSizes();
-                Size preferred = mParameters.getPreferredPreviewSizeForVideo();
-                int product = preferred.width * preferred.height;
-                Iterator<Size> it = sizes.iterator();
-                // Remove the preview sizes that are not preferred.
-                while (it.hasNext()) {
-                    Size size = it.next();
-                    if (size.width * size.height > product) {
-                        it.remove();
-                    }
-                }
-                Size optimalSize = Util.getOptimalPreviewSize(mActivity, sizes,
+                // Only the preview sizes up to the preferred one are used.
+                Point optimalSize = capabilities.getOptimalPreviewSizeForVideo(mActivity,
                         (double) mProfile.videoFrameWidth / mProfile.videoFrameHeight);
-                mDesiredPreviewWidth = optimalSize.width;
-                mDesiredPreviewHeight = optimalSize.height;
+                mDesiredPreviewWidth = optimalSize.x;
+                mDesiredPreviewHeight = optimalSize.y;
             }
         } else {
             mDesiredPreviewWidth = mProfile.videoFrameWidth;
@@ -967,6 +981,7 @@ public class VideoModule implements CameraModule,
         mActivity.mCameraDevice.setZoomChangeListener(null);
         mActivity.mCameraDevice.setErrorCallback(null);
         CameraHolder.instance().release();
+        mParameterUpdater.reset();
         mActivity.mCameraDevice = null;
         mPreviewing = false;
         mSnapshotInProgress = false;
@@ -1591,8 +1606,9 @@ public class VideoModule implements CameraModule,
         // recording. We need to alter the parameters if we support camcorder
         // zoom. To reduce latency when setting the parameters during zoom, we
         // update mParameters here once.
+        mParameterUpdater.reset();
         if (ApiHelper.HAS_ZOOM_WHEN_RECORDING) {
-            mParameters = mActivity.mCameraDevice.getParameters();
+            mParameters = mParameterUpdater.read(mActivity.mCameraDevice);
         }
 
         enableCameraControls(false);
@@ -1761,7 +1777,7 @@ public class VideoModule implements CameraModule,
         }
         // Update the parameters here because the parameters might have been altered
         // by MediaRecorder.
-        if (!mPaused) mParameters = mActivity.mCameraDevice.getParameters();
+        if (!mPaused) mParameters = mParameterUpdater.read(mActivity.mCameraDevice);
         return fail;
     }
 
@@ -1882,12 +1898,9 @@ public class VideoModule implements CameraModule,
                 UPDATE_RECORD_TIME, actualNextUpdateDelay);
     }
 
-    private static boolean isSupported(String value, List<String> supported) {
-        return supported == null ? false : supported.indexOf(value) >= 0;
-    }
-
     @SuppressWarnings("deprecation")
     private void setCameraParameters() {
+        CameraCapabilities capabilities = CameraCapabilities.get(mCameraId, mParameters);
         mParameters.setPreviewSize(mDesiredPreviewWidth, mDesiredPreviewHeight);
         mParameters.setPreviewFrameRate(mProfile.videoFrameRate);
 
@@ -1907,8 +1920,7 @@ public class VideoModule implements CameraModule,
         } else {
             flashMode = Parameters.FLASH_MODE_OFF;
         }
-        List<String> supportedFlash = mParameters.getSupportedFlashModes();
-        if (isSupported(flashMode, supportedFlash)) {
+        if (capabilities.isFlashModeSupported(flashMode)) {
             mParameters.setFlashMode(flashMode);
         } else {
             flashMode = mParameters.getFlashMode();
@@ -1922,8 +1934,7 @@ public class VideoModule implements CameraModule,
         String whiteBalance = mPreferences.getString(
                 CameraSettings.KEY_WHITE_BALANCE,
                 mActivity.getString(R.string.pref_camera_whitebalance_default));
-        if (isSupported(whiteBalance,
-                mParameters.getSupportedWhiteBalance())) {
+        if (capabilities.isWhiteBalanceSupported(whiteBalance)) {
             mParameters.setWhiteBalance(whiteBalance);
         } else {
             whiteBalance = mParameters.getWhiteBalance();
@@ -1933,13 +1944,12 @@ public class VideoModule implements CameraModule,
         }
 
         // Set zoom.
-        if (mParameters.isZoomSupported()) {
+        if (capabilities.isZoomSupported()) {
             mParameters.setZoom(mZoomValue);
         }
 
         // Set continuous autofocus.
-        List<String> supportedFocus = mParameters.getSupportedFocusModes();
-        if (isSupported(Parameters.FOCUS_MODE_CONTINUOUS_VIDEO, supportedFocus)) {
+        if (capabilities.isFocusModeSupported(Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
             mParameters.setFocusMode(Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
         }
 
@@ -1956,15 +1966,14 @@ public class VideoModule implements CameraModule,
         // The logic here is different from the logic in still-mode camera.
         // There we determine the preview size based on the picture size, but
         // here we determine the picture size based on the preview size.
-        List<Size> supported = mParameters.getSupportedPictureSizes();
-        Size optimalSize = Util.getOptimalVideoSnapshotPictureSize(supported,
+        Point optimalSize = capabilities.getOptimalVideoSnapshotPictureSize(
                 (double) mDesiredPreviewWidth / mDesiredPreviewHeight);
         Size original = mParameters.getPictureSize();
-        if (!original.equals(optimalSize)) {
-            mParameters.setPictureSize(optimalSize.width, optimalSize.height);
+        if (original.width != optimalSize.x || original.height != optimalSize.y) {
+            mParameters.setPictureSize(optimalSize.x, optimalSize.y);
         }
-        Log.v(TAG, "Video snapshot size is " + optimalSize.width + "x" +
-                optimalSize.height);
+        Log.v(TAG, "Video snapshot size is " + optimalSize.x + "x" +
+                optimalSize.y);
 
         // Set JPEG quality.
         int jpegQuality = CameraProfile.getJpegEncodingQualityParameter(mCameraId,
@@ -1975,13 +1984,14 @@ public class VideoModule implements CameraModule,
         String colorEffect = mPreferences.getString(
                 CameraSettings.KEY_COLOR_EFFECT,
                 mActivity.getString(R.string.pref_camera_coloreffect_default));
-        if (Util.isSupported(colorEffect, mParameters.getSupportedColorEffects())) {
+        if (capabilities.isColorEffectSupported(colorEffect)) {
             mParameters.setColorEffect(colorEffect);
         }
 
-        mActivity.mCameraDevice.setParameters(mParameters);
+        // The effects change the exposure and white balance locks directly.
+        if (effectsActive()) mParameterUpdater.reset();
         // Keep preview size up to date.
-        mParameters = mActivity.mCameraDevice.getParameters();
+        mParameters = mParameterUpdater.setAndRead(mActivity.mCameraDevice, mParameters);
 
         updateCameraScreenNailSize(mDesiredPreviewWidth, mDesiredPreviewHeight);
     }
@@ -2410,6 +2420,7 @@ public class VideoModule implements CameraModule,
             // Set zoom parameters asynchronously
             mParameters.setZoom(mZoomValue);
             mActivity.mCameraDevice.setParametersAsync(mParameters);
+            mParameterUpdater.onParametersSent(mParameters);
             Parameters p = mActivity.mCameraDevice.getParameters();
             mZoomRenderer.setZoomValue(mZoomRatios.get(p.getZoom()));
         }
@@ -2485,7 +2496,7 @@ public class VideoModule implements CameraModule,
         mParameters.setRotation(rotation);
         Location loc = mLocationManager.getCurrentLocation();
         Util.setGpsParameters(mParameters, loc);
-        mActivity.mCameraDevice.setParameters(mParameters);
+        mParameterUpdater.set(mActivity.mCameraDevice, mParameters);
 
         Log.v(TAG, "Video snapshot start");
         mActivity.mCameraDevice.takePicture(null, null, null, new JpegPictureCallback(loc));
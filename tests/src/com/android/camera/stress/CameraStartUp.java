@@ -17,6 +17,7 @@
 package com.android.camera.stress;
 
 import com.android.camera.CameraActivity;
+import com.android.camera.StartupTrace;
 
 import android.app.Activity;
 import android.app.Instrumentation;
@@ -53,10 +54,14 @@ public class CameraStartUp extends InstrumentationTestCase {
             Activity cameraActivity = inst.startActivitySync(intent);
             long cameraStarted = System.currentTimeMillis();
             Thread.sleep(WAIT_TIME_FOR_PREVIEW);
+            // Attribute the time to the startup phases the app recorded.
+            Log.v(TAG, "camera startup phases: " + StartupTrace.summarize());
+            long firstFrameDrawn = StartupTrace.getPhaseTime(StartupTrace.FIRST_FRAME_DRAWN);
             cameraActivity.finish();
             startupTime = cameraStarted - beforeStart;
             Thread.sleep(1000);
-            Log.v(TAG, "camera startup time: " + startupTime);
+            Log.v(TAG, "camera startup time: " + startupTime
+                    + ", first preview frame drawn: " + firstFrameDrawn);
         } catch (Exception e) {
             Log.v(TAG, "Got exception", e);
             fail("Fails to get the output file");
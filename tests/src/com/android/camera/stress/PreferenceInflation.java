@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.CameraPreference;
+import com.android.camera.IconListPreference;
+import com.android.camera.ListPreference;
+import com.android.camera.PreferenceGroup;
+import com.android.camera.PreferenceInflater;
+import com.android.camera.PreferenceTreeCache;
+import com.android.camera.R;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compares inflating the preference XML with reading the same tree back
+ * from PreferenceTreeCache.
+ */
+public class PreferenceInflation extends InstrumentationTestCase {
+    private static final String TAG = "PreferenceInflation";
+    private static final String CAMERA_TEST_OUTPUT_FILE =
+            Environment.getExternalStorageDirectory().toString() + "/mediaStressOut.txt";
+    private static final int ITERATIONS = 50;
+    private static final int CAMERA_ID = 0;
+    private static final String FINGERPRINT = "benchmark";
+
+    private File mCacheDir;
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Save the trees in a directory of our own, so the cache of the
+        // installed app is left alone.
+        Context context = getInstrumentation().getTargetContext();
+        mCacheDir = new File(context.getCacheDir(), TAG);
+        mCacheDir.mkdirs();
+        mContext = new ContextWrapper(context) {
+            @Override
+            public File getCacheDir() {
+                return mCacheDir;
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mCacheDir);
+        super.tearDown();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String[] toStrings(CharSequence[] values) {
+        if (values == null) return null;
+        String[] strings = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            strings[i] = (values[i] == null) ? null : values[i].toString();
+        }
+        return strings;
+    }
+
+    private static void assertSameStrings(String message, CharSequence[] expected,
+            CharSequence[] actual) {
+        assertTrue(message, Arrays.equals(toStrings(expected), toStrings(actual)));
+    }
+
+    // Checks that a tree read back from the cache is the one that was saved.
+    private static void assertSameTree(CameraPreference expected, CameraPreference actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        if (expected instanceof PreferenceGroup) {
+            PreferenceGroup expectedGroup = (PreferenceGroup) expected;
+            PreferenceGroup actualGroup = (PreferenceGroup) actual;
+            assertEquals(expectedGroup.size(), actualGroup.size());
+            for (int i = 0; i < expectedGroup.size(); i++) {
+                assertSameTree(expectedGroup.get(i), actualGroup.get(i));
+            }
+            return;
+        }
+        ListPreference expectedList = (ListPreference) expected;
+        ListPreference actualList = (ListPreference) actual;
+        String key = expectedList.getKey();
+        assertEquals(key, actualList.getKey());
+        assertSameStrings(key + " entries", expectedList.getEntries(),
+                actualList.getEntries());
+        assertSameStrings(key + " entry values", expectedList.getEntryValues(),
+                actualList.getEntryValues());
+        assertSameStrings(key + " default values", expectedList.getDefaultValues(),
+                actualList.getDefaultValues());
+        if (expected instanceof IconListPreference) {
+            IconListPreference expectedIcons = (IconListPreference) expected;
+            IconListPreference actualIcons = (IconListPreference) actual;
+            assertEquals(key, expectedIcons.getSingleIcon(), actualIcons.getSingleIcon());
+            assertTrue(key, Arrays.equals(expectedIcons.getIconIds(),
+                    actualIcons.getIconIds()));
+            assertTrue(key, Arrays.equals(expectedIcons.getLargeIconIds(),
+                    actualIcons.getLargeIconIds()));
+            assertTrue(key, Arrays.equals(expectedIcons.getImageIds(),
+                    actualIcons.getImageIds()));
+            assertEquals(key, expectedIcons.getUseSingleIcon(),
+                    actualIcons.getUseSingleIcon());
+        }
+    }
+
+    private long timeInflate(Context context, int resId) {
+        PreferenceInflater inflater = new PreferenceInflater(context);
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(inflater.inflate(resId));
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private long timeLoad(Context context, int resId) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(PreferenceTreeCache.load(context, resId, CAMERA_ID,
+                    FINGERPRINT, new ArrayList<String>()));
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private void benchmark(String name, int resId) throws Exception {
+        Context context = mContext;
+        PreferenceGroup group =
+                (PreferenceGroup) new PreferenceInflater(context).inflate(resId);
+        PreferenceTreeCache.save(context, resId, CAMERA_ID, FINGERPRINT, group,
+                new ArrayList<String>());
+        PreferenceGroup loaded = PreferenceTreeCache.load(context, resId, CAMERA_ID,
+                FINGERPRINT, new ArrayList<String>());
+        assertNotNull(loaded);
+        assertSameTree(group, loaded);
+        assertNull(PreferenceTreeCache.load(context, resId, CAMERA_ID,
+                FINGERPRINT + "-other", new ArrayList<String>()));
+
+        // Warm up both paths before timing them.
+        timeInflate(context, resId);
+        timeLoad(context, resId);
+        long inflateTime = timeInflate(context, resId);
+        long loadTime = timeLoad(context, resId);
+
+        String result = name + " preferences, " + ITERATIONS + " iterations: inflate "
+                + inflateTime + " ms, cache " + loadTime + " ms";
+        Log.v(TAG, result);
+        BufferedWriter out = new BufferedWriter(new FileWriter(CAMERA_TEST_OUTPUT_FILE, true));
+        try {
+            out.write(result + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    @LargeTest
+    public void testCameraPreferences() throws Exception {
+        benchmark("Camera", R.xml.camera_preferences);
+    }
+
+    @LargeTest
+    public void testVideoPreferences() throws Exception {
+        benchmark("Video", R.xml.video_preferences);
+    }
+}
@@ -16,13 +16,33 @@
 
 package com.android.camera.unittest;
 
+import com.android.camera.CameraCapabilities;
+import com.android.camera.CameraSessionRecorder;
+import com.android.camera.Mosaic;
+import com.android.camera.ReplayCameraProxy;
+import com.android.camera.StartupTrace;
 import com.android.camera.Util;
 
 import android.graphics.Matrix;
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.ShutterCallback;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 @SmallTest
 public class CameraUnitTest extends TestCase {
     public void testRoundOrientation() {
@@ -99,6 +119,325 @@ public class CameraUnitTest extends TestCase {
         assertEquals(expected, points);
     }
 
+    public void testStartupTrace() {
+        StartupTrace.clear();
+        assertEquals(-1, StartupTrace.getPhaseTime(StartupTrace.START_PREVIEW));
+
+        StartupTrace.record(StartupTrace.ACTIVITY_CREATE);
+        StartupTrace.record(StartupTrace.START_PREVIEW);
+        assertEquals(0, StartupTrace.getPhaseTime(StartupTrace.ACTIVITY_CREATE));
+        assertTrue(StartupTrace.getPhaseTime(StartupTrace.START_PREVIEW) >= 0);
+        assertEquals(-1, StartupTrace.getPhaseTime(StartupTrace.FIRST_FRAME_DRAWN));
+
+        // A module switch starts a new startup.
+        StartupTrace.record(StartupTrace.MODULE_SWITCH);
+        assertEquals(-1, StartupTrace.getPhaseTime(StartupTrace.START_PREVIEW));
+
+        // Once the ring wraps around, the start of the startup is lost.
+        for (int i = 0; i < 100; i++) {
+            StartupTrace.record(StartupTrace.FIRST_FRAME_AVAILABLE);
+        }
+        assertEquals(-1, StartupTrace.getPhaseTime(StartupTrace.FIRST_FRAME_AVAILABLE));
+        StartupTrace.clear();
+    }
+
+    public void testOptimalPreviewSizeIndex() {
+        int[] widths = {1280, 960, 640, 320};
+        int[] heights = {720, 720, 480, 240};
+        // The size closest to the target height with the same aspect ratio.
+        assertEquals(2, Util.getOptimalPreviewSizeIndex(widths, heights, 4.0 / 3, 480));
+        assertEquals(1, Util.getOptimalPreviewSizeIndex(widths, heights, 4.0 / 3, 800));
+        // Without such a size, only the height is considered.
+        assertEquals(0, Util.getOptimalPreviewSizeIndex(widths, heights, 3.0 / 2, 700));
+        assertEquals(-1, Util.getOptimalPreviewSizeIndex(new int[0], new int[0], 1, 480));
+
+        assertEquals(1, Util.getOptimalVideoSnapshotPictureSizeIndex(widths, heights, 4.0 / 3));
+        assertEquals(0, Util.getOptimalVideoSnapshotPictureSizeIndex(widths, heights, 3.0 / 2));
+    }
+
+    public void testCameraCapabilities() {
+        Parameters parameters = Util.unflattenParameters(
+                "picture-size-values=2048x1536,640x480;preview-frame-rate-values=15,30,24;"
+                + "flash-mode-values=off,on;max-exposure-compensation=2;"
+                + "min-exposure-compensation=-2;zoom-supported=true");
+        CameraCapabilities capabilities = CameraCapabilities.get(0, parameters);
+        assertEquals(2, capabilities.getPictureSizeCount());
+        assertTrue(capabilities.isPictureSizeSupported(640, 480));
+        assertFalse(capabilities.isPictureSizeSupported(480, 640));
+        assertEquals(30, capabilities.getMaxPreviewFrameRate());
+        assertTrue(capabilities.isFlashModeSupported("on"));
+        assertFalse(capabilities.isFlashModeSupported("torch"));
+        assertFalse(capabilities.isFocusModeSupported(Parameters.FOCUS_MODE_AUTO));
+        assertFalse(capabilities.hasVideoSizes());
+        assertTrue(capabilities.isZoomSupported());
+        assertTrue(capabilities.isExposureCompensationSupported(-2));
+        assertFalse(capabilities.isExposureCompensationSupported(3));
+
+        // The same value lists give the same instance, other ones a new one.
+        parameters.setFlashMode("on");
+        assertSame(capabilities, CameraCapabilities.get(0,
+                Util.unflattenParameters(parameters.flatten())));
+        parameters.set("flash-mode-values", "off");
+        CameraCapabilities changed = CameraCapabilities.get(0, parameters);
+        assertNotSame(capabilities, changed);
+        assertFalse(changed.isFlashModeSupported("on"));
+    }
+
+    // How late a replayed callback may be on a busy main thread.
+    private static final long REPLAY_SLACK_MS = 500;
+
+    private static void assertReplayedAt(long expected, long actual) {
+        assertTrue("expected at " + expected + " ms, was " + actual + " ms",
+                actual >= expected && actual < expected + REPLAY_SLACK_MS);
+    }
+
+    @MediumTest
+    public void testSessionReplay() throws Exception {
+        final byte[][] frames = {{1, 2, 3}, {4, 5, 6}, {7, 8, 9}};
+        final byte[] jpeg = {10, 11, 12, 13};
+        File file = File.createTempFile("camera_session", ".bin");
+        try {
+            CameraSessionRecorder recorder = new CameraSessionRecorder(file, 0);
+            recorder.recordParameters("preview-size=640x480;picture-size=2048x1536");
+            recorder.recordCall("takePicture", SystemClock.uptimeMillis(), 40);
+            for (byte[] frame : frames) {
+                recorder.recordCallback(CameraSessionRecorder.CALLBACK_PREVIEW_FRAME,
+                        50, 0, frame);
+            }
+            recorder.recordCallback(CameraSessionRecorder.CALLBACK_SHUTTER, 100, 0, null);
+            recorder.recordCallback(CameraSessionRecorder.CALLBACK_JPEG, 300, 0, jpeg);
+            recorder.close();
+            recorder.waitUntilClosed();
+
+            ReplayCameraProxy camera = ReplayCameraProxy.load(file);
+            assertEquals("2048x1536", camera.getParameters().get("picture-size"));
+
+            // Preview frames come with the recorded payloads, each timed
+            // from the previous one.
+            final ArrayList<byte[]> previewData = new ArrayList<byte[]>();
+            final ArrayList<Long> previewTimes = new ArrayList<Long>();
+            final CountDownLatch previewDone = new CountDownLatch(frames.length);
+            camera.setPreviewCallback(new PreviewCallback() {
+                @Override
+                public void onPreviewFrame(byte[] data, Camera c) {
+                    synchronized (previewData) {
+                        if (previewData.size() == frames.length) return;
+                        previewData.add(data);
+                        previewTimes.add(SystemClock.uptimeMillis());
+                    }
+                    previewDone.countDown();
+                }
+            });
+            long start = SystemClock.uptimeMillis();
+            camera.startPreviewAsync();
+            assertTrue(previewDone.await(5, TimeUnit.SECONDS));
+            camera.stopPreview();
+            synchronized (previewData) {
+                for (int i = 0; i < frames.length; i++) {
+                    assertTrue(Arrays.equals(frames[i], previewData.get(i)));
+                    assertReplayedAt(50 * (i + 1), previewTimes.get(i) - start);
+                }
+            }
+
+            // The call blocks as long as in the recording, and the picture
+            // callbacks come in the recorded order, timed from the call.
+            final ArrayList<String> events = new ArrayList<String>();
+            final long[] eventTimes = new long[2];
+            final byte[][] jpegData = new byte[1][];
+            final CountDownLatch pictureDone = new CountDownLatch(2);
+            start = SystemClock.uptimeMillis();
+            camera.takePicture(new ShutterCallback() {
+                @Override
+                public void onShutter() {
+                    synchronized (events) {
+                        eventTimes[events.size()] = SystemClock.uptimeMillis();
+                        events.add("shutter");
+                    }
+                    pictureDone.countDown();
+                }
+            }, null, null, new PictureCallback() {
+                @Override
+                public void onPictureTaken(byte[] data, Camera c) {
+                    synchronized (events) {
+                        eventTimes[events.size()] = SystemClock.uptimeMillis();
+                        events.add("jpeg");
+                        jpegData[0] = data;
+                    }
+                    pictureDone.countDown();
+                }
+            });
+            assertTrue(SystemClock.uptimeMillis() - start >= 40);
+            assertTrue(pictureDone.await(5, TimeUnit.SECONDS));
+            synchronized (events) {
+                assertEquals(Arrays.asList("shutter", "jpeg"), events);
+                assertReplayedAt(100, eventTimes[0] - start);
+                assertReplayedAt(300, eventTimes[1] - start);
+                assertTrue(Arrays.equals(jpeg, jpegData[0]));
+            }
+            camera.release();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static final int MOSAIC_WIDTH = 320;
+    private static final int MOSAIC_HEIGHT = 240;
+    private static final int MOSAIC_FRAMES = 8;
+    private static final int MOSAIC_STEP = 32;
+
+    // Frames of a scene of random blocks, panned by MOSAIC_STEP pixels, in
+    // the NV21 format.
+    private static byte[][] createPanFrames() {
+        int sceneWidth = MOSAIC_WIDTH + MOSAIC_STEP * (MOSAIC_FRAMES - 1);
+        byte[] scene = new byte[sceneWidth * MOSAIC_HEIGHT];
+        Random random = new Random(0);
+        int block = 16;
+        for (int y = 0; y < MOSAIC_HEIGHT; y += block) {
+            for (int x = 0; x < sceneWidth; x += block) {
+                byte luma = (byte) (16 + random.nextInt(220));
+                for (int i = y; i < y + block; i++) {
+                    Arrays.fill(scene, i * sceneWidth + x, i * sceneWidth + x + block, luma);
+                }
+            }
+        }
+        int frameSize = MOSAIC_WIDTH * MOSAIC_HEIGHT;
+        byte[][] frames = new byte[MOSAIC_FRAMES][frameSize * 3 / 2];
+        for (int k = 0; k < MOSAIC_FRAMES; k++) {
+            for (int y = 0; y < MOSAIC_HEIGHT; y++) {
+                System.arraycopy(scene, y * sceneWidth + k * MOSAIC_STEP,
+                        frames[k], y * MOSAIC_WIDTH, MOSAIC_WIDTH);
+            }
+            Arrays.fill(frames[k], frameSize, frames[k].length, (byte) 128);
+        }
+        return frames;
+    }
+
+    // Stitches the frames and returns the low-res mosaic, or null if it
+    // failed.
+    private static int[] stitch(byte[][] frames) {
+        Mosaic mosaic = new Mosaic();
+        try {
+            mosaic.allocateMosaicMemory(MOSAIC_WIDTH, MOSAIC_HEIGHT);
+            mosaic.setStripType(Mosaic.STRIPTYPE_WIDE);
+            mosaic.reset();
+            for (byte[] frame : frames) {
+                mosaic.setSourceImage(frame);
+            }
+            int[] result = null;
+            if (mosaic.createMosaic(false) == Mosaic.MOSAIC_RET_OK) {
+                result = mosaic.getFinalMosaic(false);
+            }
+            mosaic.freeMosaicMemory();
+            return result;
+        } finally {
+            mosaic.release();
+        }
+    }
+
+    @MediumTest
+    public void testConcurrentMosaics() throws Exception {
+        final byte[][] frames = createPanFrames();
+        int[] expected = stitch(frames);
+        assertNotNull(expected);
+        assertTrue(expected.length > 0);
+
+        final int[][] results = new int[2][];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = stitch(frames);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Each mosaic has its own state, so stitching at the same time gives
+        // the same result as stitching alone.
+        for (int[] result : results) {
+            assertNotNull(result);
+            assertTrue(Arrays.equals(expected, result));
+        }
+    }
+
+    @MediumTest
+    public void testFinalMosaicTiles() throws Exception {
+        final Mosaic mosaic = new Mosaic();
+        try {
+            mosaic.allocateMosaicMemory(MOSAIC_WIDTH, MOSAIC_HEIGHT);
+            mosaic.setStripType(Mosaic.STRIPTYPE_WIDE);
+            mosaic.reset();
+            for (byte[] frame : createPanFrames()) {
+                mosaic.setSourceImage(frame);
+            }
+            assertEquals(Mosaic.MOSAIC_RET_OK, mosaic.createMosaic(false));
+            int[] size = mosaic.getFinalMosaicSize(false);
+            assertNotNull(size);
+            final int width = size[0];
+            final int height = size[1];
+            final int rows = 16;
+
+            // The bands put together give the same mosaic as the copy.
+            final ByteBuffer tiled = ByteBuffer.allocate(width * height * 3 / 2);
+            final int[] nextTop = new int[1];
+            assertTrue(mosaic.visitFinalMosaicTiles(false, rows, new Mosaic.TileVisitor() {
+                @Override
+                public boolean visitTile(int top, int tileWidth, int tileHeight,
+                        ByteBuffer y, ByteBuffer vu) {
+                    assertEquals(nextTop[0], top);
+                    assertEquals(width, tileWidth);
+                    assertEquals(Math.min(rows, height - top), tileHeight);
+                    assertEquals(tileHeight * width, y.remaining());
+                    assertEquals(tileHeight / 2 * width, vu.remaining());
+                    assertTrue(y.isReadOnly());
+                    tiled.position(top * width);
+                    tiled.put(y);
+                    tiled.position(width * height + top / 2 * width);
+                    tiled.put(vu);
+                    nextTop[0] += tileHeight;
+                    return true;
+                }
+            }));
+            assertEquals(height, nextTop[0]);
+            ByteBuffer copy = ByteBuffer.allocate(width * height * 3 / 2);
+            assertTrue(mosaic.getFinalMosaicNV21(false, copy));
+            assertTrue(Arrays.equals(copy.array(), tiled.array()));
+
+            // Resetting the mosaic waits until the visitor is done with its
+            // memory.
+            final CountDownLatch resetDone = new CountDownLatch(1);
+            final Thread resetter = new Thread() {
+                @Override
+                public void run() {
+                    mosaic.reset();
+                    resetDone.countDown();
+                }
+            };
+            assertTrue(mosaic.visitFinalMosaicTiles(false, rows, new Mosaic.TileVisitor() {
+                @Override
+                public boolean visitTile(int top, int tileWidth, int tileHeight,
+                        ByteBuffer y, ByteBuffer vu) {
+                    resetter.start();
+                    try {
+                        assertFalse(resetDone.await(200, TimeUnit.MILLISECONDS));
+                    } catch (InterruptedException e) {
+                        fail();
+                    }
+                    return false;
+                }
+            }));
+            assertTrue(resetDone.await(10, TimeUnit.SECONDS));
+            mosaic.freeMosaicMemory();
+        } finally {
+            mosaic.release();
+        }
+    }
+
     private void assertEquals(int expected[], float[] actual) {
         for (int i = 0; i < expected.length; i++) {
             assertEquals("Array index " + i + " mismatch", expected[i], Math.round(actual[i]));